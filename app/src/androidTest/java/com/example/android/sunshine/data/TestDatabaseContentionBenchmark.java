@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Measures how long {@link WeatherProvider#query} takes for readers while a writer keeps
+ * rewriting the weather table, once with SQLite's default rollback journal and once with
+ * write-ahead logging. Results are written to logcat under the "DatabaseContention" tag.
+ * <p>
+ * The writer stands in for the sync, bulk inserting a large forecast over and over. Each reader
+ * stands in for a CursorLoader or a widget, querying a short forecast for another location the
+ * way MainActivity does. With a rollback journal every query waits for the write in progress;
+ * with write-ahead logging it shouldn't have to.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestDatabaseContentionBenchmark {
+
+    private static final String TAG = "DatabaseContention";
+
+    private static final int READER_COUNT = 4;
+    private static final long RUN_MILLIS = 3000;
+
+    /* Large enough that a single write takes a while */
+    private static final int ROWS_PER_WRITE = 2000;
+    private static final int ROWS_PER_READ = 14;
+
+    /* Readers stop recording once they have this many samples */
+    private static final int MAX_SAMPLES_PER_READER = 200000;
+
+    private static final String WRITER_LOCATION = "writer";
+    private static final String READER_LOCATION = "reader";
+
+    private static final String[] READER_PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_WEATHER_ID,
+    };
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @Test
+    public void benchmarkReadersWithOneWriter() throws Exception {
+        Result rollback = runBenchmark(WeatherDbHelper.STORAGE_MODE_ROLLBACK);
+        Result wal = runBenchmark(WeatherDbHelper.STORAGE_MODE_WAL);
+
+        Log.i(TAG, "rollback journal: " + rollback);
+        Log.i(TAG, "write-ahead log:  " + wal);
+    }
+
+    private Result runBenchmark(int storageMode) throws Exception {
+        String databaseName = "contention_benchmark_" + storageMode + ".db";
+        mContext.deleteDatabase(databaseName);
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, databaseName, storageMode);
+        final WeatherProvider provider = new WeatherProvider(helper);
+        provider.attachInfo(mContext, null);
+
+        try {
+            final Uri writerUri = WeatherEntry.buildWeatherUriWithLocation(WRITER_LOCATION);
+            final Uri readerUri = WeatherEntry.buildWeatherUriWithLocation(READER_LOCATION);
+            final ContentValues[] writes = createForecast(ROWS_PER_WRITE);
+            provider.bulkInsert(readerUri, createForecast(ROWS_PER_READ));
+
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final CountDownLatch start = new CountDownLatch(1);
+            final int[] writeCount = new int[1];
+
+            /* Assertions can't fail the test from another thread, so readers count instead */
+            final AtomicInteger incompleteReads = new AtomicInteger();
+
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    while (running.get()) {
+                        provider.bulkInsert(writerUri, writes);
+                        writeCount[0]++;
+                    }
+                }
+            }, "ContentionWriter");
+
+            final long[][] samples = new long[READER_COUNT][MAX_SAMPLES_PER_READER];
+            final int[] sampleCounts = new int[READER_COUNT];
+            Thread[] readers = new Thread[READER_COUNT];
+
+            for (int r = 0; r < READER_COUNT; r++) {
+                final int reader = r;
+                readers[r] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        awaitQuietly(start);
+                        long[] latencies = samples[reader];
+                        int count = 0;
+                        while (running.get() && count < latencies.length) {
+                            long queryStart = System.nanoTime();
+                            Cursor cursor = provider.query(readerUri, READER_PROJECTION,
+                                    null, null, WeatherEntry.COLUMN_DATE + " ASC");
+                            /* Moving to the last row makes the cursor actually run the query */
+                            cursor.moveToLast();
+                            int rows = cursor.getCount();
+                            cursor.close();
+                            latencies[count++] = System.nanoTime() - queryStart;
+
+                            if (rows != ROWS_PER_READ) {
+                                incompleteReads.incrementAndGet();
+                            }
+                        }
+                        sampleCounts[reader] = count;
+                    }
+                }, "ContentionReader-" + r);
+            }
+
+            writer.start();
+            for (Thread reader : readers) reader.start();
+
+            start.countDown();
+            Thread.sleep(RUN_MILLIS);
+            running.set(false);
+
+            writer.join();
+            for (Thread reader : readers) reader.join();
+
+            assertTrue("The writer should have written at least once", writeCount[0] > 0);
+            assertEquals("Readers should always see the whole forecast",
+                    0, incompleteReads.get());
+            return new Result(writeCount[0], samples, sampleCounts);
+        } finally {
+            provider.shutdown();
+            mContext.deleteDatabase(databaseName);
+        }
+    }
+
+    private static ContentValues[] createForecast(int days) {
+        ContentValues[] forecast = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.DATE_NORMALIZED + i * SunshineDateUtils.DAY_IN_MILLIS);
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + i % 5);
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0 + i % 7);
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + i % 9);
+            values.put(WeatherEntry.COLUMN_HUMIDITY, 50.0 + i % 40);
+            values.put(WeatherEntry.COLUMN_PRESSURE, 1000.0 + i % 30);
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, (double) (i % 12));
+            values.put(WeatherEntry.COLUMN_DEGREES, (double) (i % 360));
+            forecast[i] = values;
+        }
+        return forecast;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Query latencies of every reader put together */
+    private static final class Result {
+        final int writes;
+        final int queries;
+        final long p50Nanos;
+        final long p99Nanos;
+        final long maxNanos;
+
+        Result(int writes, long[][] samples, int[] sampleCounts) {
+            int total = 0;
+            for (int count : sampleCounts) total += count;
+
+            long[] all = new long[total];
+            int offset = 0;
+            for (int r = 0; r < samples.length; r++) {
+                System.arraycopy(samples[r], 0, all, offset, sampleCounts[r]);
+                offset += sampleCounts[r];
+            }
+            Arrays.sort(all);
+
+            this.writes = writes;
+            this.queries = total;
+            this.p50Nanos = total == 0 ? 0 : all[total / 2];
+            this.p99Nanos = total == 0 ? 0 : all[Math.min(total - 1, (int) (total * 0.99))];
+            this.maxNanos = total == 0 ? 0 : all[total - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d writes, %d queries, query p50 %.2f ms, p99 %.2f ms, "
+                            + "max %.2f ms",
+                    writes, queries, p50Nanos / 1e6, p99Nanos / 1e6, maxNanos / 1e6);
+        }
+    }
+}
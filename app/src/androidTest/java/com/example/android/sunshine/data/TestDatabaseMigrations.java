@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.android.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Upgrades a database from every past version that {@link WeatherDbHelper} can migrate, and
+ * checks that the weather it held is still there afterwards and that the schema ends up exactly
+ * the same as a freshly created one.
+ * <p>
+ * Each past version is created from a frozen copy of the SQL that version ran, rather than from
+ * WeatherContract, which only ever describes the current schema. When you increment
+ * DATABASE_VERSION, add the schema of the version you are leaving to
+ * {@link #createPastSchema(SQLiteDatabase, int)}; the upgrade test fails until you do.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestDatabaseMigrations {
+
+    private static final String DATABASE_NAME = "migration_test.db";
+    private static final String FRESH_DATABASE_NAME = "migration_test_fresh.db";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @Before
+    public void setUp() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    @Test
+    public void testUpgradeFromEveryPastVersionKeepsWeather() {
+        WeatherDbHelper freshHelper = new WeatherDbHelper(mContext, FRESH_DATABASE_NAME,
+                WeatherDbHelper.STORAGE_MODE_WAL);
+        String expectedSchema = describeSchema(freshHelper.getReadableDatabase());
+        freshHelper.close();
+
+        for (int version = WeatherDbHelper.FIRST_MIGRATABLE_VERSION;
+             version < WeatherDbHelper.DATABASE_VERSION;
+             version++) {
+
+            mContext.deleteDatabase(DATABASE_NAME);
+            createPastDatabase(version);
+
+            WeatherDbHelper helper = new WeatherDbHelper(mContext, DATABASE_NAME,
+                    WeatherDbHelper.STORAGE_MODE_WAL);
+            SQLiteDatabase database = helper.getWritableDatabase();
+
+            assertEquals("Upgrade from version " + version + " ended at the wrong version",
+                    WeatherDbHelper.DATABASE_VERSION, database.getVersion());
+            assertEquals("Upgrade from version " + version + " left a different schema than "
+                            + "a new database has",
+                    expectedSchema, describeSchema(database));
+
+            assertCurrentLocationWeather(version, database);
+
+            helper.close();
+        }
+    }
+
+    /**
+     * Creates a database the way a past version of Sunshine left it, holding the test forecast
+     * for the location in the preferences.
+     */
+    private void createPastDatabase(int version) {
+        SQLiteDatabase database = mContext.openOrCreateDatabase(DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            createPastSchema(database, version);
+            insertPastWeather(database, version);
+            database.setVersion(version);
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * The schema of every past version that can be migrated, exactly as that version created it.
+     */
+    private static void createPastSchema(SQLiteDatabase database, int version) {
+        switch (version) {
+            case 3:
+                database.execSQL("CREATE TABLE weather ("
+                        + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + "date INTEGER NOT NULL, "
+                        + "weather_id INTEGER NOT NULL,"
+                        + "min REAL NOT NULL, "
+                        + "max REAL NOT NULL, "
+                        + "humidity REAL NOT NULL, "
+                        + "pressure REAL NOT NULL, "
+                        + "wind REAL NOT NULL, "
+                        + "degrees REAL NOT NULL, "
+                        + " UNIQUE (date) ON CONFLICT REPLACE);");
+                break;
+
+            case 4:
+                database.execSQL("CREATE TABLE location ("
+                        + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + "location_setting TEXT UNIQUE NOT NULL, "
+                        + "coord_lat REAL, "
+                        + "coord_long REAL, "
+                        + "last_sync INTEGER, "
+                        + "source_url TEXT);");
+                database.execSQL("CREATE TABLE weather ("
+                        + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + "date INTEGER NOT NULL, "
+                        + "weather_id INTEGER NOT NULL,"
+                        + "min REAL NOT NULL, "
+                        + "max REAL NOT NULL, "
+                        + "humidity REAL NOT NULL, "
+                        + "pressure REAL NOT NULL, "
+                        + "wind REAL NOT NULL, "
+                        + "degrees REAL NOT NULL, "
+                        + "location_id INTEGER NOT NULL REFERENCES location (_id), "
+                        + " UNIQUE (location_id, date) ON CONFLICT REPLACE);");
+                break;
+
+            case 5:
+                createPastSchema(database, 4);
+                database.execSQL("CREATE TABLE weather_history ("
+                        + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                        + "location_id INTEGER NOT NULL REFERENCES location (_id), "
+                        + "date INTEGER NOT NULL, "
+                        + "fetched_at INTEGER NOT NULL, "
+                        + "month INTEGER NOT NULL, "
+                        + "weather_id INTEGER NOT NULL, "
+                        + "min REAL NOT NULL, "
+                        + "max REAL NOT NULL, "
+                        + "humidity REAL NOT NULL, "
+                        + "pressure REAL NOT NULL, "
+                        + "wind REAL NOT NULL, "
+                        + "degrees REAL NOT NULL, "
+                        + " UNIQUE (location_id, date, fetched_at) ON CONFLICT REPLACE);");
+                database.execSQL(
+                        "CREATE INDEX weather_history_month ON weather_history (month)");
+                break;
+
+            default:
+                throw new AssertionError("There is no schema for database version " + version
+                        + ". Add the schema of every version you migrate from.");
+        }
+    }
+
+    private void insertPastWeather(SQLiteDatabase database, int version) {
+        switch (version) {
+            case 3:
+                /* Version 3 only ever held the weather of the current location */
+                for (ContentValues values : createBulkInsertTestWeatherValues()) {
+                    database.insertOrThrow("weather", null, values);
+                }
+                break;
+
+            case 4:
+            case 5: {
+                /* Version 5 only added the history table, which starts out empty */
+                ContentValues location = new ContentValues();
+                location.put("location_setting",
+                        SunshinePreferences.getPreferredWeatherLocation(mContext));
+                long locationId = database.insertOrThrow("location", null, location);
+
+                for (ContentValues values : createBulkInsertTestWeatherValues()) {
+                    values.put("location_id", locationId);
+                    database.insertOrThrow("weather", null, values);
+                }
+                break;
+            }
+
+            default:
+                throw new AssertionError("No test weather for database version " + version);
+        }
+    }
+
+    /* The test forecast should now belong to the location in the preferences */
+    private void assertCurrentLocationWeather(int version, SQLiteDatabase database) {
+        String locationSetting = SunshinePreferences.getPreferredWeatherLocation(mContext);
+
+        assertEquals("Upgrade from version " + version + " lost weather rows",
+                BULK_INSERT_RECORDS_TO_INSERT,
+                DatabaseUtils.queryNumEntries(database, WeatherEntry.TABLE_NAME));
+
+        Cursor cursor = database.query(WeatherEntry.TABLE_NAME,
+                null,
+                WeatherEntry.COLUMN_LOC_KEY + " = (SELECT " + LocationEntry._ID
+                        + " FROM " + LocationEntry.TABLE_NAME
+                        + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ?)",
+                new String[]{locationSetting},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+
+        try {
+            assertEquals("Upgrade from version " + version
+                            + " didn't give the weather to the current location",
+                    BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+
+            ContentValues[] expected = createBulkInsertTestWeatherValues();
+            for (int i = 0; cursor.moveToNext(); i++) {
+                TestUtilities.validateCurrentRecord(
+                        "Upgrade from version " + version + " changed row " + i,
+                        cursor,
+                        expected[i]);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Describes every table's columns and every index's columns, in a stable order, so that two
+     * databases can be compared however their tables were created.
+     */
+    private static String describeSchema(SQLiteDatabase database) {
+        List<String> lines = new ArrayList<>();
+
+        Cursor tables = database.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'"
+                + " AND name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null);
+        try {
+            while (tables.moveToNext()) {
+                String table = tables.getString(0);
+                describeColumns(database, table, lines);
+                describeIndexes(database, table, lines);
+            }
+        } finally {
+            tables.close();
+        }
+
+        assertTrue("The database has no tables", !lines.isEmpty());
+
+        Collections.sort(lines);
+        StringBuilder schema = new StringBuilder();
+        for (String line : lines) {
+            schema.append(line).append('\n');
+        }
+        return schema.toString();
+    }
+
+    private static void describeColumns(SQLiteDatabase database, String table,
+                                        List<String> lines) {
+        Cursor columns = database.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int name = columns.getColumnIndexOrThrow("name");
+            int type = columns.getColumnIndexOrThrow("type");
+            int notNull = columns.getColumnIndexOrThrow("notnull");
+            int primaryKey = columns.getColumnIndexOrThrow("pk");
+            while (columns.moveToNext()) {
+                lines.add(table + " column " + columns.getString(name)
+                        + " " + columns.getString(type)
+                        + (columns.getInt(notNull) != 0 ? " NOT NULL" : "")
+                        + (columns.getInt(primaryKey) != 0 ? " PRIMARY KEY" : ""));
+            }
+        } finally {
+            columns.close();
+        }
+    }
+
+    private static void describeIndexes(SQLiteDatabase database, String table,
+                                        List<String> lines) {
+        Cursor indexes = database.rawQuery("PRAGMA index_list(" + table + ")", null);
+        try {
+            int name = indexes.getColumnIndexOrThrow("name");
+            int unique = indexes.getColumnIndexOrThrow("unique");
+            while (indexes.moveToNext()) {
+                StringBuilder line = new StringBuilder(table)
+                        .append(indexes.getInt(unique) != 0 ? " unique index (" : " index (");
+
+                Cursor indexColumns = database.rawQuery(
+                        "PRAGMA index_info(" + indexes.getString(name) + ")", null);
+                try {
+                    while (indexColumns.moveToNext()) {
+                        if (indexColumns.getPosition() > 0) line.append(", ");
+                        line.append(indexColumns.getString(
+                                indexColumns.getColumnIndexOrThrow("name")));
+                    }
+                } finally {
+                    indexColumns.close();
+                }
+
+                lines.add(line.append(')').toString());
+            }
+        } finally {
+            indexes.close();
+        }
+    }
+}
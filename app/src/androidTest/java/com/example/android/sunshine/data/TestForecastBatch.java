@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.example.android.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Checks that a {@link ForecastBatch} holds on to every value through each of the forms it can
+ * be converted to and from.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastBatch {
+
+    @Test
+    public void testContentValuesRoundTrip() {
+        ContentValues[] values = createBulkInsertTestWeatherValues();
+
+        ContentValues[] roundTripped = ForecastBatch.fromContentValues(values).toContentValues();
+
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, roundTripped.length);
+        for (int i = 0; i < values.length; i++) {
+            for (String column : values[i].keySet()) {
+                assertEquals("Row " + i + " " + column + " was changed",
+                        values[i].getAsDouble(column),
+                        roundTripped[i].getAsDouble(column));
+            }
+        }
+    }
+
+    @Test
+    public void testBundleSurvivesParceling() {
+        ForecastBatch batch = ForecastBatch.fromContentValues(createBulkInsertTestWeatherValues());
+
+        /* Parcel the Bundle the way it would be to reach a provider in another process */
+        Parcel parcel = Parcel.obtain();
+        parcel.writeBundle(batch.toBundle());
+        parcel.setDataPosition(0);
+        Bundle unparceled = parcel.readBundle(getClass().getClassLoader());
+        parcel.recycle();
+
+        assertSameRows(batch, ForecastBatch.fromBundle(unparceled));
+    }
+
+    @Test
+    public void testCursorRoundTrip() {
+        ForecastBatch batch = ForecastBatch.fromContentValues(createBulkInsertTestWeatherValues());
+
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                WeatherContract.WeatherEntry.COLUMN_DATE,
+                WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                WeatherContract.WeatherEntry.COLUMN_DEGREES});
+        for (int i = 0; i < batch.size(); i++) {
+            cursor.addRow(new Object[]{batch.getDate(i), batch.getWeatherId(i),
+                    batch.getMinTemp(i), batch.getMaxTemp(i), batch.getHumidity(i),
+                    batch.getPressure(i), batch.getWindSpeed(i), batch.getDegrees(i)});
+        }
+
+        assertSameRows(batch, ForecastBatch.fromCursor(cursor));
+        cursor.close();
+    }
+
+    @Test
+    public void testBatchGrowsAndClears() {
+        ForecastBatch batch = new ForecastBatch(1);
+        for (int i = 0; i < 100; i++) {
+            batch.add(i, i, i, i, i, i, i, i);
+        }
+        assertEquals(100, batch.size());
+        assertEquals(99L, batch.getDate(99));
+
+        batch.clear();
+        assertEquals(0, batch.size());
+        try {
+            batch.getDate(0);
+            fail("A cleared batch should have no rows");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    private static void assertSameRows(ForecastBatch expected, ForecastBatch actual) {
+        assertEquals("Wrong number of rows", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue("Row " + i + " was changed", expected.rowEquals(i, actual, i));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Compares the two ways the first query after the process starts can read the forecast:
+ * opening the database and reading a {@link ForecastSnapshot} from it, and mapping the
+ * location's file from {@link ForecastFileStore}. Each run starts from nothing, with a new
+ * WeatherDbHelper or a new ForecastFileStore, and reads every column of every day through a
+ * {@link ForecastSnapshotCursor}, the way the forecast list would.
+ * <p>
+ * The median and slowest run of each are written to logcat under the "ForecastFileBenchmark"
+ * tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastFileBenchmark {
+
+    private static final String TAG = "ForecastFileBenchmark";
+
+    private static final int RUNS = 50;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private String mLocationSetting;
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        ContentValues[] forecast = createBulkInsertTestWeatherValues();
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < forecast.length; i++) {
+            forecast[i].put(WeatherEntry.COLUMN_DATE, today + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, forecast);
+        mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_RECONCILE, null, extras);
+
+        mLocationSetting = SunshinePreferences.getPreferredWeatherLocation(mContext);
+        mDirectory = new File(mContext.getCacheDir(),
+                "benchmark-" + ForecastFileStore.DIRECTORY_NAME);
+        new ForecastFileStore(mDirectory).write(readFromDatabase(), 1);
+    }
+
+    @After
+    public void tearDown() {
+        new ForecastFileStore(mDirectory).deleteAll(0);
+        mDirectory.delete();
+    }
+
+    @Test
+    public void benchmarkFirstRead() {
+        long[] databaseNanos = new long[RUNS];
+        long[] fileNanos = new long[RUNS];
+        double databaseSum = 0;
+        double fileSum = 0;
+
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            databaseSum = readEveryColumn(readFromDatabase());
+            databaseNanos[run] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            fileSum = readEveryColumn(new ForecastFileStore(mDirectory).read(mLocationSetting));
+            fileNanos[run] = System.nanoTime() - start;
+        }
+
+        assertEquals("The file and the database should hold the same forecast",
+                databaseSum, fileSum);
+
+        Arrays.sort(databaseNanos);
+        Arrays.sort(fileNanos);
+        Log.i(TAG, String.format("First read of %d days over %d runs: "
+                        + "database median %.3f ms, slowest %.3f ms; "
+                        + "file median %.3f ms, slowest %.3f ms",
+                readFromDatabase().size(), RUNS,
+                databaseNanos[RUNS / 2] / 1e6, databaseNanos[RUNS - 1] / 1e6,
+                fileNanos[RUNS / 2] / 1e6, fileNanos[RUNS - 1] / 1e6));
+    }
+
+    /* What WeatherProvider does on a miss without forecast files, from opening the database on */
+    private ForecastSnapshot readFromDatabase() {
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        try {
+            return ForecastSnapshot.read(helper.getReadableDatabase(), mLocationSetting);
+        } finally {
+            helper.close();
+        }
+    }
+
+    /* Reads every value once, and sums them so that the reads can't be optimized away */
+    private static double readEveryColumn(ForecastSnapshot snapshot) {
+        Cursor cursor = new ForecastSnapshotCursor(snapshot, ForecastSnapshot.ALL_COLUMNS,
+                ForecastSnapshot.resolveColumns(null), 0, snapshot.size());
+        double sum = 0;
+        while (cursor.moveToNext()) {
+            for (int column = 0; column < cursor.getColumnCount(); column++) {
+                sum += cursor.getDouble(column);
+            }
+        }
+        cursor.close();
+        return sum;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that a forecast file holds exactly what the database does, that replacing a file
+ * doesn't disturb a snapshot that mapped the old one, that a damaged file is ignored, that a
+ * write that comes too late is dropped, and that WeatherProvider keeps its files in step with
+ * its writes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastFileStore {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ContentValues[] mForecast;
+    private String mLocationSetting;
+
+    /* A store of our own, so the tests don't touch the provider's files */
+    private File mDirectory;
+    private ForecastFileStore mStore;
+    private long mSequence;
+
+    @Before
+    public void setUp() {
+        SQLiteDatabase database = new WeatherDbHelper(mContext).getWritableDatabase();
+        database.delete(WeatherEntry.TABLE_NAME, null, null);
+        database.delete(HistoryEntry.TABLE_NAME, null, null);
+        database.delete(LocationEntry.TABLE_NAME, null, null);
+        database.close();
+        TestUtilities.dropForecastSnapshot(mContext);
+
+        mForecast = createBulkInsertTestWeatherValues();
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < mForecast.length; i++) {
+            mForecast[i].put(WeatherEntry.COLUMN_DATE, today + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+        mLocationSetting = SunshinePreferences.getPreferredWeatherLocation(mContext);
+
+        mDirectory = new File(mContext.getCacheDir(), "test-" + ForecastFileStore.DIRECTORY_NAME);
+        mStore = new ForecastFileStore(mDirectory);
+        mStore.deleteAll(0);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.deleteAll(0);
+        mDirectory.delete();
+    }
+
+    @Test
+    public void testFileMatchesDatabase() {
+        reconcile(mForecast);
+        ForecastSnapshot fromDatabase = readFromDatabase();
+
+        assertEquals("The file should have been written", true, mStore.write(fromDatabase, nextSequence()));
+        ForecastSnapshot fromFile = mStore.read(mLocationSetting);
+        assertNotNull("The file should have been read back", fromFile);
+
+        assertSnapshotsMatch(fromDatabase, fromFile);
+
+        long thirdDate = mForecast[2].getAsLong(WeatherEntry.COLUMN_DATE);
+        assertEquals("Looking up a date in the file found the wrong row",
+                2, fromFile.rowOf(thirdDate));
+        assertEquals("Looking up a date between days found the wrong row",
+                3, fromFile.firstRowOnOrAfter(thirdDate + 1));
+        assertEquals("A date the file doesn't have shouldn't be found",
+                -1, fromFile.rowOf(thirdDate + 1));
+    }
+
+    /**
+     * A new file replaces the old one with a rename, so a snapshot that mapped the old file
+     * keeps reading the old forecast, and the next read gets the new one.
+     */
+    @Test
+    public void testReplacingFileKeepsOldMapping() {
+        reconcile(mForecast);
+        mStore.write(readFromDatabase(), nextSequence());
+        ForecastSnapshot oldFile = mStore.read(mLocationSetting);
+        double oldMaxTemp = oldFile.getDouble(0, ForecastSnapshot.COLUMN_MAX_TEMP);
+
+        mForecast[0].put(WeatherEntry.COLUMN_MAX_TEMP, oldMaxTemp + 10);
+        reconcile(mForecast);
+        mStore.write(readFromDatabase(), nextSequence());
+
+        assertEquals("The old mapping should still read the old forecast",
+                oldMaxTemp, oldFile.getDouble(0, ForecastSnapshot.COLUMN_MAX_TEMP));
+        assertEquals("A new read should get the new forecast",
+                oldMaxTemp + 10,
+                mStore.read(mLocationSetting).getDouble(0, ForecastSnapshot.COLUMN_MAX_TEMP));
+    }
+
+    @Test
+    public void testDamagedFileIsIgnored() throws Exception {
+        reconcile(mForecast);
+        mStore.write(readFromDatabase(), nextSequence());
+
+        File[] files = mDirectory.listFiles();
+        assertEquals("There should be exactly one file", 1, files.length);
+
+        /* Cut off the end of the last record */
+        RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+        assertNull("A truncated file shouldn't be read", mStore.read(mLocationSetting));
+
+        /* Restore its length, but with a version we don't know */
+        mStore.write(readFromDatabase(), nextSequence());
+        file = new RandomAccessFile(files[0], "rw");
+        file.seek(4);
+        file.write(new byte[]{(byte) (ForecastFileStore.FORMAT_VERSION + 1), 0, 0, 0});
+        file.close();
+        assertNull("A file of another version shouldn't be read", mStore.read(mLocationSetting));
+    }
+
+    /**
+     * A write stamped before the file was last written or deleted is out of date, and dropped,
+     * as is one stamped before every file was deleted.
+     */
+    @Test
+    public void testOutOfOrderWritesAreDropped() {
+        reconcile(mForecast);
+        ForecastSnapshot fromDatabase = readFromDatabase();
+
+        long early = nextSequence();
+        mStore.delete(mLocationSetting, nextSequence());
+        assertFalse("A write from before the delete should be dropped",
+                mStore.write(fromDatabase, early));
+        assertNull("The dropped write shouldn't leave a file", mStore.read(mLocationSetting));
+
+        long write = nextSequence();
+        assertTrue(mStore.write(fromDatabase, write));
+        assertFalse("A write from before the last one should be dropped",
+                mStore.write(fromDatabase, write - 1));
+
+        mStore.deleteAll(nextSequence());
+        assertFalse("A write from before every file was deleted should be dropped",
+                mStore.write(fromDatabase, write));
+        assertTrue(mStore.write(fromDatabase, nextSequence()));
+        assertNotNull(mStore.read(mLocationSetting));
+    }
+
+    /**
+     * A sync should write the current location's file, and any other write through the
+     * provider should delete it, since it doesn't keep the file up to date.
+     */
+    @Test
+    public void testProviderKeepsFilesInStep() {
+        ForecastFileStore providerStore = ForecastFileStore.create(mContext);
+
+        reconcile(mForecast);
+        ForecastSnapshot fromFile = providerStore.read(mLocationSetting);
+        assertNotNull("A sync should write the forecast file", fromFile);
+        assertSnapshotsMatch(readFromDatabase(), fromFile);
+
+        long firstDate = mForecast[0].getAsLong(WeatherEntry.COLUMN_DATE);
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(firstDate)});
+        assertNull("A delete should drop the forecast file", providerStore.read(mLocationSetting));
+    }
+
+    private long nextSequence() {
+        return ++mSequence;
+    }
+
+    private ForecastSnapshot readFromDatabase() {
+        SQLiteDatabase database = new WeatherDbHelper(mContext).getReadableDatabase();
+        try {
+            return ForecastSnapshot.read(database, mLocationSetting);
+        } finally {
+            database.close();
+        }
+    }
+
+    private static void assertSnapshotsMatch(ForecastSnapshot expected, ForecastSnapshot actual) {
+        assertEquals("The snapshots have a different number of days",
+                expected.size(), actual.size());
+        for (int row = 0; row < expected.size(); row++) {
+            for (int column = 0; column < ForecastSnapshot.ALL_COLUMNS.length; column++) {
+                String error = "Row " + row + " differs in " + ForecastSnapshot.ALL_COLUMNS[column];
+                if (ForecastSnapshot.isIntegerColumn(column)) {
+                    assertEquals(error,
+                            expected.getLong(row, column), actual.getLong(row, column));
+                } else {
+                    assertEquals(error,
+                            expected.getDouble(row, column), actual.getDouble(row, column));
+                }
+            }
+        }
+    }
+
+    private void reconcile(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, values);
+
+        mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_RECONCILE, null, extras);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+
+import static com.example.android.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Tests that WeatherProvider answers the queries of the forecast screens from the forecast it
+ * keeps in memory, that what it answers is the same as what the database holds, and that every
+ * write through the provider replaces or drops the forecast in memory.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastSnapshot {
+
+    /* The columns MainActivity asks for */
+    private static final String[] FORECAST_PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_WEATHER_ID,
+    };
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ContentValues[] mForecast;
+
+    @Before
+    public void setUp() {
+        SQLiteDatabase database = new WeatherDbHelper(mContext).getWritableDatabase();
+        database.delete(WeatherEntry.TABLE_NAME, null, null);
+        database.delete(HistoryEntry.TABLE_NAME, null, null);
+        database.delete(LocationEntry.TABLE_NAME, null, null);
+        database.close();
+        TestUtilities.dropForecastSnapshot(mContext);
+
+        /* The snapshot only holds today onwards, so the forecast has to start today */
+        mForecast = createBulkInsertTestWeatherValues();
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < mForecast.length; i++) {
+            mForecast[i].put(WeatherEntry.COLUMN_DATE, today + i * SunshineDateUtils.DAY_IN_MILLIS);
+            mForecast[i].remove(WeatherEntry.COLUMN_LOC_KEY);
+        }
+    }
+
+    /**
+     * After a sync, the forecast list and the detail screen should be answered from memory,
+     * without a single query reaching the database.
+     */
+    @Test
+    public void testSyncedForecastIsServedFromMemory() {
+        reconcile(mForecast);
+        long[] before = getSnapshotStats();
+
+        Cursor listCursor = query(WeatherEntry.buildWeatherUriTodayOnwards(), null);
+        assertEquals("The forecast list returned the wrong number of rows",
+                BULK_INSERT_RECORDS_TO_INSERT, listCursor.getCount());
+        for (int i = 0; listCursor.moveToNext(); i++) {
+            assertRowMatches("Row " + i + " of the forecast list didn't match",
+                    listCursor, mForecast[i]);
+        }
+        listCursor.close();
+
+        Cursor projectedCursor = query(WeatherEntry.buildWeatherUriTodayOnwards(),
+                FORECAST_PROJECTION);
+        assertEquals("A projection should return exactly the columns asked for",
+                FORECAST_PROJECTION.length, projectedCursor.getColumnCount());
+        projectedCursor.close();
+
+        long detailDate = mForecast[3].getAsLong(WeatherEntry.COLUMN_DATE);
+        Cursor detailCursor = query(WeatherEntry.buildWeatherUriWithDate(detailDate), null);
+        assertEquals("The detail query should return one row", 1, detailCursor.getCount());
+        detailCursor.moveToFirst();
+        assertRowMatches("The detail row didn't match", detailCursor, mForecast[3]);
+        detailCursor.close();
+
+        long[] after = getSnapshotStats();
+        assertEquals("Every query should have been answered from memory", 3, after[0] - before[0]);
+        assertEquals("No query should have read the database", 0, after[1] - before[1]);
+    }
+
+    /**
+     * The forecast in memory should hold exactly what the database does, column for column.
+     */
+    @Test
+    public void testSnapshotMatchesDatabase() {
+        reconcile(mForecast);
+
+        Cursor snapshotCursor = query(WeatherEntry.buildWeatherUriTodayOnwards(), null);
+
+        /* Any selection at all sends the query to the database */
+        Cursor databaseCursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherUriTodayOnwards(), snapshotCursor.getColumnNames(),
+                "1", null, WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertEquals("The snapshot and the database have a different number of rows",
+                databaseCursor.getCount(), snapshotCursor.getCount());
+
+        int columnCount = databaseCursor.getColumnCount();
+        while (databaseCursor.moveToNext() && snapshotCursor.moveToNext()) {
+            for (int column = 0; column < columnCount; column++) {
+                String columnName = databaseCursor.getColumnName(column);
+                if (databaseCursor.getType(column) == Cursor.FIELD_TYPE_INTEGER) {
+                    assertEquals("Values differ in " + columnName,
+                            databaseCursor.getLong(column), snapshotCursor.getLong(column));
+                } else {
+                    assertEquals("Values differ in " + columnName,
+                            databaseCursor.getDouble(column), snapshotCursor.getDouble(column));
+                }
+            }
+        }
+
+        snapshotCursor.close();
+        databaseCursor.close();
+    }
+
+    /**
+     * A write that doesn't go through reconcile drops the forecast in memory, so the next query
+     * reads the database once, and the ones after it are answered from memory again.
+     */
+    @Test
+    public void testWriteDropsSnapshot() {
+        reconcile(mForecast);
+
+        ContentValues extraDay = new ContentValues(mForecast[mForecast.length - 1]);
+        extraDay.put(WeatherEntry.COLUMN_DATE,
+                extraDay.getAsLong(WeatherEntry.COLUMN_DATE) + SunshineDateUtils.DAY_IN_MILLIS);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{extraDay});
+
+        long[] before = getSnapshotStats();
+
+        Cursor cursor = query(WeatherEntry.CONTENT_URI, null);
+        assertEquals("The inserted day is missing",
+                BULK_INSERT_RECORDS_TO_INSERT + 1, cursor.getCount());
+        cursor.close();
+
+        cursor = query(WeatherEntry.CONTENT_URI, null);
+        assertEquals("The inserted day is missing the second time",
+                BULK_INSERT_RECORDS_TO_INSERT + 1, cursor.getCount());
+        cursor.close();
+
+        long[] after = getSnapshotStats();
+        assertEquals("Only the first query should have read the database",
+                1, after[1] - before[1]);
+        assertEquals("The second query should have been answered from memory",
+                1, after[0] - before[0]);
+    }
+
+    /**
+     * Queries the snapshot can't answer go to the database, and aren't counted at all.
+     */
+    @Test
+    public void testOtherQueriesBypassSnapshot() {
+        reconcile(mForecast);
+        long[] before = getSnapshotStats();
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null,
+                WeatherEntry.COLUMN_MAX_TEMP + " > ?",
+                new String[]{"-1000"},
+                null);
+        assertEquals("The selection returned the wrong number of rows",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherEntry.COLUMN_DATE + " DESC");
+        assertEquals("The descending query returned the wrong number of rows",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+
+        long[] after = getSnapshotStats();
+        assertEquals("Nothing should have been answered from memory", 0, after[0] - before[0]);
+        assertEquals("Nothing should have been counted as a miss", 0, after[1] - before[1]);
+    }
+
+    /*
+     * Compares numerically rather than as Strings, since the test values hold some temperatures
+     * as Integers and the table stores them as REAL.
+     */
+    private static void assertRowMatches(String error, Cursor cursor, ContentValues expected) {
+        for (Map.Entry<String, Object> entry : expected.valueSet()) {
+            int index = cursor.getColumnIndexOrThrow(entry.getKey());
+            assertEquals(entry.getKey() + ": " + error,
+                    ((Number) entry.getValue()).doubleValue(), cursor.getDouble(index));
+        }
+    }
+
+    private Cursor query(Uri uri, String[] projection) {
+        return mContext.getContentResolver().query(uri, projection, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    private void reconcile(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, values);
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.call(WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_RECONCILE, null,
+                extras);
+    }
+
+    /* {hits, misses} since the process started */
+    private long[] getSnapshotStats() {
+        Bundle stats = mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_SNAPSHOT_STATS, null, null);
+        return new long[]{
+                stats.getLong(WeatherEntry.EXTRA_SNAPSHOT_HITS),
+                stats.getLong(WeatherEntry.EXTRA_SNAPSHOT_MISSES)};
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that WeatherProvider answers a short range with a plain query and reads a long one in
+ * pages, that a {@link PagedCursor} returns the same rows in the same order however it is moved,
+ * and reports how much window each way of reading a long range holds at once. The report is
+ * written to logcat under the "PagedCursor" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestPagedCursor {
+
+    private static final String TAG = "PagedCursor";
+
+    /* Enough days that even a page of a single column can't hold them all */
+    private static final int DAYS = 10000;
+    private static final int SHORT_RANGE_DAYS = 14;
+
+    /* The columns the forecast list asks for */
+    private static final String[] FORECAST_PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_WEATHER_ID,
+    };
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ContentProviderClient mClient;
+    private WeatherProvider mProvider;
+
+    @Before
+    public void setUp() {
+        SQLiteDatabase database = new WeatherDbHelper(mContext).getWritableDatabase();
+        database.delete(WeatherEntry.TABLE_NAME, null, null);
+        database.delete(HistoryEntry.TABLE_NAME, null, null);
+        database.delete(LocationEntry.TABLE_NAME, null, null);
+        database.close();
+        TestUtilities.dropForecastSnapshot(mContext);
+
+        ContentValues[] values = new ContentValues[DAYS];
+        for (int day = 0; day < DAYS; day++) {
+            ContentValues value = new ContentValues();
+            value.put(WeatherEntry.COLUMN_DATE, dateOf(day));
+            value.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + day % 5);
+            value.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0 + day % 7);
+            value.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + day % 9);
+            value.put(WeatherEntry.COLUMN_HUMIDITY, 50.0 + day % 40);
+            value.put(WeatherEntry.COLUMN_PRESSURE, 1000.0 + day % 30);
+            value.put(WeatherEntry.COLUMN_WIND_SPEED, (double) (day % 12));
+            value.put(WeatherEntry.COLUMN_DEGREES, (double) (day % 360));
+            values[day] = value;
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+
+        /* The provider itself, since a ContentResolver wraps every Cursor it returns */
+        mClient = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) mClient.getLocalContentProvider();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.release();
+    }
+
+    @Test
+    public void testShortRangeIsPlainQuery() {
+        Cursor cursor = queryRange(SHORT_RANGE_DAYS, FORECAST_PROJECTION);
+        assertFalse("A short range shouldn't be paged", cursor instanceof PagedCursor);
+        assertEquals("The short range returned the wrong number of days",
+                SHORT_RANGE_DAYS, cursor.getCount());
+        assertDatesInOrder(cursor, 0, SHORT_RANGE_DAYS);
+        cursor.close();
+    }
+
+    @Test
+    public void testLongRangeIsPaged() {
+        Cursor cursor = queryRange(DAYS, FORECAST_PROJECTION);
+        assertTrue("A long range should be paged", cursor instanceof PagedCursor);
+        assertEquals("The long range returned the wrong number of days",
+                DAYS, cursor.getCount());
+
+        /* Forwards through every page, then jumping about between them */
+        assertDatesInOrder(cursor, 0, DAYS);
+        int pageRows = ((PagedCursor) cursor).getPageRows();
+        int[] positions = {DAYS - 1, 0, pageRows, pageRows - 1, DAYS / 2, 1};
+        for (int position : positions) {
+            assertTrue("Couldn't move to " + position, cursor.moveToPosition(position));
+            assertEquals("Wrong day at " + position, dateOf(position), cursor.getLong(0));
+        }
+        assertFalse("Moved past the last day", cursor.moveToPosition(DAYS));
+        cursor.close();
+    }
+
+    /**
+     * Pages after the first are found by key. A sort order the projection doesn't have still
+     * works as a key, in either direction, without its columns showing up in the Cursor. A sort
+     * on a floating point column can't be a key, and still reads every row, in order.
+     */
+    @Test
+    public void testPagesAreFoundByKey() {
+        String[] temperatures = {WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_MIN_TEMP};
+        Uri uri = WeatherEntry.buildWeatherUriForRange(dateOf(0), dateOf(DAYS - 1));
+
+        PagedCursor descending = (PagedCursor) mProvider.query(uri, temperatures, null, null,
+                WeatherEntry.COLUMN_DATE + " DESC");
+        assertTrue("A sort by date should page by key", descending.isKeyed());
+        assertEquals("The key columns shouldn't show", 2, descending.getColumnCount());
+        for (int day = DAYS - 1; day >= 0; day--) {
+            assertTrue("The Cursor ended early, at day " + day, descending.moveToNext());
+            assertEquals("Wrong day", 20.0 + day % 9, descending.getDouble(0), 0);
+            assertEquals("Wrong day", 10.0 + day % 7, descending.getDouble(1), 0);
+        }
+        assertFalse("The Cursor has more days than it should", descending.moveToNext());
+        descending.close();
+
+        PagedCursor byTemperature = (PagedCursor) mProvider.query(uri, FORECAST_PROJECTION,
+                null, null, WeatherEntry.COLUMN_MAX_TEMP + " ASC, " + WeatherEntry.COLUMN_DATE);
+        double lastMaxTemp = Double.NEGATIVE_INFINITY;
+        int rows = 0;
+        while (byTemperature.moveToNext()) {
+            double maxTemp = byTemperature.getDouble(1);
+            assertTrue("Rows out of order at " + rows, maxTemp >= lastMaxTemp);
+            lastMaxTemp = maxTemp;
+            rows++;
+        }
+        assertEquals("Every day should be read once", DAYS, rows);
+        byTemperature.close();
+    }
+
+    /**
+     * A projection of fewer columns should get pages of more rows.
+     */
+    @Test
+    public void testPagesAreSizedFromProjection() {
+        PagedCursor narrow = (PagedCursor) queryRange(DAYS, FORECAST_PROJECTION);
+        PagedCursor wide = (PagedCursor) queryRange(DAYS, null);
+
+        assertTrue("Fewer columns should fit more rows in a page",
+                narrow.getPageRows() > wide.getPageRows());
+        assertEquals("A null projection should return every column",
+                ForecastSnapshot.ALL_COLUMNS.length, wide.getColumnCount());
+
+        narrow.close();
+        wide.close();
+    }
+
+    /**
+     * Logs how many rows each way of reading the forecast list's columns holds in its window at
+     * once, for a short range and a long one, and how long reading every row takes.
+     */
+    @Test
+    public void reportWindowMemory() {
+        int rowBytes = PagedCursor.estimateRowBytes(FORECAST_PROJECTION.length);
+
+        for (int days : new int[]{SHORT_RANGE_DAYS, DAYS}) {
+            /* What a query returned before: an SQLiteCursor with the system's window */
+            SQLiteDatabase database = new WeatherDbHelper(mContext).getReadableDatabase();
+            long start = System.nanoTime();
+            Cursor plain = database.query(WeatherEntry.TABLE_NAME, FORECAST_PROJECTION,
+                    WeatherEntry.COLUMN_DATE + " <= ?",
+                    new String[]{Long.toString(dateOf(days - 1))},
+                    null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            assertDatesInOrder(plain, 0, days);
+            long plainNanos = System.nanoTime() - start;
+            int plainRows = ((AbstractWindowedCursor) plain).getWindow().getNumRows();
+            plain.close();
+            database.close();
+
+            start = System.nanoTime();
+            Cursor cursor = queryRange(days, FORECAST_PROJECTION);
+            assertDatesInOrder(cursor, 0, days);
+            long nanos = System.nanoTime() - start;
+            int rows = cursor instanceof PagedCursor
+                    ? ((PagedCursor) cursor).getPageRows()
+                    : days;
+            cursor.close();
+
+            Log.i(TAG, String.format("%d days: SQLiteCursor held %d rows (~%d KB) in %.1f ms, "
+                            + "provider held %d rows (~%d KB) in %.1f ms",
+                    days,
+                    plainRows, plainRows * rowBytes / 1024, plainNanos / 1e6,
+                    rows, rows * rowBytes / 1024, nanos / 1e6));
+        }
+    }
+
+    private Cursor queryRange(int days, String[] projection) {
+        Uri uri = WeatherEntry.buildWeatherUriForRange(dateOf(0), dateOf(days - 1));
+        return mProvider.query(uri, projection, null, null, null);
+    }
+
+    /* Reads the dates of a Cursor from the start, which should be days first to first + count */
+    private static void assertDatesInOrder(Cursor cursor, int first, int count) {
+        int dateColumn = cursor.getColumnIndexOrThrow(WeatherEntry.COLUMN_DATE);
+        cursor.moveToPosition(-1);
+        for (int day = first; day < first + count; day++) {
+            assertTrue("The Cursor ended early, at day " + day, cursor.moveToNext());
+            assertEquals("Wrong day", dateOf(day), cursor.getLong(dateColumn));
+        }
+        assertFalse("The Cursor has more days than it should", cursor.moveToNext());
+    }
+
+    private static long dateOf(int day) {
+        return TestUtilities.DATE_NORMALIZED + day * SunshineDateUtils.DAY_IN_MILLIS;
+    }
+}
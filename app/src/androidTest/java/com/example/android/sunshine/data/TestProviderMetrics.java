@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.MetricsEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that WeatherProvider counts its calls, the rows they touch and the time its writes take,
+ * that the metrics URI and dumpsys report them, and how latencies are put into buckets.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestProviderMetrics {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ContentProviderClient mClient;
+    private WeatherProvider mProvider;
+
+    @Before
+    public void setUp() {
+        SQLiteDatabase database = new WeatherDbHelper(mContext).getWritableDatabase();
+        database.delete(WeatherEntry.TABLE_NAME, null, null);
+        database.delete(HistoryEntry.TABLE_NAME, null, null);
+        database.delete(LocationEntry.TABLE_NAME, null, null);
+        database.close();
+        TestUtilities.dropForecastSnapshot(mContext);
+
+        /* The provider itself, to call dump on */
+        mClient = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) mClient.getLocalContentProvider();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.release();
+    }
+
+    @Test
+    public void testCallsAndRowsAreCounted() {
+        ContentValues[] forecast = createBulkInsertTestWeatherValues();
+
+        long[] bulkInsertsBefore = readCall("bulkInsert", WeatherProvider.CODE_WEATHER);
+        long[] queriesBefore = readCall("query", WeatherProvider.CODE_WEATHER);
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+        int rowsReturned = 0;
+        for (int i = 0; i < 3; i++) {
+            Cursor cursor = mContext.getContentResolver()
+                    .query(WeatherEntry.CONTENT_URI, null, null, null, null);
+            rowsReturned += cursor.getCount();
+            cursor.close();
+        }
+
+        long[] bulkInsertsAfter = readCall("bulkInsert", WeatherProvider.CODE_WEATHER);
+        long[] queriesAfter = readCall("query", WeatherProvider.CODE_WEATHER);
+
+        assertEquals("The bulkInsert wasn't counted",
+                bulkInsertsBefore[0] + 1, bulkInsertsAfter[0]);
+        assertEquals("The rows of the bulkInsert weren't counted",
+                bulkInsertsBefore[1] + forecast.length, bulkInsertsAfter[1]);
+        assertEquals("The queries weren't counted",
+                queriesBefore[0] + 3, queriesAfter[0]);
+        assertEquals("The rows the queries returned weren't counted",
+                queriesBefore[1] + rowsReturned, queriesAfter[1]);
+    }
+
+    @Test
+    public void testWritesAreTimed() {
+        long writesBefore = readWrites("bulkInsert");
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertTestWeatherValues());
+        assertEquals("The bulkInsert's write wasn't recorded",
+                writesBefore + 1, readWrites("bulkInsert"));
+    }
+
+    @Test
+    public void testDumpHasEveryOperationCalled() {
+        mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null, null, null)
+                .close();
+
+        StringWriter dump = new StringWriter();
+        mProvider.dump(null, new PrintWriter(dump), new String[0]);
+
+        assertTrue("The dump should report the snapshot", dump.toString().contains("snapshot"));
+        assertTrue("The dump should report queries", dump.toString().contains("query"));
+    }
+
+    @Test
+    public void testBuckets() {
+        assertEquals(0, ProviderMetrics.bucketOf(0));
+        assertEquals(0, ProviderMetrics.bucketOf(999));
+        assertEquals(1, ProviderMetrics.bucketOf(1000));
+        assertEquals(1, ProviderMetrics.bucketOf(1999));
+        assertEquals(2, ProviderMetrics.bucketOf(2000));
+        assertEquals(10, ProviderMetrics.bucketOf(1000 * 1000));
+        assertEquals("Anything too long for the last bucket should still go in it",
+                ProviderMetrics.BUCKET_COUNT - 1, ProviderMetrics.bucketOf(Long.MAX_VALUE));
+
+        /* 90 calls of up to 4 microseconds, and 10 of up to 1024 */
+        long[] buckets = new long[ProviderMetrics.BUCKET_COUNT];
+        buckets[2] = 90;
+        buckets[10] = 10;
+        assertEquals(4, ProviderMetrics.percentileMicros(buckets, 50));
+        assertEquals(4, ProviderMetrics.percentileMicros(buckets, 90));
+        assertEquals(1024, ProviderMetrics.percentileMicros(buckets, 99));
+        assertEquals("An empty histogram has no percentiles",
+                0, ProviderMetrics.percentileMicros(new long[ProviderMetrics.BUCKET_COUNT], 50));
+    }
+
+    /* The count and rows of an operation's calls for a URI code, or zeroes if there are none */
+    private long[] readCall(String operation, int uriCode) {
+        Cursor cursor = mContext.getContentResolver()
+                .query(MetricsEntry.CONTENT_URI, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (MetricsEntry.KIND_CALL.equals(getString(cursor, MetricsEntry.COLUMN_KIND))
+                        && operation.equals(getString(cursor, MetricsEntry.COLUMN_OPERATION))
+                        && uriCode == getLong(cursor, MetricsEntry.COLUMN_URI_CODE)) {
+                    return new long[]{
+                            getLong(cursor, MetricsEntry.COLUMN_COUNT),
+                            getLong(cursor, MetricsEntry.COLUMN_ROWS)};
+                }
+            }
+            return new long[]{0, 0};
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* How many writes an operation has made */
+    private long readWrites(String operation) {
+        Cursor cursor = mContext.getContentResolver()
+                .query(MetricsEntry.CONTENT_URI, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (MetricsEntry.KIND_WRITE.equals(getString(cursor, MetricsEntry.COLUMN_KIND))
+                        && operation.equals(getString(cursor, MetricsEntry.COLUMN_OPERATION))) {
+                    return getLong(cursor, MetricsEntry.COLUMN_COUNT);
+                }
+            }
+            return 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String getString(Cursor cursor, String column) {
+        return cursor.getString(cursor.getColumnIndexOrThrow(column));
+    }
+
+    private static long getLong(Cursor cursor, String column) {
+        return cursor.getLong(cursor.getColumnIndexOrThrow(column));
+    }
+}
@@ -18,6 +18,7 @@ package com.example.android.sunshine.data;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
@@ -32,6 +33,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
 import static com.example.android.sunshine.data.TestUtilities.getConstantNameByStringValue;
@@ -193,7 +195,7 @@ public class TestSunshineDatabase {
 
     @Test
     public void testDatabaseVersionWasIncremented() {
-        int expectedDatabaseVersion = 3;
+        int expectedDatabaseVersion = 6;
         String databaseVersionShouldBe1 = "Database version should be "
                 + expectedDatabaseVersion + " but isn't."
                 + "\n Database version: ";
@@ -382,16 +384,20 @@ public class TestSunshineDatabase {
     }
 
     /**
-     * This method tests the {@link WeatherDbHelper#onUpgrade(SQLiteDatabase, int, int)}. The proper
-     * behavior for this method in our case is to simply DROP (or delete) the weather table from
-     * the database and then have the table recreated.
+     * This method tests the {@link WeatherDbHelper#onUpgrade(SQLiteDatabase, int, int)} for a
+     * database that is older than any version we can migrate. The proper behavior for this
+     * method in that case is to simply DROP (or delete) the weather table from the database and
+     * then have the table recreated. Upgrades from versions we can migrate are tested in
+     * {@link TestDatabaseMigrations}.
      */
     @Test
     public void testOnUpgradeBehavesCorrectly() {
 
         testInsertSingleRecordIntoWeatherTable();
 
-        dbHelper.onUpgrade(database, 13, 14);
+        dbHelper.onUpgrade(database,
+                WeatherDbHelper.FIRST_MIGRATABLE_VERSION - 1,
+                REFLECTED_DATABASE_VERSION);
 
         /*
          * This Cursor will contain the names of each table in our database and we will use it to
@@ -436,6 +442,28 @@ public class TestSunshineDatabase {
         database.close();
     }
 
+    /**
+     * Tests that the app's database is opened with write-ahead logging, and that the connection
+     * the sync writes through runs with the tuned synchronous setting.
+     */
+    @Test
+    public void testWriteAheadLoggingIsEnabled() {
+        String journalMode = DatabaseUtils.stringForQuery(database, "PRAGMA journal_mode", null);
+        assertEquals("The database should use write-ahead logging",
+                "wal", journalMode.toLowerCase(Locale.US));
+
+        /* Queries in a transaction run on the primary connection, which writes go through */
+        database.beginTransaction();
+        try {
+            long synchronous = DatabaseUtils.longForQuery(database, "PRAGMA synchronous", null);
+            assertEquals("Writes should use synchronous = NORMAL", 1, synchronous);
+        } finally {
+            database.endTransaction();
+        }
+
+        database.close();
+    }
+
     /**
      * This method tests that our database contains all of the tables that we think it should
      * contain. Although in our case, we just have one table that we expect should be added
@@ -457,6 +485,8 @@ public class TestSunshineDatabase {
         /* Here, we add the name of our only table in this particular database */
         tableNameHashSet.add(REFLECTED_TABLE_NAME);
         /* Students, here is where you would add any other table names if you had them */
+        tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.HistoryEntry.TABLE_NAME);
 //        tableNameHashSet.add(MyAwesomeSuperCoolTableName);
 //        tableNameHashSet.add(MyOtherCoolTableNameThatContainsOtherCoolData);
 
@@ -37,6 +37,28 @@ public class TestUriMatcher {
     private static final Uri TEST_WEATHER_DIR = WeatherContract.WeatherEntry.CONTENT_URI;
     private static final Uri TEST_WEATHER_WITH_DATE_DIR = WeatherContract.WeatherEntry
             .buildWeatherUriWithDate(TestUtilities.DATE_NORMALIZED);
+    private static final Uri TEST_WEATHER_WITH_LOCATION_DIR = WeatherContract.WeatherEntry
+            .buildWeatherUriWithLocation("London, UK");
+    private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract
+            .WeatherEntry
+            .buildWeatherUriWithLocationAndDate("London, UK", TestUtilities.DATE_NORMALIZED);
+    private static final Uri TEST_HISTORY_DIR = WeatherContract.HistoryEntry
+            .buildHistoryUri(TestUtilities.DATE_NORMALIZED, TestUtilities.DATE_NORMALIZED);
+    private static final Uri TEST_HISTORY_WITH_LOCATION_DIR = WeatherContract.HistoryEntry
+            .buildHistoryUriWithLocation("London, UK",
+                    TestUtilities.DATE_NORMALIZED, TestUtilities.DATE_NORMALIZED);
+    private static final Uri TEST_WEATHER_TODAY_ONWARDS_DIR =
+            WeatherContract.WeatherEntry.buildWeatherUriTodayOnwards();
+    private static final Uri TEST_WEATHER_RANGE_DIR = WeatherContract.WeatherEntry
+            .buildWeatherUriForRange(TestUtilities.DATE_NORMALIZED, TestUtilities.DATE_NORMALIZED);
+    private static final Uri TEST_WEATHER_AGGREGATE_WITH_LOCATION_DIR =
+            TEST_WEATHER_WITH_LOCATION_DIR.buildUpon()
+                    .appendPath(WeatherContract.WeatherEntry.PATH_SEGMENT_AGGREGATE)
+                    .build();
+    private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    private static final Uri TEST_LOCATION_WITH_ID_DIR =
+            WeatherContract.LocationEntry.buildLocationUri(TestUtilities.TEST_LOCATION_ID);
+    private static final Uri TEST_METRICS_DIR = WeatherContract.MetricsEntry.CONTENT_URI;
 
     private static final String weatherCodeVariableName = "CODE_WEATHER";
     private static int REFLECTED_WEATHER_CODE;
@@ -101,5 +123,37 @@ public class TestUriMatcher {
         assertEquals(weatherWithDateUriCodeDoesNotMatch,
                 expectedWeatherWithDateCode,
                 actualWeatherWithDateCode);
+
+        /* Test the codes for the weather at a particular location, and for the locations */
+        assertEquals("Error: The weather with location URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_WITH_LOCATION,
+                testMatcher.match(TEST_WEATHER_WITH_LOCATION_DIR));
+        assertEquals("Error: The weather with location and date URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_WITH_LOCATION_AND_DATE,
+                testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR));
+        assertEquals("Error: The history URI was matched incorrectly.",
+                WeatherProvider.CODE_HISTORY,
+                testMatcher.match(TEST_HISTORY_DIR));
+        assertEquals("Error: The history with location URI was matched incorrectly.",
+                WeatherProvider.CODE_HISTORY_WITH_LOCATION,
+                testMatcher.match(TEST_HISTORY_WITH_LOCATION_DIR));
+        assertEquals("Error: The today onwards URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_TODAY_ONWARDS,
+                testMatcher.match(TEST_WEATHER_TODAY_ONWARDS_DIR));
+        assertEquals("Error: The range URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_RANGE,
+                testMatcher.match(TEST_WEATHER_RANGE_DIR));
+        assertEquals("Error: The aggregate with location URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_AGGREGATE_WITH_LOCATION,
+                testMatcher.match(TEST_WEATHER_AGGREGATE_WITH_LOCATION_DIR));
+        assertEquals("Error: The location URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION,
+                testMatcher.match(TEST_LOCATION_DIR));
+        assertEquals("Error: The location with ID URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_WITH_ID,
+                testMatcher.match(TEST_LOCATION_WITH_ID_DIR));
+        assertEquals("Error: The metrics URI was matched incorrectly.",
+                WeatherProvider.CODE_METRICS,
+                testMatcher.match(TEST_METRICS_DIR));
     }
 }
@@ -15,7 +15,9 @@
  */
 package com.example.android.sunshine.data;
 
+import android.content.ContentProviderClient;
 import android.content.ContentValues;
+import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
@@ -35,6 +37,7 @@ import java.util.regex.Pattern;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DATE;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_DEGREES;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_HUMIDITY;
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_LOC_KEY;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MAX_TEMP;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_MIN_TEMP;
 import static com.example.android.sunshine.data.WeatherContract.WeatherEntry.COLUMN_PRESSURE;
@@ -59,6 +62,12 @@ class TestUtilities {
 
     static final int BULK_INSERT_RECORDS_TO_INSERT = 10;
 
+    /*
+     * The location that rows inserted straight into the database belong to. Nothing checks that
+     * the location table has a row with this ID.
+     */
+    static final long TEST_LOCATION_ID = 1;
+
     /**
      * Ensures there is a non empty cursor and validates the cursor's data by checking it against
      * a set of expected values. This method will then close the cursor.
@@ -128,6 +137,7 @@ class TestUtilities {
         testWeatherValues.put(COLUMN_MIN_TEMP, 65);
         testWeatherValues.put(COLUMN_WIND_SPEED, 5.5);
         testWeatherValues.put(COLUMN_WEATHER_ID, 321);
+        testWeatherValues.put(COLUMN_LOC_KEY, TEST_LOCATION_ID);
 
         return testWeatherValues;
     }
@@ -173,6 +183,23 @@ class TestUtilities {
     }
 
 
+    /**
+     * WeatherProvider keeps the current forecast in memory. Tests that change the database
+     * directly, rather than through the provider, call this afterwards so that the provider
+     * reads the forecast from the database again.
+     *
+     * @param context Used to reach the provider, which runs in the same process as the tests
+     */
+    static void dropForecastSnapshot(Context context) {
+        ContentProviderClient client = context.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        try {
+            ((WeatherProvider) client.getLocalContentProvider()).dropForecastSnapshot();
+        } finally {
+            client.release();
+        }
+    }
+
     static TestContentObserver getTestContentObserver() {
         return TestContentObserver.getTestContentObserver();
     }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.CountingContentObserver;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static com.example.android.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests WeatherProvider's single inserts and updates, and applyBatch: that a batch is applied
+ * all at once or not at all, and that its observers are told about it once, after it commits.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherBatch {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ContentValues[] mForecast;
+
+    @Before
+    public void setUp() {
+        SQLiteDatabase database = new WeatherDbHelper(mContext).getWritableDatabase();
+        database.delete(WeatherEntry.TABLE_NAME, null, null);
+        database.delete(HistoryEntry.TABLE_NAME, null, null);
+        database.delete(LocationEntry.TABLE_NAME, null, null);
+        database.close();
+        TestUtilities.dropForecastSnapshot(mContext);
+
+        mForecast = createBulkInsertTestWeatherValues();
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < mForecast.length; i++) {
+            mForecast[i].put(WeatherEntry.COLUMN_DATE, today + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+    }
+
+    @Test
+    public void testInsertAndUpdateOneDay() {
+        Uri dayUri = mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, mForecast[0]);
+        assertEquals("Insert should return the URI of the day",
+                WeatherEntry.buildWeatherUriWithDate(dateOf(0)), dayUri);
+
+        /* Every column, which goes through the compiled UPDATE statement */
+        ContentValues wholeDay = new ContentValues(mForecast[0]);
+        wholeDay.put(WeatherEntry.COLUMN_MAX_TEMP, 40.0);
+        assertEquals("Updating the whole day should update one row",
+                1, mContext.getContentResolver().update(dayUri, wholeDay, null, null));
+        assertEquals("The whole day wasn't updated", 40.0, queryMaxTemp(0));
+
+        /* One column, which leaves the rest as they are */
+        ContentValues maxTempOnly = new ContentValues();
+        maxTempOnly.put(WeatherEntry.COLUMN_MAX_TEMP, 41.0);
+        assertEquals("Updating one column should update one row",
+                1, mContext.getContentResolver().update(dayUri, maxTempOnly, null, null));
+        assertEquals("The column wasn't updated", 41.0, queryMaxTemp(0));
+
+        assertEquals("A day we don't have shouldn't be updated",
+                0, mContext.getContentResolver().update(
+                        WeatherEntry.buildWeatherUriWithDate(dateOf(1)), maxTempOnly, null, null));
+    }
+
+    @Test
+    public void testBatchIsAppliedAndNotifiedOnce() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < mForecast.length; i++) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(mForecast[i])
+                    .withYieldAllowed(i % 4 == 0)
+                    .build());
+        }
+
+        /* Day 3 is inserted and then updated, and day 5 inserted and then deleted */
+        ContentValues changedDay = new ContentValues();
+        changedDay.put(WeatherEntry.COLUMN_MAX_TEMP, 99.0);
+        operations.add(ContentProviderOperation
+                .newUpdate(WeatherEntry.buildWeatherUriWithDate(dateOf(3)))
+                .withValues(changedDay)
+                .build());
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherEntry.COLUMN_DATE + " = ?",
+                        new String[]{Long.toString(dateOf(5))})
+                .build());
+
+        CountingContentObserver listObserver = CountingContentObserver.register(mContext,
+                WeatherEntry.LIST_NOTIFICATION_URI);
+        CountingContentObserver dayObserver = CountingContentObserver.register(mContext,
+                WeatherEntry.buildWeatherUriWithDate(dateOf(3)));
+
+        ContentProviderResult[] results = mContext.getContentResolver()
+                .applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+
+        int listChanges = listObserver.getChangeCount();
+        int dayChanges = dayObserver.getChangeCount();
+        listObserver.unregister(mContext);
+        dayObserver.unregister(mContext);
+
+        assertEquals("Every operation should have a result", operations.size(), results.length);
+        for (int i = 0; i < mForecast.length; i++) {
+            assertNotNull("Insert " + i + " should return a URI", results[i].uri);
+        }
+        assertEquals("The update should update one row",
+                1, (int) results[mForecast.length].count);
+        assertEquals("The delete should delete one row",
+                1, (int) results[mForecast.length + 1].count);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("The batch left the wrong number of rows",
+                BULK_INSERT_RECORDS_TO_INSERT - 1, cursor.getCount());
+        cursor.close();
+        assertEquals("The update in the batch was lost", 99.0, queryMaxTemp(3));
+
+        assertEquals("The lists should be told about the batch once", 1, listChanges);
+        assertEquals("A day inserted and updated in a batch should be notified once",
+                1, dayChanges);
+    }
+
+    @Test
+    public void testFailedBatchIsRolledBack() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (ContentValues day : mForecast) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(day)
+                    .build());
+        }
+
+        /* There are never this many days, so the batch fails after all of the inserts */
+        operations.add(ContentProviderOperation.newAssertQuery(WeatherEntry.CONTENT_URI)
+                .withExpectedCount(BULK_INSERT_RECORDS_TO_INSERT + 1)
+                .build());
+
+        CountingContentObserver listObserver = CountingContentObserver.register(mContext,
+                WeatherEntry.LIST_NOTIFICATION_URI);
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("The batch should have failed on its assertion");
+        } catch (OperationApplicationException expected) {
+            /* The batch failed, as it should have */
+        }
+        int listChanges = listObserver.getChangeCount();
+        listObserver.unregister(mContext);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("None of a failed batch's inserts should be kept", 0, cursor.getCount());
+        cursor.close();
+        assertEquals("A failed batch shouldn't notify anyone", 0, listChanges);
+    }
+
+    private long dateOf(int day) {
+        return mForecast[day].getAsLong(WeatherEntry.COLUMN_DATE);
+    }
+
+    private double queryMaxTemp(int day) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherUriWithDate(dateOf(day)),
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getDouble(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
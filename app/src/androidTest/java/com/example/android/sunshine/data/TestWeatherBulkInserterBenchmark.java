@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Compares three ways of inserting weather rows: SQLiteDatabase#insert for every row (what
+ * WeatherProvider#bulkInsert used to do), {@link WeatherBulkInserter} with ContentValues, and
+ * {@link WeatherBulkInserter} with a {@link ForecastBatch}. Results are written to logcat under
+ * the "WeatherBulkInsertBenchmark" tag.
+ * <p>
+ * Rows are inserted in transactions of {@link #ROWS_PER_TRANSACTION}, so that even the largest
+ * run only ever holds one transaction's worth of rows in memory.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherBulkInserterBenchmark {
+
+    private static final String TAG = "WeatherBulkInsertBenchmark";
+
+    private static final int ROWS_PER_TRANSACTION = 10000;
+
+    private static final long LOCATION_ID = TestUtilities.TEST_LOCATION_ID;
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = new WeatherDbHelper(InstrumentationRegistry.getTargetContext())
+                .getWritableDatabase();
+        mDatabase.delete(WeatherEntry.TABLE_NAME, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDatabase.close();
+    }
+
+    @Test
+    public void benchmark10kRows() {
+        runBenchmark(10000);
+    }
+
+    @Test
+    public void benchmark100kRows() {
+        runBenchmark(100000);
+    }
+
+    @Test
+    public void benchmark1mRows() {
+        runBenchmark(1000000);
+    }
+
+    private void runBenchmark(int rowCount) {
+        long insertNanos = timeDatabaseInsert(rowCount);
+        long contentValuesNanos = timeBulkInserterWithContentValues(rowCount);
+        long batchNanos = timeBulkInserterWithBatch(rowCount);
+
+        Log.i(TAG, String.format("%d rows: insert %.1f ms, compiled ContentValues %.1f ms, "
+                        + "compiled ForecastBatch %.1f ms",
+                rowCount,
+                insertNanos / 1e6,
+                contentValuesNanos / 1e6,
+                batchNanos / 1e6));
+    }
+
+    /* The baseline: what WeatherProvider#bulkInsert did before WeatherBulkInserter */
+    private long timeDatabaseInsert(int rowCount) {
+        long nanos = 0;
+
+        for (int first = 0; first < rowCount; first += ROWS_PER_TRANSACTION) {
+            ContentValues[] values = createContentValues(first, rowCount);
+
+            long start = System.nanoTime();
+            mDatabase.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    mDatabase.insert(WeatherEntry.TABLE_NAME, null, value);
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            nanos += System.nanoTime() - start;
+        }
+
+        assertRowCountThenClear(rowCount);
+        return nanos;
+    }
+
+    private long timeBulkInserterWithContentValues(int rowCount) {
+        long nanos = 0;
+
+        for (int first = 0; first < rowCount; first += ROWS_PER_TRANSACTION) {
+            ContentValues[] values = createContentValues(first, rowCount);
+
+            long start = System.nanoTime();
+            WeatherBulkInserter.insert(mDatabase, values, LOCATION_ID);
+            nanos += System.nanoTime() - start;
+        }
+
+        assertRowCountThenClear(rowCount);
+        return nanos;
+    }
+
+    private long timeBulkInserterWithBatch(int rowCount) {
+        /* One batch, cleared and refilled for every transaction */
+        ForecastBatch batch = new ForecastBatch(ROWS_PER_TRANSACTION);
+
+        long nanos = 0;
+
+        for (int first = 0; first < rowCount; first += ROWS_PER_TRANSACTION) {
+            int count = Math.min(ROWS_PER_TRANSACTION, rowCount - first);
+            batch.clear();
+            for (int i = 0; i < count; i++) {
+                int row = first + i;
+                batch.add(dateForRow(row),
+                        800 + row % 5,
+                        10 + row % 7,
+                        20 + row % 9,
+                        50 + row % 40,
+                        1000 + row % 30,
+                        row % 12,
+                        row % 360);
+            }
+
+            long start = System.nanoTime();
+            WeatherBulkInserter.insert(mDatabase, batch, LOCATION_ID);
+            nanos += System.nanoTime() - start;
+        }
+
+        assertRowCountThenClear(rowCount);
+        return nanos;
+    }
+
+    /* One transaction's worth of rows, starting at the given row */
+    private static ContentValues[] createContentValues(int first, int rowCount) {
+        int count = Math.min(ROWS_PER_TRANSACTION, rowCount - first);
+        ContentValues[] values = new ContentValues[count];
+
+        for (int i = 0; i < count; i++) {
+            int row = first + i;
+            ContentValues value = new ContentValues();
+            value.put(WeatherEntry.COLUMN_DATE, dateForRow(row));
+            value.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + row % 5);
+            value.put(WeatherEntry.COLUMN_MIN_TEMP, 10.0 + row % 7);
+            value.put(WeatherEntry.COLUMN_MAX_TEMP, 20.0 + row % 9);
+            value.put(WeatherEntry.COLUMN_HUMIDITY, 50.0 + row % 40);
+            value.put(WeatherEntry.COLUMN_PRESSURE, 1000.0 + row % 30);
+            value.put(WeatherEntry.COLUMN_WIND_SPEED, (double) (row % 12));
+            value.put(WeatherEntry.COLUMN_DEGREES, (double) (row % 360));
+            value.put(WeatherEntry.COLUMN_LOC_KEY, LOCATION_ID);
+            values[i] = value;
+        }
+
+        return values;
+    }
+
+    /* Every row needs its own date, since the table only holds one row per date and location */
+    private static long dateForRow(int row) {
+        return TestUtilities.DATE_NORMALIZED + row * SunshineDateUtils.DAY_IN_MILLIS;
+    }
+
+    private void assertRowCountThenClear(int rowCount) {
+        assertEquals("Wrong number of rows inserted",
+                rowCount, DatabaseUtils.queryNumEntries(mDatabase, WeatherEntry.TABLE_NAME));
+        mDatabase.delete(WeatherEntry.TABLE_NAME, null, null);
+    }
+}
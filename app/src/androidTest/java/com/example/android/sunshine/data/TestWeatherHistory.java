@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.example.android.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that reconciling the weather records every changed forecast in the weather history,
+ * that history can be queried by a range of dates, and that compaction downsamples and drops
+ * old months while leaving recent ones alone.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherHistory {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = new WeatherDbHelper(mContext).getWritableDatabase();
+        mDatabase.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDatabase.delete(HistoryEntry.TABLE_NAME, null, null);
+        mDatabase.delete(LocationEntry.TABLE_NAME, null, null);
+        TestUtilities.dropForecastSnapshot(mContext);
+    }
+
+    @Test
+    public void testReconcileRecordsChangedForecasts() {
+        ContentValues[] forecast = createBulkInsertTestWeatherValues();
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < forecast.length; i++) {
+            forecast[i].put(WeatherEntry.COLUMN_DATE, today + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+
+        reconcile(forecast);
+        assertHistoryRows("A new forecast should all go into the history",
+                BULK_INSERT_RECORDS_TO_INSERT);
+
+        reconcile(forecast);
+        assertHistoryRows("An unchanged forecast shouldn't add any history",
+                BULK_INSERT_RECORDS_TO_INSERT);
+
+        /* History is keyed on the time of the sync, so make sure the next one is later */
+        SystemClock.sleep(5);
+
+        long changedDate = forecast[3].getAsLong(WeatherEntry.COLUMN_DATE);
+        forecast[3].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        reconcile(forecast);
+        assertHistoryRows("Only the changed day should be added to the history",
+                BULK_INSERT_RECORDS_TO_INSERT + 1);
+
+        /* The changed day now has both of its forecasts, in the order they were fetched */
+        Cursor dayCursor = mContext.getContentResolver().query(
+                HistoryEntry.buildHistoryUri(changedDate, changedDate), null, null, null, null);
+        assertEquals("The changed day should have two forecasts", 2, dayCursor.getCount());
+
+        int maxTempIndex = dayCursor.getColumnIndexOrThrow(HistoryEntry.COLUMN_MAX_TEMP);
+        int fetchedAtIndex = dayCursor.getColumnIndexOrThrow(HistoryEntry.COLUMN_FETCHED_AT);
+        dayCursor.moveToFirst();
+        long firstFetch = dayCursor.getLong(fetchedAtIndex);
+        dayCursor.moveToNext();
+        assertTrue("Forecasts should come back in the order they were fetched",
+                dayCursor.getLong(fetchedAtIndex) > firstFetch);
+        assertEquals("The last forecast should be the changed one",
+                99.0, dayCursor.getDouble(maxTempIndex));
+        dayCursor.close();
+
+        /* A range covers every day in it, and nothing else */
+        Uri firstThreeDays = HistoryEntry.buildHistoryUri(today,
+                today + 2 * SunshineDateUtils.DAY_IN_MILLIS);
+        Cursor rangeCursor = mContext.getContentResolver().query(
+                firstThreeDays, null, null, null, null);
+        assertEquals("The range query returned the wrong number of rows",
+                3, rangeCursor.getCount());
+        rangeCursor.close();
+
+        /* Another location has no history of its own */
+        Cursor otherCursor = mContext.getContentResolver().query(
+                HistoryEntry.buildHistoryUriWithLocation("London, UK", today, changedDate),
+                null, null, null, null);
+        assertEquals("History leaked into another location", 0, otherCursor.getCount());
+        otherCursor.close();
+    }
+
+    @Test
+    public void testCompactionDownsamplesOldMonths() {
+        long now = System.currentTimeMillis();
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+        /* Comfortably more than RAW_HISTORY_MONTHS back, and comfortably less than retained */
+        long oldDay = today - 100 * SunshineDateUtils.DAY_IN_MILLIS;
+        long expiredDay = today - 6 * 366 * SunshineDateUtils.DAY_IN_MILLIS;
+
+        /* Three fetches each for an old day and for today, and one for a day long gone */
+        appendHistory(oldDay, now - 3000, 1);
+        appendHistory(oldDay, now - 2000, 2);
+        appendHistory(oldDay, now - 1000, 3);
+        appendHistory(today, now - 3000, 1);
+        appendHistory(today, now - 2000, 2);
+        appendHistory(today, now - 1000, 3);
+        appendHistory(expiredDay, now - 1000, 1);
+
+        int rowsDeleted = WeatherHistoryStore.compact(mDatabase, now);
+        assertEquals("Compaction deleted the wrong number of rows", 3, rowsDeleted);
+
+        /* The old day keeps only its last forecast, and today keeps all of them */
+        assertEquals("The old day wasn't downsampled to one forecast",
+                1, countHistory(oldDay));
+        assertEquals("Today's forecasts shouldn't be compacted",
+                3, countHistory(today));
+        assertEquals("The expired day should have been dropped",
+                0, countHistory(expiredDay));
+
+        long survivingWeatherId = DatabaseUtils.longForQuery(mDatabase,
+                "SELECT " + HistoryEntry.COLUMN_WEATHER_ID + " FROM " + HistoryEntry.TABLE_NAME
+                        + " WHERE " + HistoryEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(oldDay)});
+        assertEquals("Compaction kept the wrong forecast", 3, survivingWeatherId);
+
+        assertEquals("Compacting again shouldn't delete anything",
+                0, WeatherHistoryStore.compact(mDatabase, now));
+    }
+
+    private void appendHistory(long date, long fetchedAt, int weatherId) {
+        ForecastBatch batch = new ForecastBatch(1);
+        batch.add(date, weatherId, 10, 20, 50, 1000, 5, 180);
+
+        SQLiteStatement statement = WeatherHistoryStore.compileAppend(mDatabase);
+        try {
+            WeatherHistoryStore.bindAppend(statement, batch, 0, TestUtilities.TEST_LOCATION_ID,
+                    fetchedAt);
+            statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private long countHistory(long date) {
+        return DatabaseUtils.queryNumEntries(mDatabase, HistoryEntry.TABLE_NAME,
+                HistoryEntry.COLUMN_DATE + " = ?", new String[]{Long.toString(date)});
+    }
+
+    private void assertHistoryRows(String error, int expectedCount) {
+        Cursor cursor = mContext.getContentResolver().query(
+                HistoryEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(error, expectedCount, cursor.getCount());
+        cursor.close();
+    }
+
+    private void reconcile(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, values);
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.call(WeatherEntry.CONTENT_URI, WeatherEntry.METHOD_RECONCILE, null,
+                extras);
+    }
+}
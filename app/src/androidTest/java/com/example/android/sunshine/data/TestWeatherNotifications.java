@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.CountingContentObserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Counts how many times the screens showing weather would query again after a change. Each
+ * test opens the Cursors the forecast list and two detail screens would have, one for a day
+ * that changes and one for a day that doesn't, and counts the notifications each Cursor gets.
+ * A CursorLoader queries again for every one of them.
+ * <p>
+ * The counts are written to logcat under the "WeatherNotifications" tag, next to what a single
+ * notification on CONTENT_URI costs, which is what the provider used to send for every change.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherNotifications {
+
+    private static final String TAG = "WeatherNotifications";
+
+    /* The day the tests change, and a day they leave alone */
+    private static final int CHANGED_DAY = 3;
+    private static final int UNCHANGED_DAY = 5;
+
+    /* The columns the forecast list asks for */
+    private static final String[] FORECAST_PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_WEATHER_ID,
+    };
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private ContentValues[] mForecast;
+
+    private Cursor mListCursor;
+    private Cursor mChangedDayCursor;
+    private Cursor mUnchangedDayCursor;
+
+    private CountingContentObserver mListObserver;
+    private CountingContentObserver mChangedDayObserver;
+    private CountingContentObserver mUnchangedDayObserver;
+
+    @Before
+    public void setUp() {
+        SQLiteDatabase database = new WeatherDbHelper(mContext).getWritableDatabase();
+        database.delete(WeatherEntry.TABLE_NAME, null, null);
+        database.delete(HistoryEntry.TABLE_NAME, null, null);
+        database.delete(LocationEntry.TABLE_NAME, null, null);
+        database.close();
+        TestUtilities.dropForecastSnapshot(mContext);
+
+        mForecast = createBulkInsertTestWeatherValues();
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < mForecast.length; i++) {
+            mForecast[i].put(WeatherEntry.COLUMN_DATE, today + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+        reconcile(mForecast);
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        mListCursor = contentResolver.query(WeatherEntry.buildWeatherUriTodayOnwards(),
+                FORECAST_PROJECTION, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        mChangedDayCursor = contentResolver.query(dateUri(CHANGED_DAY), null, null, null, null);
+        mUnchangedDayCursor = contentResolver.query(dateUri(UNCHANGED_DAY), null, null, null, null);
+
+        mListObserver = CountingContentObserver.register(mListCursor);
+        mChangedDayObserver = CountingContentObserver.register(mChangedDayCursor);
+        mUnchangedDayObserver = CountingContentObserver.register(mUnchangedDayCursor);
+    }
+
+    @After
+    public void tearDown() {
+        mListObserver.unregister(mListCursor);
+        mChangedDayObserver.unregister(mChangedDayCursor);
+        mUnchangedDayObserver.unregister(mUnchangedDayCursor);
+
+        mListCursor.close();
+        mChangedDayCursor.close();
+        mUnchangedDayCursor.close();
+    }
+
+    /**
+     * A notification on CONTENT_URI reaches every Cursor, whatever changed. This is what every
+     * write used to cost, and what a change of units cost on top of that.
+     */
+    @Test
+    public void testContentUriNotificationRequeriesEverything() throws InterruptedException {
+        mContext.getContentResolver().notifyChange(WeatherEntry.CONTENT_URI, null);
+
+        int[] counts = getRequeryCounts("CONTENT_URI notification");
+        assertEquals("The list should requery", 1, counts[0]);
+        assertEquals("The changed day should requery", 1, counts[1]);
+        assertEquals("A notification on CONTENT_URI requeries every day", 1, counts[2]);
+    }
+
+    @Test
+    public void testReconcileRequeriesOnlyChangedDays() throws InterruptedException {
+        mForecast[CHANGED_DAY].put(WeatherEntry.COLUMN_MAX_TEMP, 99);
+        reconcile(mForecast);
+
+        int[] counts = getRequeryCounts("Reconcile of one changed day");
+        assertEquals("The list should requery once", 1, counts[0]);
+        assertEquals("The changed day should requery once", 1, counts[1]);
+        assertEquals("A day that didn't change shouldn't requery", 0, counts[2]);
+    }
+
+    @Test
+    public void testDeleteRequeriesOnlyDeletedDays() throws InterruptedException {
+        long changedDate = mForecast[CHANGED_DAY].getAsLong(WeatherEntry.COLUMN_DATE);
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(changedDate)});
+
+        int[] counts = getRequeryCounts("Delete of one day");
+        assertEquals("The list should requery once", 1, counts[0]);
+        assertEquals("The deleted day should requery once", 1, counts[1]);
+        assertEquals("A day that wasn't deleted shouldn't requery", 0, counts[2]);
+    }
+
+    /**
+     * Units are applied when views are bound, so the screens rebind on the preference change
+     * themselves and nothing should be notified at all.
+     */
+    @Test
+    public void testUnitsChangeRequeriesNothing() throws InterruptedException {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String unitsKey = mContext.getString(R.string.pref_units_key);
+        String metric = mContext.getString(R.string.pref_units_metric);
+        String imperial = mContext.getString(R.string.pref_units_imperial);
+        String previousUnits = sp.getString(unitsKey, metric);
+
+        sp.edit().putString(unitsKey, metric.equals(previousUnits) ? imperial : metric).commit();
+        try {
+            int[] counts = getRequeryCounts("Change of units");
+            assertEquals("The list shouldn't requery", 0, counts[0]);
+            assertEquals("The detail screen shouldn't requery", 0, counts[1]);
+        } finally {
+            sp.edit().putString(unitsKey, previousUnits).commit();
+        }
+    }
+
+    /* {list, changed day, unchanged day} */
+    private int[] getRequeryCounts(String scenario) throws InterruptedException {
+        int[] counts = {
+                mListObserver.getChangeCount(),
+                mChangedDayObserver.getChangeCount(),
+                mUnchangedDayObserver.getChangeCount()};
+
+        Log.i(TAG, String.format("%s: list %d, changed day %d, unchanged day %d, total %d",
+                scenario, counts[0], counts[1], counts[2], counts[0] + counts[1] + counts[2]));
+        return counts;
+    }
+
+    private Uri dateUri(int day) {
+        return WeatherEntry.buildWeatherUriWithDate(
+                mForecast[day].getAsLong(WeatherEntry.COLUMN_DATE));
+    }
+
+    private void reconcile(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherEntry.EXTRA_VALUES, values);
+
+        mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_RECONCILE, null, extras);
+    }
+}
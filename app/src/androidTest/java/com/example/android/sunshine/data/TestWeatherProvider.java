@@ -24,9 +24,14 @@ import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.util.Arrays;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -168,8 +173,18 @@ public class TestWeatherProvider {
         WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
         SQLiteDatabase database = dbHelper.getWritableDatabase();
 
+        /*
+         * Querying CONTENT_URI returns the weather at the user's current location, so the row we
+         * insert has to belong to it.
+         */
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+        long locationId = database.insert(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+
         /* Obtain weather values from TestUtilities */
         ContentValues testWeatherValues = TestUtilities.createTestWeatherContentValues();
+        testWeatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
 
         /* Insert ContentValues into database and get a row ID back */
         long weatherRowId = database.insert(
@@ -181,6 +196,7 @@ public class TestWeatherProvider {
 
         String insertFailed = "Unable to insert into the database";
         assertTrue(insertFailed, weatherRowId != -1);
+        TestUtilities.dropForecastSnapshot(mContext);
 
         /* We are done with the database, close it now. */
         database.close();
@@ -423,6 +439,258 @@ public class TestWeatherProvider {
         shouldBeEmptyCursor.close();
     }
 
+    /**
+     * This test reconciles the weather table with a forecast four times: into an empty table,
+     * with exactly the same forecast, with one changed day, and with the last day gone. It
+     * checks that each row is only written when it needs to be, and that the only rows deleted
+     * are the days that have passed and the days the new forecast doesn't have.
+     */
+    @Test
+    public void testReconcile() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        /* These dates are all in the past, so reconciling should get rid of them */
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                createBulkInsertTestWeatherValues());
+
+        ContentValues[] forecast = createBulkInsertTestWeatherValues();
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < forecast.length; i++) {
+            forecast[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    today + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        contentResolver.registerContentObserver(
+                WeatherContract.WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        Bundle firstResult = reconcile(forecast);
+
+        weatherObserver.waitForNotificationOrFail();
+        contentResolver.unregisterContentObserver(weatherObserver);
+
+        assertReconcileCounts("First reconcile", firstResult,
+                BULK_INSERT_RECORDS_TO_INSERT, 0, BULK_INSERT_RECORDS_TO_INSERT, 0);
+
+        /* The same forecast again shouldn't write anything */
+        Bundle secondResult = reconcile(forecast);
+        assertReconcileCounts("Reconciling an unchanged forecast", secondResult,
+                0, 0, 0, BULK_INSERT_RECORDS_TO_INSERT);
+
+        /* Change a single day */
+        forecast[3].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 99);
+        Bundle thirdResult = reconcile(forecast);
+        assertReconcileCounts("Reconciling a forecast with one change", thirdResult,
+                0, 1, 0, BULK_INSERT_RECORDS_TO_INSERT - 1);
+
+        Cursor cursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertEquals("Reconciled table has the wrong number of rows",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+
+        cursor.moveToFirst();
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord(
+                    "testReconcile. Error validating WeatherEntry " + i,
+                    cursor,
+                    forecast[i]);
+        }
+
+        cursor.close();
+
+        /* A forecast without the last day shouldn't leave the old one's last day behind */
+        ContentValues[] shorterForecast = Arrays.copyOf(forecast, forecast.length - 1);
+        Bundle fourthResult = reconcile(shorterForecast);
+        assertReconcileCounts("Reconciling a forecast with a day less", fourthResult,
+                0, 0, 1, BULK_INSERT_RECORDS_TO_INSERT - 1);
+        assertRowCount("The reconciled table", WeatherContract.WeatherEntry.CONTENT_URI,
+                BULK_INSERT_RECORDS_TO_INSERT - 1);
+    }
+
+    /**
+     * This test stores weather for two locations and checks that each location's URI only
+     * returns its own weather, that reconciling one location leaves the other alone, and that
+     * deleting a location deletes its weather along with it.
+     */
+    @Test
+    public void testLocationsAreKeptApart() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        String otherLocation = "London, UK";
+        Uri otherLocationUri =
+                WeatherContract.WeatherEntry.buildWeatherUriWithLocation(otherLocation);
+
+        ContentValues[] forecast = createBulkInsertTestWeatherValues();
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < forecast.length; i++) {
+            forecast[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    today + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+
+        /* Give the other location half the forecast, and the current location all of it */
+        ContentValues[] halfForecast = Arrays.copyOf(forecast, forecast.length / 2);
+        int otherInserted = contentResolver.bulkInsert(otherLocationUri, halfForecast);
+        assertEquals("Weather for the other location wasn't inserted",
+                halfForecast.length, otherInserted);
+
+        Bundle result = reconcile(forecast);
+        assertReconcileCounts("Reconciling the current location", result,
+                BULK_INSERT_RECORDS_TO_INSERT, 0, 0, 0);
+
+        assertRowCount("Current location", WeatherContract.WeatherEntry.CONTENT_URI,
+                BULK_INSERT_RECORDS_TO_INSERT);
+        assertRowCount("Other location", otherLocationUri, halfForecast.length);
+
+        Cursor locationCursor = contentResolver.query(
+                WeatherContract.LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("There should be a row for each location", 2, locationCursor.getCount());
+        locationCursor.close();
+
+        /* Deleting the other location takes its weather with it */
+        int locationsDeleted = contentResolver.delete(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{otherLocation});
+        assertEquals("The other location wasn't deleted", 1, locationsDeleted);
+
+        assertRowCount("Deleted location", otherLocationUri, 0);
+        assertRowCount("Current location after deleting the other",
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                BULK_INSERT_RECORDS_TO_INSERT);
+    }
+
+    /**
+     * This test queries the today onwards, range and aggregate URIs, checks the aggregates
+     * against ones worked out here, and checks that SQLite answers the forecast list's query
+     * from the covering index alone.
+     */
+    @Test
+    public void testRangeAndAggregateQueries() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        /* The test values are all in the past */
+        ContentValues[] pastValues = createBulkInsertTestWeatherValues();
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, pastValues);
+
+        long firstDate = pastValues[2].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        long lastDate = pastValues[5].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+
+        Cursor rangeCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.buildWeatherUriForRange(firstDate, lastDate),
+                null, null, null, null);
+        assertEquals("The range query returned the wrong number of rows",
+                4, rangeCursor.getCount());
+        rangeCursor.moveToFirst();
+        for (int i = 2; i <= 5; i++, rangeCursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("Error validating range row " + i,
+                    rangeCursor, pastValues[i]);
+        }
+        rangeCursor.close();
+
+        double lowestMin = Double.MAX_VALUE;
+        double highestMax = -Double.MAX_VALUE;
+        double totalMin = 0;
+        double totalMax = 0;
+        for (int i = 2; i <= 5; i++) {
+            double min = pastValues[i].getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+            double max = pastValues[i].getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+            lowestMin = Math.min(lowestMin, min);
+            highestMax = Math.max(highestMax, max);
+            totalMin += min;
+            totalMax += max;
+        }
+
+        Cursor aggregateCursor = contentResolver.query(
+                WeatherContract.WeatherEntry.buildAggregateUri(firstDate, lastDate),
+                null, null, null, null);
+        assertTrue("The aggregate query returned no row", aggregateCursor.moveToFirst());
+        assertEquals("Wrong day count", 4, aggregateCursor.getInt(aggregateCursor
+                .getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_DAY_COUNT)));
+        assertEquals("Wrong lowest low", lowestMin, aggregateCursor.getDouble(aggregateCursor
+                .getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_LOWEST_MIN_TEMP)));
+        assertEquals("Wrong highest high", highestMax, aggregateCursor.getDouble(aggregateCursor
+                .getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_HIGHEST_MAX_TEMP)));
+        assertEquals("Wrong average low", totalMin / 4, aggregateCursor.getDouble(aggregateCursor
+                .getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_AVERAGE_MIN_TEMP)),
+                1e-9);
+        assertEquals("Wrong average high", totalMax / 4, aggregateCursor.getDouble(aggregateCursor
+                .getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_AVERAGE_MAX_TEMP)),
+                1e-9);
+        aggregateCursor.close();
+
+        /* None of the test values are from today onwards, until we add a few that are */
+        Uri todayOnwardsUri = WeatherContract.WeatherEntry.buildWeatherUriTodayOnwards();
+        assertRowCount("Today onwards, before adding today's weather", todayOnwardsUri, 0);
+
+        ContentValues[] upcomingValues = Arrays.copyOf(createBulkInsertTestWeatherValues(), 3);
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        for (int i = 0; i < upcomingValues.length; i++) {
+            upcomingValues[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    today + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, upcomingValues);
+        assertRowCount("Today onwards", todayOnwardsUri, upcomingValues.length);
+
+        /* The forecast list's query shouldn't have to read the table at all */
+        SQLiteDatabase database = new WeatherDbHelper(mContext).getReadableDatabase();
+        Cursor planCursor = database.rawQuery("EXPLAIN QUERY PLAN SELECT "
+                        + WeatherContract.WeatherEntry.COLUMN_DATE + ", "
+                        + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", "
+                        + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", "
+                        + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
+                        + " FROM " + WeatherContract.WeatherEntry.TABLE_NAME
+                        + " WHERE " + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?"
+                        + " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{"1", Long.toString(today)});
+        StringBuilder plan = new StringBuilder();
+        int detailIndex = planCursor.getColumnIndexOrThrow("detail");
+        while (planCursor.moveToNext()) {
+            plan.append(planCursor.getString(detailIndex)).append('\n');
+        }
+        planCursor.close();
+        database.close();
+
+        assertTrue("The forecast query didn't use a covering index:\n" + plan,
+                plan.toString().contains("COVERING INDEX"));
+    }
+
+    private void assertRowCount(String what, Uri uri, int expectedCount) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        assertEquals(what + " has the wrong number of weather rows",
+                expectedCount, cursor.getCount());
+        cursor.close();
+    }
+
+    private Bundle reconcile(ContentValues[] values) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.WeatherEntry.EXTRA_VALUES, values);
+
+        Bundle result = mContext.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_RECONCILE,
+                null,
+                extras);
+
+        assertNotNull("Reconcile didn't return a result", result);
+        return result;
+    }
+
+    private static void assertReconcileCounts(String step, Bundle result, int inserted,
+                                              int updated, int deleted, int unchanged) {
+        assertEquals(step + ": wrong number of rows inserted",
+                inserted, result.getInt(WeatherContract.WeatherEntry.EXTRA_INSERTED));
+        assertEquals(step + ": wrong number of rows updated",
+                updated, result.getInt(WeatherContract.WeatherEntry.EXTRA_UPDATED));
+        assertEquals(step + ": wrong number of rows deleted",
+                deleted, result.getInt(WeatherContract.WeatherEntry.EXTRA_DELETED));
+        assertEquals(step + ": wrong number of rows left unchanged",
+                unchanged, result.getInt(WeatherContract.WeatherEntry.EXTRA_UNCHANGED));
+    }
+
     /**
      * This method will clear all rows from the weather table in our database.
      * <p>
@@ -442,8 +710,13 @@ public class TestWeatherProvider {
 
         /* The delete method deletes all of the desired rows from the table, not the table itself */
         database.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        database.delete(WeatherContract.HistoryEntry.TABLE_NAME, null, null);
+        database.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
 
         /* Always close the database when you're through with it */
         database.close();
+
+        /* The provider mustn't answer from the forecast it had in memory before */
+        TestUtilities.dropForecastSnapshot(mContext);
     }
 }
\ No newline at end of file
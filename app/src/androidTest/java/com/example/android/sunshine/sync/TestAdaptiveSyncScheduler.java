@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Replays timelines of when a forecast changed against {@link AdaptiveSyncScheduler}, and
+ * against the fixed schedule Sunshine used before, of a sync every 3 to 4 hours. Each replay
+ * counts the fetches that found nothing new, and how long each change went unseen.
+ * <p>
+ * The timelines are two weeks of changes on the schedules forecast servers tend to keep: every
+ * hour, every 3 hours with and without some jitter, every 6 and every 12 hours, and one that
+ * switches from every 6 hours to every hour half way through. The report comparing the two
+ * schedules on each of them is written to logcat under the "AdaptiveSyncScheduler" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestAdaptiveSyncScheduler {
+
+    private static final String TAG = "AdaptiveSyncScheduler";
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAYS = TimeUnit.DAYS.toMillis(14);
+
+    /* The bounds in res/values/integers.xml */
+    private static final long MIN_INTERVAL = 30 * MINUTE;
+    private static final long MAX_INTERVAL = 24 * HOUR;
+
+    /* The schedule Sunshine used before: a window from 3 to 4 hours after the last sync */
+    private static final long FIXED_INTERVAL = 3 * HOUR;
+    private static final long FIXED_FLEX = HOUR;
+
+    private static final String SOURCE = "http://example.com/forecast";
+
+    @Test
+    public void testSlowForecastWastesFewerFetches() {
+        long[] changes = periodic(6 * HOUR, 50 * MINUTE);
+        Replay fixed = Replay.fixed(changes);
+        Replay adaptive = Replay.adaptive(changes);
+
+        assertTrue("Learning a 6 hour cadence should waste fewer fetches",
+                adaptive.wastedFetches < fixed.wastedFetches);
+        assertTrue("Learning a 6 hour cadence shouldn't leave changes unseen for longer",
+                adaptive.meanStaleness() < fixed.meanStaleness());
+
+        changes = periodic(12 * HOUR, 20 * MINUTE);
+        assertTrue("Learning a 12 hour cadence should waste fewer fetches",
+                Replay.adaptive(changes).wastedFetches * 2 < Replay.fixed(changes).wastedFetches);
+    }
+
+    @Test
+    public void testFastForecastIsSeenSooner() {
+        long[] changes = periodic(HOUR, 5 * MINUTE);
+        Replay fixed = Replay.fixed(changes);
+        Replay adaptive = Replay.adaptive(changes);
+
+        assertTrue("An hourly forecast should be seen much sooner",
+                adaptive.meanStaleness() * 2 < fixed.meanStaleness());
+        assertTrue("The interval should have come down to about an hour, not "
+                        + adaptive.intervalMillis / MINUTE + " minutes",
+                adaptive.intervalMillis >= 45 * MINUTE && adaptive.intervalMillis <= 75 * MINUTE);
+    }
+
+    @Test
+    public void testDelaysStayWithinBounds() {
+        AdaptiveSyncScheduler scheduler = new AdaptiveSyncScheduler(MIN_INTERVAL, MAX_INTERVAL);
+        Random random = new Random(3);
+        long now = 0;
+        for (int fetch = 0; fetch < 500; fetch++) {
+            now += random.nextInt((int) (2 * MAX_INTERVAL));
+            scheduler.onForecastFetched(SOURCE, now, random.nextInt(3));
+
+            long delay = scheduler.getNextDelayMillis(now);
+            assertTrue("Delay " + delay + " is out of bounds",
+                    delay >= MIN_INTERVAL && delay <= MAX_INTERVAL);
+        }
+    }
+
+    @Test
+    public void testUntilTwoChangesUsesDefaultInterval() {
+        AdaptiveSyncScheduler scheduler = new AdaptiveSyncScheduler(MIN_INTERVAL, MAX_INTERVAL);
+        scheduler.onForecastFetched(SOURCE, HOUR, 1);
+        scheduler.onForecastNotModified(SOURCE, 2 * HOUR);
+        scheduler.onForecastFetched(SOURCE, 3 * HOUR, 2);
+
+        assertEquals("One change isn't enough to learn an interval from",
+                AdaptiveSyncScheduler.DEFAULT_INTERVAL_MILLIS,
+                scheduler.getNextDelayMillis(3 * HOUR));
+    }
+
+    /**
+     * The same forecast from a new URL isn't a change, and what was learned about the old URL
+     * no longer applies.
+     */
+    @Test
+    public void testNewSourceStartsOver() {
+        AdaptiveSyncScheduler scheduler = new AdaptiveSyncScheduler(MIN_INTERVAL, MAX_INTERVAL);
+        for (int change = 0; change < 4; change++) {
+            scheduler.onForecastFetched(SOURCE, change * 6 * HOUR, change);
+        }
+        assertTrue("Three changes should have taught the scheduler an interval",
+                scheduler.getIntervalMillis() > 0);
+
+        scheduler.onForecastFetched(SOURCE + "?q=elsewhere", 25 * HOUR, 3);
+        assertEquals("A new URL should forget the interval", 0, scheduler.getIntervalMillis());
+    }
+
+    /**
+     * Logs the fetches, wasted fetches and staleness of both schedules on every timeline.
+     */
+    @Test
+    public void reportWastedFetchesAgainstStaleness() {
+        String[] names = {"1h", "3h", "3h jittered", "6h", "12h", "6h then 1h"};
+        long[][] timelines = {
+                periodic(HOUR, 5 * MINUTE),
+                periodic(3 * HOUR, 40 * MINUTE),
+                jittered(3 * HOUR, 40 * MINUTE, 7),
+                periodic(6 * HOUR, 50 * MINUTE),
+                periodic(12 * HOUR, 20 * MINUTE),
+                concat(periodic(6 * HOUR, 50 * MINUTE, 0, DAYS / 2),
+                        periodic(HOUR, 0, DAYS / 2, DAYS))
+        };
+
+        for (int i = 0; i < timelines.length; i++) {
+            Log.i(TAG, names[i] + " fixed:    " + Replay.fixed(timelines[i]));
+            Log.i(TAG, names[i] + " adaptive: " + Replay.adaptive(timelines[i]));
+        }
+    }
+
+    /**
+     * What happened when a schedule was replayed against a timeline of changes.
+     */
+    static final class Replay {
+
+        int fetches;
+        int wastedFetches;
+
+        /* For each change, how long it was until a fetch saw it, sorted */
+        long[] staleness;
+
+        /* The interval the scheduler ended up with */
+        long intervalMillis;
+
+        static Replay fixed(long[] changes) {
+            return replay(changes, null);
+        }
+
+        static Replay adaptive(long[] changes) {
+            return replay(changes, new AdaptiveSyncScheduler(MIN_INTERVAL, MAX_INTERVAL));
+        }
+
+        /*
+         * Fetches from the start of the timeline until just after its last change. Each sync
+         * runs at a random point in its window, as the job dispatcher's would, the same points
+         * for every replay. A fetch returns the number of changes so far as its forecast.
+         */
+        private static Replay replay(long[] changes, AdaptiveSyncScheduler scheduler) {
+            Replay replay = new Replay();
+            Random random = new Random(1);
+            long end = changes[changes.length - 1] + HOUR;
+            long[] fetchTimes = new long[16];
+            int lastVersion = -1;
+
+            for (long now = 0; now < end; ) {
+                int version = 0;
+                while (version < changes.length && changes[version] <= now) version++;
+
+                if (replay.fetches == fetchTimes.length) {
+                    fetchTimes = Arrays.copyOf(fetchTimes, fetchTimes.length * 2);
+                }
+                fetchTimes[replay.fetches++] = now;
+                if (version == lastVersion) replay.wastedFetches++;
+                lastVersion = version;
+
+                long delay = FIXED_INTERVAL;
+                long flex = FIXED_FLEX;
+                if (scheduler != null) {
+                    scheduler.onForecastFetched(SOURCE, now, version);
+                    delay = scheduler.getNextDelayMillis(now);
+                    flex = AdaptiveSyncScheduler.getFlexMillis(delay);
+                }
+                now += delay + (long) (random.nextDouble() * flex);
+            }
+
+            replay.staleness = new long[changes.length];
+            int fetch = 0;
+            for (int change = 0; change < changes.length; change++) {
+                while (fetch < replay.fetches && fetchTimes[fetch] < changes[change]) fetch++;
+                long seen = fetch < replay.fetches ? fetchTimes[fetch] : end;
+                replay.staleness[change] = seen - changes[change];
+            }
+            Arrays.sort(replay.staleness);
+
+            if (scheduler != null) replay.intervalMillis = scheduler.getIntervalMillis();
+            return replay;
+        }
+
+        long meanStaleness() {
+            long sum = 0;
+            for (long millis : staleness) sum += millis;
+            return sum / staleness.length;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d fetches, %d wasted (%d%%), changes unseen for "
+                            + "%d minutes on average, %d at p90",
+                    fetches, wastedFetches, 100 * wastedFetches / fetches,
+                    meanStaleness() / MINUTE,
+                    staleness[staleness.length * 9 / 10] / MINUTE);
+        }
+    }
+
+    /* A change every period, from offset on, for two weeks */
+    private static long[] periodic(long period, long offset) {
+        return periodic(period, offset, 0, DAYS);
+    }
+
+    private static long[] periodic(long period, long offset, long from, long to) {
+        long[] changes = new long[(int) ((to - from - offset + period - 1) / period)];
+        for (int i = 0; i < changes.length; i++) {
+            changes[i] = from + offset + i * period;
+        }
+        return changes;
+    }
+
+    /* A change about every period, each up to jitter early or late, for two weeks */
+    private static long[] jittered(long period, long jitter, long seed) {
+        Random random = new Random(seed);
+        long[] changes = new long[(int) (DAYS / period) - 1];
+        for (int i = 0; i < changes.length; i++) {
+            changes[i] = (i + 1) * period + (long) ((random.nextDouble() * 2 - 1) * jitter);
+        }
+        return changes;
+    }
+
+    private static long[] concat(long[] first, long[] second) {
+        long[] changes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, changes, first.length, second.length);
+        return changes;
+    }
+}
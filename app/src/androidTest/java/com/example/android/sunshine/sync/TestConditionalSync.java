@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.ForecastResponseCache;
+import com.example.android.sunshine.utils.CountingContentObserver;
+import com.example.android.sunshine.utils.ForecastPayloads;
+import com.example.android.sunshine.utils.LocalWeatherServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs {@link SunshineSyncTask} against a {@link LocalWeatherServer} that supports ETag and
+ * Last-Modified validation, and checks that an unchanged forecast costs neither a download nor
+ * any database writes, and that a cached forecast that can't be read is fetched again.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestConditionalSync {
+
+    private static final int FORECAST_DAYS = 14;
+    private static final String ETAG = "\"forecast-v1\"";
+    private static final String LAST_MODIFIED = "Sat, 01 Oct 2016 00:00:00 GMT";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private LocalWeatherServer mServer;
+
+    /* Conditional headers sent with the most recent request */
+    private volatile String mLastIfNoneMatch;
+    private volatile String mLastIfModifiedSince;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+
+        /* Nothing is fresh, so every sync has to revalidate with the server */
+        ForecastResponseCache.getInstance(mContext).setFreshnessLifetime(0);
+
+        mServer = LocalWeatherServer.start(new LocalWeatherServer.Responder() {
+            @Override
+            public LocalWeatherServer.Response respond(LocalWeatherServer.Request request) {
+                mLastIfNoneMatch = request.getHeader("If-None-Match");
+                mLastIfModifiedSince = request.getHeader("If-Modified-Since");
+
+                if (ETAG.equals(mLastIfNoneMatch)) {
+                    return new LocalWeatherServer.Response(304, null)
+                            .header("ETag", ETAG);
+                }
+                return LocalWeatherServer.Response.ok(payloadFor(request.path))
+                        .header("ETag", ETAG)
+                        .header("Last-Modified", LAST_MODIFIED);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+        ForecastResponseCache.getInstance(mContext).setFreshnessLifetime(
+                ForecastResponseCache.DEFAULT_FRESHNESS_LIFETIME_MILLIS);
+    }
+
+    @Test
+    public void testUnchangedForecastIsNotDownloadedOrWritten() throws Exception {
+        /* A path no other test uses, so no validators are saved for it yet */
+        URL url = mServer.getUrl("/weather?q=conditional-" + System.nanoTime());
+
+        int rowsWrittenFirstSync = SunshineSyncTask.syncWeather(mContext, url);
+        long bytesFirstSync = mServer.getBytesWritten();
+
+        assertNull("First sync should not be conditional", mLastIfNoneMatch);
+        assertEquals("First sync should write the whole forecast",
+                FORECAST_DAYS, rowsWrittenFirstSync);
+
+        CountingContentObserver observer = CountingContentObserver.register(mContext,
+                WeatherContract.WeatherEntry.CONTENT_URI);
+        int rowsWrittenSecondSync = SunshineSyncTask.syncWeather(mContext, url);
+        long bytesSecondSync = mServer.getBytesWritten() - bytesFirstSync;
+        int changeCount = observer.getChangeCount();
+        observer.unregister(mContext);
+
+        assertEquals("Second sync should send the saved ETag", ETAG, mLastIfNoneMatch);
+        assertEquals("Second sync should send the saved Last-Modified",
+                LAST_MODIFIED, mLastIfModifiedSince);
+        assertEquals("A 304 must not write any rows", 0, rowsWrittenSecondSync);
+        assertEquals("A 304 must not notify observers", 0, changeCount);
+        assertTrue("A 304 should transfer far less than the forecast: " + bytesSecondSync,
+                bytesSecondSync < payloadFor(url.getFile()).length() / 4);
+        assertEquals("Both syncs should have reached the server", 2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testValidatorsAreNotSentForAnotherLocation() throws Exception {
+        URL firstLocation = mServer.getUrl("/weather?q=first-" + System.nanoTime());
+        URL secondLocation = mServer.getUrl("/weather?q=second-" + System.nanoTime());
+
+        SunshineSyncTask.syncWeather(mContext, firstLocation);
+        int rowsWritten = SunshineSyncTask.syncWeather(mContext, secondLocation);
+
+        assertNull("Validators from another location must not be sent", mLastIfNoneMatch);
+        assertEquals("A new location should write the whole forecast",
+                FORECAST_DAYS, rowsWritten);
+    }
+
+    @Test
+    public void testFreshCachedForecastIsServedWithoutNetwork() throws Exception {
+        ForecastResponseCache.getInstance(mContext).setFreshnessLifetime(
+                ForecastResponseCache.DEFAULT_FRESHNESS_LIFETIME_MILLIS);
+
+        URL firstLocation = mServer.getUrl("/weather?q=first-" + System.nanoTime());
+        URL secondLocation = mServer.getUrl("/weather?q=second-" + System.nanoTime());
+
+        SunshineSyncTask.syncWeather(mContext, firstLocation);
+        SunshineSyncTask.syncWeather(mContext, secondLocation);
+
+        /* Switching back to the first location should come straight out of the cache */
+        int rowsWritten = SunshineSyncTask.syncWeather(mContext, firstLocation);
+
+        assertEquals("The cached forecast should be written to the database",
+                FORECAST_DAYS, rowsWritten);
+        assertEquals("A fresh cached forecast must not reach the server",
+                2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testStaleCachedForecastIsShownThenRevalidated() throws Exception {
+        URL firstLocation = mServer.getUrl("/weather?q=first-" + System.nanoTime());
+        URL secondLocation = mServer.getUrl("/weather?q=second-" + System.nanoTime());
+
+        SunshineSyncTask.syncWeather(mContext, firstLocation);
+        SunshineSyncTask.syncWeather(mContext, secondLocation);
+        int rowsWritten = SunshineSyncTask.syncWeather(mContext, firstLocation);
+
+        assertEquals("The stale cached forecast should still be shown",
+                FORECAST_DAYS, rowsWritten);
+
+        /* The sync returns once it is shown, and revalidates it in the background */
+        assertEquals("An unchanged forecast shouldn't be written again",
+                0, SunshineSyncTask.awaitRevalidation());
+        assertEquals("The stale cached forecast should be revalidated",
+                ETAG, mLastIfNoneMatch);
+        assertEquals("Every sync should have reached the server", 3, mServer.getRequestCount());
+    }
+
+    /**
+     * A cached entry the parser can't read, say one an older version of the app wrote, is
+     * dropped, and the forecast is fetched instead, without the backoff blaming the server.
+     */
+    @Test
+    public void testUnparseableCachedForecastIsDroppedAndFetched() throws Exception {
+        URL url = mServer.getUrl("/weather?q=damaged-" + System.nanoTime());
+        ForecastResponseCache cache = ForecastResponseCache.getInstance(mContext);
+        cache.put(url, "{\"list\": [{\"temp\": ".getBytes(StandardCharsets.UTF_8),
+                ETAG, LAST_MODIFIED);
+
+        Map<String, Long> before = SyncBackoff.getCounters(mContext);
+        int rowsWritten = SunshineSyncTask.syncWeather(mContext, url);
+        Map<String, Long> after = SyncBackoff.getCounters(mContext);
+
+        assertEquals("The forecast should have been fetched", 1, mServer.getRequestCount());
+        assertNull("The damaged entry's validators must not be sent", mLastIfNoneMatch);
+        assertEquals("The fetched forecast should be written", FORECAST_DAYS, rowsWritten);
+        assertEquals("A damaged cache entry isn't the server's failure",
+                before.get("parse_failures"), after.get("parse_failures"));
+
+        /* The entry now holds the response that was just fetched */
+        ForecastResponseCache.Entry entry = cache.get(url);
+        assertNotNull("The fetched forecast should be cached", entry);
+        assertEquals(payloadFor(url.getFile()), new String(entry.body, StandardCharsets.UTF_8));
+    }
+
+    /* Every location gets its own forecast, so switching locations changes every row */
+    private static String payloadFor(String path) {
+        return ForecastPayloads.forecastJson(FORECAST_DAYS, path.hashCode());
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.ForecastResponseCache;
+import com.example.android.sunshine.utils.CountingContentObserver;
+import com.example.android.sunshine.utils.ForecastPayloads;
+import com.example.android.sunshine.utils.LocalWeatherServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs {@link MultiLocationSyncTask} against a {@link LocalWeatherServer} that takes a while to
+ * answer every request, and checks that locations are fetched at the same time, never more at
+ * once than the executor allows, and committed with a single notification.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestMultiLocationSync {
+
+    private static final String TAG = "MultiLocationSync";
+
+    private static final int FORECAST_DAYS = 14;
+    private static final int LOCATION_COUNT = 8;
+    private static final int CONCURRENT_FETCHES = 4;
+    private static final long LATENCY_MILLIS = 300;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private LocalWeatherServer mServer;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        /* Deleting every location deletes all of their weather too */
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                null, null);
+        ForecastResponseCache.getInstance(mContext).clear();
+
+        mServer = LocalWeatherServer.start(new LocalWeatherServer.Responder() {
+            @Override
+            public LocalWeatherServer.Response respond(LocalWeatherServer.Request request) {
+                return LocalWeatherServer.Response.ok(
+                        ForecastPayloads.forecastJson(FORECAST_DAYS, request.path.hashCode()));
+            }
+        });
+        mServer.setLatencyMillis(LATENCY_MILLIS);
+
+        mExecutor = Executors.newFixedThreadPool(CONCURRENT_FETCHES);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+        mExecutor.shutdownNow();
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                null, null);
+    }
+
+    @Test
+    public void testLocationsAreFetchedConcurrentlyAndCommittedOnce() throws Exception {
+        List<MultiLocationSyncTask.LocationRequest> locations = createLocations();
+
+        /* Lists are what reload on a sync, so count their notifications */
+        CountingContentObserver observer = CountingContentObserver.register(mContext,
+                WeatherContract.WeatherEntry.LIST_NOTIFICATION_URI);
+        MultiLocationSyncTask.SyncTimings timings =
+                MultiLocationSyncTask.syncLocations(mContext, locations, mExecutor);
+        int changeCount = observer.getChangeCount();
+        observer.unregister(mContext);
+
+        Log.i(TAG, timings.toString());
+
+        assertEquals("Every location should have been updated",
+                LOCATION_COUNT, timings.locationsUpdated);
+        assertEquals("Every day of every forecast should have been written",
+                LOCATION_COUNT * FORECAST_DAYS, timings.rowsWritten);
+        assertEquals("All of the locations should be committed with one notification",
+                1, changeCount);
+
+        int maxInFlight = mServer.getMaxRequestsInFlight();
+        assertTrue("Locations should be fetched at the same time: " + maxInFlight,
+                maxInFlight > 1);
+        assertTrue("No more than " + CONCURRENT_FETCHES + " fetches should run at once: "
+                + maxInFlight, maxInFlight <= CONCURRENT_FETCHES);
+
+        /* One after another, the fetches would take at least LOCATION_COUNT latencies */
+        long sequentialNanos = LOCATION_COUNT * LATENCY_MILLIS * 1000000L;
+        assertTrue("Fetching should take less time than one location after another: "
+                        + timings.fetchStageNanos,
+                timings.fetchStageNanos < sequentialNanos);
+
+        for (MultiLocationSyncTask.LocationRequest location : locations) {
+            Uri uri = WeatherContract.WeatherEntry
+                    .buildWeatherUriWithLocation(location.locationSetting);
+            Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+            assertEquals("Wrong number of rows for " + location.locationSetting,
+                    FORECAST_DAYS, cursor.getCount());
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void testFreshLocationsAreNotFetchedAgain() throws Exception {
+        List<MultiLocationSyncTask.LocationRequest> locations = createLocations();
+
+        MultiLocationSyncTask.syncLocations(mContext, locations, mExecutor);
+        int requestsFirstSync = mServer.getRequestCount();
+
+        MultiLocationSyncTask.SyncTimings timings =
+                MultiLocationSyncTask.syncLocations(mContext, locations, mExecutor);
+
+        assertEquals("The first sync should fetch every location",
+                LOCATION_COUNT, requestsFirstSync);
+        assertEquals("Fresh locations should not be fetched again",
+                requestsFirstSync, mServer.getRequestCount());
+        assertEquals("Nothing should be written the second time", 0, timings.rowsWritten);
+    }
+
+    private List<MultiLocationSyncTask.LocationRequest> createLocations() {
+        List<MultiLocationSyncTask.LocationRequest> locations = new ArrayList<>();
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            String locationSetting = "city-" + i;
+            locations.add(new MultiLocationSyncTask.LocationRequest(locationSetting,
+                    mServer.getUrl("/weather?q=" + locationSetting + "-" + System.nanoTime())));
+        }
+        return locations;
+    }
+}
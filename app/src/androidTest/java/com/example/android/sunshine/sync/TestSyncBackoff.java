@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.utilities.ForecastErrorException;
+import com.example.android.sunshine.utilities.ForecastResponseCache;
+import com.example.android.sunshine.utils.LocalWeatherServer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.EOFException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that {@link SyncBackoff} sorts failures into the right kinds, that the delay after a
+ * failure grows and is jittered within its bounds, and that failures that won't fix themselves
+ * open the circuit, which a fetch that succeeds closes again. The last test syncs against a
+ * {@link LocalWeatherServer} that doesn't know the location, and checks that the sync stops
+ * asking it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncBackoff {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static final String SOURCE = "http://example.com/forecast";
+
+    private static final long START = TimeUnit.DAYS.toMillis(20000);
+
+    @Test
+    public void testFailuresAreClassified() {
+        assertEquals(SyncBackoff.FAILURE_NETWORK,
+                SyncBackoff.classify(new SocketTimeoutException()));
+        assertEquals(SyncBackoff.FAILURE_NETWORK,
+                SyncBackoff.classify(new EOFException()));
+        assertEquals(SyncBackoff.FAILURE_SERVER,
+                SyncBackoff.classify(new ForecastErrorException(503)));
+        assertEquals(SyncBackoff.FAILURE_SERVER,
+                SyncBackoff.classify(new ForecastErrorException(429)));
+        assertEquals(SyncBackoff.FAILURE_INVALID_LOCATION,
+                SyncBackoff.classify(new ForecastErrorException(404)));
+        assertEquals(SyncBackoff.FAILURE_INVALID_LOCATION,
+                SyncBackoff.classify(new ForecastErrorException(400)));
+        assertEquals(SyncBackoff.FAILURE_PARSE,
+                SyncBackoff.classify(new MalformedJsonException("no list")));
+        assertEquals(SyncBackoff.FAILURE_PARSE,
+                SyncBackoff.classify(new IllegalStateException("Expected BEGIN_OBJECT")));
+        assertEquals(SyncBackoff.FAILURE_PARSE,
+                SyncBackoff.classify(new NumberFormatException("not a number")));
+        assertEquals(SyncBackoff.FAILURE_OTHER,
+                SyncBackoff.classify(new SQLiteException("disk full")));
+    }
+
+    @Test
+    public void testDelayGrowsWithinJitterBounds() {
+        SyncBackoff backoff = new SyncBackoff(new Random(42));
+
+        /* 30 seconds, doubling each time, up to 30 minutes */
+        long expectedMillis = TimeUnit.SECONDS.toMillis(30);
+        for (int failure = 0; failure < 10; failure++) {
+            backoff.onFailure(SOURCE, SyncBackoff.FAILURE_NETWORK, START);
+            long delayMillis = backoff.getRetryAtMillis() - START;
+
+            assertTrue("Failure " + failure + " waited " + delayMillis + " ms",
+                    delayMillis >= expectedMillis / 2 && delayMillis <= expectedMillis);
+            expectedMillis = Math.min(expectedMillis * 2, 30 * MINUTE);
+        }
+        assertFalse("Network failures shouldn't open the circuit",
+                backoff.isCircuitOpen(START));
+        assertTrue(backoff.allowsFetch(SOURCE, START));
+
+        /* The next sync runs when the backoff says, not on the regular schedule */
+        assertEquals(backoff.getRetryAtMillis() - START,
+                backoff.adjustDelayMillis(3 * HOUR, START));
+
+        /* A success forgets it all */
+        backoff.onSuccess(SOURCE);
+        assertEquals(0, backoff.getRetryAtMillis());
+        assertEquals(3 * HOUR, backoff.adjustDelayMillis(3 * HOUR, START));
+    }
+
+    @Test
+    public void testServerErrorsBackOffFurther() {
+        SyncBackoff network = new SyncBackoff(new Random(1));
+        SyncBackoff server = new SyncBackoff(new Random(1));
+        network.onFailure(SOURCE, SyncBackoff.FAILURE_NETWORK, START);
+        server.onFailure(SOURCE, SyncBackoff.FAILURE_SERVER, START);
+
+        assertTrue("A server error should wait longer than a dropped connection",
+                server.getRetryAtMillis() > network.getRetryAtMillis());
+    }
+
+    @Test
+    public void testInvalidLocationOpensCircuitUntilProbeSucceeds() {
+        SyncBackoff backoff = new SyncBackoff(new Random(7));
+        long now = START;
+
+        for (int failure = 0; failure < 3; failure++) {
+            assertTrue("The circuit opened too soon", backoff.allowsFetch(SOURCE, now));
+            backoff.onFailure(SOURCE, SyncBackoff.FAILURE_INVALID_LOCATION, now);
+        }
+        assertTrue(backoff.isCircuitOpen(now));
+        assertFalse(backoff.allowsFetch(SOURCE, now + HOUR));
+        assertEquals("The next sync shouldn't come before the circuit closes",
+                SyncBackoff.CIRCUIT_OPEN_MILLIS, backoff.adjustDelayMillis(3 * HOUR, now));
+
+        /* Once the day is up, one fetch is let through. It fails, so the circuit opens again */
+        now += SyncBackoff.CIRCUIT_OPEN_MILLIS;
+        assertTrue("The probe should be let through", backoff.allowsFetch(SOURCE, now));
+        backoff.onFailure(SOURCE, SyncBackoff.FAILURE_INVALID_LOCATION, now);
+        assertFalse(backoff.allowsFetch(SOURCE, now + SyncBackoff.CIRCUIT_OPEN_MILLIS));
+        assertTrue("The circuit should stay open longer the second time",
+                backoff.isCircuitOpen(now + SyncBackoff.CIRCUIT_OPEN_MILLIS));
+
+        /* The next probe succeeds, which closes it */
+        now += 2 * SyncBackoff.CIRCUIT_OPEN_MILLIS;
+        assertTrue(backoff.allowsFetch(SOURCE, now));
+        backoff.onSuccess(SOURCE);
+        assertFalse(backoff.isCircuitOpen(now));
+        backoff.onFailure(SOURCE, SyncBackoff.FAILURE_INVALID_LOCATION, now);
+        assertTrue("One failure after a success shouldn't open the circuit",
+                backoff.allowsFetch(SOURCE, now));
+    }
+
+    @Test
+    public void testProbeFailingOnNetworkBacksOffAsNetworkFailure() {
+        SyncBackoff backoff = new SyncBackoff(new Random(5));
+        for (int failure = 0; failure < 3; failure++) {
+            backoff.onFailure(SOURCE, SyncBackoff.FAILURE_INVALID_LOCATION, START);
+        }
+
+        /* The probe after the circuit closes loses its connection */
+        long now = START + SyncBackoff.CIRCUIT_OPEN_MILLIS;
+        assertTrue(backoff.allowsFetch(SOURCE, now));
+        backoff.onFailure(SOURCE, SyncBackoff.FAILURE_NETWORK, now);
+
+        long delayMillis = backoff.adjustDelayMillis(3 * HOUR, now);
+        assertTrue("The retry came after " + delayMillis + " ms, not the network backoff",
+                delayMillis >= TimeUnit.SECONDS.toMillis(15) && delayMillis <= 30 * MINUTE);
+    }
+
+    @Test
+    public void testNewSourceStartsOver() {
+        SyncBackoff backoff = new SyncBackoff(new Random(3));
+        for (int failure = 0; failure < 3; failure++) {
+            backoff.onFailure(SOURCE, SyncBackoff.FAILURE_INVALID_LOCATION, START);
+        }
+        assertFalse(backoff.allowsFetch(SOURCE, START));
+
+        assertTrue("Picking a new location should close the circuit",
+                backoff.allowsFetch(SOURCE + "?q=elsewhere", START));
+    }
+
+    @Test
+    public void testUnknownLocationStopsHittingServer() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        /* Nothing is fresh, so every sync has to go to the server */
+        ForecastResponseCache.getInstance(context).setFreshnessLifetime(0);
+        LocalWeatherServer server = LocalWeatherServer.start(new LocalWeatherServer.Responder() {
+            @Override
+            public LocalWeatherServer.Response respond(LocalWeatherServer.Request request) {
+                return new LocalWeatherServer.Response(404,
+                        "{\"cod\":\"404\",\"message\":\"city not found\"}"
+                                .getBytes(StandardCharsets.UTF_8));
+            }
+        });
+
+        try {
+            Map<String, Long> before = SyncBackoff.getCounters(context);
+            URL url = server.getUrl("/weather?q=nowhere-" + System.nanoTime());
+            for (int sync = 0; sync < 5; sync++) {
+                assertEquals(0, SunshineSyncTask.syncWeather(context, url));
+            }
+            Map<String, Long> after = SyncBackoff.getCounters(context);
+
+            assertEquals("The circuit should open after 3 failures", 3, server.getRequestCount());
+            assertEquals(3, after.get("invalid_location_failures")
+                    - before.get("invalid_location_failures"));
+            assertEquals(1, after.get("circuit_opened") - before.get("circuit_opened"));
+            assertEquals(2, after.get("fetches_skipped") - before.get("fetches_skipped"));
+        } finally {
+            server.shutdown();
+            ForecastResponseCache.getInstance(context).setFreshnessLifetime(
+                    ForecastResponseCache.DEFAULT_FRESHNESS_LIFETIME_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.ForecastResponseCache;
+import com.example.android.sunshine.utils.ForecastPayloads;
+import com.example.android.sunshine.utils.LocalWeatherServer;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs {@link SyncJobExecutor} against a {@link LocalWeatherServer} that trickles the forecast
+ * out over about ten seconds, and checks that stopping the job, or running out of time, ends the
+ * download straight away rather than once the whole body has arrived, that nothing is written
+ * to the database, and that the job reports back exactly once, asking to be tried again.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncJobExecutor {
+
+    private static final int FORECAST_DAYS = 14;
+
+    /* A 14 day forecast is about 20 pieces, so it takes about 10 seconds to download */
+    private static final long BODY_CHUNK_DELAY_MILLIS = 500;
+
+    /* Far less than the download takes, but plenty for a cancelled one to wind down */
+    private static final long PROMPT_MILLIS = 3000;
+
+    private static final String STAGE_NAME = "download";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private LocalWeatherServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+
+        /* Nothing is fresh, so every sync has to go to the server */
+        ForecastResponseCache.getInstance(mContext).setFreshnessLifetime(0);
+
+        mServer = LocalWeatherServer.serving(ForecastPayloads.forecastJson(FORECAST_DAYS));
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+        ForecastResponseCache.getInstance(mContext).setFreshnessLifetime(
+                ForecastResponseCache.DEFAULT_FRESHNESS_LIFETIME_MILLIS);
+    }
+
+    @Test
+    public void testStopMidDownloadEndsItPromptly() throws Exception {
+        mServer.setBodyChunkDelayMillis(BODY_CHUNK_DELAY_MILLIS);
+        SyncJobExecutor executor = new SyncJobExecutor(mContext,
+                newDownloadStage(TimeUnit.MINUTES.toMillis(1)));
+        RecordingCallback callback = new RecordingCallback();
+        executor.start(callback);
+
+        /* The headers are out, so the sync is reading the body */
+        PollingCheck.check("The download never started", 10000, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mServer.getBytesWritten() > 0;
+            }
+        });
+
+        long stopMillis = SystemClock.elapsedRealtime();
+        assertTrue("A running job should ask to be tried again", executor.stop());
+        assertTrue("Stopping should end the download, not wait for it",
+                callback.await(PROMPT_MILLIS));
+        long stoppedAfterMillis = SystemClock.elapsedRealtime() - stopMillis;
+
+        SyncJobExecutor.Result result = callback.getResult();
+        assertTrue(result.stopped);
+        assertTrue(result.needsReschedule());
+        assertEquals("Nothing should have been written", 0, result.rowsWritten);
+        assertEquals("Nothing should have been written", 0, countWeatherRows());
+        assertTrue("The job took " + stoppedAfterMillis + " ms to stop",
+                stoppedAfterMillis < PROMPT_MILLIS);
+
+        assertFalse("A stopped job can't be stopped again", executor.stop());
+        assertReportedOnce(callback);
+    }
+
+    @Test
+    public void testStageDeadlineEndsDownload() throws Exception {
+        mServer.setBodyChunkDelayMillis(BODY_CHUNK_DELAY_MILLIS);
+        final AtomicInteger laterStageRuns = new AtomicInteger();
+        SyncJobExecutor executor = new SyncJobExecutor(mContext,
+                newDownloadStage(1000),
+                new SyncJobExecutor.Stage("later", TimeUnit.MINUTES.toMillis(1)) {
+                    @Override
+                    int run(Context context, CancellationSignal cancellationSignal,
+                            long deadlineMillis) {
+                        laterStageRuns.incrementAndGet();
+                        return 0;
+                    }
+                });
+        RecordingCallback callback = new RecordingCallback();
+        executor.start(callback);
+
+        assertTrue("The deadline should have ended the download",
+                callback.await(1000 + PROMPT_MILLIS));
+
+        SyncJobExecutor.Result result = callback.getResult();
+        assertFalse(result.stopped);
+        assertEquals(STAGE_NAME, result.timedOutStage);
+        assertTrue("A job that ran out of time should ask to be tried again",
+                result.needsReschedule());
+        assertEquals("Nothing should have been written", 0, countWeatherRows());
+        assertEquals("No stage should run after one that ran out of time",
+                0, laterStageRuns.get());
+
+        assertFalse("A finished job can't be stopped", executor.stop());
+        assertReportedOnce(callback);
+    }
+
+    @Test
+    public void testFinishedJobReportsOnce() throws Exception {
+        SyncJobExecutor executor = new SyncJobExecutor(mContext,
+                newDownloadStage(TimeUnit.MINUTES.toMillis(1)));
+        RecordingCallback callback = new RecordingCallback();
+        executor.start(callback);
+
+        assertTrue("The job didn't finish", callback.await(30000));
+
+        SyncJobExecutor.Result result = callback.getResult();
+        assertFalse(result.stopped);
+        assertNull(result.timedOutStage);
+        assertFalse("A job that got its work done shouldn't be tried again",
+                result.needsReschedule());
+        assertEquals(FORECAST_DAYS, result.rowsWritten);
+
+        assertFalse("A finished job can't be stopped", executor.stop());
+        assertReportedOnce(callback);
+    }
+
+    /* A stage that syncs from the local server, at a URL no other test uses */
+    private SyncJobExecutor.Stage newDownloadStage(long timeoutMillis) {
+        final URL url = mServer.getUrl("/weather?q=job-" + System.nanoTime());
+        return new SyncJobExecutor.Stage(STAGE_NAME, timeoutMillis) {
+            @Override
+            int run(Context context, CancellationSignal cancellationSignal,
+                    long deadlineMillis) {
+                return SunshineSyncTask.syncWeather(context, url, cancellationSignal);
+            }
+        };
+    }
+
+    /* Gives a second report, if there were going to be one, time to arrive */
+    private static void assertReportedOnce(RecordingCallback callback) throws Exception {
+        Thread.sleep(500);
+        assertEquals("The job should report back exactly once", 1, callback.getCalls());
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver()
+                .query(WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Counts the times it is called, and keeps the last result.
+     */
+    private static final class RecordingCallback implements SyncJobExecutor.Callback {
+
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        private final AtomicInteger mCalls = new AtomicInteger();
+        private volatile SyncJobExecutor.Result mResult;
+
+        @Override
+        public void onFinished(SyncJobExecutor.Result result) {
+            mResult = result;
+            mCalls.incrementAndGet();
+            mFinished.countDown();
+        }
+
+        boolean await(long timeoutMillis) throws InterruptedException {
+            return mFinished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        SyncJobExecutor.Result getResult() {
+            return mResult;
+        }
+
+        int getCalls() {
+            return mCalls.get();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.ForecastResponseCache;
+import com.example.android.sunshine.utils.ForecastPayloads;
+import com.example.android.sunshine.utils.LocalWeatherServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that {@link SunshineSyncQueue} turns a burst of sync requests into a single fetch, that
+ * a request made while a sync is running gets that sync's result, that a request made after
+ * it has finished gets a sync of its own, and that a sync is only cancelled once everyone who
+ * asked for it has let go.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncQueue {
+
+    private static final int FORECAST_DAYS = 14;
+    private static final int TRIGGERS = 100;
+
+    /* Long enough for every thread of the burst to have asked, even on a slow emulator */
+    private static final long DEBOUNCE_MILLIS = 1000;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private LocalWeatherServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+
+        /* Nothing is fresh, so every sync has to go to the server */
+        ForecastResponseCache.getInstance(mContext).setFreshnessLifetime(0);
+
+        mServer = LocalWeatherServer.serving(ForecastPayloads.forecastJson(FORECAST_DAYS));
+        /* A slow server, so that the sync is still running while more requests come in */
+        mServer.setLatencyMillis(200);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+        ForecastResponseCache.getInstance(mContext).setFreshnessLifetime(
+                ForecastResponseCache.DEFAULT_FRESHNESS_LIFETIME_MILLIS);
+    }
+
+    @Test
+    public void testBurstOfTriggersFetchesOnce() throws Exception {
+        final SunshineSyncQueue queue = newServerQueue();
+        final SunshineSyncQueue.SyncRequest[] requests = new SunshineSyncQueue.SyncRequest[TRIGGERS];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch asked = new CountDownLatch(TRIGGERS);
+
+        for (int i = 0; i < TRIGGERS; i++) {
+            final int trigger = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    requests[trigger] = queue.requestSync();
+                    asked.countDown();
+                }
+            }).start();
+        }
+
+        /* Let them all go at once */
+        start.countDown();
+        assertTrue("Not every trigger asked for a sync", asked.await(10, TimeUnit.SECONDS));
+
+        for (SunshineSyncQueue.SyncRequest request : requests) {
+            assertSame("Every trigger should have joined the same request", requests[0], request);
+        }
+        assertTrue("The sync didn't finish", requests[0].await(30, TimeUnit.SECONDS));
+        assertEquals("Every waiter should get the sync's result",
+                FORECAST_DAYS, requests[0].getRowsWritten());
+        assertEquals("A burst of triggers should fetch exactly once",
+                1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testRequestAfterSyncFetchesAgain() throws Exception {
+        SunshineSyncQueue queue = newServerQueue();
+
+        SunshineSyncQueue.SyncRequest first = queue.requestSync();
+        first.await();
+        SunshineSyncQueue.SyncRequest second = queue.requestSync();
+        second.await();
+
+        assertNotSame("A finished sync shouldn't be joined", first, second);
+        assertEquals("Each sync should have fetched", 2, mServer.getRequestCount());
+    }
+
+    /**
+     * A request made while a sync is running joins it, rather than waiting for it and then
+     * syncing all over again.
+     */
+    @Test
+    public void testRequestDuringSyncJoinsIt() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger syncs = new AtomicInteger();
+
+        SunshineSyncQueue queue = new SunshineSyncQueue(mContext,
+                new SunshineSyncQueue.Syncer() {
+                    @Override
+                    public int sync(Context context, CancellationSignal cancellationSignal) {
+                        syncs.incrementAndGet();
+                        running.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return 7;
+                    }
+                },
+                0);
+
+        SunshineSyncQueue.SyncRequest first = queue.requestSync();
+        assertTrue("The sync never started", running.await(10, TimeUnit.SECONDS));
+
+        SunshineSyncQueue.SyncRequest second = queue.requestSync();
+        assertSame("A request during a sync should join it", first, second);
+        assertFalse("The sync shouldn't be done yet", second.isDone());
+        assertSame("getRequest should return the running sync", first, queue.getRequest());
+
+        release.countDown();
+        assertEquals("The joined request should get the sync's result", 7, second.await());
+        assertEquals("There should only have been one sync", 1, syncs.get());
+    }
+
+    /**
+     * One caller letting go of a sync that another is still waiting on leaves it running. Once
+     * the last of them lets go, the sync is cancelled, and the next request gets a new one.
+     */
+    @Test
+    public void testSyncIsCancelledOnceEveryoneLetsGo() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        SunshineSyncQueue queue = newBlockingQueue(running, new CountDownLatch(1));
+
+        CancellationSignal firstSignal = new CancellationSignal();
+        CancellationSignal secondSignal = new CancellationSignal();
+        SunshineSyncQueue.SyncRequest first = queue.requestSync(firstSignal);
+        assertTrue("The sync never started", running.await(10, TimeUnit.SECONDS));
+        SunshineSyncQueue.SyncRequest second = queue.requestSync(secondSignal);
+        assertSame("A request during a sync should join it", first, second);
+
+        firstSignal.cancel();
+        assertFalse("The sync should go on while someone still wants it",
+                first.await(200, TimeUnit.MILLISECONDS));
+        assertFalse(first.isCancelled());
+
+        secondSignal.cancel();
+        assertTrue("The sync should stop once nobody wants it",
+                first.await(10, TimeUnit.SECONDS));
+        assertTrue(first.isCancelled());
+        assertEquals(0, first.getRowsWritten());
+
+        assertNotSame("A cancelled sync shouldn't be joined", first, queue.requestSync());
+    }
+
+    /**
+     * A request made without a signal can't let go, so the sync it joined runs to the end
+     * whoever else lets go of it.
+     */
+    @Test
+    public void testRequestWithoutSignalIsNeverCancelled() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        SunshineSyncQueue queue = newBlockingQueue(running, release);
+
+        CancellationSignal signal = new CancellationSignal();
+        SunshineSyncQueue.SyncRequest held = queue.requestSync(signal);
+        SunshineSyncQueue.SyncRequest pinned = queue.requestSync();
+        assertSame(held, pinned);
+        assertTrue("The sync never started", running.await(10, TimeUnit.SECONDS));
+
+        signal.cancel();
+        assertFalse("The sync should go on for the request that can't let go",
+                pinned.await(200, TimeUnit.MILLISECONDS));
+        assertFalse(pinned.isCancelled());
+
+        release.countDown();
+        assertEquals("The sync should have run to the end", 7, pinned.await());
+    }
+
+    /* A queue whose sync runs until it is released or cancelled, and then reports 7 rows */
+    private SunshineSyncQueue newBlockingQueue(final CountDownLatch running,
+            final CountDownLatch release) {
+        return new SunshineSyncQueue(mContext,
+                new SunshineSyncQueue.Syncer() {
+                    @Override
+                    public int sync(Context context, CancellationSignal cancellationSignal) {
+                        cancellationSignal.setOnCancelListener(
+                                new CancellationSignal.OnCancelListener() {
+                                    @Override
+                                    public void onCancel() {
+                                        release.countDown();
+                                    }
+                                });
+                        running.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        cancellationSignal.throwIfCanceled();
+                        return 7;
+                    }
+                },
+                0);
+    }
+
+    /* A queue that syncs from the local server, at a URL no other test uses */
+    private SunshineSyncQueue newServerQueue() {
+        final URL url = mServer.getUrl("/weather?q=queue-" + System.nanoTime());
+        return new SunshineSyncQueue(mContext,
+                new SunshineSyncQueue.Syncer() {
+                    @Override
+                    public int sync(Context context, CancellationSignal cancellationSignal) {
+                        return SunshineSyncTask.syncWeather(context, url, cancellationSignal);
+                    }
+                },
+                DEBOUNCE_MILLIS);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that {@link ForecastResponseCache} normalizes its keys, survives being reopened and
+ * evicts the least recently used entries once it is full.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastResponseCache {
+
+    private static final int BODY_SIZE = 1024;
+
+    /* Room for about three entries, once their headers are counted */
+    private static final long MAX_SIZE_BYTES = 3 * BODY_SIZE + 3 * 256;
+
+    private File mDirectory;
+    private ForecastResponseCache mCache;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "test_forecast_responses");
+        mCache = new ForecastResponseCache(mDirectory, MAX_SIZE_BYTES);
+        mCache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        mCache.clear();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void testEntriesAreSharedByEquivalentUrls() throws Exception {
+        byte[] body = body('a');
+        mCache.put(new URL("HTTP://Example.com:80/forecast?q=London&units=metric#top"),
+                body, "\"v1\"", null);
+
+        ForecastResponseCache.Entry entry =
+                mCache.get(new URL("http://example.com/forecast?units=metric&q=London"));
+
+        assertNotNull("Equivalent URLs should share an entry", entry);
+        assertTrue("Cached body was changed", Arrays.equals(body, entry.body));
+        assertEquals("Cached ETag was changed", "\"v1\"", entry.eTag);
+        assertNull("Cached Last-Modified was made up", entry.lastModified);
+        assertTrue("A new entry should be fresh", entry.isFresh(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testEntriesSurviveReopening() throws Exception {
+        URL url = new URL("http://example.com/forecast?q=Paris");
+        mCache.put(url, body('b'), null, "Sat, 01 Oct 2016 00:00:00 GMT");
+
+        ForecastResponseCache reopened = new ForecastResponseCache(mDirectory, MAX_SIZE_BYTES);
+        ForecastResponseCache.Entry entry = reopened.get(url);
+
+        assertNotNull("Entry should be read back from disk", entry);
+        assertEquals("Cached Last-Modified was changed",
+                "Sat, 01 Oct 2016 00:00:00 GMT", entry.lastModified);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+        URL first = new URL("http://example.com/forecast?q=first");
+        URL second = new URL("http://example.com/forecast?q=second");
+        URL third = new URL("http://example.com/forecast?q=third");
+        URL fourth = new URL("http://example.com/forecast?q=fourth");
+
+        mCache.put(first, body('1'), null, null);
+        mCache.put(second, body('2'), null, null);
+        mCache.put(third, body('3'), null, null);
+
+        /* Reading the first entry makes the second one the least recently used */
+        assertNotNull(mCache.get(first));
+        mCache.put(fourth, body('4'), null, null);
+
+        assertNull("Least recently used entry should be evicted", mCache.get(second));
+        assertNotNull("Recently read entry should be kept", mCache.get(first));
+        assertNotNull("Newest entry should be kept", mCache.get(fourth));
+        assertTrue("Cache grew past its limit: " + mCache.size(),
+                mCache.size() <= MAX_SIZE_BYTES);
+    }
+
+    @Test
+    public void testFreshnessLifetimeIsConfigurable() throws Exception {
+        URL url = new URL("http://example.com/forecast?q=Tokyo");
+        mCache.put(url, body('c'), "\"v1\"", null);
+        mCache.setFreshnessLifetime(0);
+
+        ForecastResponseCache.Entry entry = mCache.get(url);
+
+        assertNotNull("A stale entry should still be served", entry);
+        assertFalse("Entry should be stale", entry.isFresh(System.currentTimeMillis()));
+    }
+
+    private static byte[] body(char fill) {
+        byte[] body = new byte[BODY_SIZE];
+        Arrays.fill(body, (byte) fill);
+        return body;
+    }
+}
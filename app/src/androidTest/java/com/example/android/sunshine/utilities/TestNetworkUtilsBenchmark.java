@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utils.ForecastPayloads;
+import com.example.android.sunshine.utils.LocalWeatherServer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Scanner;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Compares {@link NetworkUtils#getResponseFromHttpUrl(URL)} against the Scanner based reader it
+ * replaced, using a {@link LocalWeatherServer} so that only the cost of reading the body is
+ * measured. Results are written to logcat under the "NetworkUtilsBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestNetworkUtilsBenchmark {
+
+    private static final String TAG = "NetworkUtilsBenchmark";
+
+    private static final int WARM_UP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 30;
+
+    @Test
+    public void benchmark14DayPayload() throws Exception {
+        runBenchmark(14);
+    }
+
+    @Test
+    public void benchmark16DayPayload() throws Exception {
+        runBenchmark(16);
+    }
+
+    @Test
+    public void benchmark1000DayPayload() throws Exception {
+        runBenchmark(1000);
+    }
+
+    private void runBenchmark(int days) throws Exception {
+        String payload = ForecastPayloads.forecastJson(days);
+        LocalWeatherServer server = LocalWeatherServer.serving(payload);
+        try {
+            URL url = server.getUrl("/weather");
+
+            /* Both readers must produce exactly what the server sent */
+            assertEquals("Byte buffer reader changed the body",
+                    payload, NetworkUtils.getResponseFromHttpUrl(url));
+            assertEquals("Scanner reader changed the body",
+                    payload, getResponseWithScanner(url));
+
+            for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+                NetworkUtils.getResponseFromHttpUrl(url);
+                getResponseWithScanner(url);
+            }
+
+            long bufferNanos = 0;
+            long scannerNanos = 0;
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                long start = System.nanoTime();
+                NetworkUtils.getResponseFromHttpUrl(url);
+                bufferNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                getResponseWithScanner(url);
+                scannerNanos += System.nanoTime() - start;
+            }
+
+            Log.i(TAG, String.format("%d days (%d bytes): buffer %.3f ms, scanner %.3f ms",
+                    days,
+                    payload.length(),
+                    bufferNanos / 1e6 / MEASURED_ITERATIONS,
+                    scannerNanos / 1e6 / MEASURED_ITERATIONS));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * The original implementation of NetworkUtils.getResponseFromHttpUrl, kept here as the
+     * baseline for the benchmark.
+     */
+    private static String getResponseWithScanner(URL url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        try {
+            InputStream in = urlConnection.getInputStream();
+
+            Scanner scanner = new Scanner(in);
+            scanner.useDelimiter("\\A");
+
+            boolean hasInput = scanner.hasNext();
+            String response = null;
+            if (hasInput) {
+                response = scanner.next();
+            }
+            scanner.close();
+            return response;
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.utils.ForecastPayloads;
+import com.example.android.sunshine.utils.LocalWeatherServer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that NetworkUtils asks for compressed responses, decodes every encoding it asks for,
+ * and reports the size of the body both before and after decompression.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestNetworkUtilsCompression {
+
+    private static final String TAG = "NetworkUtilsCompression";
+
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+
+    private final String mPayload = ForecastPayloads.forecastJson(16);
+
+    @Test
+    public void testGzipResponse() throws Exception {
+        assertDecodedAndMeasured(ENCODING_GZIP, gzip(mPayload));
+    }
+
+    @Test
+    public void testZlibDeflateResponse() throws Exception {
+        assertDecodedAndMeasured(ENCODING_DEFLATE, deflate(mPayload, false));
+    }
+
+    /* Some servers send raw deflate data even though the spec says it should be zlib wrapped */
+    @Test
+    public void testRawDeflateResponse() throws Exception {
+        assertDecodedAndMeasured(ENCODING_DEFLATE, deflate(mPayload, true));
+    }
+
+    @Test
+    public void testUncompressedResponse() throws Exception {
+        NetworkUtils.Response<String> response =
+                fetch(null, mPayload.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("Uncompressed body was changed", mPayload, response.body);
+        assertEquals("Wire and body sizes should match without compression",
+                response.wireBytes, response.bodyBytes);
+    }
+
+    @Test
+    public void testStringReaderDecodesGzip() throws Exception {
+        LocalWeatherServer server = serve(ENCODING_GZIP, gzip(mPayload));
+        try {
+            assertEquals("Gzipped body was not decoded",
+                    mPayload, NetworkUtils.getResponseFromHttpUrl(server.getUrl("/weather")));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private void assertDecodedAndMeasured(String encoding, byte[] encodedBody) throws Exception {
+        NetworkUtils.Response<String> response = fetch(encoding, encodedBody);
+
+        assertEquals(encoding + " body was not decoded", mPayload, response.body);
+        assertEquals(encoding + " wire size is wrong", encodedBody.length, response.wireBytes);
+        assertEquals(encoding + " body size is wrong",
+                mPayload.getBytes(StandardCharsets.UTF_8).length, response.bodyBytes);
+        assertTrue(encoding + " should be smaller on the wire",
+                response.wireBytes < response.bodyBytes);
+
+        Log.i(TAG, String.format("%s: %d bytes on the wire, %d decoded (%.1fx)",
+                encoding, response.wireBytes, response.bodyBytes,
+                (double) response.bodyBytes / response.wireBytes));
+    }
+
+    private NetworkUtils.Response<String> fetch(String encoding, byte[] body) throws Exception {
+        LocalWeatherServer server = serve(encoding, body);
+        try {
+            return NetworkUtils.getConditionalResponseFromHttpUrl(
+                    server.getUrl("/weather"),
+                    null,
+                    null,
+                    new NetworkUtils.ResponseStreamConsumer<String>() {
+                        @Override
+                        public String consume(InputStream in) throws IOException {
+                            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            byte[] buffer = new byte[4096];
+                            int read;
+                            while ((read = in.read(buffer)) != -1) {
+                                out.write(buffer, 0, read);
+                            }
+                            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+                        }
+                    });
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Serves the body with the given Content-Encoding, but only to clients that said they would
+     * accept it, just like a real server would.
+     */
+    private static LocalWeatherServer serve(final String encoding, final byte[] body)
+            throws IOException {
+        return LocalWeatherServer.start(new LocalWeatherServer.Responder() {
+            @Override
+            public LocalWeatherServer.Response respond(LocalWeatherServer.Request request) {
+                LocalWeatherServer.Response response = new LocalWeatherServer.Response(200, body);
+                if (encoding != null) {
+                    String acceptEncoding = request.getHeader("Accept-Encoding");
+                    assertNotNull("Client did not ask for compression", acceptEncoding);
+                    assertTrue("Client does not accept " + encoding,
+                            acceptEncoding.contains(encoding));
+                    response.header("Content-Encoding", encoding);
+                }
+                return response;
+            }
+        });
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes);
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deflate(String text, boolean raw) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+        OutputStream out = new DeflaterOutputStream(bytes, deflater);
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.close();
+        deflater.end();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.ForecastBatch;
+import com.example.android.sunshine.data.SunshinePreferences;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Parity tests for the two forecast parsers in {@link OpenWeatherJsonUtils}. Every recorded
+ * payload in the androidTest assets folder is run through both the JSONObject (DOM) parser and
+ * the JsonReader (streaming) parser, and the results must match row for row. A response that
+ * was cached a while ago has to be dated from when it was fetched, not from today.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestOpenWeatherJsonUtils {
+
+    /* Recorded server responses, stored in src/androidTest/assets */
+    private static final String PAYLOAD_14_DAY = "forecast_14_day.json";
+    private static final String PAYLOAD_16_DAY_REORDERED = "forecast_16_day_reordered.json";
+    private static final String PAYLOAD_LOCATION_NOT_FOUND = "forecast_404.json";
+
+    /* Context of the app under test, used by the parsers to save location details */
+    private final Context mTargetContext = InstrumentationRegistry.getTargetContext();
+
+    /* Context of the test APK, which is where the recorded payloads live */
+    private final Context mTestContext = InstrumentationRegistry.getContext();
+
+    @Test
+    public void testParsersAgreeOn14DayForecast() throws Exception {
+        ContentValues[] rows = assertParsersAgree(PAYLOAD_14_DAY);
+        assertEquals("Wrong number of days parsed", 14, rows.length);
+    }
+
+    /**
+     * This payload has "city" after "list", and every day carries fields that Sunshine never
+     * reads, including nested objects and arrays that the streaming parser has to skip.
+     */
+    @Test
+    public void testParsersAgreeOnReorderedPayloadWithUnknownFields() throws Exception {
+        ContentValues[] rows = assertParsersAgree(PAYLOAD_16_DAY_REORDERED);
+        assertEquals("Wrong number of days parsed", 16, rows.length);
+    }
+
+    @Test
+    public void testParsersAgreeOnLocationNotFound() throws Exception {
+        String json = readAsset(PAYLOAD_LOCATION_NOT_FOUND);
+
+        assertNull("DOM parser should return null for a 404 payload",
+                OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mTargetContext, json));
+        assertNull("Streaming parser should return null for a 404 payload",
+                OpenWeatherJsonUtils.getWeatherContentValuesFromStream(mTargetContext,
+                        toStream(json)));
+    }
+
+    /**
+     * Both parsers save the city's coordinates as a side effect, so we also make sure they save
+     * the same coordinates.
+     */
+    @Test
+    public void testParsersSaveSameLocationDetails() throws Exception {
+        String json = readAsset(PAYLOAD_16_DAY_REORDERED);
+
+        SunshinePreferences.resetLocationCoordinates(mTargetContext);
+        OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mTargetContext, json);
+        double[] domCoordinates = SunshinePreferences.getLocationCoordinates(mTargetContext);
+
+        SunshinePreferences.resetLocationCoordinates(mTargetContext);
+        OpenWeatherJsonUtils.getWeatherContentValuesFromStream(mTargetContext, toStream(json));
+        double[] streamCoordinates = SunshinePreferences.getLocationCoordinates(mTargetContext);
+
+        SunshinePreferences.resetLocationCoordinates(mTargetContext);
+
+        assertEquals("Latitude differs", domCoordinates[0], streamCoordinates[0]);
+        assertEquals("Longitude differs", domCoordinates[1], streamCoordinates[1]);
+    }
+
+    /**
+     * A response cached yesterday starts a day earlier than one fetched now, so its first day is
+     * already behind us and is left out, and every other day keeps the date it was fetched for.
+     */
+    @Test
+    public void testCachedForecastIsDatedFromWhenItWasFetched() throws Exception {
+        String json = readAsset(PAYLOAD_14_DAY);
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+        ForecastBatch fetchedNow = OpenWeatherJsonUtils.getForecastBatchFromStream(
+                mTargetContext, toStream(json), null);
+        ForecastBatch fetchedYesterday = OpenWeatherJsonUtils.getForecastBatchFromStream(
+                mTargetContext, toStream(json), null,
+                System.currentTimeMillis() - SunshineDateUtils.DAY_IN_MILLIS);
+
+        assertEquals("Yesterday's first day should be left out",
+                fetchedNow.size() - 1, fetchedYesterday.size());
+        assertEquals("What was fetched for tomorrow should be today's weather",
+                fetchedNow.getMaxTemp(1), fetchedYesterday.getMaxTemp(0));
+        for (int day = 0; day < fetchedYesterday.size(); day++) {
+            assertEquals("Day " + day + " has the wrong date",
+                    today + day * SunshineDateUtils.DAY_IN_MILLIS, fetchedYesterday.getDate(day));
+        }
+    }
+
+    private ContentValues[] assertParsersAgree(String assetName) throws Exception {
+        String json = readAsset(assetName);
+
+        ContentValues[] domRows =
+                OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mTargetContext, json);
+        ContentValues[] streamRows =
+                OpenWeatherJsonUtils.getWeatherContentValuesFromStream(mTargetContext,
+                        toStream(json));
+
+        assertEquals(assetName + ": parsers returned a different number of days",
+                domRows.length,
+                streamRows.length);
+
+        for (int i = 0; i < domRows.length; i++) {
+            assertSameRow(assetName + ": day " + i + " differs between parsers",
+                    domRows[i],
+                    streamRows[i]);
+        }
+
+        return streamRows;
+    }
+
+    /*
+     * The streaming parser fills a ForecastBatch, which stores humidity as a double like the
+     * database does, while the DOM parser stores it as an int. So values are compared as
+     * numbers rather than by their boxed type.
+     */
+    private static void assertSameRow(String message, ContentValues expected,
+                                      ContentValues actual) {
+        assertEquals(message + ": columns", expected.keySet(), actual.keySet());
+        for (String column : expected.keySet()) {
+            assertEquals(message + ": " + column,
+                    expected.getAsDouble(column),
+                    actual.getAsDouble(column));
+        }
+    }
+
+    private String readAsset(String assetName) throws IOException {
+        InputStream in = mTestContext.getAssets().open(assetName);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static InputStream toStream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that {@link SyncTracer} keeps the spans of a trace across being reopened, as it would
+ * be after the process died, that a full buffer keeps the newest spans in order, that a file it
+ * didn't write is started over, and that recording a span costs a small fraction of a sync.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncTracer {
+
+    private static final int CAPACITY = 16;
+
+    /*
+     * A sync from a server on the same device takes 10 ms at the very least, and records about
+     * half a dozen spans. Staying under 1% of that leaves each span about 16 microseconds.
+     */
+    private static final long MAX_NANOS_PER_SPAN = 16000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getFilesDir(),
+                "test_sync_trace");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testSpansSurviveReopening() {
+        SyncTracer tracer = new SyncTracer(mFile, CAPACITY);
+        SyncTracer.Trace trace = tracer.beginTrace();
+        trace.begin(SyncTracer.STAGE_CONNECT);
+        trace.end(0, 0);
+        trace.begin(SyncTracer.STAGE_READ_AND_PARSE);
+        trace.end(7000, 14);
+        trace.begin(SyncTracer.STAGE_RECONCILE);
+        trace.finish(SyncTracer.STATUS_FAILED, 2500, 0);
+
+        /* A new tracer on the same file is what the next process would see */
+        List<SyncTracer.Span> spans = new SyncTracer(mFile, CAPACITY).readSpans();
+
+        assertEquals(4, spans.size());
+        assertEquals(SyncTracer.STAGE_CONNECT, spans.get(0).stage);
+        SyncTracer.Span parse = spans.get(1);
+        assertEquals(SyncTracer.STAGE_READ_AND_PARSE, parse.stage);
+        assertEquals(SyncTracer.STATUS_OK, parse.status);
+        assertEquals(7000, parse.bytes);
+        assertEquals(14, parse.rows);
+
+        SyncTracer.Span reconcile = spans.get(2);
+        assertEquals(SyncTracer.STAGE_RECONCILE, reconcile.stage);
+        assertEquals("The stage that was open should share the sync's fate",
+                SyncTracer.STATUS_FAILED, reconcile.status);
+
+        SyncTracer.Span sync = spans.get(3);
+        assertEquals(SyncTracer.STAGE_SYNC, sync.stage);
+        assertEquals(SyncTracer.STATUS_FAILED, sync.status);
+        assertEquals(2500, sync.bytes);
+        assertTrue("The sync should take at least as long as its stages",
+                sync.durationNanos >= parse.durationNanos + reconcile.durationNanos);
+        for (SyncTracer.Span span : spans) {
+            assertEquals("Every span should belong to the trace", sync.traceId, span.traceId);
+        }
+
+        assertEquals("Trace IDs should go on from where the last process left off",
+                sync.traceId + 1, nextTraceId(new SyncTracer(mFile, CAPACITY)));
+    }
+
+    @Test
+    public void testFullBufferKeepsNewestSpans() {
+        SyncTracer tracer = new SyncTracer(mFile, CAPACITY);
+        for (int span = 0; span < CAPACITY * 3 + 5; span++) {
+            SyncTracer.Trace trace = tracer.beginTrace();
+            trace.begin(SyncTracer.STAGE_CONNECT);
+            trace.end(span, 0);
+        }
+
+        List<SyncTracer.Span> spans = tracer.readSpans();
+        assertEquals(CAPACITY, spans.size());
+        for (int i = 0; i < CAPACITY; i++) {
+            assertEquals("Spans should be the newest, oldest first",
+                    CAPACITY * 2 + 5 + i, spans.get(i).bytes);
+        }
+
+        StringWriter csv = new StringWriter();
+        tracer.export(new PrintWriter(csv));
+        String[] lines = csv.toString().split("\n");
+        assertEquals("A header and a line per span", CAPACITY + 1, lines.length);
+        assertTrue(lines[1], lines[1].contains(",connect,ok,"));
+    }
+
+    @Test
+    public void testForeignFileIsStartedOver() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(new byte[4096]);
+        } finally {
+            out.close();
+        }
+
+        SyncTracer tracer = new SyncTracer(mFile, CAPACITY);
+        assertEquals(0, tracer.readSpans().size());
+
+        tracer.beginTrace().finish(SyncTracer.STATUS_OK, 0, 0);
+        assertEquals(1, new SyncTracer(mFile, CAPACITY).readSpans().size());
+
+        /* A buffer of another capacity isn't read as this one */
+        assertEquals(0, new SyncTracer(mFile, CAPACITY * 2).readSpans().size());
+    }
+
+    @Test
+    public void testRecordingIsCheap() {
+        SyncTracer tracer = new SyncTracer(mFile, 1024);
+        int spans = 20000;
+
+        /* Map the file, and let the JIT at the code, before timing anything */
+        for (int i = 0; i < 1000; i++) {
+            tracer.beginTrace().finish(SyncTracer.STATUS_OK, 0, 0);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < spans / 2; i++) {
+            SyncTracer.Trace trace = tracer.beginTrace();
+            trace.begin(SyncTracer.STAGE_CONNECT);
+            trace.end(i, i);
+            trace.finish(SyncTracer.STATUS_OK, i, i);
+        }
+        long nanosPerSpan = (System.nanoTime() - start) / spans;
+
+        assertTrue("Recording a span took " + nanosPerSpan + " ns",
+                nanosPerSpan < MAX_NANOS_PER_SPAN);
+    }
+
+    /* The ID the tracer will give its next trace */
+    private static long nextTraceId(SyncTracer tracer) {
+        SyncTracer.Trace trace = tracer.beginTrace();
+        trace.finish(SyncTracer.STATUS_OK, 0, 0);
+        List<SyncTracer.Span> spans = tracer.readSpans();
+        return spans.get(spans.size() - 1).traceId;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the change notifications sent for a URI and its descendants, or to a Cursor. Tests use
+ * it to check how many times observers were told about a change, not only that they were told.
+ * A CursorLoader reloads every time its Cursor is told about a change, so the count for a
+ * Cursor is the number of times a screen would query again.
+ */
+public class CountingContentObserver extends ContentObserver {
+    private final HandlerThread mThread;
+    private final AtomicInteger mChangeCount = new AtomicInteger();
+
+    private CountingContentObserver(HandlerThread thread) {
+        super(new Handler(thread.getLooper()));
+        mThread = thread;
+    }
+
+    public static CountingContentObserver register(Context context, Uri uri) {
+        HandlerThread thread = new HandlerThread("CountingContentObserver");
+        thread.start();
+        CountingContentObserver observer = new CountingContentObserver(thread);
+        context.getContentResolver().registerContentObserver(uri, true, observer);
+        return observer;
+    }
+
+    public static CountingContentObserver register(Cursor cursor) {
+        HandlerThread thread = new HandlerThread("CountingContentObserver");
+        thread.start();
+        CountingContentObserver observer = new CountingContentObserver(thread);
+        cursor.registerContentObserver(observer);
+        return observer;
+    }
+
+    @Override
+    public void onChange(boolean selfChange, Uri uri) {
+        mChangeCount.incrementAndGet();
+    }
+
+    public int getChangeCount() throws InterruptedException {
+        /* Give any pending notification time to be delivered before we count */
+        Thread.sleep(500);
+        return mChangeCount.get();
+    }
+
+    public void unregister(Context context) {
+        context.getContentResolver().unregisterContentObserver(this);
+        mThread.quit();
+    }
+
+    public void unregister(Cursor cursor) {
+        cursor.unregisterContentObserver(this);
+        mThread.quit();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates forecast responses in the same shape as the weather server's JSON, for any number
+ * of days. The same seed always produces the same payload.
+ */
+public final class ForecastPayloads {
+
+    private static final int[] WEATHER_IDS = {200, 300, 500, 711, 800, 801, 900, 962};
+
+    private ForecastPayloads() {
+    }
+
+    public static String forecastJson(int days) {
+        return forecastJson(days, 42);
+    }
+
+    public static String forecastJson(int days, long seed) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder(days * 400 + 256);
+
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.0838,\"lat\":37.3861},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0032,\"cnt\":").append(days)
+                .append(",\"list\":[");
+
+        for (int i = 0; i < days; i++) {
+            double min = 5 + random.nextInt(1000) / 100.0;
+            double max = min + random.nextInt(1000) / 100.0;
+            int weatherId = WEATHER_IDS[random.nextInt(WEATHER_IDS.length)];
+
+            if (i > 0) json.append(',');
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":%.2f,\"min\":%.2f,\"max\":%.2f,"
+                            + "\"night\":%.2f,\"eve\":%.2f,\"morn\":%.2f},"
+                            + "\"pressure\":%.2f,\"humidity\":%d,"
+                            + "\"weather\":[{\"id\":%d,\"main\":\"Weather\","
+                            + "\"description\":\"generated weather\",\"icon\":\"01d\"}],"
+                            + "\"speed\":%.2f,\"deg\":%d,\"clouds\":%d}",
+                    1475323200L + 86400L * i, (min + max) / 2, min, max, min, max, min,
+                    980 + random.nextInt(5000) / 100.0, 40 + random.nextInt(60),
+                    weatherId, random.nextInt(1200) / 100.0, random.nextInt(360),
+                    random.nextInt(100)));
+        }
+
+        json.append("]}");
+        return json.toString();
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A tiny HTTP/1.1 server that runs on the device's loopback interface. It stands in for the
+ * weather server in tests, so that the real networking code can be exercised without touching
+ * the network. Each connection serves exactly one request and is then closed.
+ * <p>
+ * The server counts the requests it has answered and the bytes it has written, which lets tests
+ * make assertions about how much work the app asked the "network" to do. It can also hold every
+ * response back for a while, or trickle its body out a piece at a time, to stand in for a slow
+ * network, and it keeps track of how many requests it was serving at the same time.
+ */
+public class LocalWeatherServer {
+
+    /** Produces the response for each request the server receives. */
+    public interface Responder {
+        Response respond(Request request) throws IOException;
+    }
+
+    /** The parts of an HTTP request that tests care about. */
+    public static final class Request {
+        public final String method;
+        public final String path;
+        private final Map<String, String> mHeaders;
+
+        Request(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            mHeaders = headers;
+        }
+
+        /** Header names are matched case insensitively. Returns null if the header is absent. */
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    /** An HTTP response with a status code, headers and an optional body. */
+    public static final class Response {
+        final int mCode;
+        final byte[] mBody;
+        final Map<String, String> mHeaders = new LinkedHashMap<>();
+
+        public Response(int code, byte[] body) {
+            mCode = code;
+            mBody = body == null ? new byte[0] : body;
+        }
+
+        public static Response ok(String body) {
+            return new Response(200, body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public Response header(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Responder mResponder;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicInteger mRequestsInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxRequestsInFlight = new AtomicInteger();
+
+    private volatile long mLatencyMillis;
+    private volatile long mBodyChunkDelayMillis;
+
+    /* The size of the pieces a trickled body is written in */
+    private static final int BODY_CHUNK_SIZE = 256;
+
+    private LocalWeatherServer(Responder responder) throws IOException {
+        mResponder = responder;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    /**
+     * Starts a server on a free loopback port.
+     *
+     * @param responder Called for each request to produce its response
+     * @return The running server. Call {@link #shutdown()} when you are done with it.
+     */
+    public static LocalWeatherServer start(Responder responder) throws IOException {
+        final LocalWeatherServer server = new LocalWeatherServer(responder);
+        server.mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                server.acceptLoop();
+            }
+        });
+        return server;
+    }
+
+    /** Starts a server that answers every request with the same 200 response. */
+    public static LocalWeatherServer serving(final String body) throws IOException {
+        return start(new Responder() {
+            @Override
+            public Response respond(Request request) {
+                return Response.ok(body);
+            }
+        });
+    }
+
+    public URL getUrl(String path) {
+        try {
+            return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Number of requests answered so far. */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /** Number of bytes written to clients so far, headers included. */
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    /** Holds every response back for this long before writing it, like a slow network would. */
+    public void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Writes the body of every response in small pieces, waiting this long before each one, so
+     * that a client is still downloading long after the headers have arrived.
+     */
+    public void setBodyChunkDelayMillis(long bodyChunkDelayMillis) {
+        mBodyChunkDelayMillis = bodyChunkDelayMillis;
+    }
+
+    /** The most requests that were being served at the same time so far. */
+    public int getMaxRequestsInFlight() {
+        return mMaxRequestsInFlight.get();
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+            /* We are shutting down anyway */
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                /* The server socket was closed by shutdown() */
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        int inFlight = mRequestsInFlight.incrementAndGet();
+        while (true) {
+            int max = mMaxRequestsInFlight.get();
+            if (inFlight <= max || mMaxRequestsInFlight.compareAndSet(max, inFlight)) break;
+        }
+
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String requestLine = readLine(in);
+            if (requestLine == null) return;
+
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+
+            String[] parts = requestLine.split(" ");
+            Request request = new Request(parts[0], parts.length > 1 ? parts[1] : "/", headers);
+            Response response = mResponder.respond(request);
+            mRequestCount.incrementAndGet();
+
+            long latencyMillis = mLatencyMillis;
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+
+            writeResponse(socket.getOutputStream(), response);
+        } catch (IOException e) {
+            /* The client went away; nothing to do */
+        } catch (InterruptedException e) {
+            /* The server is shutting down */
+            Thread.currentThread().interrupt();
+        } finally {
+            mRequestsInFlight.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                /* Already closed */
+            }
+        }
+    }
+
+    private void writeResponse(OutputStream out, Response response)
+            throws IOException, InterruptedException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.mCode).append(" X\r\n");
+        for (Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (response.mCode != 304) {
+            head.append("Content-Length: ").append(response.mBody.length).append("\r\n");
+        }
+        head.append("Connection: close\r\n\r\n");
+
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.US_ASCII);
+        out.write(headBytes);
+        mBytesWritten.addAndGet(headBytes.length);
+
+        if (response.mCode == 304) {
+            out.flush();
+            return;
+        }
+
+        long chunkDelayMillis = mBodyChunkDelayMillis;
+        if (chunkDelayMillis <= 0) {
+            out.write(response.mBody);
+            mBytesWritten.addAndGet(response.mBody.length);
+            out.flush();
+            return;
+        }
+
+        out.flush();
+        for (int offset = 0; offset < response.mBody.length; offset += BODY_CHUNK_SIZE) {
+            Thread.sleep(chunkDelayMillis);
+            int length = Math.min(BODY_CHUNK_SIZE, response.mBody.length - offset);
+            out.write(response.mBody, offset, length);
+            out.flush();
+            mBytesWritten.addAndGet(length);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') break;
+            if (c != '\r') line.write(c);
+        }
+        if (c == -1 && line.size() == 0) return null;
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -16,10 +16,12 @@
 package com.example.android.sunshine;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.databinding.DataBindingUtil;
 import android.net.Uri;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.ShareCompat;
 import android.support.v4.content.CursorLoader;
@@ -35,7 +37,8 @@ import com.example.android.sunshine.utilities.SunshineDateUtils;
 import com.example.android.sunshine.utilities.SunshineWeatherUtils;
 
 public class DetailActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<Cursor>,
+        SharedPreferences.OnSharedPreferenceChangeListener {
 
     /*
      * In this Activity, you can share the selected day's forecast. No social sharing is complete
@@ -87,6 +90,9 @@ public class DetailActivity extends AppCompatActivity implements
     /* The URI that is used to access the chosen day's weather details */
     private Uri mUri;
 
+    /* The Cursor our views were last bound to, kept so they can be bound again */
+    private Cursor mCursor;
+
 
     /*
      * This field is used for data binding. Normally, we would have to call findViewById many
@@ -109,6 +115,32 @@ public class DetailActivity extends AppCompatActivity implements
 
         /* This connects our Activity into the loader lifecycle. */
         getSupportLoaderManager().initLoader(ID_DETAIL_LOADER, null, this);
+
+        /* Units are applied as the views are bound, so changing them only needs a rebind */
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .registerOnSharedPreferenceChangeListener(this);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .unregisterOnSharedPreferenceChangeListener(this);
+    }
+
+    /**
+     * When the user switches between metric and imperial, the day's weather is still the same.
+     * Only the way it is formatted changes, so we bind the Cursor we already have again rather
+     * than querying the weather again.
+     *
+     * @param sharedPreferences The SharedPreferences that changed
+     * @param key               The key of the preference that changed
+     */
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (getString(R.string.pref_units_key).equals(key) && mCursor != null) {
+            bindWeather(mCursor);
+        }
     }
 
     /**
@@ -216,6 +248,17 @@ public class DetailActivity extends AppCompatActivity implements
      */
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        mCursor = data;
+        bindWeather(data);
+    }
+
+    /**
+     * Binds the weather in a Cursor from our loader to the views. The units the user prefers
+     * are applied here, which is what lets a change of units rebind without a new query.
+     *
+     * @param data The Cursor holding the day's weather
+     */
+    private void bindWeather(Cursor data) {
 
         /*
          * Before we bind the data to the UI that will display that data, we need to check the
@@ -381,11 +424,12 @@ public class DetailActivity extends AppCompatActivity implements
     /**
      * Called when a previously created loader is being reset, thus making its data unavailable.
      * The application should at this point remove any references it has to the Loader's data.
-     * Since we don't store any of this cursor's data, there are no references we need to remove.
+     * We drop the Cursor we kept for rebinding, since the loader is about to close it.
      *
      * @param loader The Loader that is being reset.
      */
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        mCursor = null;
     }
 }
\ No newline at end of file
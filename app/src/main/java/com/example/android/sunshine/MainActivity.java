@@ -16,6 +16,7 @@
 package com.example.android.sunshine;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -23,6 +24,7 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
@@ -42,6 +44,7 @@ import android.widget.TextView;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
 import com.example.android.sunshine.sync.SunshineSyncUtils;
+import com.example.android.sunshine.utilities.WearableDataUtils;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
@@ -57,7 +60,8 @@ public class MainActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor>,
         ForecastAdapter.ForecastAdapterOnClickHandler,
         GoogleApiClient.OnConnectionFailedListener,
-        GoogleApiClient.ConnectionCallbacks {
+        GoogleApiClient.ConnectionCallbacks,
+        SharedPreferences.OnSharedPreferenceChangeListener {
 
     private final String TAG = MainActivity.class.getSimpleName();
 
@@ -76,6 +80,9 @@ public class MainActivity extends AppCompatActivity implements
     private static final int ID_FORECAST_LOADER = 44;
 
     private ForecastAdapter mForecastAdapter;
+
+    /* The loaded forecast, which the adapter also binds from. Today is its first row. */
+    private Cursor mForecastCursor;
     private RecyclerView mRecyclerView;
     private int mPosition = RecyclerView.NO_POSITION;
 
@@ -118,6 +125,10 @@ public class MainActivity extends AppCompatActivity implements
 
         getSupportLoaderManager().initLoader(ID_FORECAST_LOADER, null, this);
 
+        /* Units are applied as the list is bound, so changing them only needs a rebind */
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .registerOnSharedPreferenceChangeListener(this);
+
         SunshineSyncUtils.initialize(this);
         googleApiClient = new GoogleApiClient.Builder(this)
                 .addApi(Wearable.API)
@@ -128,6 +139,29 @@ public class MainActivity extends AppCompatActivity implements
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .unregisterOnSharedPreferenceChangeListener(this);
+    }
+
+    /**
+     * When the user switches between metric and imperial, the weather we have loaded is still
+     * the same. Only the way it is formatted changes, so we rebind the list from the Cursor we
+     * already have rather than querying the weather again, and send the watch the new units.
+     *
+     * @param sharedPreferences The SharedPreferences that changed
+     * @param key               The key of the preference that changed
+     */
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (getString(R.string.pref_units_key).equals(key)) {
+            mForecastAdapter.notifyDataSetChanged();
+            if (googleApiClient.isConnected()) sendWeatherData();
+        }
+    }
+
     @Override
     public void onConnected(Bundle bundle) {
         sendWeatherData();
@@ -155,12 +189,24 @@ public class MainActivity extends AppCompatActivity implements
 
 
 
-        PutDataMapRequest mapRequest = PutDataMapRequest.create("/weather_data");
+        PutDataMapRequest mapRequest =
+                PutDataMapRequest.create(WearableDataUtils.PATH_WEATHER_DATA);
         DataMap map = mapRequest.getDataMap();
-        map.putString("tempMin", lowTempView.getText().toString());
-        map.putString("tempMax", highTempView.getText().toString());
-        map.putByteArray("weatherId", byteArray);
-        map.putLong("time",System.currentTimeMillis());
+
+        /*
+         * Send today's forecast straight from the loaded Cursor if we have it. The adapter moves
+         * the Cursor to each row it binds, so moving it here doesn't disturb the list.
+         */
+        if (mForecastCursor != null && mForecastCursor.moveToFirst()) {
+            WearableDataUtils.putTemperatures(this, map,
+                    mForecastCursor.getDouble(INDEX_WEATHER_MIN_TEMP),
+                    mForecastCursor.getDouble(INDEX_WEATHER_MAX_TEMP));
+        } else {
+            map.putString(WearableDataUtils.KEY_TEMP_MIN, lowTempView.getText().toString());
+            map.putString(WearableDataUtils.KEY_TEMP_MAX, highTempView.getText().toString());
+        }
+        map.putByteArray(WearableDataUtils.KEY_WEATHER_ICON, byteArray);
+        map.putLong(WearableDataUtils.KEY_TIME, System.currentTimeMillis());
 
 
         PutDataRequest request = mapRequest.asPutDataRequest();
@@ -221,15 +267,15 @@ public class MainActivity extends AppCompatActivity implements
         switch (loaderId) {
 
             case ID_FORECAST_LOADER:
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
+                /* The URI for today onwards binds today's date itself */
+                Uri forecastQueryUri =
+                        WeatherContract.WeatherEntry.buildWeatherUriTodayOnwards();
                 String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
 
-                String selection = WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards();
-
                 return new CursorLoader(this,
                         forecastQueryUri,
                         MAIN_FORECAST_PROJECTION,
-                        selection,
+                        null,
                         null,
                         sortOrder);
 
@@ -254,6 +300,7 @@ public class MainActivity extends AppCompatActivity implements
 
 
         mForecastAdapter.swapCursor(data);
+        mForecastCursor = data;
         if (mPosition == RecyclerView.NO_POSITION) mPosition = 0;
         mRecyclerView.smoothScrollToPosition(mPosition);
         if (data.getCount() != 0) showWeatherDataView();
@@ -269,6 +316,7 @@ public class MainActivity extends AppCompatActivity implements
     public void onLoaderReset(Loader<Cursor> loader) {
 
         mForecastAdapter.swapCursor(null);
+        mForecastCursor = null;
     }
 
     /**
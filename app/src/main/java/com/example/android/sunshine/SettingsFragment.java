@@ -98,11 +98,13 @@ public class SettingsFragment extends PreferenceFragmentCompat implements
             // we've changed the location
             // Wipe out any potential PlacePicker latlng values so that we can use this text entry.
             SunshinePreferences.resetLocationCoordinates(activity);
-            SunshineSyncUtils.startImmediateSync(activity);
-        } else if (key.equals(getString(R.string.pref_units_key))) {
-            // units have changed. update lists of weather entries accordingly
+            // weather is stored per location, so show whatever we already have for the new one
+            // straight away, while the sync brings it up to date
             activity.getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
+            SunshineSyncUtils.startImmediateSync(activity);
         }
+        // units are only a matter of formatting, so the screens showing weather listen for
+        // that preference themselves and rebind their views without querying again
         Preference preference = findPreference(key);
         if (null != preference) {
             if (!(preference instanceof CheckBoxPreference)) {
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/**
+ * A batch of daily forecasts, stored as one primitive array per column rather than one
+ * ContentValues per day.
+ * <p>
+ * A ContentValues is a HashMap of boxed numbers, so every day of a forecast costs a map, its
+ * entries and eight boxed values, all of which are taken apart again as soon as they reach the
+ * database. A ForecastBatch holds the same data in eight arrays that can be reused from one sync
+ * to the next, so parsing a forecast and writing it to the database doesn't allocate anything
+ * per day.
+ * <p>
+ * Rows are added with {@link #add} and read back by index with the getters. The columns match
+ * those of {@link WeatherEntry}.
+ */
+public final class ForecastBatch {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /* Package-private so that WeatherBulkInserter and WeatherProvider can read them directly */
+    long[] dates;
+    int[] weatherIds;
+    double[] minTemps;
+    double[] maxTemps;
+    double[] humidity;
+    double[] pressure;
+    double[] windSpeeds;
+    double[] degrees;
+    int size;
+
+    public ForecastBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity How many rows the batch can hold before it has to grow
+     */
+    public ForecastBatch(int capacity) {
+        dates = new long[capacity];
+        weatherIds = new int[capacity];
+        minTemps = new double[capacity];
+        maxTemps = new double[capacity];
+        humidity = new double[capacity];
+        pressure = new double[capacity];
+        windSpeeds = new double[capacity];
+        degrees = new double[capacity];
+    }
+
+    /**
+     * Adds a day to the end of the batch, growing the columns if they are full.
+     *
+     * @param date      Normalized UTC date of the day
+     * @param weatherId Weather ID as returned by the API
+     * @param minTemp   Minimum temperature in °C
+     * @param maxTemp   Maximum temperature in °C
+     * @param humidity  Humidity in percent
+     * @param pressure  Pressure in hPa
+     * @param windSpeed Wind speed
+     * @param degrees   Wind direction in meteorological degrees
+     */
+    public void add(long date, int weatherId, double minTemp, double maxTemp, double humidity,
+                    double pressure, double windSpeed, double degrees) {
+        if (size == dates.length) {
+            grow();
+        }
+
+        this.dates[size] = date;
+        this.weatherIds[size] = weatherId;
+        this.minTemps[size] = minTemp;
+        this.maxTemps[size] = maxTemp;
+        this.humidity[size] = humidity;
+        this.pressure[size] = pressure;
+        this.windSpeeds[size] = windSpeed;
+        this.degrees[size] = degrees;
+        size++;
+    }
+
+    /**
+     * Empties the batch but keeps its columns, so it can be filled again without allocating.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return The number of days in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getDate(int row) {
+        return dates[checkRow(row)];
+    }
+
+    public int getWeatherId(int row) {
+        return weatherIds[checkRow(row)];
+    }
+
+    public double getMinTemp(int row) {
+        return minTemps[checkRow(row)];
+    }
+
+    public double getMaxTemp(int row) {
+        return maxTemps[checkRow(row)];
+    }
+
+    public double getHumidity(int row) {
+        return humidity[checkRow(row)];
+    }
+
+    public double getPressure(int row) {
+        return pressure[checkRow(row)];
+    }
+
+    public double getWindSpeed(int row) {
+        return windSpeeds[checkRow(row)];
+    }
+
+    public double getDegrees(int row) {
+        return degrees[checkRow(row)];
+    }
+
+    /**
+     * Compares a row of this batch with a row of another batch.
+     *
+     * @return true if every column of the two rows holds exactly the same value
+     */
+    boolean rowEquals(int row, ForecastBatch other, int otherRow) {
+        return dates[row] == other.dates[otherRow]
+                && weatherIds[row] == other.weatherIds[otherRow]
+                && Double.compare(minTemps[row], other.minTemps[otherRow]) == 0
+                && Double.compare(maxTemps[row], other.maxTemps[otherRow]) == 0
+                && Double.compare(humidity[row], other.humidity[otherRow]) == 0
+                && Double.compare(pressure[row], other.pressure[otherRow]) == 0
+                && Double.compare(windSpeeds[row], other.windSpeeds[otherRow]) == 0
+                && Double.compare(degrees[row], other.degrees[otherRow]) == 0;
+    }
+
+    /**
+     * Hashes every value of every row, in order, so that two forecasts can be compared without
+     * keeping the old one around. Two batches with the same rows always have the same hash, and
+     * batches that differ almost never do.
+     *
+     * @return A 64 bit hash of the batch's rows
+     */
+    public long contentHash() {
+        long hash = 17;
+        for (int row = 0; row < size; row++) {
+            hash = 31 * hash + dates[row];
+            hash = 31 * hash + weatherIds[row];
+            hash = 31 * hash + Double.doubleToLongBits(minTemps[row]);
+            hash = 31 * hash + Double.doubleToLongBits(maxTemps[row]);
+            hash = 31 * hash + Double.doubleToLongBits(humidity[row]);
+            hash = 31 * hash + Double.doubleToLongBits(pressure[row]);
+            hash = 31 * hash + Double.doubleToLongBits(windSpeeds[row]);
+            hash = 31 * hash + Double.doubleToLongBits(degrees[row]);
+        }
+        return hash;
+    }
+
+    /**
+     * Converts the batch into one ContentValues per day, for code that still works with
+     * ContentValues.
+     *
+     * @return An array of ContentValues, one per day, in the same order as the batch
+     */
+    public ContentValues[] toContentValues() {
+        ContentValues[] values = new ContentValues[size];
+        for (int i = 0; i < size; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_DATE, dates[i]);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, humidity[i]);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, pressure[i]);
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, windSpeeds[i]);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, degrees[i]);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemps[i]);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, minTemps[i]);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherIds[i]);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    /**
+     * Builds a batch from ContentValues. Every row must have a value for every column.
+     *
+     * @param values The rows to convert
+     * @return A batch holding the same rows
+     * @throws IllegalArgumentException if a row is missing a column
+     */
+    public static ForecastBatch fromContentValues(ContentValues[] values) {
+        ForecastBatch batch = new ForecastBatch(Math.max(values.length, 1));
+        for (ContentValues value : values) {
+            batch.add(
+                    requireLong(value, WeatherEntry.COLUMN_DATE),
+                    (int) requireLong(value, WeatherEntry.COLUMN_WEATHER_ID),
+                    requireDouble(value, WeatherEntry.COLUMN_MIN_TEMP),
+                    requireDouble(value, WeatherEntry.COLUMN_MAX_TEMP),
+                    requireDouble(value, WeatherEntry.COLUMN_HUMIDITY),
+                    requireDouble(value, WeatherEntry.COLUMN_PRESSURE),
+                    requireDouble(value, WeatherEntry.COLUMN_WIND_SPEED),
+                    requireDouble(value, WeatherEntry.COLUMN_DEGREES));
+        }
+        return batch;
+    }
+
+    /**
+     * Reads every row of a weather Cursor into a batch. Columns that aren't in the Cursor's
+     * projection are left as 0. The Cursor is not closed.
+     *
+     * @param cursor A Cursor over weather rows, positioned anywhere
+     * @return A batch holding every row of the Cursor
+     */
+    public static ForecastBatch fromCursor(Cursor cursor) {
+        ForecastBatch batch = new ForecastBatch(Math.max(cursor.getCount(), 1));
+        if (cursor.getCount() == 0) {
+            return batch;
+        }
+
+        int dateIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_DATE);
+        int weatherIdIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_WEATHER_ID);
+        int minIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_MIN_TEMP);
+        int maxIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP);
+        int humidityIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_HUMIDITY);
+        int pressureIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_PRESSURE);
+        int windSpeedIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_WIND_SPEED);
+        int degreesIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_DEGREES);
+
+        int originalPosition = cursor.getPosition();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            batch.add(
+                    dateIndex == -1 ? 0 : cursor.getLong(dateIndex),
+                    weatherIdIndex == -1 ? 0 : cursor.getInt(weatherIdIndex),
+                    minIndex == -1 ? 0 : cursor.getDouble(minIndex),
+                    maxIndex == -1 ? 0 : cursor.getDouble(maxIndex),
+                    humidityIndex == -1 ? 0 : cursor.getDouble(humidityIndex),
+                    pressureIndex == -1 ? 0 : cursor.getDouble(pressureIndex),
+                    windSpeedIndex == -1 ? 0 : cursor.getDouble(windSpeedIndex),
+                    degreesIndex == -1 ? 0 : cursor.getDouble(degreesIndex));
+        }
+        cursor.moveToPosition(originalPosition);
+
+        return batch;
+    }
+
+    /**
+     * Packs the batch into a Bundle, one primitive array per column, keyed by column name. This
+     * is how a batch is passed to WeatherProvider#call, and it parcels far more compactly than
+     * an array of ContentValues.
+     *
+     * @return A Bundle that {@link #fromBundle(Bundle)} turns back into this batch
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(WeatherEntry.COLUMN_DATE, Arrays.copyOf(dates, size));
+        bundle.putIntArray(WeatherEntry.COLUMN_WEATHER_ID, Arrays.copyOf(weatherIds, size));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_MIN_TEMP, Arrays.copyOf(minTemps, size));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_MAX_TEMP, Arrays.copyOf(maxTemps, size));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_HUMIDITY, Arrays.copyOf(humidity, size));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_PRESSURE, Arrays.copyOf(pressure, size));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_WIND_SPEED, Arrays.copyOf(windSpeeds, size));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_DEGREES, Arrays.copyOf(degrees, size));
+        return bundle;
+    }
+
+    /**
+     * Unpacks a batch from a Bundle made by {@link #toBundle()}.
+     *
+     * @param bundle The Bundle to unpack
+     * @return The batch
+     * @throws IllegalArgumentException if a column is missing or the columns differ in length
+     */
+    public static ForecastBatch fromBundle(Bundle bundle) {
+        ForecastBatch batch = new ForecastBatch(0);
+        batch.dates = bundle.getLongArray(WeatherEntry.COLUMN_DATE);
+        batch.weatherIds = bundle.getIntArray(WeatherEntry.COLUMN_WEATHER_ID);
+        batch.minTemps = bundle.getDoubleArray(WeatherEntry.COLUMN_MIN_TEMP);
+        batch.maxTemps = bundle.getDoubleArray(WeatherEntry.COLUMN_MAX_TEMP);
+        batch.humidity = bundle.getDoubleArray(WeatherEntry.COLUMN_HUMIDITY);
+        batch.pressure = bundle.getDoubleArray(WeatherEntry.COLUMN_PRESSURE);
+        batch.windSpeeds = bundle.getDoubleArray(WeatherEntry.COLUMN_WIND_SPEED);
+        batch.degrees = bundle.getDoubleArray(WeatherEntry.COLUMN_DEGREES);
+
+        if (batch.dates == null || batch.weatherIds == null || batch.minTemps == null
+                || batch.maxTemps == null || batch.humidity == null || batch.pressure == null
+                || batch.windSpeeds == null || batch.degrees == null) {
+            throw new IllegalArgumentException("Bundle is missing a forecast column");
+        }
+
+        int size = batch.dates.length;
+        if (batch.weatherIds.length != size || batch.minTemps.length != size
+                || batch.maxTemps.length != size || batch.humidity.length != size
+                || batch.pressure.length != size || batch.windSpeeds.length != size
+                || batch.degrees.length != size) {
+            throw new IllegalArgumentException("Forecast columns differ in length");
+        }
+        batch.size = size;
+
+        return batch;
+    }
+
+    private void grow() {
+        int capacity = Math.max(DEFAULT_CAPACITY, dates.length * 2);
+        dates = Arrays.copyOf(dates, capacity);
+        weatherIds = Arrays.copyOf(weatherIds, capacity);
+        minTemps = Arrays.copyOf(minTemps, capacity);
+        maxTemps = Arrays.copyOf(maxTemps, capacity);
+        humidity = Arrays.copyOf(humidity, capacity);
+        pressure = Arrays.copyOf(pressure, capacity);
+        windSpeeds = Arrays.copyOf(windSpeeds, capacity);
+        degrees = Arrays.copyOf(degrees, capacity);
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+        return row;
+    }
+
+    private static long requireLong(ContentValues value, String column) {
+        Long columnValue = value.getAsLong(column);
+        if (columnValue == null) {
+            throw new IllegalArgumentException("Forecast row has no " + column);
+        }
+        return columnValue;
+    }
+
+    private static double requireDouble(ContentValues value, String column) {
+        Double columnValue = value.getAsDouble(column);
+        if (columnValue == null) {
+            throw new IllegalArgumentException("Forecast row has no " + column);
+        }
+        return columnValue;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps a copy of each location's forecast in a small binary file of its own, so that a
+ * {@link ForecastSnapshot} can be read without opening the database.
+ * <p>
+ * The first query after the process starts, whether it comes from the forecast list, a widget
+ * or the watch, would otherwise have to open SQLite, prepare a statement and step through a
+ * cursor, just to read a couple of weeks of weather. A forecast file is memory-mapped instead,
+ * and the snapshot reads its records in place, so nothing is copied or parsed at all.
+ * <p>
+ * A file is a header followed by one fixed-width record per day, sorted by date, in little
+ * endian order, which is the native order of every Android device:
+ * <pre>
+ *   header (24 bytes)  magic, format version, record size, record count (ints), location ID
+ *   record (72 bytes)  _ID, date (longs), weather ID, padding (ints), min temp, max temp,
+ *                      humidity, pressure, wind speed, degrees (doubles)
+ * </pre>
+ * A file that is of another version, or that doesn't add up, is ignored, and the forecast is
+ * read from the database as if there were no file.
+ * <p>
+ * A file is never changed in place. It is written to a temporary file first and renamed over
+ * the old one, which replaces it atomically, so a reader sees either the old file or the new
+ * one. A snapshot that mapped the old file keeps reading it until it is dropped.
+ * <p>
+ * The files are only a copy of the database. WeatherProvider deletes a location's file inside
+ * any write that changes its weather, so a file can never outlive the weather it was written
+ * from, even if the process dies. A sync writes the files once its transaction has committed,
+ * so the writing and syncing to disk doesn't hold up every other writer.
+ * <p>
+ * Each write and delete is stamped with the sequence of the provider write it belongs to. Once
+ * a file has been deleted or written, a write stamped before that is dropped, so a sync that
+ * committed first but gets to its files last can't bring back weather that has since changed.
+ */
+final class ForecastFileStore {
+
+    private static final String TAG = ForecastFileStore.class.getSimpleName();
+
+    /* The directory the files are kept in, under Context#getCacheDir */
+    static final String DIRECTORY_NAME = "forecasts";
+
+    private static final String FILE_EXTENSION = ".forecast";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /* "SWFC", for Sunshine Weather Forecast */
+    private static final int MAGIC = 0x53574643;
+
+    /* Change this whenever the layout below changes, so that old files are ignored */
+    static final int FORMAT_VERSION = 1;
+
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_SIZE = 72;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_SIZE = 8;
+    private static final int HEADER_RECORD_COUNT = 12;
+    private static final int HEADER_LOCATION_ID = 16;
+
+    private static final int RECORD_ID = 0;
+    private static final int RECORD_DATE = 8;
+    private static final int RECORD_WEATHER_ID = 16;
+    private static final int RECORD_MIN_TEMP = 24;
+    private static final int RECORD_MAX_TEMP = 32;
+    private static final int RECORD_HUMIDITY = 40;
+    private static final int RECORD_PRESSURE = 48;
+    private static final int RECORD_WIND_SPEED = 56;
+    private static final int RECORD_DEGREES = 64;
+
+    /*
+     * File names are the location setting in hex, so they can hold any character. A setting
+     * longer than this doesn't get a file, and is always read from the database.
+     */
+    private static final int MAX_LOCATION_SETTING_BYTES = 100;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+
+    /*
+     * The sequence of the last write or delete of each location's file, and of the last time
+     * every file was deleted. A write stamped before either is out of date.
+     */
+    private final Map<String, Long> mSequences = new HashMap<>();
+    private long mDeleteAllSequence;
+
+    /**
+     * @param directory The directory to keep the files in. It is created when the first file is
+     *                  written.
+     */
+    ForecastFileStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @return A store in the app's cache directory. The files are never backed up, and the
+     * system may delete them when it is short of space, which is fine, since they can always be
+     * written again from the database.
+     */
+    static ForecastFileStore create(Context context) {
+        return new ForecastFileStore(new File(context.getCacheDir(), DIRECTORY_NAME));
+    }
+
+    /**
+     * Maps a location's forecast file into memory.
+     *
+     * @param locationSetting The location setting, as stored in the preferences
+     * @return A snapshot that reads the file in place, or null if there is no valid file for the
+     * location
+     */
+    ForecastSnapshot read(String locationSetting) {
+        File file = getFile(locationSetting, FILE_EXTENSION);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                return null;
+            }
+
+            /* The mapping stays valid once the file is closed, and even once it is replaced */
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            int count = buffer.getInt(HEADER_RECORD_COUNT);
+            if (buffer.getInt(HEADER_MAGIC) != MAGIC
+                    || buffer.getInt(HEADER_VERSION) != FORMAT_VERSION
+                    || buffer.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE
+                    || count < 0
+                    || length != HEADER_SIZE + (long) count * RECORD_SIZE) {
+                Log.w(TAG, "Ignoring forecast file that isn't valid: " + file);
+                return null;
+            }
+
+            return ForecastSnapshot.fromRecords(locationSetting,
+                    buffer.getLong(HEADER_LOCATION_ID), buffer, count);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading forecast file " + file, e);
+            return null;
+        } finally {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+    /**
+     * Writes a snapshot to its location's forecast file, replacing the old one in a single
+     * rename, unless the file has been written or deleted by a later write in the meantime. If
+     * it can't be written, the old file is deleted, since it is out of date.
+     * <p>
+     * The file is written and synced to disk without holding the store, so writes to different
+     * locations don't wait on each other. Only the check and the rename are done holding it.
+     *
+     * @param snapshot The snapshot to write
+     * @param sequence The stamp of the provider write the snapshot was read in
+     * @return true if the file was written
+     */
+    boolean write(ForecastSnapshot snapshot, long sequence) {
+        String locationSetting = snapshot.getLocationSetting();
+        File file = getFile(locationSetting, FILE_EXTENSION);
+        if (file == null || isOutOfDate(locationSetting, sequence)) {
+            return false;
+        }
+
+        /* Two writes of the same location, racing, each get a temporary file of their own */
+        File tempFile = getFile(locationSetting, "." + sequence + TEMP_EXTENSION);
+
+        int count = snapshot.size();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(HEADER_MAGIC, MAGIC);
+        buffer.putInt(HEADER_VERSION, FORMAT_VERSION);
+        buffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+        buffer.putInt(HEADER_RECORD_COUNT, count);
+        buffer.putLong(HEADER_LOCATION_ID, snapshot.getLocationId());
+
+        for (int row = 0; row < count; row++) {
+            int record = HEADER_SIZE + row * RECORD_SIZE;
+            buffer.putLong(record + RECORD_ID,
+                    snapshot.getLong(row, ForecastSnapshot.COLUMN_ID));
+            buffer.putLong(record + RECORD_DATE,
+                    snapshot.getLong(row, ForecastSnapshot.COLUMN_DATE));
+            buffer.putInt(record + RECORD_WEATHER_ID,
+                    (int) snapshot.getLong(row, ForecastSnapshot.COLUMN_WEATHER_ID));
+            buffer.putDouble(record + RECORD_MIN_TEMP,
+                    snapshot.getDouble(row, ForecastSnapshot.COLUMN_MIN_TEMP));
+            buffer.putDouble(record + RECORD_MAX_TEMP,
+                    snapshot.getDouble(row, ForecastSnapshot.COLUMN_MAX_TEMP));
+            buffer.putDouble(record + RECORD_HUMIDITY,
+                    snapshot.getDouble(row, ForecastSnapshot.COLUMN_HUMIDITY));
+            buffer.putDouble(record + RECORD_PRESSURE,
+                    snapshot.getDouble(row, ForecastSnapshot.COLUMN_PRESSURE));
+            buffer.putDouble(record + RECORD_WIND_SPEED,
+                    snapshot.getDouble(row, ForecastSnapshot.COLUMN_WIND_SPEED));
+            buffer.putDouble(record + RECORD_DEGREES,
+                    snapshot.getDouble(row, ForecastSnapshot.COLUMN_DEGREES));
+        }
+
+        FileOutputStream out = null;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Couldn't create " + mDirectory);
+            }
+
+            out = new FileOutputStream(tempFile);
+            out.write(buffer.array());
+
+            /* Make sure the data is on disk before the rename makes it the file */
+            out.getFD().sync();
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing forecast file " + file, e);
+            closeQuietly(out);
+            tempFile.delete();
+            delete(locationSetting, sequence);
+            return false;
+        }
+
+        synchronized (this) {
+            if (isOutOfDate(locationSetting, sequence)) {
+                tempFile.delete();
+                return false;
+            }
+            if (!tempFile.renameTo(file)) {
+                Log.e(TAG, "Couldn't rename " + tempFile + " to " + file);
+                tempFile.delete();
+                file.delete();
+                return false;
+            }
+            mSequences.put(locationSetting, sequence);
+            return true;
+        }
+    }
+
+    /**
+     * Deletes a location's forecast file, for a write that is about to change its weather, and
+     * drops any write of it stamped before this.
+     *
+     * @param locationSetting The location whose file to delete
+     * @param sequence        The stamp of the provider write the file is deleted for
+     */
+    synchronized void delete(String locationSetting, long sequence) {
+        File file = getFile(locationSetting, FILE_EXTENSION);
+        if (file == null) {
+            return;
+        }
+
+        Long lastSequence = mSequences.get(locationSetting);
+        if (lastSequence == null || lastSequence < sequence) {
+            mSequences.put(locationSetting, sequence);
+        }
+        file.delete();
+    }
+
+    /**
+     * Deletes every forecast file, for when the weather changed in a way the files can't follow,
+     * and drops any write stamped before this.
+     *
+     * @param sequence The stamp of the provider write the files are deleted for
+     */
+    synchronized void deleteAll(long sequence) {
+        mDeleteAllSequence = Math.max(mDeleteAllSequence, sequence);
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /* Whether the file has been written or deleted by a write stamped after the sequence */
+    private synchronized boolean isOutOfDate(String locationSetting, long sequence) {
+        Long lastSequence = mSequences.get(locationSetting);
+        return sequence < mDeleteAllSequence
+                || (lastSequence != null && sequence < lastSequence);
+    }
+
+    /* The file for a location setting, or null if the setting is too long to get one */
+    private File getFile(String locationSetting, String extension) {
+        byte[] bytes = locationSetting.getBytes(UTF_8);
+        if (bytes.length > MAX_LOCATION_SETTING_BYTES) {
+            return null;
+        }
+
+        StringBuilder name = new StringBuilder(bytes.length * 2 + extension.length());
+        for (byte b : bytes) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16));
+            name.append(Character.forDigit(b & 0xf, 16));
+        }
+        return new File(mDirectory, name.append(extension).toString());
+    }
+
+    /*
+     * The record accessors ForecastSnapshot reads a mapped file with. They only use absolute
+     * gets, which don't touch the buffer's position, so any number of threads can share it.
+     */
+
+    static long getDate(ByteBuffer records, int row) {
+        return records.getLong(HEADER_SIZE + row * RECORD_SIZE + RECORD_DATE);
+    }
+
+    static long getLong(ByteBuffer records, int row, int column) {
+        int record = HEADER_SIZE + row * RECORD_SIZE;
+        switch (column) {
+            case ForecastSnapshot.COLUMN_ID:
+                return records.getLong(record + RECORD_ID);
+            case ForecastSnapshot.COLUMN_DATE:
+                return records.getLong(record + RECORD_DATE);
+            case ForecastSnapshot.COLUMN_WEATHER_ID:
+                return records.getInt(record + RECORD_WEATHER_ID);
+            default:
+                return (long) getDouble(records, row, column);
+        }
+    }
+
+    static double getDouble(ByteBuffer records, int row, int column) {
+        int record = HEADER_SIZE + row * RECORD_SIZE;
+        switch (column) {
+            case ForecastSnapshot.COLUMN_MIN_TEMP:
+                return records.getDouble(record + RECORD_MIN_TEMP);
+            case ForecastSnapshot.COLUMN_MAX_TEMP:
+                return records.getDouble(record + RECORD_MAX_TEMP);
+            case ForecastSnapshot.COLUMN_HUMIDITY:
+                return records.getDouble(record + RECORD_HUMIDITY);
+            case ForecastSnapshot.COLUMN_PRESSURE:
+                return records.getDouble(record + RECORD_PRESSURE);
+            case ForecastSnapshot.COLUMN_WIND_SPEED:
+                return records.getDouble(record + RECORD_WIND_SPEED);
+            case ForecastSnapshot.COLUMN_DEGREES:
+                return records.getDouble(record + RECORD_DEGREES);
+            default:
+                return getLong(records, row, column);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            /* Nothing was written through it that we still need */
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An immutable copy of every weather row of one location, as it was at one point in time,
+ * sorted by date.
+ * <p>
+ * The forecast only changes when a sync changes it, which is at most every few hours, but the
+ * forecast list, the detail screen and the notification all query it far more often than that,
+ * and every rotation queries it again. WeatherProvider keeps a snapshot of the current location
+ * in memory and answers those queries from it with a {@link ForecastSnapshotCursor}, without
+ * opening a database cursor at all.
+ * <p>
+ * Since nothing can change a snapshot once it is made, any number of cursors can read it at
+ * once, on any thread, without copying it or locking anything. A change to the weather replaces
+ * the whole snapshot instead.
+ * <p>
+ * A snapshot is either read from the database, or mapped from a file by
+ * {@link ForecastFileStore}, in which case it reads the file's records in place.
+ */
+final class ForecastSnapshot {
+
+    /*
+     * Every column a snapshot holds, in the order of the weather table. A query with a null
+     * projection gets them all, in this order, the same as it would from the database.
+     */
+    static final String[] ALL_COLUMNS = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_LOC_KEY
+    };
+
+    static final int COLUMN_ID = 0;
+    static final int COLUMN_DATE = 1;
+    static final int COLUMN_WEATHER_ID = 2;
+    static final int COLUMN_MIN_TEMP = 3;
+    static final int COLUMN_MAX_TEMP = 4;
+    static final int COLUMN_HUMIDITY = 5;
+    static final int COLUMN_PRESSURE = 6;
+    static final int COLUMN_WIND_SPEED = 7;
+    static final int COLUMN_DEGREES = 8;
+    static final int COLUMN_LOC_KEY = 9;
+
+    private final String mLocationSetting;
+    private final long mLocationId;
+    private final long[] mIds;
+
+    /* Never changed, or handed out, once the snapshot is made */
+    private final ForecastBatch mRows;
+
+    /* The records of a mapped forecast file, for a snapshot that has no rows of its own */
+    private final ByteBuffer mRecords;
+    private final int mRecordCount;
+
+    private ForecastSnapshot(String locationSetting, long locationId, long[] ids,
+            ForecastBatch rows, ByteBuffer records, int recordCount) {
+        mLocationSetting = locationSetting;
+        mLocationId = locationId;
+        mIds = ids;
+        mRows = rows;
+        mRecords = records;
+        mRecordCount = recordCount;
+    }
+
+    /**
+     * Reads every weather row of a location into a new snapshot. To be sure the snapshot is
+     * consistent, call this inside the transaction that last changed the location's weather, or
+     * on its own.
+     *
+     * @param db              The database to read
+     * @param locationSetting The location setting, as stored in the preferences
+     * @return A snapshot of the location's weather, which is empty if it has none
+     */
+    static ForecastSnapshot read(SQLiteDatabase db, String locationSetting) {
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME,
+                ALL_COLUMNS,
+                WeatherEntry.COLUMN_LOC_KEY + " = (SELECT " + LocationEntry._ID
+                        + " FROM " + LocationEntry.TABLE_NAME
+                        + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ?)",
+                new String[]{locationSetting},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            long[] ids = new long[cursor.getCount()];
+            long locationId = -1;
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(COLUMN_ID);
+                locationId = cursor.getLong(COLUMN_LOC_KEY);
+            }
+            return new ForecastSnapshot(locationSetting, locationId, ids,
+                    ForecastBatch.fromCursor(cursor), null, 0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Makes a snapshot that reads the records of a forecast file in place. Only
+     * {@link ForecastFileStore} knows the layout of the records, and calls this once it has
+     * checked it.
+     *
+     * @param locationSetting The location setting, as stored in the preferences
+     * @param locationId      The _ID of the location's row
+     * @param records         The whole file, header included, sorted by date
+     * @param recordCount     How many records the file holds
+     * @return A snapshot of the file's forecast
+     */
+    static ForecastSnapshot fromRecords(String locationSetting, long locationId,
+            ByteBuffer records, int recordCount) {
+        return new ForecastSnapshot(locationSetting, locationId, null, null, records,
+                recordCount);
+    }
+
+    /**
+     * @return The location setting this is a snapshot of
+     */
+    String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    /**
+     * @return The _ID of the location's row, or -1 if the location has no weather
+     */
+    long getLocationId() {
+        return mLocationId;
+    }
+
+    /**
+     * @return The number of days in the snapshot
+     */
+    int size() {
+        return mRecords != null ? mRecordCount : mRows.size;
+    }
+
+    /**
+     * @return The row of the first day on or after a date, or {@link #size()} if there is none
+     */
+    int firstRowOnOrAfter(long date) {
+        int row = binarySearch(date);
+        return row >= 0 ? row : -row - 1;
+    }
+
+    /**
+     * @return The row of a date, or -1 if the snapshot has no weather for it
+     */
+    int rowOf(long date) {
+        int row = binarySearch(date);
+        return row >= 0 ? row : -1;
+    }
+
+    /* Works like Arrays#binarySearch, on whichever of the rows or the records there are */
+    private int binarySearch(long date) {
+        if (mRecords == null) {
+            return Arrays.binarySearch(mRows.dates, 0, mRows.size, date);
+        }
+
+        int low = 0;
+        int high = mRecordCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleDate = ForecastFileStore.getDate(mRecords, middle);
+            if (middleDate < date) {
+                low = middle + 1;
+            } else if (middleDate > date) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Looks up the columns of a projection.
+     *
+     * @param projection Column names, or null for {@link #ALL_COLUMNS}
+     * @return The COLUMN_ index of each column, or null if the snapshot doesn't hold one of them
+     */
+    static int[] resolveColumns(String[] projection) {
+        if (projection == null) {
+            projection = ALL_COLUMNS;
+        }
+
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = -1;
+            for (int column = 0; column < ALL_COLUMNS.length; column++) {
+                if (ALL_COLUMNS[column].equals(projection[i])) {
+                    columns[i] = column;
+                    break;
+                }
+            }
+            if (columns[i] == -1) {
+                return null;
+            }
+        }
+        return columns;
+    }
+
+    /* Whether a column is an INTEGER column in the weather table, rather than a REAL one */
+    static boolean isIntegerColumn(int column) {
+        return column == COLUMN_ID || column == COLUMN_DATE || column == COLUMN_WEATHER_ID
+                || column == COLUMN_LOC_KEY;
+    }
+
+    long getLong(int row, int column) {
+        if (column == COLUMN_LOC_KEY) {
+            return mLocationId;
+        }
+        if (mRecords != null) {
+            return ForecastFileStore.getLong(mRecords, row, column);
+        }
+
+        switch (column) {
+            case COLUMN_ID:
+                return mIds[row];
+            case COLUMN_DATE:
+                return mRows.dates[row];
+            case COLUMN_WEATHER_ID:
+                return mRows.weatherIds[row];
+            default:
+                return (long) getDouble(row, column);
+        }
+    }
+
+    double getDouble(int row, int column) {
+        if (mRecords != null && column != COLUMN_LOC_KEY) {
+            return ForecastFileStore.getDouble(mRecords, row, column);
+        }
+
+        switch (column) {
+            case COLUMN_MIN_TEMP:
+                return mRows.minTemps[row];
+            case COLUMN_MAX_TEMP:
+                return mRows.maxTemps[row];
+            case COLUMN_HUMIDITY:
+                return mRows.humidity[row];
+            case COLUMN_PRESSURE:
+                return mRows.pressure[row];
+            case COLUMN_WIND_SPEED:
+                return mRows.windSpeeds[row];
+            case COLUMN_DEGREES:
+                return mRows.degrees[row];
+            default:
+                return getLong(row, column);
+        }
+    }
+}
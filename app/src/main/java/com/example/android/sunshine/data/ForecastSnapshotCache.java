@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the {@link ForecastSnapshot} of the current location that WeatherProvider answers
+ * queries from, and counts how many of those queries it could answer.
+ * <p>
+ * Reading the snapshot is a single volatile read, so queries never wait on each other or on a
+ * sync. Changing it follows a few rules, so that a snapshot can never show weather older than
+ * what the database has committed:
+ * <ul>
+ * <li>Every write to the weather is wrapped in {@link #beginWrite()} and
+ * {@link #endWrite(ForecastSnapshot, long)}. A write either hands over a snapshot it read inside
+ * its own transaction, or drops the snapshot.</li>
+ * <li>A write's snapshot is stamped with {@link #nextSequence()} inside its transaction. The
+ * database only lets one transaction write at a time, so the stamps are in commit order, and a
+ * snapshot is only installed if no later write has already ended.</li>
+ * <li>A query that misses reads a snapshot for itself, but only installs it if no write began
+ * or ended while it was reading.</li>
+ * </ul>
+ */
+final class ForecastSnapshotCache {
+
+    /* Returned by getGeneration while a write is in progress, and never installs anything */
+    private static final long GENERATION_WRITING = -1;
+
+    private volatile ForecastSnapshot mSnapshot;
+
+    private long mGeneration;
+    private int mWritesInProgress;
+    private long mSequence;
+    private long mInstalledSequence;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Returns the snapshot for a location, counting a hit if there is one and a miss if not.
+     *
+     * @param locationSetting The location the query is for
+     * @return The snapshot, or null if the cache doesn't have one for the location
+     */
+    ForecastSnapshot get(String locationSetting) {
+        ForecastSnapshot snapshot = mSnapshot;
+        if (snapshot != null && snapshot.getLocationSetting().equals(locationSetting)) {
+            mHits.incrementAndGet();
+            return snapshot;
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return The current generation. Read it before reading a snapshot from the database after
+     * a miss, and pass it to {@link #install} afterwards.
+     */
+    synchronized long getGeneration() {
+        return mWritesInProgress > 0 ? GENERATION_WRITING : mGeneration;
+    }
+
+    /**
+     * Installs a snapshot read after a miss, unless a write began or ended since the generation
+     * it was read at.
+     *
+     * @param snapshot   The new snapshot
+     * @param generation The generation from {@link #getGeneration()} before the snapshot was read
+     * @return true if the snapshot was installed
+     */
+    synchronized boolean install(ForecastSnapshot snapshot, long generation) {
+        if (!isCurrent(generation)) {
+            return false;
+        }
+        mSnapshot = snapshot;
+        return true;
+    }
+
+    /**
+     * @param generation A generation from {@link #getGeneration()}
+     * @return true if no write began or ended since the generation, and none is in progress
+     */
+    synchronized boolean isCurrent(long generation) {
+        return generation != GENERATION_WRITING && generation == mGeneration
+                && mWritesInProgress == 0;
+    }
+
+    /**
+     * Called before a write to the weather, before its transaction begins.
+     */
+    synchronized void beginWrite() {
+        mWritesInProgress++;
+        mGeneration++;
+    }
+
+    /**
+     * @return A stamp for a snapshot read inside a write's transaction
+     */
+    synchronized long nextSequence() {
+        return ++mSequence;
+    }
+
+    /**
+     * Called after a write to the weather, once its transaction has ended, whether it succeeded
+     * or not.
+     *
+     * @param snapshot The snapshot the write read inside its transaction, or null to drop the
+     *                 current snapshot, which is what a failed write or a write that didn't read
+     *                 one should do
+     * @param sequence The snapshot's stamp from {@link #nextSequence()}. Ignored if the snapshot
+     *                 is null.
+     */
+    synchronized void endWrite(ForecastSnapshot snapshot, long sequence) {
+        mWritesInProgress--;
+        mGeneration++;
+
+        if (snapshot == null) {
+            /* Dropping the snapshot is always safe, so it doesn't need to wait its turn */
+            sequence = ++mSequence;
+        }
+        if (sequence > mInstalledSequence) {
+            mInstalledSequence = sequence;
+            mSnapshot = snapshot;
+        }
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+}
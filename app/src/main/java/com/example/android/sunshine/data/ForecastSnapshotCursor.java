@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.AbstractCursor;
+
+/**
+ * A read-only Cursor over a run of consecutive days of a {@link ForecastSnapshot}. It works like
+ * a MatrixCursor, except that it reads the snapshot's columns in place rather than copying every
+ * value into an array of Objects, so making one costs the same however many days it covers.
+ */
+final class ForecastSnapshotCursor extends AbstractCursor {
+
+    private final ForecastSnapshot mSnapshot;
+    private final String[] mColumnNames;
+    private final int[] mColumns;
+    private final int mFirstRow;
+    private final int mCount;
+
+    /**
+     * @param snapshot    The snapshot to read
+     * @param columnNames The names of the Cursor's columns
+     * @param columns     The snapshot column of each of the Cursor's columns, from
+     *                    {@link ForecastSnapshot#resolveColumns(String[])}
+     * @param firstRow    The row of the snapshot that is the Cursor's first row
+     * @param count       How many rows of the snapshot the Cursor covers
+     */
+    ForecastSnapshotCursor(ForecastSnapshot snapshot, String[] columnNames, int[] columns,
+            int firstRow, int count) {
+        mSnapshot = snapshot;
+        mColumnNames = columnNames;
+        mColumns = columns;
+        mFirstRow = firstRow;
+        mCount = count;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    /*
+     * Every column is a number. REAL columns are converted with Double#toString, which can show
+     * more digits than SQLite would, so read them with getDouble where it matters.
+     */
+    @Override
+    public String getString(int column) {
+        int snapshotColumn = checkColumn(column);
+        if (ForecastSnapshot.isIntegerColumn(snapshotColumn)) {
+            return Long.toString(mSnapshot.getLong(row(), snapshotColumn));
+        }
+        return Double.toString(mSnapshot.getDouble(row(), snapshotColumn));
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mSnapshot.getLong(row(), checkColumn(column));
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mSnapshot.getDouble(row(), checkColumn(column));
+    }
+
+    /* Every column of the weather table is NOT NULL */
+    @Override
+    public boolean isNull(int column) {
+        checkColumn(column);
+        return false;
+    }
+
+    @Override
+    public int getType(int column) {
+        return ForecastSnapshot.isIntegerColumn(checkColumn(column))
+                ? FIELD_TYPE_INTEGER
+                : FIELD_TYPE_FLOAT;
+    }
+
+    private int row() {
+        if (mPos < 0 || mPos >= mCount) {
+            throw new IndexOutOfBoundsException("Cursor is at position " + mPos
+                    + " of " + mCount);
+        }
+        return mFirstRow + mPos;
+    }
+
+    private int checkColumn(int column) {
+        if (column < 0 || column >= mColumns.length) {
+            throw new IndexOutOfBoundsException("Column " + column + " of " + mColumns.length);
+        }
+        return mColumns[column];
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.provider.BaseColumns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A read-only Cursor over a query that can return a long range of rows, such as years of
+ * weather history, which it reads one page of rows at a time.
+ * <p>
+ * A query on its own returns an SQLiteCursor, which copies rows into a CursorWindow until the
+ * window is full. The window is a fixed 2MB whatever the query returns, and there is no way to
+ * ask for a smaller or larger one before Android P. So a long range holds 2MB at a time, and
+ * every time the window has to move, the query runs again from the start.
+ * <p>
+ * A PagedCursor sizes its pages from the columns of the query instead, so that a page takes up
+ * about {@link #PAGE_BYTES} of window, and only ever holds the page the caller is on. Only the
+ * first page is read up front.
+ * <p>
+ * Pages after the first are found by key rather than by OFFSET, which would have SQLite step
+ * over every row before the page, and make reading a long range from start to end quadratic.
+ * The key of a row is the columns of the sort order, followed by _ID. When a page is read, the
+ * key of its last row is kept, and the next page is the rows whose key comes after it, which
+ * an index on the sort order finds without reading the rows before. A jump to a page whose
+ * starting key isn't known yet skips from the nearest page before it whose key is, with OFFSET.
+ * The key columns are added to the query if the projection doesn't have them, and are hidden
+ * from the caller.
+ * <p>
+ * A sort order that isn't a list of plain columns, or a key that is a floating point number,
+ * whose text form may not compare equal to the stored value, can't be used as a key. Such a
+ * query pages with OFFSET from the start, as it would without keys. Every key column must be
+ * NOT NULL, which the columns of the weather and history tables all are.
+ * <p>
+ * Use {@link #query} rather than the constructor. A query that fits in a single page gets the
+ * plain SQLiteCursor of its first page, so short queries such as the forecast list cost
+ * exactly what they did before.
+ * <p>
+ * Pages are separate queries, so a write between two of them can shift the rows. The Cursor's
+ * notification URI is told about any such write, and a CursorLoader queries again.
+ * <p>
+ * This only helps Cursors that stay in our process, which the app's own screens do. A Cursor
+ * sent to another process is copied into a window of the system's size on the way.
+ */
+final class PagedCursor extends AbstractCursor {
+
+    /* About how much window a page should take up */
+    static final int PAGE_BYTES = 64 * 1024;
+
+    /*
+     * What a CursorWindow stores for each row and each field. Every column the weather and
+     * history tables have is a number, which is stored in the field itself.
+     */
+    private static final int WINDOW_ROW_BYTES = 4;
+    private static final int WINDOW_FIELD_BYTES = 12;
+
+    /* One term of a sort order that can be used as a key: a column, and maybe a direction */
+    private static final Pattern SORT_TERM = Pattern.compile(
+            "\\s*([A-Za-z_][A-Za-z0-9_]*)(?:\\s+(ASC|DESC))?\\s*", Pattern.CASE_INSENSITIVE);
+
+    private final SQLiteDatabase mDb;
+    private final int mCount;
+    private final int mPageRows;
+    private final String[] mColumnNames;
+
+    /* Read the rows from the start of the query, or after a key, skipping OFFSET rows */
+    private final String mFromStartSql;
+    private final String mAfterKeySql;
+    private final String[] mSelectionArgs;
+
+    /* The key columns, or null if the query can only be paged with OFFSET */
+    private final String[] mKeyColumns;
+
+    /* By page, the key of the last row of the page before it, or null if it isn't known yet */
+    private final String[][] mPageKeys;
+
+    /* The page the Cursor is on, and the position of its first row */
+    private Cursor mPage;
+    private int mPageStart;
+
+    private PagedCursor(SQLiteDatabase db, int count, int pageRows, Cursor firstPage,
+            String fromStartSql, String afterKeySql, String[] selectionArgs,
+            String[] keyColumns) {
+        mDb = db;
+        mCount = count;
+        mPageRows = pageRows;
+        mColumnNames = firstPage.getColumnNames();
+        mFromStartSql = fromStartSql;
+        mAfterKeySql = afterKeySql;
+        mSelectionArgs = selectionArgs != null ? selectionArgs : new String[0];
+        mKeyColumns = keyColumns;
+        mPageKeys = new String[(count + pageRows - 1) / pageRows][];
+        mPage = firstPage;
+        mPageStart = 0;
+        rememberNextPageKey(0, firstPage);
+    }
+
+    /**
+     * Runs a query on a single table, reading its rows in pages if there are more of them than
+     * fit in one.
+     *
+     * @param db             The database to query
+     * @param table          The table to query
+     * @param projection     The columns to return, or null for all of them
+     * @param selection      The selection, or null for every row
+     * @param selectionArgs  The arguments of the selection
+     * @param orderBy        The sort order, or null for the order the rows were inserted in.
+     *                       The table's _ID is added to it, so that rows are never split across
+     *                       pages in a different order from one page to the next.
+     * @param allColumnCount How many columns the table has, for a null projection
+     * @return A Cursor over the rows, positioned before the first one
+     */
+    static Cursor query(SQLiteDatabase db, String table, String[] projection, String selection,
+            String[] selectionArgs, String orderBy, int allColumnCount) {
+        int pageRows = getPageRows(projection != null ? projection.length : allColumnCount);
+
+        /* The sort order, as key columns and their directions, if it can be used as a key */
+        List<String> keyColumns = new ArrayList<>();
+        List<Boolean> descending = new ArrayList<>();
+        boolean keyed = parseSortOrder(orderBy, keyColumns, descending);
+        String fullOrderBy = orderBy;
+        if (!containsIgnoreCase(keyColumns, BaseColumns._ID)) {
+            fullOrderBy = orderBy != null ? orderBy + ", " + BaseColumns._ID : BaseColumns._ID;
+            keyColumns.add(BaseColumns._ID);
+            descending.add(false);
+        }
+
+        String firstPageSql = SQLiteQueryBuilder.buildQueryString(false, table, projection,
+                selection, null, null, fullOrderBy, null) + " LIMIT ? OFFSET ?";
+
+        /* One row more than a page, to find out whether there is more than one page */
+        Cursor firstPage = queryPage(db, firstPageSql, selectionArgs, null, pageRows + 1, 0);
+        if (firstPage.getCount() <= pageRows) {
+            return firstPage;
+        }
+
+        /* Later pages read the key columns too, after the ones the caller asked for */
+        String[] pageProjection = projection;
+        if (projection != null) {
+            List<String> columns = new ArrayList<>(Arrays.asList(projection));
+            for (String keyColumn : keyColumns) {
+                if (!containsIgnoreCase(columns, keyColumn)) columns.add(keyColumn);
+            }
+            pageProjection = columns.toArray(new String[columns.size()]);
+        }
+
+        String fromStartSql = SQLiteQueryBuilder.buildQueryString(false, table, pageProjection,
+                selection, null, null, fullOrderBy, null) + " LIMIT ? OFFSET ?";
+        String afterKeySql = null;
+        if (keyed) {
+            String afterKey = buildAfterKeySelection(keyColumns, descending);
+            afterKeySql = SQLiteQueryBuilder.buildQueryString(false, table, pageProjection,
+                    selection != null ? "(" + selection + ") AND " + afterKey : afterKey,
+                    null, null, fullOrderBy, null) + " LIMIT ? OFFSET ?";
+        }
+
+        int count = (int) DatabaseUtils.queryNumEntries(db, table, selection, selectionArgs);
+        return new PagedCursor(db, count, pageRows, firstPage, fromStartSql, afterKeySql,
+                selectionArgs,
+                keyed ? keyColumns.toArray(new String[keyColumns.size()]) : null);
+    }
+
+    /**
+     * @param columnCount How many columns a query returns
+     * @return How many of its rows fit in {@link #PAGE_BYTES} of window
+     */
+    static int getPageRows(int columnCount) {
+        return PAGE_BYTES / estimateRowBytes(columnCount);
+    }
+
+    /**
+     * @param columnCount How many columns a query returns, all of them numbers
+     * @return About how much window a row of the query takes up
+     */
+    static int estimateRowBytes(int columnCount) {
+        return WINDOW_ROW_BYTES + columnCount * WINDOW_FIELD_BYTES;
+    }
+
+    /**
+     * @return How many rows a page holds
+     */
+    int getPageRows() {
+        return mPageRows;
+    }
+
+    /**
+     * @return true if pages after the first are found by key rather than by OFFSET
+     */
+    boolean isKeyed() {
+        return mKeyColumns != null;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    /* Only the columns the caller asked for, and not the key columns added after them */
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    /*
+     * Moves to the page that holds the new position, reading it if it isn't the page the Cursor
+     * is already on.
+     */
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        if (newPosition < mPageStart || newPosition >= mPageStart + mPageRows) {
+            int page = newPosition / mPageRows;
+            mPage.close();
+            mPage = readPage(page);
+            mPageStart = page * mPageRows;
+        }
+        return mPage.moveToPosition(newPosition - mPageStart);
+    }
+
+    @Override
+    public String getString(int column) {
+        return page().getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return page().getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return page().getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return page().getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return page().getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return page().getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return page().getBlob(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return page().isNull(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return page().getType(column);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mPage.close();
+    }
+
+    /* The page, on the row the Cursor is on */
+    private Cursor page() {
+        if (mPos < 0 || mPos >= mCount || mPage.isBeforeFirst() || mPage.isAfterLast()) {
+            throw new CursorIndexOutOfBoundsException(mPos, mCount);
+        }
+        return mPage;
+    }
+
+    /*
+     * Reads a page, after the key of the nearest page at or before it whose key we know, and
+     * from the start if there is none.
+     */
+    private Cursor readPage(int page) {
+        int from = page;
+        while (from > 0 && mPageKeys[from] == null) {
+            from--;
+        }
+        int offset = (page - from) * mPageRows;
+
+        Cursor cursor = from == 0
+                ? queryPage(mDb, mFromStartSql, mSelectionArgs, null, mPageRows, offset)
+                : queryPage(mDb, mAfterKeySql, mSelectionArgs, expandKey(mPageKeys[from]),
+                        mPageRows, offset);
+        rememberNextPageKey(page, cursor);
+        return cursor;
+    }
+
+    /* Keeps the key of the last row of a full page, which is where the page after it starts */
+    private void rememberNextPageKey(int page, Cursor cursor) {
+        if (mKeyColumns == null || page + 1 >= mPageKeys.length || mPageKeys[page + 1] != null
+                || cursor.getCount() < mPageRows) {
+            return;
+        }
+
+        cursor.moveToPosition(mPageRows - 1);
+        String[] key = new String[mKeyColumns.length];
+        for (int i = 0; i < mKeyColumns.length; i++) {
+            int column = cursor.getColumnIndex(mKeyColumns[i]);
+            if (column == -1) return;
+
+            /* Text forms of integers and strings compare equal to the stored value */
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    key[i] = Long.toString(cursor.getLong(column));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    key[i] = cursor.getString(column);
+                    break;
+                default:
+                    return;
+            }
+        }
+        mPageKeys[page + 1] = key;
+    }
+
+    /* The arguments of the selection built by buildAfterKeySelection, for a key */
+    private static String[] expandKey(String[] key) {
+        String[] args = new String[key.length * (key.length + 1) / 2];
+        int arg = 0;
+        for (int term = 0; term < key.length; term++) {
+            for (int column = 0; column <= term; column++) {
+                args[arg++] = key[column];
+            }
+        }
+        return args;
+    }
+
+    /*
+     * Selects the rows whose key comes after a key, in the sort order. For a key of (a, b, _id)
+     * sorted a ASC, b DESC, _id ASC, that is:
+     *
+     *      (a > ?) OR (a = ? AND b < ?) OR (a = ? AND b = ? AND _id > ?)
+     *
+     * which, unlike a row value comparison, works on every version of SQLite Android has
+     * shipped, and with a different direction for each column.
+     */
+    private static String buildAfterKeySelection(List<String> keyColumns,
+            List<Boolean> descending) {
+        StringBuilder selection = new StringBuilder("(");
+        for (int term = 0; term < keyColumns.size(); term++) {
+            if (term > 0) selection.append(" OR ");
+            selection.append('(');
+            for (int column = 0; column < term; column++) {
+                selection.append(keyColumns.get(column)).append(" = ? AND ");
+            }
+            selection.append(keyColumns.get(term))
+                    .append(descending.get(term) ? " < ?" : " > ?")
+                    .append(')');
+        }
+        return selection.append(')').toString();
+    }
+
+    /*
+     * Splits a sort order into its columns and their directions. Returns false if any term of
+     * it is something other than a column, such as an expression or a COLLATE clause.
+     */
+    private static boolean parseSortOrder(String orderBy, List<String> columns,
+            List<Boolean> descending) {
+        if (orderBy == null) return true;
+
+        for (String term : orderBy.split(",")) {
+            Matcher matcher = SORT_TERM.matcher(term);
+            if (!matcher.matches()) {
+                columns.clear();
+                descending.clear();
+                return false;
+            }
+            columns.add(matcher.group(1));
+            descending.add("DESC".equals(
+                    matcher.group(2) != null ? matcher.group(2).toUpperCase(Locale.US) : null));
+        }
+        return true;
+    }
+
+    private static boolean containsIgnoreCase(List<String> columns, String column) {
+        for (String candidate : columns) {
+            if (candidate.equalsIgnoreCase(column)) return true;
+        }
+        return false;
+    }
+
+    private static Cursor queryPage(SQLiteDatabase db, String sql, String[] selectionArgs,
+            String[] keyArgs, int rows, int offset) {
+        int selectionCount = selectionArgs != null ? selectionArgs.length : 0;
+        int keyCount = keyArgs != null ? keyArgs.length : 0;
+
+        String[] args = new String[selectionCount + keyCount + 2];
+        if (selectionCount > 0) System.arraycopy(selectionArgs, 0, args, 0, selectionCount);
+        if (keyCount > 0) System.arraycopy(keyArgs, 0, args, selectionCount, keyCount);
+        args[args.length - 2] = Integer.toString(rows);
+        args[args.length - 1] = Integer.toString(offset);
+        return db.rawQuery(sql, args);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.android.sunshine.data.WeatherContract.MetricsEntry;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long each of WeatherProvider's operations takes, per URI code, how many rows they
+ * touch, and how long writes hold the database.
+ * <p>
+ * Latencies go into histograms of powers of two: bucket 0 counts calls that took under a
+ * microsecond, and bucket n calls that took from 2^(n-1) up to 2^n microseconds. That is
+ * precise enough to tell a query that hit the snapshot from one that read the database, and it
+ * means a histogram is a fixed number of counters.
+ * <p>
+ * Every counter lives in one of a few AtomicLongArrays, made up front for every operation and
+ * every URI code, so recording a call is a handful of atomic adds into memory that is already
+ * there. Nothing is allocated and nothing is locked, which is what lets the metrics stay on in
+ * release builds. Reading them, through {@link #toCursor()} or {@link #dump(PrintWriter)}, is
+ * where the work happens.
+ * <p>
+ * The counters aren't read all at once, so a reading taken while calls are being recorded can
+ * be off by the calls in flight.
+ */
+final class ProviderMetrics {
+
+    static final int OPERATION_QUERY = 0;
+    static final int OPERATION_INSERT = 1;
+    static final int OPERATION_BULK_INSERT = 2;
+    static final int OPERATION_UPDATE = 3;
+    static final int OPERATION_DELETE = 4;
+    static final int OPERATION_APPLY_BATCH = 5;
+    static final int OPERATION_CALL = 6;
+
+    /* The names operations are reported under, by operation */
+    static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulkInsert", "update", "delete", "applyBatch", "call"
+    };
+
+    private static final int OPERATION_COUNT = OPERATION_NAMES.length;
+
+    /* The URI code of a call that isn't for a URI, such as applyBatch and call */
+    static final int NO_URI_CODE = -1;
+
+    /* From under 1 microsecond up to 2^22 microseconds, about 4 seconds, and anything longer */
+    static final int BUCKET_COUNT = 24;
+
+    /* The URI codes in the order of their slots. Slot 0 is NO_URI_CODE. */
+    private final int[] mUriCodes;
+
+    /* The slot of each URI code, by code. Codes that weren't given map to slot 0. */
+    private final int[] mSlotsByCode;
+
+    /* Indexed by [operation][slot][bucket] */
+    private final AtomicLongArray mLatencyBuckets;
+
+    /* Indexed by [operation][slot] */
+    private final AtomicLongArray mCalls;
+    private final AtomicLongArray mRows;
+    private final AtomicLongArray mTotalNanos;
+    private final AtomicLongArray mMaxNanos;
+
+    /* How long writes held the database, indexed by [operation][bucket] and [operation] */
+    private final AtomicLongArray mWriteBuckets;
+    private final AtomicLongArray mWriteTotalNanos;
+    private final AtomicLongArray mWriteMaxNanos;
+
+    /**
+     * @param uriCodes Every code the provider's UriMatcher can return. They should be small,
+     *                 as they index a table.
+     */
+    ProviderMetrics(int... uriCodes) {
+        mUriCodes = new int[uriCodes.length + 1];
+        mUriCodes[0] = NO_URI_CODE;
+        System.arraycopy(uriCodes, 0, mUriCodes, 1, uriCodes.length);
+
+        int maxCode = 0;
+        for (int code : uriCodes) {
+            maxCode = Math.max(maxCode, code);
+        }
+        mSlotsByCode = new int[maxCode + 1];
+        for (int slot = 1; slot < mUriCodes.length; slot++) {
+            mSlotsByCode[mUriCodes[slot]] = slot;
+        }
+
+        int counters = OPERATION_COUNT * mUriCodes.length;
+        mLatencyBuckets = new AtomicLongArray(counters * BUCKET_COUNT);
+        mCalls = new AtomicLongArray(counters);
+        mRows = new AtomicLongArray(counters);
+        mTotalNanos = new AtomicLongArray(counters);
+        mMaxNanos = new AtomicLongArray(counters);
+
+        mWriteBuckets = new AtomicLongArray(OPERATION_COUNT * BUCKET_COUNT);
+        mWriteTotalNanos = new AtomicLongArray(OPERATION_COUNT);
+        mWriteMaxNanos = new AtomicLongArray(OPERATION_COUNT);
+    }
+
+    /**
+     * Records a call that has just returned.
+     *
+     * @param operation  One of the OPERATION_ constants
+     * @param uriCode    The code the URI matched, or {@link #NO_URI_CODE}
+     * @param startNanos {@link System#nanoTime()} when the call began
+     * @param rows       How many rows the call returned, inserted, updated or deleted
+     */
+    void record(int operation, int uriCode, long startNanos, long rows) {
+        long nanos = System.nanoTime() - startNanos;
+        int counter = operation * mUriCodes.length + slotOf(uriCode);
+
+        mCalls.incrementAndGet(counter);
+        mRows.addAndGet(counter, rows);
+        mTotalNanos.addAndGet(counter, nanos);
+        updateMax(mMaxNanos, counter, nanos);
+        mLatencyBuckets.incrementAndGet(counter * BUCKET_COUNT + bucketOf(nanos));
+    }
+
+    /**
+     * Records how long a write held the database, from the start of its transaction to its end.
+     *
+     * @param operation  One of the OPERATION_ constants
+     * @param startNanos {@link System#nanoTime()} when the write began
+     */
+    void recordWrite(int operation, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+
+        mWriteTotalNanos.addAndGet(operation, nanos);
+        updateMax(mWriteMaxNanos, operation, nanos);
+        mWriteBuckets.incrementAndGet(operation * BUCKET_COUNT + bucketOf(nanos));
+    }
+
+    /**
+     * @return A row for every operation and URI code that has been called, with the columns of
+     * {@link MetricsEntry}, followed by a row for every operation that has written, with a
+     * {@link MetricsEntry#KIND_WRITE} kind and no URI code
+     */
+    Cursor toCursor() {
+        MatrixCursor cursor = new MatrixCursor(MetricsEntry.COLUMNS);
+        long[] buckets = new long[BUCKET_COUNT];
+
+        for (int operation = 0; operation < OPERATION_COUNT; operation++) {
+            for (int slot = 0; slot < mUriCodes.length; slot++) {
+                int counter = operation * mUriCodes.length + slot;
+                long calls = mCalls.get(counter);
+                if (calls == 0) {
+                    continue;
+                }
+                readBuckets(mLatencyBuckets, counter, buckets);
+                cursor.addRow(new Object[]{
+                        MetricsEntry.KIND_CALL,
+                        OPERATION_NAMES[operation],
+                        mUriCodes[slot],
+                        calls,
+                        mRows.get(counter),
+                        mTotalNanos.get(counter) / 1000,
+                        percentileMicros(buckets, 50),
+                        percentileMicros(buckets, 90),
+                        percentileMicros(buckets, 99),
+                        mMaxNanos.get(counter) / 1000});
+            }
+        }
+
+        for (int operation = 0; operation < OPERATION_COUNT; operation++) {
+            readBuckets(mWriteBuckets, operation, buckets);
+            long writes = sum(buckets);
+            if (writes == 0) {
+                continue;
+            }
+            cursor.addRow(new Object[]{
+                    MetricsEntry.KIND_WRITE,
+                    OPERATION_NAMES[operation],
+                    NO_URI_CODE,
+                    writes,
+                    0,
+                    mWriteTotalNanos.get(operation) / 1000,
+                    percentileMicros(buckets, 50),
+                    percentileMicros(buckets, 90),
+                    percentileMicros(buckets, 99),
+                    mWriteMaxNanos.get(operation) / 1000});
+        }
+
+        return cursor;
+    }
+
+    /**
+     * Writes every row of {@link #toCursor()} as a table, one line per row, followed by the
+     * histogram of each row, for dumpsys.
+     *
+     * @param writer Where to write to
+     */
+    void dump(PrintWriter writer) {
+        Cursor cursor = toCursor();
+        try {
+            writer.println(String.format("%-6s %-11s %5s %8s %9s %10s %8s %8s %8s %8s",
+                    "kind", "operation", "code", "calls", "rows", "total us",
+                    "p50 us", "p90 us", "p99 us", "max us"));
+            while (cursor.moveToNext()) {
+                writer.println(String.format("%-6s %-11s %5d %8d %9d %10d %8d %8d %8d %8d",
+                        cursor.getString(0), cursor.getString(1), cursor.getInt(2),
+                        cursor.getLong(3), cursor.getLong(4), cursor.getLong(5),
+                        cursor.getLong(6), cursor.getLong(7), cursor.getLong(8),
+                        cursor.getLong(9)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        writer.println();
+        writer.println("Histograms, as the count of each bucket of up to 2^n us, n from 0:");
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int operation = 0; operation < OPERATION_COUNT; operation++) {
+            for (int slot = 0; slot < mUriCodes.length; slot++) {
+                int counter = operation * mUriCodes.length + slot;
+                if (mCalls.get(counter) == 0) {
+                    continue;
+                }
+                readBuckets(mLatencyBuckets, counter, buckets);
+                writer.println("  call " + OPERATION_NAMES[operation] + " " + mUriCodes[slot]
+                        + ": " + Arrays.toString(buckets));
+            }
+            readBuckets(mWriteBuckets, operation, buckets);
+            if (sum(buckets) > 0) {
+                writer.println("  write " + OPERATION_NAMES[operation] + ": "
+                        + Arrays.toString(buckets));
+            }
+        }
+    }
+
+    private int slotOf(int uriCode) {
+        return uriCode >= 0 && uriCode < mSlotsByCode.length ? mSlotsByCode[uriCode] : 0;
+    }
+
+    /* The bucket of a latency: 0 for under a microsecond, n for up to 2^n microseconds */
+    static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /* Raises a maximum, without a lock, unless another thread has already raised it further */
+    private static void updateMax(AtomicLongArray maximums, int index, long value) {
+        long max = maximums.get(index);
+        while (value > max && !maximums.compareAndSet(index, max, value)) {
+            max = maximums.get(index);
+        }
+    }
+
+    private static void readBuckets(AtomicLongArray array, int histogram, long[] buckets) {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            buckets[bucket] = array.get(histogram * BUCKET_COUNT + bucket);
+        }
+    }
+
+    private static long sum(long[] buckets) {
+        long sum = 0;
+        for (long count : buckets) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    /*
+     * The upper bound of the bucket a percentile falls in, so "p90 = 512" reads as "90% of calls
+     * took at most 512 microseconds".
+     */
+    static long percentileMicros(long[] buckets, int percentile) {
+        long total = sum(buckets);
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (total * percentile + 99) / 100;
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                return 1L << bucket;
+            }
+        }
+        return 1L << (BUCKET_COUNT - 1);
+    }
+}
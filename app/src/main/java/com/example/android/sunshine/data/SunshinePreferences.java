@@ -31,6 +31,16 @@ public final class SunshinePreferences {
     public static final String PREF_COORD_LAT = "coord_lat";
     public static final String PREF_COORD_LONG = "coord_long";
 
+    /*
+     * How many bytes each sync downloaded, both as they came over the network (usually gzipped)
+     * and after decompression. We keep the numbers for the last sync as well as running totals.
+     */
+    private static final String SYNC_STATS_PREFS_NAME = "sync_stats";
+    private static final String PREF_LAST_WIRE_BYTES = "last_wire_bytes";
+    private static final String PREF_LAST_BODY_BYTES = "last_body_bytes";
+    private static final String PREF_TOTAL_WIRE_BYTES = "total_wire_bytes";
+    private static final String PREF_TOTAL_BODY_BYTES = "total_body_bytes";
+
     /**
      * Helper method to handle setting location details in Preferences (city name, latitude,
      * longitude)
@@ -242,4 +252,53 @@ public final class SunshinePreferences {
         editor.putLong(lastNotificationKey, timeOfNotification);
         editor.apply();
     }
+
+    /**
+     * Records the size of a sync's download, before and after decompression.
+     *
+     * @param context   Used to access SharedPreferences
+     * @param wireBytes Bytes of the response body as received over the network
+     * @param bodyBytes Bytes of the response body after decompression
+     */
+    public static void recordSyncTransferSizes(Context context, long wireBytes, long bodyBytes) {
+        SharedPreferences sp = context.getSharedPreferences(
+                SYNC_STATS_PREFS_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sp.edit();
+
+        editor.putLong(PREF_LAST_WIRE_BYTES, wireBytes);
+        editor.putLong(PREF_LAST_BODY_BYTES, bodyBytes);
+        editor.putLong(PREF_TOTAL_WIRE_BYTES, sp.getLong(PREF_TOTAL_WIRE_BYTES, 0) + wireBytes);
+        editor.putLong(PREF_TOTAL_BODY_BYTES, sp.getLong(PREF_TOTAL_BODY_BYTES, 0) + bodyBytes);
+        editor.apply();
+    }
+
+    /**
+     * Returns the size of the most recent sync's download.
+     *
+     * @param context Used to access SharedPreferences
+     * @return An array of {bytes over the network, bytes after decompression}
+     */
+    public static long[] getLastSyncTransferSizes(Context context) {
+        SharedPreferences sp = context.getSharedPreferences(
+                SYNC_STATS_PREFS_NAME, Context.MODE_PRIVATE);
+
+        return new long[]{
+                sp.getLong(PREF_LAST_WIRE_BYTES, 0),
+                sp.getLong(PREF_LAST_BODY_BYTES, 0)};
+    }
+
+    /**
+     * Returns the total size of every sync's download since the app was installed.
+     *
+     * @param context Used to access SharedPreferences
+     * @return An array of {bytes over the network, bytes after decompression}
+     */
+    public static long[] getTotalSyncTransferSizes(Context context) {
+        SharedPreferences sp = context.getSharedPreferences(
+                SYNC_STATS_PREFS_NAME, Context.MODE_PRIVATE);
+
+        return new long[]{
+                sp.getLong(PREF_TOTAL_WIRE_BYTES, 0),
+                sp.getLong(PREF_TOTAL_BODY_BYTES, 0)};
+    }
 }
\ No newline at end of file
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+/**
+ * Inserts many rows into the weather table as quickly as possible.
+ * <p>
+ * SQLiteDatabase#insert builds a new INSERT statement from the keys of every ContentValues it is
+ * given, and SQLite then has to compile that statement before running it. When we insert a whole
+ * forecast, every one of those statements is the same. Here, we compile the statement once per
+ * transaction and only bind new values to it for each row, by position and with the right type.
+ * <p>
+ * Rows can be given either as ContentValues, or as a {@link ForecastBatch}, which saves boxing
+ * every number on the way into the database.
+ */
+final class WeatherBulkInserter {
+
+    private static final String TAG = WeatherBulkInserter.class.getSimpleName();
+
+    /*
+     * The columns we insert, in the order they are bound. The index of a column in this array,
+     * plus one, is the index of its "?" in INSERT_SQL.
+     */
+    private static final String[] COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_LOC_KEY
+    };
+
+    private static final int INDEX_DATE = 1;
+    private static final int INDEX_WEATHER_ID = 2;
+    private static final int INDEX_MIN_TEMP = 3;
+    private static final int INDEX_MAX_TEMP = 4;
+    private static final int INDEX_HUMIDITY = 5;
+    private static final int INDEX_PRESSURE = 6;
+    private static final int INDEX_WIND_SPEED = 7;
+    private static final int INDEX_DEGREES = 8;
+    private static final int INDEX_LOCATION = 9;
+
+    private static final String INSERT_SQL = buildInsertSql();
+    private static final String UPDATE_SQL = buildUpdateSql();
+
+    private WeatherBulkInserter() {
+    }
+
+    /**
+     * Inserts rows given as ContentValues, in a single transaction. A row that holds a column
+     * we don't bind is inserted with SQLiteDatabase#insert instead, so nothing is ever dropped.
+     *
+     * @param db                The database to insert into
+     * @param values            The rows to insert. Every row must have a normalized date.
+     * @param defaultLocationId The location of any row that doesn't say which location it is for
+     * @return The number of rows that were inserted
+     */
+    static int insert(SQLiteDatabase db, ContentValues[] values, long defaultLocationId) {
+        int rowsInserted = 0;
+
+        db.beginTransaction();
+        SQLiteStatement statement = compileInsert(db);
+        try {
+            for (ContentValues value : values) {
+                if (insertRow(db, statement, value, defaultLocationId) != -1) {
+                    rowsInserted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            statement.close();
+            db.endTransaction();
+        }
+
+        return rowsInserted;
+    }
+
+    /**
+     * Inserts one row given as ContentValues, with a statement from {@link #compileInsert}. A row
+     * that holds a column we don't bind is inserted with SQLiteDatabase#insert instead.
+     *
+     * @param db                The database to insert into
+     * @param statement         The compiled INSERT statement to bind the row to
+     * @param value             The row to insert. It must have a normalized date.
+     * @param defaultLocationId The location of the row, if it doesn't say which location it is for
+     * @return The row ID of the new row, or -1 if it was rejected
+     */
+    static long insertRow(SQLiteDatabase db, SQLiteStatement statement, ContentValues value,
+            long defaultLocationId) {
+        Long weatherDate = value.getAsLong(WeatherEntry.COLUMN_DATE);
+        if (weatherDate == null || !SunshineDateUtils.isDateNormalized(weatherDate)) {
+            throw new IllegalArgumentException("Date must be normalized to insert");
+        }
+
+        if (!value.containsKey(WeatherEntry.COLUMN_LOC_KEY)) {
+            value = new ContentValues(value);
+            value.put(WeatherEntry.COLUMN_LOC_KEY, defaultLocationId);
+        }
+
+        if (bindContentValues(statement, value) != value.size()) {
+            return db.insert(WeatherEntry.TABLE_NAME, null, value);
+        }
+
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error inserting weather row", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Updates the row for a date and location with a statement from {@link #compileUpdate}. The
+     * statement sets every column, so it can only be used when the new values hold every column
+     * we bind. Otherwise, the row is updated with SQLiteDatabase#update, which only sets the
+     * columns it is given.
+     *
+     * @param db         The database to update
+     * @param statement  The compiled UPDATE statement to bind the values to
+     * @param value      The new values. Any date or location they leave out stay as they are.
+     * @param date       The date of the row to update
+     * @param locationId The location of the row to update
+     * @return The number of rows updated
+     */
+    static int updateRow(SQLiteDatabase db, SQLiteStatement statement, ContentValues value,
+            long date, long locationId) {
+        if (!value.containsKey(WeatherEntry.COLUMN_DATE)
+                || !value.containsKey(WeatherEntry.COLUMN_LOC_KEY)) {
+            value = new ContentValues(value);
+            if (!value.containsKey(WeatherEntry.COLUMN_DATE)) {
+                value.put(WeatherEntry.COLUMN_DATE, date);
+            }
+            if (!value.containsKey(WeatherEntry.COLUMN_LOC_KEY)) {
+                value.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+            }
+        }
+
+        Long newDate = value.getAsLong(WeatherEntry.COLUMN_DATE);
+        if (newDate == null || !SunshineDateUtils.isDateNormalized(newDate)) {
+            throw new IllegalArgumentException("Date must be normalized to update");
+        }
+
+        int valuesBound = bindContentValues(statement, value);
+        if (valuesBound != value.size() || valuesBound != COLUMNS.length) {
+            return db.update(WeatherEntry.TABLE_NAME,
+                    value,
+                    WeatherEntry.COLUMN_DATE + " = ? AND " + WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                    new String[]{Long.toString(date), Long.toString(locationId)});
+        }
+
+        bindUpdateKey(statement, date, locationId);
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Inserts the rows of a {@link ForecastBatch} in a single transaction. Values go straight
+     * from the batch's columns to the statement, without being boxed along the way.
+     *
+     * @param db         The database to insert into
+     * @param batch      The rows to insert. Every row must have a normalized date.
+     * @param locationId The location that every row of the batch is for
+     * @return The number of rows that were inserted
+     */
+    static int insert(SQLiteDatabase db, ForecastBatch batch, long locationId) {
+        int rowsInserted = 0;
+
+        db.beginTransaction();
+        SQLiteStatement statement = compileInsert(db);
+        try {
+            for (int i = 0; i < batch.size; i++) {
+                if (!SunshineDateUtils.isDateNormalized(batch.dates[i])) {
+                    throw new IllegalArgumentException("Date must be normalized to insert");
+                }
+
+                bindRow(statement, batch, i, locationId);
+                if (executeInsert(statement)) {
+                    rowsInserted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            statement.close();
+            db.endTransaction();
+        }
+
+        return rowsInserted;
+    }
+
+    /**
+     * Compiles the INSERT statement that {@link #bindRow} binds rows to. The caller must close
+     * it when done.
+     */
+    static SQLiteStatement compileInsert(SQLiteDatabase db) {
+        return db.compileStatement(INSERT_SQL);
+    }
+
+    /**
+     * Compiles an UPDATE statement that sets every column of the row with the same date and
+     * location. {@link #bindRow} binds the new values, and {@link #bindUpdateKey} the date and
+     * location of the row to update. The caller must close it when done.
+     */
+    static SQLiteStatement compileUpdate(SQLiteDatabase db) {
+        return db.compileStatement(UPDATE_SQL);
+    }
+
+    /**
+     * Binds a row of a batch to a statement from {@link #compileInsert} or
+     * {@link #compileUpdate}.
+     */
+    static void bindRow(SQLiteStatement statement, ForecastBatch batch, int row,
+            long locationId) {
+        statement.bindLong(INDEX_DATE, batch.dates[row]);
+        statement.bindLong(INDEX_WEATHER_ID, batch.weatherIds[row]);
+        statement.bindDouble(INDEX_MIN_TEMP, batch.minTemps[row]);
+        statement.bindDouble(INDEX_MAX_TEMP, batch.maxTemps[row]);
+        statement.bindDouble(INDEX_HUMIDITY, batch.humidity[row]);
+        statement.bindDouble(INDEX_PRESSURE, batch.pressure[row]);
+        statement.bindDouble(INDEX_WIND_SPEED, batch.windSpeeds[row]);
+        statement.bindDouble(INDEX_DEGREES, batch.degrees[row]);
+        statement.bindLong(INDEX_LOCATION, locationId);
+    }
+
+    /**
+     * Binds the date and location of the row that a statement from {@link #compileUpdate}
+     * should update.
+     */
+    static void bindUpdateKey(SQLiteStatement statement, long date, long locationId) {
+        statement.bindLong(COLUMNS.length + 1, date);
+        statement.bindLong(COLUMNS.length + 2, locationId);
+    }
+
+    /**
+     * Binds every column of a row to the statement. Columns the row doesn't have are bound to
+     * null, which the table rejects, the same as SQLiteDatabase#insert would.
+     *
+     * @return The number of the row's values that were bound
+     */
+    private static int bindContentValues(SQLiteStatement statement, ContentValues value) {
+        int valuesBound = 0;
+
+        for (int i = 0; i < COLUMNS.length; i++) {
+            int index = i + 1;
+
+            if (!value.containsKey(COLUMNS[i])) {
+                statement.bindNull(index);
+                continue;
+            }
+            valuesBound++;
+
+            Object columnValue = value.get(COLUMNS[i]);
+            if (columnValue == null) {
+                statement.bindNull(index);
+            } else if (columnValue instanceof Number) {
+                if (isIntegerColumn(index)) {
+                    statement.bindLong(index, ((Number) columnValue).longValue());
+                } else {
+                    statement.bindDouble(index, ((Number) columnValue).doubleValue());
+                }
+            } else {
+                /* Leave it to SQLite to convert Strings, as it would for SQLiteDatabase#insert */
+                statement.bindString(index, columnValue.toString());
+            }
+        }
+
+        return valuesBound;
+    }
+
+    /* The date, weather ID and location are INTEGER columns. Everything else is REAL. */
+    private static boolean isIntegerColumn(int index) {
+        return index == INDEX_DATE || index == INDEX_WEATHER_ID || index == INDEX_LOCATION;
+    }
+
+    /**
+     * Runs the insert, treating a rejected row the way SQLiteDatabase#insert does: it is logged
+     * and skipped, and the rest of the rows still go in.
+     */
+    static boolean executeInsert(SQLiteStatement statement) {
+        try {
+            return statement.executeInsert() != -1;
+        } catch (SQLException e) {
+            Log.e(TAG, "Error inserting weather row", e);
+            return false;
+        }
+    }
+
+    private static String buildInsertSql() {
+        StringBuilder sql = new StringBuilder("INSERT INTO ")
+                .append(WeatherEntry.TABLE_NAME)
+                .append(" (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(COLUMNS[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        return sql.append(')').toString();
+    }
+
+    private static String buildUpdateSql() {
+        StringBuilder sql = new StringBuilder("UPDATE ")
+                .append(WeatherEntry.TABLE_NAME)
+                .append(" SET ");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(COLUMNS[i]).append(" = ?");
+        }
+        return sql.append(" WHERE ").append(WeatherEntry.COLUMN_DATE).append(" = ? AND ")
+                .append(WeatherEntry.COLUMN_LOC_KEY).append(" = ?").toString();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Collects what a write changed, so that WeatherProvider can tell only the observers of those
+ * changes, and each of them only once, when the write is done.
+ * <p>
+ * A notification on CONTENT_URI reaches every weather cursor, since observers of a URI are also
+ * told about changes to its ancestors. The detail screen of a day that didn't change would
+ * reload too. Instead, each changed date is notified on its own date URI, and every list on
+ * {@link WeatherEntry#LIST_NOTIFICATION_URI}, once.
+ * <p>
+ * Changes to anything other than weather, such as locations, are collected as URIs, and each
+ * URI is notified once however many times it was added.
+ */
+final class WeatherChangeNotifier {
+
+    /*
+     * Past this many dates, a single notification on CONTENT_URI is cheaper than one per date,
+     * and any detail screen that is open has most likely changed anyway.
+     */
+    static final int MAX_DATE_NOTIFICATIONS = 31;
+
+    private long[] mDates = new long[16];
+    private int mDateCount;
+
+    private boolean mWeatherChanged;
+    private boolean mAllWeatherChanged;
+    private final Set<Uri> mOtherUris = new LinkedHashSet<>();
+
+    /**
+     * Records that the weather of the current location changed on a date. Adding a date more
+     * than once is fine.
+     *
+     * @param date Normalized date in milliseconds
+     */
+    void addDate(long date) {
+        if (mDateCount == mDates.length) {
+            mDates = Arrays.copyOf(mDates, mDateCount * 2);
+        }
+        mDates[mDateCount++] = date;
+        mWeatherChanged = true;
+    }
+
+    /**
+     * Records that some weather changed, but not any date of the current location, such as the
+     * weather of another location. Only the lists are notified for it.
+     */
+    void addWeatherChange() {
+        mWeatherChanged = true;
+    }
+
+    /**
+     * Records a change that can't be pinned down to dates, such as the weather of a location
+     * that was deleted. Every weather observer is notified for it, through CONTENT_URI.
+     */
+    void addAllWeather() {
+        mAllWeatherChanged = true;
+    }
+
+    /**
+     * Records that something other than weather changed.
+     *
+     * @param uri The URI to notify
+     */
+    void addUri(Uri uri) {
+        mOtherUris.add(uri);
+    }
+
+    /**
+     * Notifies every URI that was added, then the date URI of every date that was added and the
+     * lists. Call this once the write has committed. Nothing is sent if nothing was added.
+     *
+     * @param resolver Used to send the notifications
+     */
+    void notifyChange(ContentResolver resolver) {
+        for (Uri uri : mOtherUris) {
+            resolver.notifyChange(uri, null);
+        }
+        mOtherUris.clear();
+
+        if (!mWeatherChanged && !mAllWeatherChanged) {
+            return;
+        }
+
+        /* Sort the dates so that duplicates end up next to each other, then drop them */
+        Arrays.sort(mDates, 0, mDateCount);
+        int uniqueCount = 0;
+        for (int i = 0; i < mDateCount; i++) {
+            if (uniqueCount == 0 || mDates[i] != mDates[uniqueCount - 1]) {
+                mDates[uniqueCount++] = mDates[i];
+            }
+        }
+        mDateCount = uniqueCount;
+
+        if (mAllWeatherChanged || mDateCount > MAX_DATE_NOTIFICATIONS) {
+            resolver.notifyChange(WeatherEntry.CONTENT_URI, null);
+        } else {
+            for (int i = 0; i < mDateCount; i++) {
+                resolver.notifyChange(WeatherEntry.buildWeatherUriWithDate(mDates[i]), null);
+            }
+            resolver.notifyChange(WeatherEntry.LIST_NOTIFICATION_URI, null);
+        }
+
+        mDateCount = 0;
+        mWeatherChanged = false;
+        mAllWeatherChanged = false;
+    }
+}
@@ -55,6 +55,60 @@ public class WeatherContract {
      * "givemeroot". At least, let's hope not. Don't be that dev, reader. Don't be that dev.
      */
     public static final String PATH_WEATHER = "weather";
+    public static final String PATH_LOCATION = "location";
+
+    /* The path segment that follows a weather URI to ask for its history instead */
+    public static final String PATH_SEGMENT_HISTORY = "history";
+
+    /* The path of the provider's own metrics, for debugging. See MetricsEntry. */
+    public static final String PATH_METRICS = "metrics";
+
+    /*
+     * Inner class that defines the table contents of the location table. Every location the user
+     * has picked gets a row here, and its weather rows point back to it, so the forecasts of
+     * cities the user has looked at before stay in the database when they switch between them.
+     */
+    public static final class LocationEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the location table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_LOCATION)
+                .build();
+
+        /* Used internally as the name of our location table. */
+        public static final String TABLE_NAME = "location";
+
+        /*
+         * The location setting, exactly as it is stored in the preferences. This is what the
+         * weather query for a location is sent with, and is unique.
+         */
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        /* The coordinates the server resolved the location setting to, once we know them */
+        public static final String COLUMN_COORD_LAT = "coord_lat";
+        public static final String COLUMN_COORD_LONG = "coord_long";
+
+        /* When the weather for this location was last synced, in milliseconds since the epoch */
+        public static final String COLUMN_LAST_SYNC = "last_sync";
+
+        /*
+         * The URL of the response that this location's weather rows came from. It tells the sync
+         * whether the validators it has cached for a URL describe the data we have.
+         */
+        public static final String COLUMN_SOURCE_URL = "source_url";
+
+        /**
+         * Builds a URI for a single location row.
+         *
+         * @param id The _ID of the location
+         * @return Uri to query a single location
+         */
+        public static Uri buildLocationUri(long id) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(Long.toString(id))
+                    .build();
+        }
+    }
 
     /* Inner class that defines the table contents of the weather table */
     public static final class WeatherEntry implements BaseColumns {
@@ -64,6 +118,101 @@ public class WeatherContract {
                 .appendPath(PATH_WEATHER)
                 .build();
 
+        /*
+         * Cursors over more than one day of weather, or over another location's weather, are
+         * told about changes through this URI rather than the one they were queried with. It
+         * can't be queried itself. Cursors over a single day of the current location are told
+         * through their own date URI instead, so a change to one day doesn't reload the detail
+         * screen of another. A change the provider can't pin down to dates is notified on
+         * CONTENT_URI, which reaches both.
+         */
+        public static final String PATH_SEGMENT_LIST = "list";
+        public static final Uri LIST_NOTIFICATION_URI = CONTENT_URI.buildUpon()
+                .appendPath(PATH_SEGMENT_LIST)
+                .build();
+
+        /*
+         * The name of the provider method, passed to ContentResolver#call, that reconciles the
+         * weather table with a new forecast. The new rows go either in a ContentValues array
+         * under EXTRA_VALUES, or in a ForecastBatch packed with ForecastBatch#toBundle under
+         * EXTRA_BATCH. The Bundle that comes back holds how many rows were inserted, updated,
+         * deleted and left as they were.
+         */
+        public static final String METHOD_RECONCILE = "reconcile";
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_BATCH = "batch";
+        public static final String EXTRA_INSERTED = "inserted";
+        public static final String EXTRA_UPDATED = "updated";
+        public static final String EXTRA_DELETED = "deleted";
+        public static final String EXTRA_UNCHANGED = "unchanged";
+
+        /*
+         * Optional extras for METHOD_RECONCILE, saved to the location's row along with the time
+         * of the sync. The location itself is passed as the "arg" of ContentResolver#call, or
+         * left null for the user's current location.
+         */
+        public static final String EXTRA_SOURCE_URL = "source_url";
+        public static final String EXTRA_COORD_LAT = "coord_lat";
+        public static final String EXTRA_COORD_LONG = "coord_long";
+
+        /*
+         * The name of the provider method that reconciles the weather of several locations at
+         * once, in a single transaction. Its extras hold a list of Bundles under EXTRA_LOCATIONS,
+         * one per location, each with the location setting under EXTRA_LOCATION_SETTING, a batch
+         * under EXTRA_BATCH and the same optional extras as METHOD_RECONCILE. The counts that
+         * come back are totals across all of the locations.
+         */
+        public static final String METHOD_RECONCILE_LOCATIONS = "reconcile_locations";
+        public static final String EXTRA_LOCATIONS = "locations";
+        public static final String EXTRA_LOCATION_SETTING = "location_setting";
+
+        /*
+         * An optional extra for both reconcile methods: the SystemClock#elapsedRealtime by which
+         * the reconcile has to commit. A reconcile that gets there too late rolls back and throws
+         * an OperationCanceledException instead, so a sync that has run out of time doesn't hold
+         * the database any longer than it was allowed to.
+         */
+        public static final String EXTRA_DEADLINE = "deadline";
+
+        /*
+         * The name of the provider method that reports how many weather queries WeatherProvider
+         * answered from the forecast it keeps in memory, under EXTRA_SNAPSHOT_HITS, and how many
+         * had to read the database, under EXTRA_SNAPSHOT_MISSES, since the process started.
+         */
+        public static final String METHOD_SNAPSHOT_STATS = "snapshot_stats";
+        public static final String EXTRA_SNAPSHOT_HITS = "snapshot_hits";
+        public static final String EXTRA_SNAPSHOT_MISSES = "snapshot_misses";
+
+        /* The path segment that precedes a location setting in a weather URI */
+        public static final String PATH_SEGMENT_LOCATION = "location";
+
+        /*
+         * Path segments that follow a weather URI, for the current location or any other, to ask
+         * for a particular part of its weather:
+         *
+         *     weather/today                         every day from today onwards
+         *     weather/range?from=...&to=...         the days from one date to another
+         *     weather/aggregate?from=...&to=...     one row summing up the days in a range
+         *
+         * The dates are normalized dates in milliseconds, and both ends of a range are included.
+         */
+        public static final String PATH_SEGMENT_TODAY = "today";
+        public static final String PATH_SEGMENT_RANGE = "range";
+        public static final String PATH_SEGMENT_AGGREGATE = "aggregate";
+        public static final String QUERY_PARAMETER_FROM = "from";
+        public static final String QUERY_PARAMETER_TO = "to";
+
+        /*
+         * The columns of the single row an aggregate URI returns: how many days the range holds
+         * weather for, the lowest low and highest high across them, and the average low and
+         * high. The aggregates are worked out by SQLite, so they are null for an empty range.
+         */
+        public static final String COLUMN_DAY_COUNT = "day_count";
+        public static final String COLUMN_LOWEST_MIN_TEMP = "lowest_min";
+        public static final String COLUMN_HIGHEST_MAX_TEMP = "highest_max";
+        public static final String COLUMN_AVERAGE_MIN_TEMP = "average_min";
+        public static final String COLUMN_AVERAGE_MAX_TEMP = "average_max";
+
         /* Used internally as the name of our weather table. */
         public static final String TABLE_NAME = "weather";
 
@@ -85,6 +234,9 @@ public class WeatherContract {
          */
         public static final String COLUMN_DATE = "date";
 
+        /* The _ID of the row in the location table that this weather is for */
+        public static final String COLUMN_LOC_KEY = "location_id";
+
         /* Weather ID as returned by API, used to identify the icon to be used */
         public static final String COLUMN_WEATHER_ID = "weather_id";
 
@@ -123,16 +275,253 @@ public class WeatherContract {
                     .build();
         }
 
+        /**
+         * Builds a URI for the weather at a particular location, which doesn't have to be the
+         * user's current location. Queries on CONTENT_URI itself return the weather at the
+         * current location.
+         *
+         * @param locationSetting The location setting, as stored in the preferences
+         * @return Uri to query the weather at that location
+         */
+        public static Uri buildWeatherUriWithLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SEGMENT_LOCATION)
+                    .appendPath(locationSetting)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the weather at a particular location on a particular date.
+         *
+         * @param locationSetting The location setting, as stored in the preferences
+         * @param date            Normalized date in milliseconds
+         * @return Uri to query details about a single weather entry at that location
+         */
+        public static Uri buildWeatherUriWithLocationAndDate(String locationSetting, long date) {
+            return buildWeatherUriWithLocation(locationSetting).buildUpon()
+                    .appendPath(Long.toString(date))
+                    .build();
+        }
+
+        /**
+         * @param uri A URI from {@link #buildWeatherUriWithLocation(String)} or
+         *            {@link #buildWeatherUriWithLocationAndDate(String, long)}, or a history
+         *            URI from {@link HistoryEntry#buildHistoryUriWithLocation}
+         * @return The location setting in the URI
+         */
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
+        /**
+         * Builds a URI for the weather at the current location from today onwards. The provider
+         * binds today's date as an argument, so the query's SQL is the same every day.
+         *
+         * @return Uri to query the forecast from today onwards
+         */
+        public static Uri buildWeatherUriTodayOnwards() {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SEGMENT_TODAY)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the weather at the current location from one date to another.
+         *
+         * @param fromDate The first normalized date to include, in milliseconds
+         * @param toDate   The last normalized date to include, in milliseconds
+         * @return Uri to query the weather of those days
+         */
+        public static Uri buildWeatherUriForRange(long fromDate, long toDate) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SEGMENT_RANGE)
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, Long.toString(fromDate))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, Long.toString(toDate))
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the aggregates of the weather at the current location from one date
+         * to another. See {@link #COLUMN_DAY_COUNT} and the columns after it.
+         *
+         * @param fromDate The first normalized date to include, in milliseconds
+         * @param toDate   The last normalized date to include, in milliseconds
+         * @return Uri to query the aggregates of those days
+         */
+        public static Uri buildAggregateUri(long fromDate, long toDate) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SEGMENT_AGGREGATE)
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, Long.toString(fromDate))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, Long.toString(toDate))
+                    .build();
+        }
+
         /**
          * Returns just the selection part of the weather query from a normalized today value.
          * This is used to get a weather forecast from today's date. To make this easy to use
          * in compound selection, we embed today's date as an argument in the query.
          *
          * @return The selection part of the weather query for today onwards
+         * @deprecated The date is part of the SQL, so every day's query has to be compiled
+         * again. Query {@link #buildWeatherUriTodayOnwards()} instead.
          */
+        @Deprecated
         public static String getSqlSelectForTodayOnwards() {
             long normalizedUtcNow = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
             return WeatherContract.WeatherEntry.COLUMN_DATE + " >= " + normalizedUtcNow;
         }
     }
-}
\ No newline at end of file
+
+    /*
+     * Inner class that defines the table contents of the weather history table. The weather
+     * table only ever holds the latest forecast for each day. Every time a sync changes a day's
+     * forecast, the new forecast for that day is also appended here, stamped with when it was
+     * fetched, so we can look back at how a forecast drifted and at the forecast each day
+     * finally had, which is the closest thing we have to its actual weather.
+     * <p>
+     * Rows are partitioned by the month of the day they forecast. Recent months keep every
+     * forecast; older months are compacted down to the final forecast for each day, and months
+     * past the retention period are dropped, so the table stays a bounded size.
+     */
+    public static final class HistoryEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the weather history of the current location */
+        public static final Uri CONTENT_URI = WeatherEntry.CONTENT_URI.buildUpon()
+                .appendPath(PATH_SEGMENT_HISTORY)
+                .build();
+
+        /*
+         * Query parameters that limit a history query to the days from QUERY_PARAMETER_FROM to
+         * QUERY_PARAMETER_TO, both inclusive and both normalized dates in milliseconds.
+         */
+        public static final String QUERY_PARAMETER_FROM = "from";
+        public static final String QUERY_PARAMETER_TO = "to";
+
+        /*
+         * The name of the provider method that compacts the history table, downsampling old
+         * months and dropping the ones past the retention period. The Bundle that comes back
+         * holds the number of rows deleted under EXTRA_DELETED.
+         */
+        public static final String METHOD_COMPACT = "compact_history";
+        public static final String EXTRA_DELETED = "deleted";
+
+        /* Used internally as the name of our weather history table. */
+        public static final String TABLE_NAME = "weather_history";
+
+        /* The _ID of the row in the location table that this weather is for */
+        public static final String COLUMN_LOC_KEY = WeatherEntry.COLUMN_LOC_KEY;
+
+        /* The normalized date the forecast is for, the same as in the weather table */
+        public static final String COLUMN_DATE = WeatherEntry.COLUMN_DATE;
+
+        /* When the sync that fetched this forecast ran, in milliseconds since the epoch */
+        public static final String COLUMN_FETCHED_AT = "fetched_at";
+
+        /*
+         * The month of COLUMN_DATE in UTC, as yyyyMM (201609 for September 2016). This is the
+         * partition the row belongs to.
+         */
+        public static final String COLUMN_MONTH = "month";
+
+        /* The forecast itself, with the same names and meanings as in the weather table */
+        public static final String COLUMN_WEATHER_ID = WeatherEntry.COLUMN_WEATHER_ID;
+        public static final String COLUMN_MIN_TEMP = WeatherEntry.COLUMN_MIN_TEMP;
+        public static final String COLUMN_MAX_TEMP = WeatherEntry.COLUMN_MAX_TEMP;
+        public static final String COLUMN_HUMIDITY = WeatherEntry.COLUMN_HUMIDITY;
+        public static final String COLUMN_PRESSURE = WeatherEntry.COLUMN_PRESSURE;
+        public static final String COLUMN_WIND_SPEED = WeatherEntry.COLUMN_WIND_SPEED;
+        public static final String COLUMN_DEGREES = WeatherEntry.COLUMN_DEGREES;
+
+        /**
+         * Builds a URI for the weather history of the current location between two dates.
+         *
+         * @param fromDate The first normalized date to include, in milliseconds
+         * @param toDate   The last normalized date to include, in milliseconds
+         * @return Uri to query the history of those days
+         */
+        public static Uri buildHistoryUri(long fromDate, long toDate) {
+            return appendRange(CONTENT_URI, fromDate, toDate);
+        }
+
+        /**
+         * Builds a URI for the weather history of a particular location between two dates.
+         *
+         * @param locationSetting The location setting, as stored in the preferences
+         * @param fromDate        The first normalized date to include, in milliseconds
+         * @param toDate          The last normalized date to include, in milliseconds
+         * @return Uri to query the history of those days at that location
+         */
+        public static Uri buildHistoryUriWithLocation(String locationSetting, long fromDate,
+                long toDate) {
+            Uri locationHistory = WeatherEntry.buildWeatherUriWithLocation(locationSetting)
+                    .buildUpon()
+                    .appendPath(PATH_SEGMENT_HISTORY)
+                    .build();
+            return appendRange(locationHistory, fromDate, toDate);
+        }
+
+        private static Uri appendRange(Uri uri, long fromDate, long toDate) {
+            return uri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, Long.toString(fromDate))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, Long.toString(toDate))
+                    .build();
+        }
+    }
+
+    /**
+     * The provider's metrics, for debugging: how many times each operation was called for each
+     * kind of URI, how many rows those calls touched, and how long they took. Querying
+     * CONTENT_URI returns one row per operation and URI code that has been called, and one row
+     * per operation that has written to the database, with how long its writes held it.
+     * <p>
+     * Latencies are in microseconds. Percentiles are the upper bound of the histogram bucket
+     * they fall in, and histogram buckets are powers of two, so a p90 of 512 means 90% of calls
+     * took at most 512 microseconds. The same table, with every histogram, is part of
+     * {@code adb shell dumpsys activity provider
+     * com.example.android.sunshine/.data.WeatherProvider}.
+     * <p>
+     * The metrics count every call since the process started. Nothing is stored.
+     */
+    public static final class MetricsEntry {
+
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_METRICS)
+                .build();
+
+        /* KIND_CALL for the calls of an operation, or KIND_WRITE for its writes */
+        public static final String COLUMN_KIND = "kind";
+        public static final String KIND_CALL = "call";
+        public static final String KIND_WRITE = "write";
+
+        /* The provider method, such as query or bulkInsert */
+        public static final String COLUMN_OPERATION = "operation";
+
+        /* The WeatherProvider CODE_ the URI matched, or -1 if the call had no URI */
+        public static final String COLUMN_URI_CODE = "uri_code";
+
+        public static final String COLUMN_COUNT = "count";
+
+        /* The rows the calls returned or changed, in all */
+        public static final String COLUMN_ROWS = "rows";
+
+        public static final String COLUMN_TOTAL_MICROS = "total_micros";
+        public static final String COLUMN_P50_MICROS = "p50_micros";
+        public static final String COLUMN_P90_MICROS = "p90_micros";
+        public static final String COLUMN_P99_MICROS = "p99_micros";
+        public static final String COLUMN_MAX_MICROS = "max_micros";
+
+        /* Every column, in the order the Cursor has them */
+        public static final String[] COLUMNS = {
+                COLUMN_KIND,
+                COLUMN_OPERATION,
+                COLUMN_URI_CODE,
+                COLUMN_COUNT,
+                COLUMN_ROWS,
+                COLUMN_TOTAL_MICROS,
+                COLUMN_P50_MICROS,
+                COLUMN_P90_MICROS,
+                COLUMN_P99_MICROS,
+                COLUMN_MAX_MICROS
+        };
+    }
+}
@@ -15,10 +15,14 @@
  */
 package com.example.android.sunshine.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
 
 /**
@@ -42,11 +46,106 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      * versions of Sunshine could cause everything to break. Although that is certainly a rare
      * use-case, we wanted to watch out for it and warn you what could happen if you mistakenly
      * version your databases.
+     *
+     * Version 4 added the location table, and scoped every weather row to a location.
+     * Version 5 added the weather history table.
+     * Version 6 added a covering index for the forecast list.
+     */
+    static final int DATABASE_VERSION = 6;
+
+    /*
+     * The oldest version that onUpgrade can migrate in place. Databases older than this are
+     * recreated from scratch.
+     */
+    static final int FIRST_MIGRATABLE_VERSION = 3;
+
+    /*
+     * How the database is stored and shared between connections.
+     *
+     * STORAGE_MODE_ROLLBACK is SQLite's default. A write locks the whole database, so while the
+     * sync reconciles a forecast, every CursorLoader and widget query waits for it to finish.
+     *
+     * STORAGE_MODE_WAL turns on write-ahead logging. Writes are appended to a log instead of
+     * changing the database in place, which lets readers keep reading the last committed data
+     * while a write is in progress. Android then also opens a small pool of connections for
+     * reading, so queries from different threads don't queue up behind each other either.
+     */
+    public static final int STORAGE_MODE_ROLLBACK = 0;
+    public static final int STORAGE_MODE_WAL = 1;
+
+    /*
+     * With write-ahead logging, NORMAL only syncs the log to disk when it is checkpointed. A
+     * power loss can roll back the last few commits, but never corrupts the database, and for a
+     * cache of online data that is the right trade for much cheaper commits.
+     *
+     * Pragmas only apply to the connection they run on, and onConfigure only runs on the
+     * connection that writes, since Android opens the connections of the read pool itself. That
+     * is fine for this one, which is only about writes. Read side settings, such as a memory map
+     * or a bigger page cache, would never reach the readers they are meant for, so we leave
+     * those at the platform defaults.
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final String PRAGMA_SYNCHRONOUS_NORMAL = "PRAGMA synchronous = NORMAL";
+
+    private final Context mContext;
+    private final int mStorageMode;
 
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, STORAGE_MODE_WAL);
+    }
+
+    /**
+     * Creates a helper for a database with any name, stored in any mode. The app itself always
+     * uses {@link #DATABASE_NAME} with write-ahead logging; tests and benchmarks use this to work
+     * on a database of their own.
+     *
+     * @param context     Used to find the database file
+     * @param name        The name of the database file
+     * @param storageMode {@link #STORAGE_MODE_ROLLBACK} or {@link #STORAGE_MODE_WAL}
+     */
+    WeatherDbHelper(Context context, String name, int storageMode) {
+        super(context, name, null, DATABASE_VERSION);
+        mContext = context;
+        mStorageMode = storageMode;
+
+        /*
+         * Write-ahead logging has to be set up before the database is opened, since it decides
+         * how many connections get opened.
+         */
+        setWriteAheadLoggingEnabled(storageMode == STORAGE_MODE_WAL);
+    }
+
+    /**
+     * Called when the connection is being configured, before onCreate or onUpgrade. This is
+     * where connection settings such as our pragmas belong.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase sqLiteDatabase) {
+        if (mStorageMode == STORAGE_MODE_WAL) {
+            runPragma(sqLiteDatabase, PRAGMA_SYNCHRONOUS_NORMAL);
+        }
+    }
+
+    /**
+     * Some pragmas answer with a row, such as journal_mode with the mode it settled on, and
+     * SQLiteDatabase#execSQL refuses to run any statement that does. Running them as queries
+     * works for all of them.
+     */
+    private static void runPragma(SQLiteDatabase sqLiteDatabase, String pragma) {
+        Cursor cursor = sqLiteDatabase.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return {@link #STORAGE_MODE_ROLLBACK} or {@link #STORAGE_MODE_WAL}
+     */
+    public int getStorageMode() {
+        return mStorageMode;
     }
 
     /**
@@ -57,6 +156,37 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        createLocationTable(sqLiteDatabase);
+        createWeatherTable(sqLiteDatabase);
+        createWeatherForecastIndex(sqLiteDatabase);
+        createHistoryTable(sqLiteDatabase);
+    }
+
+    private static void createLocationTable(SQLiteDatabase sqLiteDatabase) {
+
+        /*
+         * The location table holds one row for every location the user has picked, so that its
+         * weather can stay in the database after the user moves on to another location.
+         */
+        final String SQL_CREATE_LOCATION_TABLE =
+
+                "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+
+                LocationEntry._ID                     + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, "             +
+
+                /* We only learn the coordinates of a location once its weather has synced */
+                LocationEntry.COLUMN_COORD_LAT        + " REAL, "                             +
+                LocationEntry.COLUMN_COORD_LONG       + " REAL, "                             +
+
+                LocationEntry.COLUMN_LAST_SYNC        + " INTEGER, "                          +
+                LocationEntry.COLUMN_SOURCE_URL       + " TEXT);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
+    }
+
+    private static void createWeatherTable(SQLiteDatabase sqLiteDatabase) {
 
         /*
          * This String will contain a simple SQL statement that will create a table that will
@@ -86,13 +216,20 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
                 WeatherEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
 
+                /* Every weather entry belongs to a row of the location table */
+                WeatherEntry.COLUMN_LOC_KEY    + " INTEGER NOT NULL REFERENCES "       +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), "             +
+
                 /*
-                 * To ensure this table can only contain one weather entry per date, we declare
-                 * the date column to be unique. We also specify "ON CONFLICT REPLACE". This tells
-                 * SQLite that if we have a weather entry for a certain date and we attempt to
-                 * insert another weather entry with that date, we replace the old weather entry.
+                 * To ensure this table can only contain one weather entry per date for each
+                 * location, we declare the location and date columns to be unique together. We
+                 * also specify "ON CONFLICT REPLACE". This tells SQLite that if we have a weather
+                 * entry for a certain date at a location and we attempt to insert another weather
+                 * entry with that date and location, we replace the old weather entry. Since the
+                 * location comes first, this is also the index that per-location queries use.
                  */
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+                " UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE +
+                ") ON CONFLICT REPLACE);";
 
         /*
          * After we've spelled out our SQLite table creation statement above, we actually execute
@@ -102,12 +239,82 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * This database is only a cache for online data, so its upgrade policy is simply to discard
-     * the data and call through to onCreate to recreate the table. Note that this only fires if
-     * you change the version number for your database (in our case, DATABASE_VERSION). It does NOT
-     * depend on the version number for your application found in your app/build.gradle file. If
-     * you want to update the schema without wiping data, commenting out the current body of this
-     * method should be your top priority before modifying this method.
+     * Every query for a range of a location's weather looks rows up by location and date, which
+     * the weather table's unique constraint already indexes. This index adds the columns that
+     * the forecast list, the notification and the aggregate URIs read, so SQLite can answer them
+     * from the index alone, without looking up each row in the table.
+     */
+    private static void createWeatherForecastIndex(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE INDEX " + WeatherEntry.TABLE_NAME + "_forecast ON "
+                + WeatherEntry.TABLE_NAME + " ("
+                + WeatherEntry.COLUMN_LOC_KEY + ", "
+                + WeatherEntry.COLUMN_DATE + ", "
+                + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherEntry.COLUMN_MIN_TEMP + ", "
+                + WeatherEntry.COLUMN_MAX_TEMP + ")");
+    }
+
+    private static void createHistoryTable(SQLiteDatabase sqLiteDatabase) {
+
+        /*
+         * The history table is only ever appended to, so unlike the weather table it holds many
+         * forecasts for the same day, one for each time the forecast for that day changed.
+         */
+        final String SQL_CREATE_HISTORY_TABLE =
+
+                "CREATE TABLE " + HistoryEntry.TABLE_NAME + " (" +
+
+                HistoryEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                HistoryEntry.COLUMN_LOC_KEY    + " INTEGER NOT NULL REFERENCES "       +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), "             +
+
+                HistoryEntry.COLUMN_DATE       + " INTEGER NOT NULL, "                 +
+                HistoryEntry.COLUMN_FETCHED_AT + " INTEGER NOT NULL, "                 +
+                HistoryEntry.COLUMN_MONTH      + " INTEGER NOT NULL, "                 +
+
+                HistoryEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, "                 +
+
+                HistoryEntry.COLUMN_MIN_TEMP   + " REAL NOT NULL, "                    +
+                HistoryEntry.COLUMN_MAX_TEMP   + " REAL NOT NULL, "                    +
+
+                HistoryEntry.COLUMN_HUMIDITY   + " REAL NOT NULL, "                    +
+                HistoryEntry.COLUMN_PRESSURE   + " REAL NOT NULL, "                    +
+
+                HistoryEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
+                HistoryEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
+
+                /*
+                 * A location only has one forecast for a day from each fetch. This is also the
+                 * index that range queries and compaction look rows up by: every query is for
+                 * one location and a range of dates, in the order they were fetched.
+                 */
+                " UNIQUE (" + HistoryEntry.COLUMN_LOC_KEY + ", " + HistoryEntry.COLUMN_DATE +
+                ", " + HistoryEntry.COLUMN_FETCHED_AT + ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_HISTORY_TABLE);
+
+        /* The partition key. Compaction works a month at a time, across every location. */
+        sqLiteDatabase.execSQL("CREATE INDEX " + HistoryEntry.TABLE_NAME + "_"
+                + HistoryEntry.COLUMN_MONTH + " ON " + HistoryEntry.TABLE_NAME
+                + " (" + HistoryEntry.COLUMN_MONTH + ")");
+    }
+
+    /**
+     * Brings a database from an older version of Sunshine up to date without throwing away the
+     * weather it holds, so that the first screen after an app update shows the forecast we
+     * already had instead of waiting on a full sync. Note that this only fires if you change the
+     * version number for your database (in our case, DATABASE_VERSION). It does NOT depend on
+     * the version number for your application found in your app/build.gradle file.
+     * <p>
+     * Each migration takes the schema one version further, and they are run one after another,
+     * so a database that is several versions behind goes through every step in between. Every
+     * time you change the schema, increment DATABASE_VERSION and add a migration from the
+     * previous version to {@link #migrate(SQLiteDatabase, int)}.
+     * <p>
+     * Versions older than {@link #FIRST_MIGRATABLE_VERSION} came from a different app entirely,
+     * so their tables are dropped and created again. SQLiteOpenHelper runs this method inside a
+     * transaction: if any step fails, the database is left exactly as it was.
      *
      * @param sqLiteDatabase Database that is being upgraded
      * @param oldVersion     The old database version
@@ -115,7 +322,116 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        if (oldVersion < FIRST_MIGRATABLE_VERSION) {
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HistoryEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+
+        for (int version = oldVersion; version < newVersion; version++) {
+            migrate(sqLiteDatabase, version);
+        }
+    }
+
+    /**
+     * Migrates the schema from one version to the next.
+     *
+     * @param sqLiteDatabase Database that is being upgraded
+     * @param fromVersion    The version the database is at now
+     */
+    private void migrate(SQLiteDatabase sqLiteDatabase, int fromVersion) {
+        switch (fromVersion) {
+            case 3:
+                migrateFrom3To4(sqLiteDatabase);
+                break;
+
+            case 4:
+                migrateFrom4To5(sqLiteDatabase);
+                break;
+
+            case 5:
+                /* Version 6 only added an index */
+                createWeatherForecastIndex(sqLiteDatabase);
+                break;
+
+            default:
+                throw new IllegalStateException(
+                        "No migration from database version " + fromVersion);
+        }
+    }
+
+    /**
+     * Version 4 added the location table and scoped weather to a location. All of the weather in
+     * a version 3 database was for the location in the preferences, so it becomes that
+     * location's weather, along with the coordinates we had saved for it.
+     * <p>
+     * SQLite can't add a column to a unique constraint in place, so the weather table is
+     * renamed, created again with the new schema, and its rows are copied across.
+     */
+    private void migrateFrom3To4(SQLiteDatabase sqLiteDatabase) {
+        createLocationTable(sqLiteDatabase);
+
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING,
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+        if (SunshinePreferences.isLocationLatLonAvailable(mContext)) {
+            double[] coordinates = SunshinePreferences.getLocationCoordinates(mContext);
+            location.put(LocationEntry.COLUMN_COORD_LAT, coordinates[0]);
+            location.put(LocationEntry.COLUMN_COORD_LONG, coordinates[1]);
+        }
+        long locationId = sqLiteDatabase.insertOrThrow(LocationEntry.TABLE_NAME, null, location);
+
+        String oldTable = WeatherEntry.TABLE_NAME + "_v3";
+        sqLiteDatabase.execSQL(
+                "ALTER TABLE " + WeatherEntry.TABLE_NAME + " RENAME TO " + oldTable);
+        createWeatherTable(sqLiteDatabase);
+
+        String columns = WeatherEntry.COLUMN_DATE + ", "
+                + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherEntry.COLUMN_MIN_TEMP + ", "
+                + WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + WeatherEntry.COLUMN_HUMIDITY + ", "
+                + WeatherEntry.COLUMN_PRESSURE + ", "
+                + WeatherEntry.COLUMN_WIND_SPEED + ", "
+                + WeatherEntry.COLUMN_DEGREES;
+        sqLiteDatabase.execSQL("INSERT INTO " + WeatherEntry.TABLE_NAME
+                        + " (" + columns + ", " + WeatherEntry.COLUMN_LOC_KEY + ")"
+                        + " SELECT " + columns + ", ? FROM " + oldTable,
+                new Object[]{locationId});
+
+        sqLiteDatabase.execSQL("DROP TABLE " + oldTable);
+    }
+
+    /**
+     * Version 5 added the weather history table. The history starts out with the forecast we
+     * already have, as fetched at the last sync of its location.
+     */
+    private void migrateFrom4To5(SQLiteDatabase sqLiteDatabase) {
+        createHistoryTable(sqLiteDatabase);
+
+        String columns = WeatherEntry.COLUMN_LOC_KEY + ", "
+                + WeatherEntry.COLUMN_DATE + ", "
+                + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherEntry.COLUMN_MIN_TEMP + ", "
+                + WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + WeatherEntry.COLUMN_HUMIDITY + ", "
+                + WeatherEntry.COLUMN_PRESSURE + ", "
+                + WeatherEntry.COLUMN_WIND_SPEED + ", "
+                + WeatherEntry.COLUMN_DEGREES;
+
+        /* A location that was never synced since version 4 counts as fetched now */
+        String fetchedAt = "COALESCE((SELECT " + LocationEntry.COLUMN_LAST_SYNC
+                + " FROM " + LocationEntry.TABLE_NAME
+                + " WHERE " + LocationEntry._ID + " = " + WeatherEntry.COLUMN_LOC_KEY + "), "
+                + "CAST(strftime('%s', 'now') AS INTEGER) * 1000)";
+
+        sqLiteDatabase.execSQL("INSERT INTO " + HistoryEntry.TABLE_NAME
+                + " (" + columns + ", " + HistoryEntry.COLUMN_FETCHED_AT + ", "
+                + HistoryEntry.COLUMN_MONTH + ")"
+                + " SELECT " + columns + ", " + fetchedAt + ", "
+                + WeatherHistoryStore.monthOf(WeatherEntry.COLUMN_DATE)
+                + " FROM " + WeatherEntry.TABLE_NAME);
     }
-}
\ No newline at end of file
+}
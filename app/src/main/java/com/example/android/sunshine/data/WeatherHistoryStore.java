@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+
+/**
+ * Writes and compacts the weather history table. See {@link HistoryEntry} for what the history
+ * holds.
+ * <p>
+ * SQLite has no partitioned tables, so a partition here is every row with the same value in
+ * {@link HistoryEntry#COLUMN_MONTH}, which is indexed. Compacting a partition or dropping it is
+ * then a single indexed DELETE, and range queries never have to look at the partitions they
+ * don't cover, since they go through the (location, date) index.
+ * <p>
+ * The month of a date is always worked out by SQLite, with {@link #monthOf(String)}, so that
+ * inserts, migrations and compaction can never disagree about which partition a row is in.
+ */
+final class WeatherHistoryStore {
+
+    /*
+     * How many months before the current one keep every forecast we fetched. Forecast drift is
+     * only interesting while it is recent; after that, the forecast each day finally had is all
+     * we keep.
+     */
+    static final int RAW_HISTORY_MONTHS = 1;
+
+    /* How many months of history we keep at all. Five years of final forecasts is ~1,800 rows */
+    static final int RETAINED_HISTORY_MONTHS = 60;
+
+    /*
+     * The columns we insert. The first nine are in the same order WeatherBulkInserter binds
+     * them in, so that WeatherBulkInserter#bindRow can bind a row of history too. The month is
+     * worked out from "?1", which is the date bound to the first parameter.
+     */
+    private static final String APPEND_SQL = "INSERT INTO " + HistoryEntry.TABLE_NAME + " ("
+            + HistoryEntry.COLUMN_DATE + ", "
+            + HistoryEntry.COLUMN_WEATHER_ID + ", "
+            + HistoryEntry.COLUMN_MIN_TEMP + ", "
+            + HistoryEntry.COLUMN_MAX_TEMP + ", "
+            + HistoryEntry.COLUMN_HUMIDITY + ", "
+            + HistoryEntry.COLUMN_PRESSURE + ", "
+            + HistoryEntry.COLUMN_WIND_SPEED + ", "
+            + HistoryEntry.COLUMN_DEGREES + ", "
+            + HistoryEntry.COLUMN_LOC_KEY + ", "
+            + HistoryEntry.COLUMN_FETCHED_AT + ", "
+            + HistoryEntry.COLUMN_MONTH
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, " + monthOf("?1") + ")";
+
+    private static final int INDEX_FETCHED_AT = 10;
+
+    /*
+     * Selects the old forecasts of a day that a later fetch replaced. Only the last forecast
+     * fetched for a day survives compaction. The (location, date, fetched_at) index answers the
+     * EXISTS for each row without a scan.
+     */
+    private static final String SELECTION_SUPERSEDED = "EXISTS (SELECT 1 FROM "
+            + HistoryEntry.TABLE_NAME + " AS later WHERE later." + HistoryEntry.COLUMN_LOC_KEY
+            + " = " + HistoryEntry.TABLE_NAME + "." + HistoryEntry.COLUMN_LOC_KEY
+            + " AND later." + HistoryEntry.COLUMN_DATE
+            + " = " + HistoryEntry.TABLE_NAME + "." + HistoryEntry.COLUMN_DATE
+            + " AND later." + HistoryEntry.COLUMN_FETCHED_AT
+            + " > " + HistoryEntry.TABLE_NAME + "." + HistoryEntry.COLUMN_FETCHED_AT + ")";
+
+    private WeatherHistoryStore() {
+    }
+
+    /**
+     * Returns the SQL expression for the yyyyMM month of a date in milliseconds.
+     *
+     * @param dateSql SQL that evaluates to a date in milliseconds, such as a column name or a
+     *                bound parameter
+     */
+    static String monthOf(String dateSql) {
+        return "CAST(strftime('%Y%m', " + dateSql + " / 1000, 'unixepoch') AS INTEGER)";
+    }
+
+    /**
+     * Compiles the INSERT statement that {@link #bindAppend} binds rows to. The caller must close
+     * it when done.
+     */
+    static SQLiteStatement compileAppend(SQLiteDatabase db) {
+        return db.compileStatement(APPEND_SQL);
+    }
+
+    /**
+     * Binds a row of a forecast, as fetched at a given time, to a statement from
+     * {@link #compileAppend}.
+     */
+    static void bindAppend(SQLiteStatement statement, ForecastBatch batch, int row,
+            long locationId, long fetchedAt) {
+        WeatherBulkInserter.bindRow(statement, batch, row, locationId);
+        statement.bindLong(INDEX_FETCHED_AT, fetchedAt);
+    }
+
+    /**
+     * Compacts the history, in a single transaction. Months more than
+     * {@link #RAW_HISTORY_MONTHS} before the current one are downsampled to the last forecast
+     * fetched for each day, and months more than {@link #RETAINED_HISTORY_MONTHS} back are
+     * dropped. Running it again straight away deletes nothing.
+     *
+     * @param db  The database to compact
+     * @param now The current time, in milliseconds since the epoch
+     * @return The number of rows deleted
+     */
+    static int compact(SQLiteDatabase db, long now) {
+        String[] nowArgs = new String[]{Long.toString(now)};
+        int rowsDeleted;
+
+        db.beginTransaction();
+        try {
+            rowsDeleted = db.delete(HistoryEntry.TABLE_NAME,
+                    HistoryEntry.COLUMN_MONTH + " < " + monthsBefore(RETAINED_HISTORY_MONTHS),
+                    nowArgs);
+
+            rowsDeleted += db.delete(HistoryEntry.TABLE_NAME,
+                    HistoryEntry.COLUMN_MONTH + " < " + monthsBefore(RAW_HISTORY_MONTHS)
+                            + " AND " + SELECTION_SUPERSEDED,
+                    nowArgs);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        return rowsDeleted;
+    }
+
+    /* The yyyyMM month a number of months before the month of the bound time */
+    private static String monthsBefore(int months) {
+        return "CAST(strftime('%Y%m', ? / 1000, 'unixepoch', 'start of month', '-"
+                + months + " months') AS INTEGER)";
+    }
+}
@@ -17,24 +17,41 @@ package com.example.android.sunshine.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.OperationCanceledException;
+import android.os.Parcelable;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.text.TextUtils;
 
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
 import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SyncTracer;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This class serves as the ContentProvider for all of Sunshine's data. This class allows us to
- * bulkInsert data, query data, and delete data.
+ * bulkInsert data, query data, delete data and reconcile our data with a new forecast.
  * <p>
- * Although ContentProvider implementation requires the implementation of additional methods to
- * perform single inserts, updates, and the ability to get the type of the data from a URI.
- * However, here, they are not implemented for the sake of brevity and simplicity. If you would
- * like, you may implement them on your own. However, we are not going to be teaching how to do
- * so in this course.
+ * Single inserts and updates are implemented as well, mostly so that they can be combined in
+ * {@link #applyBatch}, which runs a whole list of operations in one transaction. Getting the
+ * type of the data from a URI is not implemented, for the sake of brevity and simplicity.
  */
 public class WeatherProvider extends ContentProvider {
 
@@ -45,6 +62,60 @@ public class WeatherProvider extends ContentProvider {
      */
     public static final int CODE_WEATHER = 100;
     public static final int CODE_WEATHER_WITH_DATE = 101;
+    public static final int CODE_WEATHER_WITH_LOCATION = 102;
+    public static final int CODE_WEATHER_WITH_LOCATION_AND_DATE = 103;
+    public static final int CODE_HISTORY = 104;
+    public static final int CODE_HISTORY_WITH_LOCATION = 105;
+    public static final int CODE_WEATHER_TODAY_ONWARDS = 106;
+    public static final int CODE_WEATHER_TODAY_ONWARDS_WITH_LOCATION = 107;
+    public static final int CODE_WEATHER_RANGE = 108;
+    public static final int CODE_WEATHER_RANGE_WITH_LOCATION = 109;
+    public static final int CODE_WEATHER_AGGREGATE = 110;
+    public static final int CODE_WEATHER_AGGREGATE_WITH_LOCATION = 111;
+    public static final int CODE_LOCATION = 200;
+    public static final int CODE_LOCATION_WITH_ID = 201;
+    public static final int CODE_METRICS = 300;
+
+    /*
+     * Selects the weather rows of the location whose setting is bound to the "?". Looking the
+     * location up in a sub-query lets us query its weather in one go, and a location we have
+     * never synced simply has no weather.
+     */
+    private static final String SELECTION_LOCATION_SETTING =
+            WeatherEntry.COLUMN_LOC_KEY + " = (SELECT " + LocationEntry._ID
+                    + " FROM " + LocationEntry.TABLE_NAME
+                    + " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ?)";
+
+    /*
+     * The selections of the today onwards and range URIs. Every value is bound as an argument
+     * rather than written into the SQL, so the SQL of a query is the same whatever location and
+     * dates it is for. SQLite has to compile a statement before it can run it, and each database
+     * connection keeps the statements it has compiled, keyed by their SQL, so a query that was
+     * run before with other arguments skips compiling altogether.
+     */
+    private static final String SELECTION_TODAY_ONWARDS = SELECTION_LOCATION_SETTING
+            + " AND " + WeatherEntry.COLUMN_DATE + " >= ?";
+
+    private static final String SELECTION_RANGE = SELECTION_LOCATION_SETTING
+            + " AND " + WeatherEntry.COLUMN_DATE + " >= ?"
+            + " AND " + WeatherEntry.COLUMN_DATE + " <= ?";
+
+    /*
+     * The aggregates are worked out by SQLite, so only one row ever comes back. Every column it
+     * reads is in the weather table's forecast index, so it never touches the table itself.
+     */
+    private static final String SQL_AGGREGATE = "SELECT "
+            + "COUNT(*) AS " + WeatherEntry.COLUMN_DAY_COUNT + ", "
+            + "MIN(" + WeatherEntry.COLUMN_MIN_TEMP + ") AS "
+            + WeatherEntry.COLUMN_LOWEST_MIN_TEMP + ", "
+            + "MAX(" + WeatherEntry.COLUMN_MAX_TEMP + ") AS "
+            + WeatherEntry.COLUMN_HIGHEST_MAX_TEMP + ", "
+            + "AVG(" + WeatherEntry.COLUMN_MIN_TEMP + ") AS "
+            + WeatherEntry.COLUMN_AVERAGE_MIN_TEMP + ", "
+            + "AVG(" + WeatherEntry.COLUMN_MAX_TEMP + ") AS "
+            + WeatherEntry.COLUMN_AVERAGE_MAX_TEMP
+            + " FROM " + WeatherEntry.TABLE_NAME
+            + " WHERE " + SELECTION_RANGE;
 
     /*
      * The URI Matcher used by this content provider. The leading "s" in this variable name
@@ -54,9 +125,91 @@ public class WeatherProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    /*
+     * The sort order that a snapshot of the forecast is already in. Queries that ask for any
+     * other order go to the database.
+     */
+    private static final String SNAPSHOT_SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    /*
+     * How many columns the weather and history tables have, as WeatherDbHelper creates them,
+     * which is what a query with a null projection returns. PagedCursor sizes its pages by them.
+     */
+    private static final int WEATHER_COLUMN_COUNT = ForecastSnapshot.ALL_COLUMNS.length;
+    private static final int HISTORY_COLUMN_COUNT = WEATHER_COLUMN_COUNT + 3;
+
+    /*
+     * The forecast of the current location, kept in memory. There is only ever one instance of
+     * a ContentProvider in a process, so every screen, the notification and the sync share it.
+     * See ForecastSnapshot for why.
+     */
+    private final ForecastSnapshotCache mSnapshotCache = new ForecastSnapshotCache();
+
+    /*
+     * A copy of each location's forecast on disk, which a snapshot is mapped from after the
+     * process starts, instead of reading it from the database. Null if R.bool.use_forecast_files
+     * turns it off. See ForecastFileStore for why.
+     */
+    private ForecastFileStore mForecastFiles;
+
+    /*
+     * While applyBatch runs, the scope its operations share, on the thread that runs them. Any
+     * other thread writing at the same time gets a scope of its own.
+     */
+    private final ThreadLocal<WeatherWriteScope> mBatchScope = new ThreadLocal<>();
+
+    /*
+     * How long each call takes and how many rows it touches, by URI code, and how long each
+     * write holds the database. Recording is cheap enough to leave on. See ProviderMetrics.
+     */
+    private final ProviderMetrics mMetrics = new ProviderMetrics(
+            CODE_WEATHER,
+            CODE_WEATHER_WITH_DATE,
+            CODE_WEATHER_WITH_LOCATION,
+            CODE_WEATHER_WITH_LOCATION_AND_DATE,
+            CODE_HISTORY,
+            CODE_HISTORY_WITH_LOCATION,
+            CODE_WEATHER_TODAY_ONWARDS,
+            CODE_WEATHER_TODAY_ONWARDS_WITH_LOCATION,
+            CODE_WEATHER_RANGE,
+            CODE_WEATHER_RANGE_WITH_LOCATION,
+            CODE_WEATHER_AGGREGATE,
+            CODE_WEATHER_AGGREGATE_WITH_LOCATION,
+            CODE_LOCATION,
+            CODE_LOCATION_WITH_ID,
+            CODE_METRICS);
+
+    /**
+     * The constructor the system uses. The database is set up in {@link #onCreate()}.
+     */
+    public WeatherProvider() {
+    }
+
     /**
-     * Creates the UriMatcher that will match each URI to the CODE_WEATHER and
-     * CODE_WEATHER_WITH_DATE constants defined above.
+     * Creates a provider on top of a database of the caller's choosing, for tests and
+     * benchmarks that compare storage modes. Call attachInfo to give it a Context before use.
+     *
+     * @param openHelper The database to serve
+     */
+    WeatherProvider(WeatherDbHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    /**
+     * Creates a provider on top of a database and forecast files of the caller's choosing, for
+     * tests and benchmarks. Call attachInfo to give it a Context before use.
+     *
+     * @param openHelper    The database to serve
+     * @param forecastFiles Where to keep the forecast files, or null to only use the database
+     */
+    WeatherProvider(WeatherDbHelper openHelper, ForecastFileStore forecastFiles) {
+        mOpenHelper = openHelper;
+        mForecastFiles = forecastFiles;
+    }
+
+    /**
+     * Creates the UriMatcher that will match each URI to the CODE_WEATHER, CODE_LOCATION and
+     * related constants defined above.
      * <p>
      * It's possible you might be thinking, "Why create a UriMatcher when you can use regular
      * expressions instead? After all, we really just need to match some patterns, and we can
@@ -68,7 +221,7 @@ public class WeatherProvider extends ContentProvider {
      * been tested and proven, you should almost always use it unless there is a compelling
      * reason not to.
      *
-     * @return A UriMatcher that correctly matches the constants for CODE_WEATHER and CODE_WEATHER_WITH_DATE
+     * @return A UriMatcher that correctly matches the constants for CODE_WEATHER, CODE_LOCATION and the rest
      */
     public static UriMatcher buildUriMatcher() {
 
@@ -96,6 +249,56 @@ public class WeatherProvider extends ContentProvider {
          */
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/#", CODE_WEATHER_WITH_DATE);
 
+        /*
+         * These URIs are for the weather at a location other than the current one, such as
+         * content://com.example.android.sunshine/weather/location/94043 and
+         * content://com.example.android.sunshine/weather/location/94043/1472214172
+         * The "*" matches any text, which is what the location setting is.
+         */
+        String weatherWithLocation = WeatherContract.PATH_WEATHER + "/"
+                + WeatherEntry.PATH_SEGMENT_LOCATION + "/*";
+        matcher.addURI(authority, weatherWithLocation, CODE_WEATHER_WITH_LOCATION);
+        matcher.addURI(authority, weatherWithLocation + "/#", CODE_WEATHER_WITH_LOCATION_AND_DATE);
+
+        /*
+         * The weather history of the current location, and of any other location, such as
+         * content://com.example.android.sunshine/weather/history?from=1472169600000&to=1474761600000
+         * Query parameters aren't part of what UriMatcher matches, so the range is read in query.
+         */
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_SEGMENT_HISTORY,
+                CODE_HISTORY);
+        matcher.addURI(authority,
+                weatherWithLocation + "/" + WeatherContract.PATH_SEGMENT_HISTORY,
+                CODE_HISTORY_WITH_LOCATION);
+
+        /*
+         * The forecast from today onwards, a range of days, and the aggregates of a range, for
+         * the current location and for any other, such as
+         * content://com.example.android.sunshine/weather/location/94043/today
+         */
+        String weather = WeatherContract.PATH_WEATHER + "/";
+        String withLocation = weatherWithLocation + "/";
+        matcher.addURI(authority, weather + WeatherEntry.PATH_SEGMENT_TODAY,
+                CODE_WEATHER_TODAY_ONWARDS);
+        matcher.addURI(authority, withLocation + WeatherEntry.PATH_SEGMENT_TODAY,
+                CODE_WEATHER_TODAY_ONWARDS_WITH_LOCATION);
+        matcher.addURI(authority, weather + WeatherEntry.PATH_SEGMENT_RANGE,
+                CODE_WEATHER_RANGE);
+        matcher.addURI(authority, withLocation + WeatherEntry.PATH_SEGMENT_RANGE,
+                CODE_WEATHER_RANGE_WITH_LOCATION);
+        matcher.addURI(authority, weather + WeatherEntry.PATH_SEGMENT_AGGREGATE,
+                CODE_WEATHER_AGGREGATE);
+        matcher.addURI(authority, withLocation + WeatherEntry.PATH_SEGMENT_AGGREGATE,
+                CODE_WEATHER_AGGREGATE_WITH_LOCATION);
+
+        /* These URIs are content://com.example.android.sunshine/location/ and location/3 */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION, CODE_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#", CODE_LOCATION_WITH_ID);
+
+        /* This URI is content://com.example.android.sunshine/metrics */
+        matcher.addURI(authority, WeatherContract.PATH_METRICS, CODE_METRICS);
+
         return matcher;
     }
 
@@ -121,16 +324,25 @@ public class WeatherProvider extends ContentProvider {
          * lengthy operations will cause lag in your app. Since WeatherDbHelper's constructor is
          * very lightweight, we are safe to perform that initialization here.
          */
-        mOpenHelper = new WeatherDbHelper(getContext());
+        if (mOpenHelper == null) {
+            mOpenHelper = new WeatherDbHelper(getContext());
+
+            /* Nothing is read or written until the first query, so this is just as cheap */
+            if (getContext().getResources().getBoolean(R.bool.use_forecast_files)) {
+                mForecastFiles = ForecastFileStore.create(getContext());
+            }
+        }
         return true;
     }
 
     /**
-     * Handles requests to insert a set of new rows. In Sunshine, we are only going to be
-     * inserting multiple rows of data at a time from a weather forecast. There is no use case
-     * for inserting a single row of data into our ContentProvider, and so we are only going to
-     * implement bulkInsert. In a normal ContentProvider's implementation, you will probably want
-     * to provide proper functionality for the insert method as well.
+     * Handles requests to insert a set of new rows. Inserting a whole forecast at once goes
+     * through here, in one transaction and through one compiled statement, rather than through
+     * {@link #insert}, which is for a single row, such as one written by
+     * {@link #applyBatch(ArrayList)}.
+     * <p>
+     * Rows that don't say which location they are for are inserted for the location in the URI,
+     * which is the user's current location for {@link WeatherEntry#CONTENT_URI}.
      *
      * @param uri    The content:// URI of the insertion request.
      * @param values An array of sets of column_name/value pairs to add to the database.
@@ -140,40 +352,733 @@ public class WeatherProvider extends ContentProvider {
      */
     @Override
     public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-
-        switch (sUriMatcher.match(uri)) {
+        long startNanos = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        switch (match) {
 
             case CODE_WEATHER:
-                db.beginTransaction();
-                int rowsInserted = 0;
+            case CODE_WEATHER_WITH_LOCATION:
+                String locationSetting = getLocationSetting(uri);
+
+                /*
+                 * WeatherBulkInserter compiles the INSERT statement once and reuses it for every
+                 * row, all in one transaction.
+                 */
+                int rowsInserted;
+                WeatherWriteScope scope = openWriteScope(ProviderMetrics.OPERATION_BULK_INSERT);
+                boolean succeeded = false;
                 try {
-                    for (ContentValues value : values) {
-                        long weatherDate =
-                                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-                        if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
-                            throw new IllegalArgumentException("Date must be normalized to insert");
+                    deleteForecastFile(scope, locationSetting);
+                    long locationId = getOrCreateLocationId(scope.db, locationSetting);
+                    rowsInserted = WeatherBulkInserter.insert(scope.db, values, locationId);
+
+                    if (rowsInserted > 0) {
+                        for (ContentValues value : values) {
+                            addWeatherChange(scope, locationSetting,
+                                    value.getAsLong(WeatherEntry.COLUMN_DATE));
                         }
+                    }
+                    succeeded = true;
+                } finally {
+                    closeWriteScope(scope, succeeded);
+                }
 
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
+                mMetrics.record(ProviderMetrics.OPERATION_BULK_INSERT, match, startNanos,
+                        rowsInserted);
+                return rowsInserted;
+
+            default:
+                return super.bulkInsert(uri, values);
+        }
+    }
+
+    /**
+     * Applies a list of inserts, updates and deletes in a single transaction. Either all of them
+     * are applied, or, if one of them fails, none of them are.
+     * <p>
+     * The operations share one {@link WeatherWriteScope}, so each statement they use is compiled
+     * once for the whole batch, and observers are told about the batch once it has committed,
+     * with each URI notified only once however many operations changed it.
+     * <p>
+     * An operation built with ContentProviderOperation.Builder#withYieldAllowed marks a point
+     * where the batch may briefly commit what it has done so far, if another thread is waiting
+     * for the database, so that a long batch doesn't hold it for its whole length. Operations
+     * before a yield point can't be rolled back by a failure after it.
+     *
+     * @param operations The operations to apply
+     * @return The result of each operation
+     * @throws OperationApplicationException If an operation fails
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long startNanos = System.nanoTime();
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        WeatherWriteScope scope = new WeatherWriteScope(db, ProviderMetrics.OPERATION_APPLY_BATCH);
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+
+        boolean succeeded = false;
+        mSnapshotCache.beginWrite();
+        mBatchScope.set(scope);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            succeeded = true;
+        } finally {
+            mBatchScope.remove();
+            scope.closeStatements();
+            try {
+                db.endTransaction();
+            } finally {
+                deleteForecastFiles(scope);
+                mSnapshotCache.endWrite(null, 0);
+                mMetrics.recordWrite(scope.operation, scope.startNanos);
+            }
+        }
+
+        if (succeeded) {
+            scope.changes.notifyChange(getContext().getContentResolver());
+        }
+        mMetrics.record(ProviderMetrics.OPERATION_APPLY_BATCH, ProviderMetrics.NO_URI_CODE,
+                startNanos, operations.size());
+        return results;
+    }
+
+    /**
+     * Returns the scope a write should run in: the batch's, if the write is an operation of
+     * {@link #applyBatch} on this thread, and otherwise a new one. Every call must be matched by
+     * a call to {@link #closeWriteScope}.
+     *
+     * @param operation The ProviderMetrics operation the write is for, which its time holding
+     *                  the database is recorded under
+     */
+    private WeatherWriteScope openWriteScope(int operation) {
+        WeatherWriteScope batchScope = mBatchScope.get();
+        if (batchScope != null) {
+            return batchScope;
+        }
+
+        /* Whatever is written, the forecast in memory can't be trusted anymore */
+        mSnapshotCache.beginWrite();
+        return new WeatherWriteScope(mOpenHelper.getWritableDatabase(), operation);
+    }
+
+    /**
+     * Closes a scope from {@link #openWriteScope}, and notifies its changes if the write
+     * succeeded. The batch's scope is left for {@link #applyBatch} to close.
+     */
+    private void closeWriteScope(WeatherWriteScope scope, boolean succeeded) {
+        if (scope == mBatchScope.get()) {
+            return;
+        }
+
+        scope.closeStatements();
+        deleteForecastFiles(scope);
+        mSnapshotCache.endWrite(null, 0);
+        mMetrics.recordWrite(scope.operation, scope.startNanos);
+        if (succeeded) {
+            scope.changes.notifyChange(getContext().getContentResolver());
+        }
+    }
+
+    /**
+     * Deletes a location's forecast file before a write that doesn't keep it up to date changes
+     * the location's weather, so that the file can't outlive the change, even if the process
+     * dies straight after it commits. The file is deleted again once the write has ended, by
+     * {@link #deleteForecastFiles(WeatherWriteScope)}.
+     */
+    private void deleteForecastFile(WeatherWriteScope scope, String locationSetting) {
+        if (mForecastFiles != null && scope.addChangedLocation(locationSetting)) {
+            mForecastFiles.delete(locationSetting, mSnapshotCache.nextSequence());
+        }
+    }
+
+    /**
+     * Deletes every forecast file, for a write that changes the weather of locations it can't
+     * name, such as deleting or renaming locations by a selection. See
+     * {@link #deleteForecastFile(WeatherWriteScope, String)}.
+     */
+    private void deleteAllForecastFiles(WeatherWriteScope scope) {
+        if (mForecastFiles != null && scope.addAllLocationsChanged()) {
+            mForecastFiles.deleteAll(mSnapshotCache.nextSequence());
+        }
+    }
+
+    /**
+     * Deletes the forecast files of the locations a write changed again, once its transaction has
+     * ended. A sync that committed before the write may only be getting to its files now, and
+     * the sequence taken here, after the write, drops them.
+     */
+    private void deleteForecastFiles(WeatherWriteScope scope) {
+        if (mForecastFiles == null) {
+            return;
+        }
+
+        long sequence = mSnapshotCache.nextSequence();
+        if (scope.allLocationsChanged()) {
+            mForecastFiles.deleteAll(sequence);
+        } else {
+            for (String locationSetting : scope.getChangedLocations()) {
+                mForecastFiles.delete(locationSetting, sequence);
+            }
+        }
+    }
+
+    /**
+     * Records a change to a location's weather on a date. Only the current location's dates
+     * have URIs of their own, so for any other location, only the lists are notified.
+     */
+    private void addWeatherChange(WeatherWriteScope scope, String locationSetting, long date) {
+        if (isCurrentLocation(locationSetting)) {
+            scope.changes.addDate(date);
+        } else {
+            scope.changes.addWeatherChange();
+        }
+    }
+
+    /**
+     * Handles the provider methods that don't fit into query, insert, update and delete. In
+     * Sunshine, that is {@link WeatherContract.WeatherEntry#METHOD_RECONCILE}, which the sync
+     * uses to bring the weather of a location in line with a new forecast, and
+     * {@link WeatherContract.WeatherEntry#METHOD_RECONCILE_LOCATIONS}, which does the same for
+     * several locations at once, {@link HistoryEntry#METHOD_COMPACT}, which the compaction job
+     * uses to keep the weather history a bounded size, and
+     * {@link WeatherContract.WeatherEntry#METHOD_SNAPSHOT_STATS}, which reports how many queries
+     * were answered from memory.
+     *
+     * @param method The name of the method to call
+     * @param arg    The location setting to reconcile the weather of, or null for the user's
+     *               current location. Not used for METHOD_RECONCILE_LOCATIONS.
+     * @param extras The arguments to the method
+     * @return The result of the method
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        long startNanos = System.nanoTime();
+        Bundle result = callMethod(method, arg, extras);
+
+        long rows = 0;
+        if (result != null) {
+            rows = result.getInt(WeatherContract.WeatherEntry.EXTRA_INSERTED)
+                    + result.getInt(WeatherContract.WeatherEntry.EXTRA_UPDATED)
+                    + result.getInt(WeatherContract.WeatherEntry.EXTRA_DELETED);
+        }
+        mMetrics.record(ProviderMetrics.OPERATION_CALL, ProviderMetrics.NO_URI_CODE, startNanos,
+                rows);
+        return result;
+    }
+
+    /**
+     * Runs the method {@link #call} was asked for.
+     */
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        switch (method) {
+
+            case WeatherContract.WeatherEntry.METHOD_RECONCILE: {
+                if (extras == null) {
+                    throw new IllegalArgumentException("No weather values to reconcile");
+                }
+
+                Bundle batchBundle = extras.getBundle(WeatherContract.WeatherEntry.EXTRA_BATCH);
+                String locationSetting = arg != null
+                        ? arg
+                        : SunshinePreferences.getPreferredWeatherLocation(getContext());
+
+                if (batchBundle != null) {
+                    return reconcile(locationSetting, ForecastBatch.fromBundle(batchBundle),
+                            extras);
+                }
+
+                Parcelable[] parcelables =
+                        extras.getParcelableArray(WeatherContract.WeatherEntry.EXTRA_VALUES);
+                if (parcelables == null) {
+                    throw new IllegalArgumentException("No weather values to reconcile");
+                }
+
+                ContentValues[] values = new ContentValues[parcelables.length];
+                for (int i = 0; i < parcelables.length; i++) {
+                    values[i] = (ContentValues) parcelables[i];
+                }
+
+                return reconcile(locationSetting, ForecastBatch.fromContentValues(values), extras);
+            }
+
+            case WeatherContract.WeatherEntry.METHOD_RECONCILE_LOCATIONS: {
+                ArrayList<Bundle> locations = extras == null
+                        ? null
+                        : extras.<Bundle>getParcelableArrayList(
+                                WeatherContract.WeatherEntry.EXTRA_LOCATIONS);
+                if (locations == null) {
+                    throw new IllegalArgumentException("No locations to reconcile");
+                }
+
+                int count = locations.size();
+                String[] locationSettings = new String[count];
+                ForecastBatch[] forecasts = new ForecastBatch[count];
+                Bundle[] locationExtras = new Bundle[count];
+
+                for (int i = 0; i < count; i++) {
+                    Bundle location = locations.get(i);
+                    locationSettings[i] = location.getString(
+                            WeatherContract.WeatherEntry.EXTRA_LOCATION_SETTING);
+                    Bundle batchBundle =
+                            location.getBundle(WeatherContract.WeatherEntry.EXTRA_BATCH);
+                    if (locationSettings[i] == null || batchBundle == null) {
+                        throw new IllegalArgumentException(
+                                "Every location needs a location setting and a batch");
+                    }
+                    forecasts[i] = ForecastBatch.fromBundle(batchBundle);
+                    locationExtras[i] = location;
+                }
+
+                return reconcile(locationSettings, forecasts, locationExtras,
+                        extras.getLong(WeatherContract.WeatherEntry.EXTRA_DEADLINE));
+            }
+
+            case WeatherContract.WeatherEntry.METHOD_SNAPSHOT_STATS: {
+                Bundle result = new Bundle();
+                result.putLong(WeatherContract.WeatherEntry.EXTRA_SNAPSHOT_HITS,
+                        mSnapshotCache.getHitCount());
+                result.putLong(WeatherContract.WeatherEntry.EXTRA_SNAPSHOT_MISSES,
+                        mSnapshotCache.getMissCount());
+                return result;
+            }
+
+            case HistoryEntry.METHOD_COMPACT: {
+                int rowsDeleted = WeatherHistoryStore.compact(
+                        mOpenHelper.getWritableDatabase(), System.currentTimeMillis());
+
+                if (rowsDeleted > 0) {
+                    getContext().getContentResolver()
+                            .notifyChange(HistoryEntry.CONTENT_URI, null);
+                }
+
+                Bundle result = new Bundle();
+                result.putInt(HistoryEntry.EXTRA_DELETED, rowsDeleted);
+                return result;
+            }
+
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Brings the weather of a location in line with a new forecast, touching as few rows as
+     * possible. Each new row is matched to the location's stored row for the same date. Rows for
+     * dates we don't have yet are inserted, rows whose values changed are updated, and rows that
+     * are exactly the same are left alone. The location's rows for dates from today on that the
+     * new forecast doesn't have are deleted, so no day is left over from an older forecast, and
+     * so are the rows for dates before today, at any location. The weather of other locations is
+     * otherwise left alone, so that switching back to one of them doesn't have to wait on the
+     * network.
+     * <p>
+     * Compared to deleting every row and inserting the forecast again, this means an unchanged
+     * forecast doesn't write anything at all. Once a change is committed, only the dates of the
+     * current location that changed are notified, along with the lists, through a
+     * {@link WeatherChangeNotifier}.
+     * <p>
+     * Every row that is inserted or updated is also appended to the weather history, stamped
+     * with the time of this sync, so the history records each change to a day's forecast
+     * without storing the forecasts that didn't change.
+     * <p>
+     * Several locations can be reconciled at once. They all share one transaction and one round
+     * of notifications, so a sync of every saved location only commits once, and the lists
+     * only reload once.
+     * <p>
+     * Before committing, the forecast of the current location is read into a new
+     * {@link ForecastSnapshot}, which replaces the one in memory as soon as the transaction
+     * commits, so the screens that reload on our notification never have to read the database.
+     * The same forecast, and that of every location that was reconciled, is written to its
+     * forecast file, for the first query after the process starts next time.
+     *
+     * @param locationSettings The locations the forecasts are for
+     * @param forecasts        The new forecasts, one per location. Every row must have a
+     *                         normalized date.
+     * @param extras           For each location, where its forecast came from and its
+     *                         coordinates, to save to the location's row
+     * @param deadlineMillis   The SystemClock#elapsedRealtime by which the transaction has to
+     *                         commit, or 0 if it may take as long as it needs
+     * @return A Bundle holding the number of rows that were inserted, updated, deleted and left
+     * unchanged
+     * @throws OperationCanceledException If the deadline passed before the transaction could
+     *                                    commit, in which case it was rolled back
+     */
+    private Bundle reconcile(String[] locationSettings, ForecastBatch[] forecasts,
+            Bundle[] extras, long deadlineMillis) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        int rowsInserted = 0;
+        int rowsUpdated = 0;
+        int rowsDeleted = 0;
+        int rowsUnchanged = 0;
+
+        long syncTime = System.currentTimeMillis();
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        String currentLocation = SunshinePreferences.getPreferredWeatherLocation(getContext());
+        WeatherChangeNotifier changes = new WeatherChangeNotifier();
+        ForecastSnapshot snapshot = null;
+        ForecastSnapshot[] fileSnapshots = null;
+        long snapshotSequence = 0;
+
+        long writeStartNanos = System.nanoTime();
+        mSnapshotCache.beginWrite();
+        db.beginTransaction();
+        SQLiteStatement insertStatement = null;
+        SQLiteStatement updateStatement = null;
+        SQLiteStatement historyStatement = null;
+        SQLiteStatement deleteStatement = null;
+        boolean successful = false;
+        try {
+            for (int location = 0; location < locationSettings.length; location++) {
+                throwIfPastDeadline(deadlineMillis);
+                ForecastBatch forecast = forecasts[location];
+                long locationId = getOrCreateLocationId(db, locationSettings[location]);
+                ForecastBatch storedRows = readWeatherSortedByDate(db, locationId);
+                boolean isCurrentLocation = locationSettings[location].equals(currentLocation);
+
+                /* The days behind us are deleted below, so they change too */
+                for (int i = 0; isCurrentLocation && i < storedRows.size; i++) {
+                    if (storedRows.dates[i] < today) changes.addDate(storedRows.dates[i]);
+                }
+
+                for (int i = 0; i < forecast.size; i++) {
+                    long weatherDate = forecast.dates[i];
+                    if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
+                        throw new IllegalArgumentException(
+                                "Date must be normalized to reconcile");
+                    }
+
+                    int storedRow = Arrays.binarySearch(storedRows.dates, 0, storedRows.size,
+                            weatherDate);
+
+                    if (storedRow >= 0 && forecast.rowEquals(i, storedRows, storedRow)) {
+                        rowsUnchanged++;
+                        continue;
+                    }
+
+                    if (storedRow < 0) {
+                        if (insertStatement == null) {
+                            insertStatement = WeatherBulkInserter.compileInsert(db);
+                        }
+                        WeatherBulkInserter.bindRow(insertStatement, forecast, i, locationId);
+                        if (WeatherBulkInserter.executeInsert(insertStatement)) {
                             rowsInserted++;
                         }
+                    } else {
+                        if (updateStatement == null) {
+                            updateStatement = WeatherBulkInserter.compileUpdate(db);
+                        }
+                        WeatherBulkInserter.bindRow(updateStatement, forecast, i, locationId);
+                        WeatherBulkInserter.bindUpdateKey(updateStatement, weatherDate,
+                                locationId);
+                        rowsUpdated += updateStatement.executeUpdateDelete();
                     }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+
+                    if (isCurrentLocation) changes.addDate(weatherDate);
+
+                    if (historyStatement == null) {
+                        historyStatement = WeatherHistoryStore.compileAppend(db);
+                    }
+                    WeatherHistoryStore.bindAppend(historyStatement, forecast, i, locationId,
+                            syncTime);
+                    WeatherBulkInserter.executeInsert(historyStatement);
                 }
 
-                if (rowsInserted > 0) {
-                    getContext().getContentResolver().notifyChange(uri, null);
-                }
+                /*
+                 * The days still to come that the new forecast doesn't have are left over from
+                 * a forecast for somewhere else, or one that reached further ahead, so they go
+                 */
+                long[] forecastDates = Arrays.copyOf(forecast.dates, forecast.size);
+                Arrays.sort(forecastDates);
+                for (int i = 0; i < storedRows.size; i++) {
+                    long storedDate = storedRows.dates[i];
+                    if (storedDate < today
+                            || Arrays.binarySearch(forecastDates, storedDate) >= 0) {
+                        continue;
+                    }
+
+                    if (deleteStatement == null) {
+                        deleteStatement = db.compileStatement("DELETE FROM "
+                                + WeatherEntry.TABLE_NAME + " WHERE "
+                                + WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                                + WeatherEntry.COLUMN_DATE + " = ?");
+                    }
+                    deleteStatement.bindLong(1, locationId);
+                    deleteStatement.bindLong(2, storedDate);
+                    rowsDeleted += deleteStatement.executeUpdateDelete();
+
+                    if (isCurrentLocation) changes.addDate(storedDate);
+                }
+
+                updateLocationAfterSync(db, locationId, syncTime, extras[location]);
+            }
+
+            /* The days that are behind us are of no use anymore, for any location */
+            int pastRowsDeleted = db.delete(
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " < ? ",
+                    new String[]{Long.toString(today)});
+            rowsDeleted += pastRowsDeleted;
+
+            snapshot = ForecastSnapshot.read(db, currentLocation);
+            snapshotSequence = mSnapshotCache.nextSequence();
+
+            if (mForecastFiles != null) {
+                fileSnapshots = readForecastFileSnapshots(db, locationSettings, snapshot,
+                        pastRowsDeleted > 0, snapshotSequence);
+            }
+
+            /* The last point at which the sync can still back out without a trace */
+            throwIfPastDeadline(deadlineMillis);
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            if (insertStatement != null) insertStatement.close();
+            if (updateStatement != null) updateStatement.close();
+            if (historyStatement != null) historyStatement.close();
+            if (deleteStatement != null) deleteStatement.close();
+
+            boolean committed = false;
+            try {
+                db.endTransaction();
+                committed = successful;
+            } finally {
+                mSnapshotCache.endWrite(committed ? snapshot : null, snapshotSequence);
+                mMetrics.recordWrite(ProviderMetrics.OPERATION_CALL, writeStartNanos);
+            }
+        }
+
+        /* Only reached once the transaction has committed, so every other writer can go on */
+        if (fileSnapshots != null) {
+            for (ForecastSnapshot fileSnapshot : fileSnapshots) {
+                mForecastFiles.write(fileSnapshot, snapshotSequence);
+            }
+        }
+
+        if (rowsInserted + rowsUpdated + rowsDeleted > 0) {
+            changes.addWeatherChange();
+        }
+        if (rowsInserted + rowsUpdated > 0) {
+            changes.addUri(HistoryEntry.CONTENT_URI);
+        }
+        changes.notifyChange(getContext().getContentResolver());
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_INSERTED, rowsInserted);
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_UPDATED, rowsUpdated);
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_DELETED, rowsDeleted);
+        result.putInt(WeatherContract.WeatherEntry.EXTRA_UNCHANGED, rowsUnchanged);
+        return result;
+    }
+
+    /**
+     * Deletes the forecast file of the current location and of every location that was
+     * reconciled, and reads the snapshots to write them again from, once the transaction has
+     * committed. This is called inside the reconcile's transaction, so if the process dies
+     * before the new files are written, the old ones are already gone.
+     *
+     * @param db               The database, inside the reconcile's transaction
+     * @param locationSettings The locations that were reconciled
+     * @param currentSnapshot  The snapshot of the current location, already read
+     * @param pastDaysDeleted  Whether days before today were deleted, which changes the weather
+     *                         of every location, so every other file has to go
+     * @param sequence         The reconcile's stamp from ForecastSnapshotCache#nextSequence
+     * @return The snapshots to write to the files
+     */
+    private ForecastSnapshot[] readForecastFileSnapshots(SQLiteDatabase db,
+            String[] locationSettings, ForecastSnapshot currentSnapshot, boolean pastDaysDeleted,
+            long sequence) {
+        if (pastDaysDeleted) {
+            mForecastFiles.deleteAll(sequence);
+        }
+
+        ArrayList<ForecastSnapshot> snapshots = new ArrayList<>(locationSettings.length + 1);
+        snapshots.add(currentSnapshot);
+        for (String locationSetting : locationSettings) {
+            if (!locationSetting.equals(currentSnapshot.getLocationSetting())) {
+                snapshots.add(ForecastSnapshot.read(db, locationSetting));
+            }
+        }
+
+        for (ForecastSnapshot snapshot : snapshots) {
+            mForecastFiles.delete(snapshot.getLocationSetting(), sequence);
+        }
+        return snapshots.toArray(new ForecastSnapshot[snapshots.size()]);
+    }
+
+    /**
+     * Reconciles the weather of a single location. See
+     * {@link #reconcile(String[], ForecastBatch[], Bundle[], long)}.
+     */
+    private Bundle reconcile(String locationSetting, ForecastBatch forecast, Bundle extras) {
+        return reconcile(new String[]{locationSetting},
+                new ForecastBatch[]{forecast},
+                new Bundle[]{extras},
+                extras.getLong(WeatherEntry.EXTRA_DEADLINE));
+    }
+
+    /**
+     * Throws if a reconcile has run past the deadline it was given, which rolls back its
+     * transaction. See {@link WeatherContract.WeatherEntry#EXTRA_DEADLINE}.
+     */
+    private static void throwIfPastDeadline(long deadlineMillis) {
+        if (deadlineMillis != 0 && SystemClock.elapsedRealtime() > deadlineMillis) {
+            throw new OperationCanceledException("Reconcile ran past its deadline");
+        }
+    }
+
+    /**
+     * Reads every weather row of a location into a ForecastBatch, sorted by date so that rows
+     * can be found with a binary search.
+     */
+    private static ForecastBatch readWeatherSortedByDate(SQLiteDatabase db, long locationId) {
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)},
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            return ForecastBatch.fromCursor(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Saves when the weather of a location was synced to its row in the location table, along
+     * with the URL the forecast came from and the coordinates of the location, if we know them.
+     */
+    private static void updateLocationAfterSync(SQLiteDatabase db, long locationId,
+            long syncTime, Bundle extras) {
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LAST_SYNC, syncTime);
+        location.put(LocationEntry.COLUMN_SOURCE_URL,
+                extras.getString(WeatherEntry.EXTRA_SOURCE_URL));
+
+        if (extras.containsKey(WeatherEntry.EXTRA_COORD_LAT)
+                && extras.containsKey(WeatherEntry.EXTRA_COORD_LONG)) {
+            location.put(LocationEntry.COLUMN_COORD_LAT,
+                    extras.getDouble(WeatherEntry.EXTRA_COORD_LAT));
+            location.put(LocationEntry.COLUMN_COORD_LONG,
+                    extras.getDouble(WeatherEntry.EXTRA_COORD_LONG));
+        }
+
+        db.update(LocationEntry.TABLE_NAME,
+                location,
+                LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locationId)});
+    }
+
+    /**
+     * Returns the location setting that a weather URI is for. URIs that don't name a location
+     * are for the user's current location.
+     */
+    private String getLocationSetting(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+
+            case CODE_WEATHER_WITH_LOCATION:
+            case CODE_WEATHER_WITH_LOCATION_AND_DATE:
+            case CODE_HISTORY_WITH_LOCATION:
+            case CODE_WEATHER_TODAY_ONWARDS_WITH_LOCATION:
+            case CODE_WEATHER_RANGE_WITH_LOCATION:
+            case CODE_WEATHER_AGGREGATE_WITH_LOCATION:
+                return WeatherEntry.getLocationSettingFromUri(uri);
+
+            default:
+                return SunshinePreferences.getPreferredWeatherLocation(getContext());
+        }
+    }
+
+    /**
+     * @return true if the location setting is the user's current location, whose dates have
+     * URIs of their own
+     */
+    private boolean isCurrentLocation(String locationSetting) {
+        return locationSetting.equals(
+                SunshinePreferences.getPreferredWeatherLocation(getContext()));
+    }
+
+    /**
+     * Returns the _ID of a location's row in the location table, or -1 if there is no row for
+     * it.
+     */
+    private static long findLocationId(SQLiteDatabase db, String locationSetting) {
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the _ID of a location's row in the location table, adding the row if there isn't
+     * one yet.
+     */
+    private static long getOrCreateLocationId(SQLiteDatabase db, String locationSetting) {
+        long locationId = findLocationId(db, locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return db.insertOrThrow(LocationEntry.TABLE_NAME, null, location);
+    }
 
-                return rowsInserted;
+    /**
+     * Returns a date from a query parameter of a range URI, as the String it is bound as.
+     *
+     * @throws IllegalArgumentException If the URI doesn't have the parameter, or it isn't a date
+     */
+    private static String getDateParameter(Uri uri, String parameter) {
+        String date = uri.getQueryParameter(parameter);
+        if (date == null) {
+            throw new IllegalArgumentException("Missing \"" + parameter + "\" date: " + uri);
+        }
+        /* Parsing it checks that it is a number, and a NumberFormatException says why not */
+        return Long.toString(Long.parseLong(date));
+    }
 
-            default:
-                return super.bulkInsert(uri, values);
+    /**
+     * Combines a caller's selection with one of our own, so that both have to hold.
+     */
+    private static String combineSelection(String selection, String ourSelection) {
+        if (TextUtils.isEmpty(selection)) {
+            return ourSelection;
+        }
+        return "(" + selection + ") AND " + ourSelection;
+    }
+
+    /**
+     * Appends the arguments of our own selection to a caller's. Since {@link #combineSelection}
+     * puts our selection last, its arguments go last too.
+     */
+    private static String[] combineSelectionArgs(String[] selectionArgs, String... ourArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return ourArgs;
         }
+        String[] combined = Arrays.copyOf(selectionArgs, selectionArgs.length + ourArgs.length);
+        System.arraycopy(ourArgs, 0, combined, selectionArgs.length, ourArgs.length);
+        return combined;
     }
 
     /**
@@ -194,14 +1099,26 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
+        long startNanos = System.nanoTime();
+        int match = sUriMatcher.match(uri);
 
-        Cursor cursor;
+        /*
+         * Queries are recorded with the number of rows they return. Counting the rows of a
+         * database Cursor fills its first window, which whoever asked for it, such as a
+         * CursorLoader, would do straight away anyway, so the recorded time includes it.
+         */
+        Cursor cursor = querySnapshot(uri, projection, selection, sortOrder);
+        if (cursor != null) {
+            cursor.setNotificationUri(getContext().getContentResolver(), getNotificationUri(uri));
+            mMetrics.record(ProviderMetrics.OPERATION_QUERY, match, startNanos, cursor.getCount());
+            return cursor;
+        }
 
         /*
          * Here's the switch statement that, given a URI, will determine what kind of request is
          * being made and query the database accordingly.
          */
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             /*
              * When sUriMatcher's match method is called with a URI that looks something like this
@@ -214,9 +1131,12 @@ public class WeatherProvider extends ContentProvider {
              * programmatically using Uri's getLastPathSegment method.
              *
              * In this case, we want to return a cursor that contains one row of weather data for
-             * a particular date.
+             * a particular date, at the user's current location. URIs that name a location, such
+             * as content://com.example.android.sunshine/weather/location/94043/1472214172, work
+             * the same way for that location.
              */
-            case CODE_WEATHER_WITH_DATE: {
+            case CODE_WEATHER_WITH_DATE:
+            case CODE_WEATHER_WITH_LOCATION_AND_DATE: {
 
                 /*
                  * In order to determine the date associated with this URI, we look at the last
@@ -227,11 +1147,11 @@ public class WeatherProvider extends ContentProvider {
 
                 /*
                  * The query method accepts a string array of arguments, as there may be more
-                 * than one "?" in the selection statement. Even though in our case, we only have
-                 * one "?", we have to create a string array that only contains one element
-                 * because this method signature accepts a string array.
+                 * than one "?" in the selection statement. Here we have two: one for the location
+                 * and one for the date.
                  */
-                String[] selectionArguments = new String[]{normalizedUtcDateString};
+                String[] selectionArguments =
+                        new String[]{getLocationSetting(uri), normalizedUtcDateString};
 
                 cursor = mOpenHelper.getReadableDatabase().query(
                         /* Table we are going to query */
@@ -252,7 +1172,8 @@ public class WeatherProvider extends ContentProvider {
                          * within the selectionArguments array will be inserted into the
                          * selection statement by SQLite under the hood.
                          */
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
+                        SELECTION_LOCATION_SETTING + " AND "
+                                + WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
                         selectionArguments,
                         null,
                         null,
@@ -267,15 +1188,124 @@ public class WeatherProvider extends ContentProvider {
              *      content://com.example.android.sunshine/weather/
              *
              * sUriMatcher's match method will return the code that indicates to us that we need
-             * to return all of the weather in our weather table.
+             * to return all of the weather at the user's current location.
              *
              * In this case, we want to return a cursor that contains every row of weather data
-             * in our weather table.
+             * for that location that matches the caller's selection. URIs that name a location
+             * return that location's weather instead.
              */
-            case CODE_WEATHER: {
-                cursor = mOpenHelper.getReadableDatabase().query(
+            case CODE_WEATHER:
+            case CODE_WEATHER_WITH_LOCATION: {
+                cursor = PagedCursor.query(mOpenHelper.getReadableDatabase(),
                         WeatherContract.WeatherEntry.TABLE_NAME,
                         projection,
+                        combineSelection(selection, SELECTION_LOCATION_SETTING),
+                        combineSelectionArgs(selectionArgs, getLocationSetting(uri)),
+                        sortOrder,
+                        WEATHER_COLUMN_COUNT);
+
+                break;
+            }
+
+            /*
+             * The weather history of a location, optionally limited to a range of dates. Rows
+             * come back by date, and by when they were fetched within a date, unless the caller
+             * asks for another order.
+             *
+             * This, like the other lists of weather below, goes through PagedCursor, which reads
+             * a range that is too long for one page of rows a page at a time, with pages sized
+             * from the projection. A short range is a plain query, as it always was.
+             */
+            case CODE_HISTORY:
+            case CODE_HISTORY_WITH_LOCATION: {
+                String historySelection = SELECTION_LOCATION_SETTING;
+                ArrayList<String> historyArgs = new ArrayList<>();
+                historyArgs.add(getLocationSetting(uri));
+
+                String fromDate = uri.getQueryParameter(HistoryEntry.QUERY_PARAMETER_FROM);
+                if (fromDate != null) {
+                    historySelection += " AND " + HistoryEntry.COLUMN_DATE + " >= ?";
+                    historyArgs.add(Long.toString(Long.parseLong(fromDate)));
+                }
+
+                String toDate = uri.getQueryParameter(HistoryEntry.QUERY_PARAMETER_TO);
+                if (toDate != null) {
+                    historySelection += " AND " + HistoryEntry.COLUMN_DATE + " <= ?";
+                    historyArgs.add(Long.toString(Long.parseLong(toDate)));
+                }
+
+                cursor = PagedCursor.query(mOpenHelper.getReadableDatabase(),
+                        HistoryEntry.TABLE_NAME,
+                        projection,
+                        combineSelection(selection, historySelection),
+                        combineSelectionArgs(selectionArgs,
+                                historyArgs.toArray(new String[historyArgs.size()])),
+                        sortOrder != null
+                                ? sortOrder
+                                : HistoryEntry.COLUMN_DATE + " ASC, "
+                                        + HistoryEntry.COLUMN_FETCHED_AT + " ASC",
+                        HISTORY_COLUMN_COUNT);
+
+                break;
+            }
+
+            /*
+             * The forecast from today onwards, which is what the forecast list shows. Today's
+             * date is bound rather than written into the selection, as
+             * WeatherEntry#getSqlSelectForTodayOnwards used to, so the query compiles once.
+             */
+            case CODE_WEATHER_TODAY_ONWARDS:
+            case CODE_WEATHER_TODAY_ONWARDS_WITH_LOCATION: {
+                String today = Long.toString(SunshineDateUtils.getNormalizedUtcDateForToday());
+
+                cursor = PagedCursor.query(mOpenHelper.getReadableDatabase(),
+                        WeatherEntry.TABLE_NAME,
+                        projection,
+                        combineSelection(selection, SELECTION_TODAY_ONWARDS),
+                        combineSelectionArgs(selectionArgs, getLocationSetting(uri), today),
+                        sortOrder != null ? sortOrder : WeatherEntry.COLUMN_DATE + " ASC",
+                        WEATHER_COLUMN_COUNT);
+
+                break;
+            }
+
+            /* The weather of the days from one date to another, both included */
+            case CODE_WEATHER_RANGE:
+            case CODE_WEATHER_RANGE_WITH_LOCATION: {
+                cursor = PagedCursor.query(mOpenHelper.getReadableDatabase(),
+                        WeatherEntry.TABLE_NAME,
+                        projection,
+                        combineSelection(selection, SELECTION_RANGE),
+                        combineSelectionArgs(selectionArgs,
+                                getLocationSetting(uri),
+                                getDateParameter(uri, WeatherEntry.QUERY_PARAMETER_FROM),
+                                getDateParameter(uri, WeatherEntry.QUERY_PARAMETER_TO)),
+                        sortOrder != null ? sortOrder : WeatherEntry.COLUMN_DATE + " ASC",
+                        WEATHER_COLUMN_COUNT);
+
+                break;
+            }
+
+            /*
+             * A single row of aggregates over a range of days. The columns are always the ones
+             * WeatherEntry documents, so the projection, selection and sort order are ignored.
+             */
+            case CODE_WEATHER_AGGREGATE:
+            case CODE_WEATHER_AGGREGATE_WITH_LOCATION: {
+                cursor = mOpenHelper.getReadableDatabase().rawQuery(SQL_AGGREGATE,
+                        new String[]{
+                                getLocationSetting(uri),
+                                getDateParameter(uri, WeatherEntry.QUERY_PARAMETER_FROM),
+                                getDateParameter(uri, WeatherEntry.QUERY_PARAMETER_TO)});
+
+                break;
+            }
+
+            /* The locations the user has picked, and what we know about each of them */
+            case CODE_LOCATION: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        LocationEntry.TABLE_NAME,
+                        projection,
                         selection,
                         selectionArgs,
                         null,
@@ -285,14 +1315,176 @@ public class WeatherProvider extends ContentProvider {
                 break;
             }
 
+            case CODE_LOCATION_WITH_ID: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        LocationEntry.TABLE_NAME,
+                        projection,
+                        LocationEntry._ID + " = ? ",
+                        new String[]{uri.getLastPathSegment()},
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * The provider's own metrics, a row per operation and URI code. See
+             * WeatherContract.MetricsEntry.
+             */
+            case CODE_METRICS: {
+                cursor = mMetrics.toCursor();
+                break;
+            }
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        cursor.setNotificationUri(getContext().getContentResolver(), getNotificationUri(uri));
+        mMetrics.record(ProviderMetrics.OPERATION_QUERY, match, startNanos, cursor.getCount());
         return cursor;
     }
 
+    /**
+     * Returns the URI a cursor should be told about changes through. A single day of the
+     * current location is told through its own date URI, and the rest of the weather through
+     * {@link WeatherEntry#LIST_NOTIFICATION_URI}, since that is how {@link WeatherChangeNotifier}
+     * notifies them. History and locations are told through the URI they were queried with.
+     *
+     * @param uri The URI that was queried
+     * @return The URI to set as the cursor's notification URI
+     */
+    private static Uri getNotificationUri(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+
+            case CODE_WEATHER:
+            case CODE_WEATHER_WITH_LOCATION:
+            case CODE_WEATHER_WITH_LOCATION_AND_DATE:
+            case CODE_WEATHER_TODAY_ONWARDS:
+            case CODE_WEATHER_TODAY_ONWARDS_WITH_LOCATION:
+            case CODE_WEATHER_RANGE:
+            case CODE_WEATHER_RANGE_WITH_LOCATION:
+            case CODE_WEATHER_AGGREGATE:
+            case CODE_WEATHER_AGGREGATE_WITH_LOCATION:
+                return WeatherEntry.LIST_NOTIFICATION_URI;
+
+            default:
+                return uri;
+        }
+    }
+
+    /**
+     * Drops the forecast kept in memory and the forecast files, so the next query reads it from
+     * the database again.
+     * This is only for tests that change the database without going through the provider.
+     */
+    void dropForecastSnapshot() {
+        mSnapshotCache.beginWrite();
+        if (mForecastFiles != null) {
+            mForecastFiles.deleteAll(mSnapshotCache.nextSequence());
+        }
+        mSnapshotCache.endWrite(null, 0);
+    }
+
+    /**
+     * Answers a query from the in-memory {@link ForecastSnapshot} of the current location, if it
+     * can. That covers the queries the app makes most: every day of the forecast, the forecast
+     * from today onwards and a single date, with no selection, in date order and with any of the
+     * weather table's columns.
+     * <p>
+     * If there is no snapshot yet, or the location has changed, a new one is read from the
+     * database and kept for next time.
+     *
+     * @return A Cursor over the snapshot, or null if the query has to go to the database
+     */
+    private Cursor querySnapshot(Uri uri, String[] projection, String selection,
+            String sortOrder) {
+        int match = sUriMatcher.match(uri);
+        if (match != CODE_WEATHER
+                && match != CODE_WEATHER_WITH_DATE
+                && match != CODE_WEATHER_TODAY_ONWARDS) {
+            return null;
+        }
+
+        /* Queries by date ignore the selection and sort order, as they do in the database */
+        if (match != CODE_WEATHER_WITH_DATE) {
+            if (!TextUtils.isEmpty(selection)) {
+                return null;
+            }
+            if (sortOrder != null && !SNAPSHOT_SORT_ORDER.equalsIgnoreCase(sortOrder.trim())
+                    && !WeatherEntry.COLUMN_DATE.equalsIgnoreCase(sortOrder.trim())) {
+                return null;
+            }
+        }
+
+        int[] columns = ForecastSnapshot.resolveColumns(projection);
+        if (columns == null) {
+            return null;
+        }
+
+        String locationSetting = getLocationSetting(uri);
+        ForecastSnapshot snapshot = mSnapshotCache.get(locationSetting);
+        if (snapshot == null) {
+            long generation = mSnapshotCache.getGeneration();
+            snapshot = readForecastFile(locationSetting, generation);
+            if (snapshot == null) {
+                snapshot = ForecastSnapshot.read(mOpenHelper.getReadableDatabase(),
+                        locationSetting);
+            }
+            mSnapshotCache.install(snapshot, generation);
+        }
+
+        int firstRow;
+        int count;
+        switch (match) {
+            case CODE_WEATHER_WITH_DATE:
+                firstRow = snapshot.rowOf(Long.parseLong(uri.getLastPathSegment()));
+                count = firstRow == -1 ? 0 : 1;
+                firstRow = Math.max(firstRow, 0);
+                break;
+
+            case CODE_WEATHER_TODAY_ONWARDS:
+                firstRow = snapshot.firstRowOnOrAfter(
+                        SunshineDateUtils.getNormalizedUtcDateForToday());
+                count = snapshot.size() - firstRow;
+                break;
+
+            default:
+                firstRow = 0;
+                count = snapshot.size();
+                break;
+        }
+
+        return new ForecastSnapshotCursor(snapshot,
+                projection != null ? projection : ForecastSnapshot.ALL_COLUMNS,
+                columns,
+                firstRow,
+                count);
+    }
+
+    /**
+     * Maps the forecast file of a location, so that the first query after the process starts
+     * doesn't have to open the database.
+     * <p>
+     * A write may be deleting the file while it is read, before its transaction commits. So a
+     * file is only used if no write began or ended from before it was read until after, the same
+     * rule a snapshot read from the database has to follow to be installed.
+     *
+     * @param locationSetting The location to read
+     * @param generation      The generation from ForecastSnapshotCache#getGeneration, read
+     *                        before this is called
+     * @return The snapshot, or null if it has to be read from the database instead
+     */
+    private ForecastSnapshot readForecastFile(String locationSetting, long generation) {
+        if (mForecastFiles == null || !mSnapshotCache.isCurrent(generation)) {
+            return null;
+        }
+
+        ForecastSnapshot snapshot = mForecastFiles.read(locationSetting);
+        return mSnapshotCache.isCurrent(generation) ? snapshot : null;
+    }
+
     /**
      * Deletes data at a given URI with optional arguments for more fine tuned deletions.
      *
@@ -303,6 +1495,7 @@ public class WeatherProvider extends ContentProvider {
      */
     @Override
     public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        long startNanos = System.nanoTime();
 
         /* Users of the delete method will expect the number of rows deleted to be returned. */
         int numRowsDeleted;
@@ -316,26 +1509,155 @@ public class WeatherProvider extends ContentProvider {
          */
         if (null == selection) selection = "1";
 
+        /*
+         * If we actually deleted any rows, the scope notifies that a change has occurred once it
+         * is closed. Deleted weather is notified by date, and locations on the URI they were
+         * deleted through.
+         */
+        WeatherWriteScope scope = openWriteScope(ProviderMetrics.OPERATION_DELETE);
+        boolean succeeded = false;
+        try {
+            numRowsDeleted = deleteRows(scope, uri, selection, selectionArgs);
+            succeeded = true;
+        } finally {
+            closeWriteScope(scope, succeeded);
+        }
+
+        mMetrics.record(ProviderMetrics.OPERATION_DELETE, sUriMatcher.match(uri), startNanos,
+                numRowsDeleted);
+        return numRowsDeleted;
+    }
+
+    /**
+     * Does the deleting for {@link #delete(Uri, String, String[])}, and records what it deleted
+     * in the scope's changes.
+     *
+     * @return The number of rows deleted
+     */
+    private int deleteRows(WeatherWriteScope scope, Uri uri, String selection,
+            String[] selectionArgs) {
+        final SQLiteDatabase db = scope.db;
+        int numRowsDeleted;
+
         switch (sUriMatcher.match(uri)) {
 
+            /*
+             * Deleting weather only deletes the weather of the location in the URI. Once some of
+             * it is gone, the location's weather no longer matches the response it came from, so
+             * the next sync mustn't trust a "not modified" answer for that response.
+             */
             case CODE_WEATHER:
-                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
-                        selection,
-                        selectionArgs);
+            case CODE_WEATHER_WITH_LOCATION: {
+                String locationSetting = getLocationSetting(uri);
+                String deleteSelection = combineSelection(selection, SELECTION_LOCATION_SETTING);
+                String[] deleteSelectionArgs = combineSelectionArgs(selectionArgs, locationSetting);
+
+                deleteForecastFile(scope, locationSetting);
+                db.beginTransaction();
+                try {
+                    /* Find out which days are about to go, so only they are notified */
+                    addChangedDates(scope, locationSetting, deleteSelection, deleteSelectionArgs);
+
+                    numRowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME,
+                            deleteSelection,
+                            deleteSelectionArgs);
+
+                    if (numRowsDeleted != 0) {
+                        ContentValues forgetSource = new ContentValues();
+                        forgetSource.putNull(LocationEntry.COLUMN_SOURCE_URL);
+                        db.update(LocationEntry.TABLE_NAME,
+                                forgetSource,
+                                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                                new String[]{locationSetting});
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                break;
+            }
 
+            case CODE_LOCATION:
+                numRowsDeleted = deleteLocations(scope, selection, selectionArgs);
+                if (numRowsDeleted != 0) scope.changes.addUri(uri);
+                break;
+
+            case CODE_LOCATION_WITH_ID:
+                numRowsDeleted = deleteLocations(scope,
+                        LocationEntry._ID + " = ?",
+                        new String[]{uri.getLastPathSegment()});
+                if (numRowsDeleted != 0) scope.changes.addUri(uri);
                 break;
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        /* If we actually deleted any rows, notify that a change has occurred to this URI */
-        if (numRowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        return numRowsDeleted;
+    }
+
+    /**
+     * Deletes locations along with all of their weather and its history, in one transaction. The
+     * deleted weather can't be pinned down to dates, so every weather observer is notified.
+     *
+     * @return The number of locations deleted
+     */
+    private int deleteLocations(WeatherWriteScope scope, String selection,
+            String[] selectionArgs) {
+        final SQLiteDatabase db = scope.db;
+        int locationsDeleted;
+        int weatherDeleted;
+        String selectionLocations = WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT "
+                + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME
+                + " WHERE " + selection + ")";
+
+        deleteAllForecastFiles(scope);
+        db.beginTransaction();
+        try {
+            weatherDeleted = db.delete(WeatherEntry.TABLE_NAME, selectionLocations,
+                    selectionArgs);
+            weatherDeleted += db.delete(HistoryEntry.TABLE_NAME, selectionLocations,
+                    selectionArgs);
+            locationsDeleted = db.delete(LocationEntry.TABLE_NAME, selection, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (weatherDeleted != 0) {
+            scope.changes.addAllWeather();
         }
 
-        return numRowsDeleted;
+        return locationsDeleted;
+    }
+
+    /**
+     * Records the dates of the current location's rows that a selection matches, before they are
+     * updated or deleted. Rows of any other location are only recorded as a change to the lists.
+     */
+    private void addChangedDates(WeatherWriteScope scope, String locationSetting,
+            String selection, String[] selectionArgs) {
+        if (!isCurrentLocation(locationSetting)) {
+            scope.changes.addWeatherChange();
+            return;
+        }
+
+        Cursor dates = scope.db.query(WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_DATE},
+                selection,
+                selectionArgs,
+                null,
+                null,
+                null);
+        try {
+            while (dates.moveToNext()) {
+                scope.changes.addDate(dates.getLong(0));
+            }
+        } finally {
+            dates.close();
+        }
     }
 
     /**
@@ -354,25 +1676,244 @@ public class WeatherProvider extends ContentProvider {
     }
 
     /**
-     * In Sunshine, we aren't going to do anything with this method. However, we are required to
-     * override it as WeatherProvider extends ContentProvider and insert is an abstract method in
-     * ContentProvider. Rather than the single insert method, we are only going to implement
-     * {@link WeatherProvider#bulkInsert}.
+     * Adds a location to the location table, or a single day of weather to the weather table.
+     * A whole forecast should still go through {@link WeatherProvider#bulkInsert} or
+     * {@link WeatherContract.WeatherEntry#METHOD_RECONCILE}.
+     * <p>
+     * Location settings are unique, so inserting a location that is already there returns the
+     * URI of the existing row. A day of weather is inserted for the location in the URI, with
+     * the same compiled statement bulkInsert uses, and the URI of its date is returned.
      *
      * @param uri    The URI of the insertion request. This must not be null.
-     * @param values A set of column_name/value pairs to add to the database.
-     *               This must not be null
-     * @return nothing in Sunshine, but normally the URI for the newly inserted item.
+     * @param values A set of column_name/value pairs to add to the database. A location must
+     *               hold a location setting, and a day of weather a normalized date.
+     * @return The URI for the newly inserted row, or null if the row was rejected
      */
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
-        throw new RuntimeException(
-                "We are not implementing insert in Sunshine. Use bulkInsert instead");
+        long startNanos = System.nanoTime();
+        int match = sUriMatcher.match(uri);
+        if (match != CODE_LOCATION && match != CODE_WEATHER
+                && match != CODE_WEATHER_WITH_LOCATION) {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+        if (values == null) {
+            throw new IllegalArgumentException("Nothing to insert");
+        }
+
+        Uri insertedUri;
+        WeatherWriteScope scope = openWriteScope(ProviderMetrics.OPERATION_INSERT);
+        boolean succeeded = false;
+        try {
+            insertedUri = match == CODE_LOCATION
+                    ? insertLocation(scope, values)
+                    : insertWeather(scope, uri, values);
+            succeeded = true;
+        } finally {
+            closeWriteScope(scope, succeeded);
+        }
+
+        mMetrics.record(ProviderMetrics.OPERATION_INSERT, match, startNanos,
+                insertedUri != null ? 1 : 0);
+        return insertedUri;
+    }
+
+    private Uri insertLocation(WeatherWriteScope scope, ContentValues values) {
+        String locationSetting = values.getAsString(LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("A location needs a location setting");
+        }
+
+        final SQLiteDatabase db = scope.db;
+        long locationId;
+
+        db.beginTransaction();
+        try {
+            locationId = getOrCreateLocationId(db, locationSetting);
+            db.update(LocationEntry.TABLE_NAME,
+                    values,
+                    LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        scope.changes.addUri(LocationEntry.CONTENT_URI);
+        return LocationEntry.buildLocationUri(locationId);
+    }
+
+    private Uri insertWeather(WeatherWriteScope scope, Uri uri, ContentValues values) {
+        String locationSetting = getLocationSetting(uri);
+        deleteForecastFile(scope, locationSetting);
+        long locationId = getOrCreateLocationId(scope.db, locationSetting);
+
+        long rowId = WeatherBulkInserter.insertRow(scope.db, scope.getInsertStatement(), values,
+                locationId);
+        if (rowId == -1) {
+            return null;
+        }
+
+        long date = values.getAsLong(WeatherEntry.COLUMN_DATE);
+        addWeatherChange(scope, locationSetting, date);
+
+        return sUriMatcher.match(uri) == CODE_WEATHER
+                ? WeatherEntry.buildWeatherUriWithDate(date)
+                : WeatherEntry.buildWeatherUriWithLocationAndDate(locationSetting, date);
+    }
+
+    /**
+     * Updates the weather of a day, the weather rows a selection matches, or locations.
+     * <p>
+     * Updating a day by its date URI ignores the selection, as querying it does. When the new
+     * values hold every column of the weather table, the day is updated with the same compiled
+     * statement {@link WeatherContract.WeatherEntry#METHOD_RECONCILE} uses, so a batch of such
+     * updates compiles it only once.
+     *
+     * @param uri           The URI of the rows to update
+     * @param values        The new values of the columns to change
+     * @param selection     An optional restriction on the rows to update
+     * @param selectionArgs Used in conjunction with the selection statement
+     * @return The number of rows updated
+     */
+    @Override
+    public int update(@NonNull Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        long startNanos = System.nanoTime();
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Nothing to update");
+        }
+
+        int rowsUpdated;
+        WeatherWriteScope scope = openWriteScope(ProviderMetrics.OPERATION_UPDATE);
+        boolean succeeded = false;
+        try {
+            rowsUpdated = updateRows(scope, uri, values, selection, selectionArgs);
+            succeeded = true;
+        } finally {
+            closeWriteScope(scope, succeeded);
+        }
+
+        mMetrics.record(ProviderMetrics.OPERATION_UPDATE, sUriMatcher.match(uri), startNanos,
+                rowsUpdated);
+        return rowsUpdated;
+    }
+
+    /**
+     * Does the updating for {@link #update(Uri, ContentValues, String, String[])}, and records
+     * what it changed in the scope's changes.
+     *
+     * @return The number of rows updated
+     */
+    private int updateRows(WeatherWriteScope scope, Uri uri, ContentValues values,
+            String selection, String[] selectionArgs) {
+        final SQLiteDatabase db = scope.db;
+        int rowsUpdated;
+
+        switch (sUriMatcher.match(uri)) {
+
+            case CODE_WEATHER_WITH_DATE:
+            case CODE_WEATHER_WITH_LOCATION_AND_DATE: {
+                String locationSetting = getLocationSetting(uri);
+                long locationId = findLocationId(db, locationSetting);
+                if (locationId == -1) {
+                    return 0;
+                }
+
+                long date = Long.parseLong(uri.getLastPathSegment());
+                deleteForecastFile(scope, locationSetting);
+                rowsUpdated = WeatherBulkInserter.updateRow(db, scope.getUpdateStatement(),
+                        values, date, locationId);
+
+                if (rowsUpdated > 0) {
+                    addWeatherChange(scope, locationSetting, date);
+
+                    /* The day can be moved to another date, which changes too */
+                    Long newDate = values.getAsLong(WeatherEntry.COLUMN_DATE);
+                    if (newDate != null && newDate != date) {
+                        addWeatherChange(scope, locationSetting, newDate);
+                    }
+                }
+                break;
+            }
+
+            case CODE_WEATHER:
+            case CODE_WEATHER_WITH_LOCATION: {
+                String locationSetting = getLocationSetting(uri);
+                String updateSelection = combineSelection(selection, SELECTION_LOCATION_SETTING);
+                String[] updateSelectionArgs = combineSelectionArgs(selectionArgs, locationSetting);
+
+                deleteForecastFile(scope, locationSetting);
+                db.beginTransaction();
+                try {
+                    addChangedDates(scope, locationSetting, updateSelection, updateSelectionArgs);
+                    rowsUpdated = db.update(WeatherEntry.TABLE_NAME, values, updateSelection,
+                            updateSelectionArgs);
+
+                    Long newDate = values.getAsLong(WeatherEntry.COLUMN_DATE);
+                    if (rowsUpdated > 0 && newDate != null) {
+                        addWeatherChange(scope, locationSetting, newDate);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                break;
+            }
+
+            case CODE_LOCATION:
+            case CODE_LOCATION_WITH_ID: {
+                /* Renaming a location changes which weather its file should hold */
+                if (values.containsKey(LocationEntry.COLUMN_LOCATION_SETTING)) {
+                    deleteAllForecastFiles(scope);
+                }
+
+                if (sUriMatcher.match(uri) == CODE_LOCATION) {
+                    rowsUpdated = db.update(LocationEntry.TABLE_NAME, values, selection,
+                            selectionArgs);
+                } else {
+                    rowsUpdated = db.update(LocationEntry.TABLE_NAME, values,
+                            combineSelection(selection, LocationEntry._ID + " = ?"),
+                            combineSelectionArgs(selectionArgs, uri.getLastPathSegment()));
+                }
+
+                if (rowsUpdated > 0) {
+                    scope.changes.addUri(uri);
+
+                    /* Renaming a location changes which weather its URIs point to */
+                    if (values.containsKey(LocationEntry.COLUMN_LOCATION_SETTING)) {
+                        scope.changes.addAllWeather();
+                    }
+                }
+                break;
+            }
+
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        return rowsUpdated;
     }
 
+    /**
+     * Writes the provider's metrics, how many queries the forecast snapshot answered, and the
+     * spans of the most recent syncs, as CSV, for dumpsys. To see them, run:
+     *
+     *      adb shell dumpsys activity provider com.example.android.sunshine/.data.WeatherProvider
+     *
+     * @param fd     The raw file descriptor the dump is being sent to
+     * @param writer Where to write the dump to
+     * @param args   Any arguments given to dumpsys, which are ignored
+     */
     @Override
-    public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        throw new RuntimeException("We are not implementing update in Sunshine");
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Forecast snapshot: " + mSnapshotCache.getHitCount() + " hits, "
+                + mSnapshotCache.getMissCount() + " misses");
+        writer.println();
+        mMetrics.dump(writer);
+        writer.println();
+        writer.println("Sync trace:");
+        SyncTracer.getInstance(getContext()).export(writer);
     }
 
     /**
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What the writes of WeatherProvider share while they run: the database, the statements they
+ * have compiled so far, and the changes to notify once they are done.
+ * <p>
+ * A single insert, update or delete gets a scope of its own. WeatherProvider#applyBatch opens
+ * one scope for all of its operations, so a batch of a hundred inserts compiles the INSERT
+ * statement once, and every observer is told about the batch once, after it has committed.
+ */
+final class WeatherWriteScope {
+
+    final SQLiteDatabase db;
+
+    /* The ProviderMetrics operation the scope was opened for, and System.nanoTime() then */
+    final int operation;
+    final long startNanos = System.nanoTime();
+
+    /* What the writes changed, notified when the scope is closed */
+    final WeatherChangeNotifier changes = new WeatherChangeNotifier();
+
+    /*
+     * The locations whose weather the writes changed, so their forecast files are deleted again
+     * once the scope is closed. If every location's weather may have changed, every file is.
+     */
+    private final Set<String> mChangedLocations = new HashSet<>();
+    private boolean mAllLocationsChanged;
+
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mUpdateStatement;
+
+    WeatherWriteScope(SQLiteDatabase db, int operation) {
+        this.db = db;
+        this.operation = operation;
+    }
+
+    /**
+     * @return The statement from {@link WeatherBulkInserter#compileInsert}, compiled the first
+     * time it is asked for
+     */
+    SQLiteStatement getInsertStatement() {
+        if (mInsertStatement == null) {
+            mInsertStatement = WeatherBulkInserter.compileInsert(db);
+        }
+        return mInsertStatement;
+    }
+
+    /**
+     * @return The statement from {@link WeatherBulkInserter#compileUpdate}, compiled the first
+     * time it is asked for
+     */
+    SQLiteStatement getUpdateStatement() {
+        if (mUpdateStatement == null) {
+            mUpdateStatement = WeatherBulkInserter.compileUpdate(db);
+        }
+        return mUpdateStatement;
+    }
+
+    /**
+     * Records that the writes are about to change a location's weather.
+     *
+     * @return true if they hadn't changed it before, so its forecast file still has to be
+     * deleted
+     */
+    boolean addChangedLocation(String locationSetting) {
+        return !mAllLocationsChanged && mChangedLocations.add(locationSetting);
+    }
+
+    /**
+     * Records that the writes are about to change the weather of locations they can't name.
+     *
+     * @return true if they hadn't done so before, so every forecast file still has to be deleted
+     */
+    boolean addAllLocationsChanged() {
+        if (mAllLocationsChanged) {
+            return false;
+        }
+        mAllLocationsChanged = true;
+        return true;
+    }
+
+    /**
+     * @return The locations whose weather the writes changed. Only meaningful if
+     * {@link #allLocationsChanged()} is false.
+     */
+    Set<String> getChangedLocations() {
+        return mChangedLocations;
+    }
+
+    boolean allLocationsChanged() {
+        return mAllLocationsChanged;
+    }
+
+    /**
+     * Closes the statements. The changes are still there to be notified afterwards.
+     */
+    void closeStatements() {
+        if (mInsertStatement != null) mInsertStatement.close();
+        if (mUpdateStatement != null) mUpdateStatement.close();
+        mInsertStatement = null;
+        mUpdateStatement = null;
+    }
+}
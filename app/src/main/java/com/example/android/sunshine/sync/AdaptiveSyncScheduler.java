@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+
+import com.example.android.sunshine.R;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the next sync should run, from how often the forecast has actually been
+ * changing.
+ * <p>
+ * A forecast is published every few hours, on a schedule of the server's own. Syncing on a
+ * fixed interval either fetches a forecast we already have, or leaves the user looking at an
+ * old one for most of an interval, depending on how the two schedules line up. The scheduler
+ * is told about every fetch, and whether it returned a forecast that changed, which it can tell
+ * from a 304 Not Modified or from the hash of the forecast. From that it learns two things:
+ * <ul>
+ *     <li>The interval between changes. A change happened somewhere between the fetch that
+ *     found it and the one before. The scheduler takes the point of that gap nearest to when
+ *     the change was due as the time of the change, and moves its interval half way toward the
+ *     time since the last one. So a change that comes early shortens the interval, and one
+ *     that comes late lengthens it.</li>
+ *     <li>When the last change happened, so the next sync can be put just after the next one
+ *     is due, rather than an interval after the last sync. A sync that is due and finds no
+ *     change tries again after a quarter of an interval.</li>
+ * </ul>
+ * A forecast that changes faster than we fetch looks just like one we fetch right on time:
+ * every fetch finds a change. So after several fetches in a row have found one, the interval is
+ * cut by a quarter. If changes really do come that often, fetches keep finding them, and if
+ * they don't, the next few come back unchanged and the interval grows back.
+ * <p>
+ * Every delay stays within the bounds in R.integer.sync_min_interval_minutes and
+ * R.integer.sync_max_interval_minutes. Until the scheduler has seen two changes, it syncs every
+ * {@link #DEFAULT_INTERVAL_MILLIS}, as Sunshine always has.
+ * <p>
+ * What the scheduler has learned is only good for one forecast URL. When the user picks another
+ * location, it starts over.
+ * <p>
+ * The scheduler doesn't read the clock itself, so that it can be replayed against a recorded
+ * timeline of changes; see TestAdaptiveSyncScheduler.
+ */
+final class AdaptiveSyncScheduler {
+
+    /* The interval Sunshine used before it learned anything, and still uses until it has */
+    static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(3);
+
+    /* How many fetches in a row have to find a change before the interval is shortened */
+    private static final int CHANGED_STREAK_TO_SHRINK = 5;
+
+    private static final String PREFS_NAME = "sync_schedule";
+    private static final String PREF_SOURCE = "source";
+    private static final String PREF_CONTENT_HASH = "content_hash";
+    private static final String PREF_HAS_CONTENT_HASH = "has_content_hash";
+    private static final String PREF_LAST_FETCH = "last_fetch";
+    private static final String PREF_CHANGED_STREAK = "changed_streak";
+    private static final String PREF_LAST_CHANGE = "last_change";
+    private static final String PREF_INTERVAL = "interval";
+
+    private final long mMinIntervalMillis;
+    private final long mMaxIntervalMillis;
+
+    /* The URL of the forecast being tracked, and the hash of the last forecast it returned */
+    private String mSource;
+    private long mContentHash;
+    private boolean mHasContentHash;
+
+    private long mLastFetchMillis;
+
+    /* How many fetches in a row have found a change */
+    private int mChangedStreak;
+
+    /* When the last change is thought to have happened, or 0 if we haven't seen one yet */
+    private long mLastChangeMillis;
+
+    /* The time between changes, or 0 if we haven't seen two of them yet */
+    private long mIntervalMillis;
+
+    /**
+     * @param minIntervalMillis The shortest delay {@link #getNextDelayMillis} may return
+     * @param maxIntervalMillis The longest delay {@link #getNextDelayMillis} may return
+     */
+    AdaptiveSyncScheduler(long minIntervalMillis, long maxIntervalMillis) {
+        if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis) {
+            throw new IllegalArgumentException("Bad sync interval bounds: "
+                    + minIntervalMillis + " to " + maxIntervalMillis);
+        }
+        mMinIntervalMillis = minIntervalMillis;
+        mMaxIntervalMillis = maxIntervalMillis;
+    }
+
+    /**
+     * Creates a scheduler with the bounds from the app's resources, and everything it had
+     * learned when it was last saved.
+     *
+     * @param context Used to read the resources and SharedPreferences
+     * @return The scheduler
+     */
+    static AdaptiveSyncScheduler load(Context context) {
+        Resources resources = context.getResources();
+        AdaptiveSyncScheduler scheduler = new AdaptiveSyncScheduler(
+                TimeUnit.MINUTES.toMillis(
+                        resources.getInteger(R.integer.sync_min_interval_minutes)),
+                TimeUnit.MINUTES.toMillis(
+                        resources.getInteger(R.integer.sync_max_interval_minutes)));
+
+        SharedPreferences sp = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        scheduler.mSource = sp.getString(PREF_SOURCE, null);
+        scheduler.mContentHash = sp.getLong(PREF_CONTENT_HASH, 0);
+        scheduler.mHasContentHash = sp.getBoolean(PREF_HAS_CONTENT_HASH, false);
+        scheduler.mLastFetchMillis = sp.getLong(PREF_LAST_FETCH, 0);
+        scheduler.mChangedStreak = sp.getInt(PREF_CHANGED_STREAK, 0);
+        scheduler.mLastChangeMillis = sp.getLong(PREF_LAST_CHANGE, 0);
+        scheduler.mIntervalMillis = sp.getLong(PREF_INTERVAL, 0);
+        return scheduler;
+    }
+
+    /**
+     * Saves everything the scheduler has learned, for {@link #load}.
+     *
+     * @param context Used to access SharedPreferences
+     */
+    void save(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit()
+                .putString(PREF_SOURCE, mSource)
+                .putLong(PREF_CONTENT_HASH, mContentHash)
+                .putBoolean(PREF_HAS_CONTENT_HASH, mHasContentHash)
+                .putLong(PREF_LAST_FETCH, mLastFetchMillis)
+                .putInt(PREF_CHANGED_STREAK, mChangedStreak)
+                .putLong(PREF_LAST_CHANGE, mLastChangeMillis)
+                .putLong(PREF_INTERVAL, mIntervalMillis)
+                .apply();
+    }
+
+    /**
+     * Records a fetch that returned a forecast. Whether the forecast changed is decided by
+     * comparing its hash with the last one's.
+     *
+     * @param source      The URL the forecast was fetched from
+     * @param nowMillis   When the fetch happened
+     * @param contentHash The hash of the forecast, from ForecastBatch#contentHash
+     */
+    void onForecastFetched(String source, long nowMillis, long contentHash) {
+        boolean sameSource = startTracking(source);
+        boolean changed = sameSource && mHasContentHash && contentHash != mContentHash;
+
+        mContentHash = contentHash;
+        mHasContentHash = true;
+        recordFetch(nowMillis, changed);
+    }
+
+    /**
+     * Records a fetch the server answered with 304 Not Modified.
+     *
+     * @param source    The URL the forecast was fetched from
+     * @param nowMillis When the fetch happened
+     */
+    void onForecastNotModified(String source, long nowMillis) {
+        startTracking(source);
+        recordFetch(nowMillis, false);
+    }
+
+    /**
+     * @param nowMillis The time now
+     * @return How long to wait from now before the next sync
+     */
+    long getNextDelayMillis(long nowMillis) {
+        if (mIntervalMillis == 0 || mLastChangeMillis == 0) {
+            return clamp(DEFAULT_INTERVAL_MILLIS);
+        }
+
+        /*
+         * Aim a little after the next change is due, since the time of the last one is only
+         * known to within the gap between two fetches.
+         */
+        long nextChangeMillis = mLastChangeMillis + mIntervalMillis + mIntervalMillis / 16;
+        long delay = nextChangeMillis - nowMillis;
+
+        /* The change is late, or we just missed it, so look again in a while */
+        if (delay < mIntervalMillis / 4) {
+            delay = mIntervalMillis / 4;
+        }
+        return clamp(delay);
+    }
+
+    /**
+     * @param delayMillis A delay from {@link #getNextDelayMillis}
+     * @return How much later than the delay the sync may run, so that the system can batch it
+     * with other work. This is kept short, since the delay is aimed just after a change.
+     */
+    static long getFlexMillis(long delayMillis) {
+        return delayMillis / 8;
+    }
+
+    /**
+     * @return The time between changes the scheduler has learned, or 0 if it hasn't yet
+     */
+    long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    /* Starts over if the source isn't the one being tracked. Returns whether it was. */
+    private boolean startTracking(String source) {
+        if (source.equals(mSource)) {
+            return true;
+        }
+
+        mSource = source;
+        mHasContentHash = false;
+        mLastFetchMillis = 0;
+        mChangedStreak = 0;
+        mLastChangeMillis = 0;
+        mIntervalMillis = 0;
+        return false;
+    }
+
+    private void recordFetch(long nowMillis, boolean changed) {
+        if (changed && mLastFetchMillis != 0) {
+            /*
+             * The change happened at some point since the last fetch. Without an interval to go
+             * on, the best guess is the middle of that gap. With one, it is the point of the gap
+             * nearest to when the change was due.
+             */
+            long changeMillis;
+            if (mIntervalMillis == 0) {
+                changeMillis = mLastFetchMillis + (nowMillis - mLastFetchMillis) / 2;
+            } else {
+                long dueMillis = mLastChangeMillis + mIntervalMillis;
+                changeMillis = Math.max(mLastFetchMillis, Math.min(nowMillis, dueMillis));
+            }
+
+            if (mLastChangeMillis != 0) {
+                long observedMillis = changeMillis - mLastChangeMillis;
+
+                if (mIntervalMillis == 0) {
+                    mIntervalMillis = observedMillis;
+                } else if (mChangedStreak >= CHANGED_STREAK_TO_SHRINK) {
+                    /*
+                     * Fetch after fetch has found a change, which is what we would see if
+                     * changes came more often than we fetch. Fetch sooner, and see if some of
+                     * the fetches come back unchanged.
+                     */
+                    mIntervalMillis = mIntervalMillis * 3 / 4;
+                    mChangedStreak = 0;
+                } else {
+                    mIntervalMillis += (observedMillis - mIntervalMillis) / 2;
+                }
+                mIntervalMillis = clamp(mIntervalMillis);
+            }
+            mLastChangeMillis = changeMillis;
+        }
+
+        mChangedStreak = changed ? mChangedStreak + 1 : 0;
+        mLastFetchMillis = nowMillis;
+    }
+
+    private long clamp(long delayMillis) {
+        return Math.max(mMinIntervalMillis, Math.min(mMaxIntervalMillis, delayMillis));
+    }
+}
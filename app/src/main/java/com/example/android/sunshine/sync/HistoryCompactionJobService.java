@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.os.AsyncTask;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.firebase.jobdispatcher.Job;
+import com.firebase.jobdispatcher.JobParameters;
+import com.firebase.jobdispatcher.JobService;
+import com.firebase.jobdispatcher.RetryStrategy;
+
+/**
+ * Compacts the weather history in the background, so that it stays a bounded size however long
+ * Sunshine is installed. See {@link SunshineSyncUtils#scheduleHistoryCompaction} for when it
+ * runs.
+ */
+public class HistoryCompactionJobService extends JobService {
+
+    private AsyncTask<Void, Void, Void> mCompactTask;
+
+    /**
+     * Called by the Job Dispatcher on the application's main thread, so the compaction itself
+     * runs on a background thread.
+     *
+     * @return whether there is more work remaining.
+     */
+    @Override
+    public boolean onStartJob(final JobParameters jobParameters) {
+
+        mCompactTask = new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... voids) {
+                getContentResolver().call(
+                        WeatherContract.HistoryEntry.CONTENT_URI,
+                        WeatherContract.HistoryEntry.METHOD_COMPACT,
+                        null,
+                        null);
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void aVoid) {
+                jobFinished(jobParameters, false);
+            }
+        };
+
+        mCompactTask.execute();
+        return true;
+    }
+
+    /**
+     * Called when the scheduling engine has decided to interrupt the job, most likely because
+     * the device was unplugged. Compaction runs in a single transaction, so it is either done or
+     * it isn't, and we simply try again next time.
+     *
+     * @return whether the job should be retried
+     * @see Job.Builder#setRetryStrategy(RetryStrategy)
+     * @see RetryStrategy
+     */
+    @Override
+    public boolean onStopJob(JobParameters jobParameters) {
+        if (mCompactTask != null) {
+            mCompactTask.cancel(true);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import com.example.android.sunshine.data.ForecastBatch;
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.ForecastResponseCache;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Syncs the weather of every location the user has saved, not only the current one, so that
+ * switching between them always shows a recent forecast.
+ * <p>
+ * {@link SunshineSyncTask} syncs one URL per call, so syncing N locations one after another would
+ * take N round trips. Here, the forecasts are downloaded and parsed on a small pool of threads at
+ * the same time, and then committed to the database together, in one transaction with one change
+ * notification. How long each stage took is logged and handed back in a {@link SyncTimings}.
+ * <p>
+ * The same response cache as {@link SunshineSyncTask} is used: a location whose cached forecast
+ * is fresh and already in the database isn't fetched at all, and the others are fetched with
+ * conditional requests.
+ */
+public class MultiLocationSyncTask {
+
+    private static final String TAG = MultiLocationSyncTask.class.getSimpleName();
+
+    /*
+     * The most forecasts we download at once. Every download holds a connection and a thread, and
+     * past a handful of them we would only be competing with ourselves for the same bandwidth.
+     */
+    static final int MAX_CONCURRENT_FETCHES = 4;
+
+    /* Threads the pool doesn't need for this long are let go, so an idle app holds none */
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    private static ExecutorService sFetchExecutor;
+
+    /** A location to sync, and the URL to fetch its forecast from. */
+    static final class LocationRequest {
+        final String locationSetting;
+        final URL url;
+
+        LocationRequest(String locationSetting, URL url) {
+            this.locationSetting = locationSetting;
+            this.url = url;
+        }
+    }
+
+    /**
+     * How a sync of several locations went, and how long each of its stages took. Fetch and
+     * parse times are added up over every location; since locations are fetched at the same
+     * time, they are usually much longer than the fetch stage itself took.
+     */
+    public static final class SyncTimings {
+        public final int locationsRequested;
+        public final int locationsUpdated;
+        public final int locationsNotModified;
+        public final int locationsFailed;
+        public final int rowsWritten;
+
+        /* Time spent waiting on the network and parsing, added up over every location */
+        public final long fetchNanos;
+        public final long parseNanos;
+
+        /* Wall clock time of each stage, and of the whole sync */
+        public final long fetchStageNanos;
+        public final long commitNanos;
+        public final long totalNanos;
+
+        SyncTimings(int locationsRequested, int locationsUpdated, int locationsNotModified,
+                    int locationsFailed, int rowsWritten, long fetchNanos, long parseNanos,
+                    long fetchStageNanos, long commitNanos, long totalNanos) {
+            this.locationsRequested = locationsRequested;
+            this.locationsUpdated = locationsUpdated;
+            this.locationsNotModified = locationsNotModified;
+            this.locationsFailed = locationsFailed;
+            this.rowsWritten = rowsWritten;
+            this.fetchNanos = fetchNanos;
+            this.parseNanos = parseNanos;
+            this.fetchStageNanos = fetchStageNanos;
+            this.commitNanos = commitNanos;
+            this.totalNanos = totalNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d locations (%d updated, %d not modified, %d failed), %d rows written; "
+                            + "fetch %.1f ms, parse %.1f ms, fetch stage %.1f ms, "
+                            + "commit %.1f ms, total %.1f ms",
+                    locationsRequested, locationsUpdated, locationsNotModified, locationsFailed,
+                    rowsWritten,
+                    fetchNanos / 1e6, parseNanos / 1e6, fetchStageNanos / 1e6,
+                    commitNanos / 1e6, totalNanos / 1e6);
+        }
+    }
+
+    /* What fetching one location produced */
+    private static final class FetchResult {
+        LocationRequest location;
+        ForecastBatch forecast;
+        double[] coordinates;
+        byte[] body;
+        String eTag;
+        String lastModified;
+        boolean notModified;
+        long wireBytes;
+        long bodyBytes;
+        long fetchNanos;
+        long parseNanos;
+    }
+
+    /**
+     * Syncs the weather of every saved location other than the user's current one, which
+     * {@link SunshineSyncTask#syncWeather(Context)} takes care of.
+     *
+     * @param context Used to access the ContentResolver and the preferences
+     * @return How the sync went
+     */
+    public static SyncTimings syncSavedLocations(Context context) {
+        return syncSavedLocations(context, null, 0);
+    }
+
+    /**
+     * Syncs the weather of every saved location, like {@link #syncSavedLocations(Context)}, in a
+     * way that can be cancelled part way through. See
+     * {@link #syncLocations(Context, List, ExecutorService, CancellationSignal, long)}.
+     *
+     * @param context            Used to access the ContentResolver and the preferences
+     * @param cancellationSignal Cancels the sync, or null if it can't be cancelled
+     * @param deadlineMillis     The SystemClock#elapsedRealtime by which the forecasts have to
+     *                           be committed, or 0 if there is no hurry
+     * @return How the sync went
+     * @throws OperationCanceledException If the sync was cancelled, interrupted or ran out of
+     *                                    time before it committed anything
+     */
+    synchronized static SyncTimings syncSavedLocations(Context context,
+            CancellationSignal cancellationSignal, long deadlineMillis) {
+        String currentLocation = SunshinePreferences.getPreferredWeatherLocation(context);
+        List<LocationRequest> locations = new ArrayList<>();
+
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LONG},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " != ?",
+                new String[]{currentLocation},
+                null);
+
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    double[] coordinates = null;
+                    if (!cursor.isNull(1) && !cursor.isNull(2)) {
+                        coordinates = new double[]{cursor.getDouble(1), cursor.getDouble(2)};
+                    }
+
+                    String locationSetting = cursor.getString(0);
+                    URL url = NetworkUtils.getUrlForLocation(locationSetting, coordinates);
+                    if (url != null) {
+                        locations.add(new LocationRequest(locationSetting, url));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        return syncLocations(context, locations, getFetchExecutor(), cancellationSignal,
+                deadlineMillis);
+    }
+
+    /**
+     * Fetches and parses the forecasts of several locations on an executor, then commits all of
+     * them to the database in a single transaction.
+     *
+     * @param context   Used to access the ContentResolver and the response cache
+     * @param locations The locations to sync
+     * @param executor  Runs the fetches. The number of its threads is how many locations are
+     *                  fetched at the same time.
+     * @return How the sync went
+     */
+    static SyncTimings syncLocations(Context context, List<LocationRequest> locations,
+                                     ExecutorService executor) {
+        return syncLocations(context, locations, executor, null, 0);
+    }
+
+    /**
+     * Syncs several locations, like {@link #syncLocations(Context, List, ExecutorService)}, in
+     * a way that can be cancelled part way through.
+     * <p>
+     * Each fetch gets a CancellationSignal of its own, since a signal only takes one listener,
+     * and cancelling the sync cancels all of them, which closes every connection that is still
+     * downloading. A sync that is cancelled by the time its fetches are done doesn't commit
+     * anything. The commit is given the deadline, and rolls back if it can't make it.
+     *
+     * @param context            Used to access the ContentResolver and the response cache
+     * @param locations          The locations to sync
+     * @param executor           Runs the fetches
+     * @param cancellationSignal Cancels the sync, or null if it can't be cancelled. This method
+     *                           takes the signal's OnCancelListener for as long as it runs.
+     * @param deadlineMillis     The SystemClock#elapsedRealtime by which the forecasts have to
+     *                           be committed, or 0 if there is no hurry
+     * @return How the sync went
+     * @throws OperationCanceledException If the sync was cancelled, interrupted or ran out of
+     *                                    time before it committed anything
+     */
+    static SyncTimings syncLocations(final Context context, List<LocationRequest> locations,
+                                     ExecutorService executor,
+                                     CancellationSignal cancellationSignal,
+                                     long deadlineMillis) {
+        try {
+            return syncLocationsUntilCancelled(context, locations, executor, cancellationSignal,
+                    deadlineMillis);
+        } finally {
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
+        }
+    }
+
+    private static SyncTimings syncLocationsUntilCancelled(final Context context,
+            List<LocationRequest> locations, ExecutorService executor,
+            CancellationSignal cancellationSignal, long deadlineMillis) {
+        long syncStart = System.nanoTime();
+
+        final ForecastResponseCache cache = ForecastResponseCache.getInstance(context);
+        Map<String, String> sourceUrls = readSourceUrls(context);
+        long now = System.currentTimeMillis();
+
+        /* Stage 1: fetch and parse every location that needs it, all at the same time */
+        long fetchStageStart = System.nanoTime();
+        List<Future<FetchResult>> futures = new ArrayList<>(locations.size());
+        final List<CancellationSignal> fetchSignals = new ArrayList<>(locations.size());
+        for (final LocationRequest location : locations) {
+            ForecastResponseCache.Entry cached = cache.get(location.url);
+            boolean databaseHoldsResponse =
+                    location.url.toString().equals(sourceUrls.get(location.locationSetting));
+
+            if (databaseHoldsResponse && cached != null && cached.isFresh(now)) {
+                continue;
+            }
+
+            /* Validators only mean something if our database holds the data they describe */
+            final String eTag = databaseHoldsResponse && cached != null ? cached.eTag : null;
+            final String lastModified =
+                    databaseHoldsResponse && cached != null ? cached.lastModified : null;
+
+            final CancellationSignal fetchSignal =
+                    cancellationSignal != null ? new CancellationSignal() : null;
+            if (fetchSignal != null) fetchSignals.add(fetchSignal);
+
+            futures.add(executor.submit(new Callable<FetchResult>() {
+                @Override
+                public FetchResult call() throws IOException {
+                    return fetch(location, eTag, lastModified, fetchSignal);
+                }
+            }));
+        }
+
+        if (cancellationSignal != null) {
+            /* Called straight away if the sync has already been cancelled */
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    for (CancellationSignal fetchSignal : fetchSignals) {
+                        fetchSignal.cancel();
+                    }
+                }
+            });
+        }
+
+        List<FetchResult> updated = new ArrayList<>(futures.size());
+        int locationsNotModified = 0;
+        int locationsFailed = 0;
+        long fetchNanos = 0;
+        long parseNanos = 0;
+        long wireBytes = 0;
+        long bodyBytes = 0;
+
+        for (Future<FetchResult> future : futures) {
+            FetchResult result;
+            try {
+                result = future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof OperationCanceledException) {
+                    Log.d(TAG, "Fetch cancelled");
+                } else {
+                    Log.e(TAG, "Failed to fetch a forecast", e.getCause());
+                }
+                locationsFailed++;
+                continue;
+            } catch (InterruptedException e) {
+                /* Whoever interrupted us doesn't want the sync anymore, so don't commit it */
+                Thread.currentThread().interrupt();
+                for (CancellationSignal fetchSignal : fetchSignals) {
+                    fetchSignal.cancel();
+                }
+                throw new OperationCanceledException("Interrupted waiting for the fetches");
+            }
+
+            fetchNanos += result.fetchNanos;
+            parseNanos += result.parseNanos;
+            wireBytes += result.wireBytes;
+            bodyBytes += result.bodyBytes;
+
+            if (result.notModified) {
+                cache.markRevalidated(result.location.url);
+                locationsNotModified++;
+            } else if (result.forecast != null && result.forecast.size() != 0) {
+                updated.add(result);
+            } else {
+                locationsFailed++;
+            }
+        }
+        long fetchStageNanos = System.nanoTime() - fetchStageStart;
+
+        if (wireBytes > 0) {
+            SunshinePreferences.recordSyncTransferSizes(context, wireBytes, bodyBytes);
+        }
+
+        /* Whatever was fetched before the sync was cancelled goes unused */
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+
+        /* Stage 2: commit every forecast at once */
+        long commitStart = System.nanoTime();
+        int rowsWritten = 0;
+        if (!updated.isEmpty()) {
+            rowsWritten = reconcileLocations(context, updated, deadlineMillis);
+
+            /* Now that the database holds these responses, they are worth caching */
+            for (FetchResult result : updated) {
+                cache.put(result.location.url, result.body, result.eTag, result.lastModified);
+            }
+        }
+        long commitNanos = System.nanoTime() - commitStart;
+
+        SyncTimings timings = new SyncTimings(locations.size(),
+                updated.size(),
+                locationsNotModified,
+                locationsFailed,
+                rowsWritten,
+                fetchNanos,
+                parseNanos,
+                fetchStageNanos,
+                commitNanos,
+                System.nanoTime() - syncStart);
+        Log.d(TAG, "Synced " + timings);
+        return timings;
+    }
+
+    /**
+     * Downloads the forecast of one location and parses it. The download is read into memory
+     * before it is parsed, so that the time spent on each can be told apart and the response can
+     * be cached once it has been committed.
+     */
+    private static FetchResult fetch(LocationRequest location, String eTag, String lastModified,
+            CancellationSignal cancellationSignal) throws IOException {
+        FetchResult result = new FetchResult();
+        result.location = location;
+
+        long fetchStart = System.nanoTime();
+        NetworkUtils.Response<byte[]> response = NetworkUtils.getConditionalResponseFromHttpUrl(
+                location.url,
+                eTag,
+                lastModified,
+                new NetworkUtils.ResponseStreamConsumer<byte[]>() {
+                    @Override
+                    public byte[] consume(InputStream in) throws IOException {
+                        ByteArrayOutputStream body = new ByteArrayOutputStream();
+                        byte[] buffer = new byte[8 * 1024];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            body.write(buffer, 0, read);
+                        }
+                        return body.toByteArray();
+                    }
+                },
+                cancellationSignal,
+                SunshineSyncTask.NETWORK_TIMEOUT_MILLIS);
+        result.fetchNanos = System.nanoTime() - fetchStart;
+        result.wireBytes = response.wireBytes;
+        result.bodyBytes = response.bodyBytes;
+
+        if (response.isNotModified()) {
+            result.notModified = true;
+            return result;
+        }
+
+        result.body = response.body;
+        result.eTag = response.eTag;
+        result.lastModified = response.lastModified;
+
+        /* Each location gets its own batch, since they are parsed at the same time */
+        long parseStart = System.nanoTime();
+        result.coordinates = new double[2];
+        result.forecast = OpenWeatherJsonUtils.getForecastBatchFromStream(
+                new ByteArrayInputStream(response.body), null, result.coordinates);
+        result.parseNanos = System.nanoTime() - parseStart;
+
+        return result;
+    }
+
+    /**
+     * Reconciles the weather of every updated location with one provider call, which commits
+     * them all in one transaction and notifies observers once.
+     *
+     * @param deadlineMillis The SystemClock#elapsedRealtime by which the transaction has to
+     *                       commit, or 0 if there is no hurry
+     * @return The number of rows inserted, updated or deleted
+     */
+    private static int reconcileLocations(Context context, List<FetchResult> results,
+            long deadlineMillis) {
+        ArrayList<Bundle> locations = new ArrayList<>(results.size());
+        for (FetchResult result : results) {
+            Bundle location = new Bundle();
+            location.putString(WeatherContract.WeatherEntry.EXTRA_LOCATION_SETTING,
+                    result.location.locationSetting);
+            location.putBundle(WeatherContract.WeatherEntry.EXTRA_BATCH,
+                    result.forecast.toBundle());
+            location.putString(WeatherContract.WeatherEntry.EXTRA_SOURCE_URL,
+                    result.location.url.toString());
+            location.putDouble(WeatherContract.WeatherEntry.EXTRA_COORD_LAT,
+                    result.coordinates[0]);
+            location.putDouble(WeatherContract.WeatherEntry.EXTRA_COORD_LONG,
+                    result.coordinates[1]);
+            locations.add(location);
+        }
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(WeatherContract.WeatherEntry.EXTRA_LOCATIONS, locations);
+        if (deadlineMillis != 0) {
+            extras.putLong(WeatherContract.WeatherEntry.EXTRA_DEADLINE, deadlineMillis);
+        }
+
+        Bundle result = context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_RECONCILE_LOCATIONS,
+                null,
+                extras);
+
+        return result.getInt(WeatherContract.WeatherEntry.EXTRA_INSERTED)
+                + result.getInt(WeatherContract.WeatherEntry.EXTRA_UPDATED)
+                + result.getInt(WeatherContract.WeatherEntry.EXTRA_DELETED);
+    }
+
+    /* The URL each location's stored weather came from, keyed by location setting */
+    private static Map<String, String> readSourceUrls(Context context) {
+        Map<String, String> sourceUrls = new HashMap<>();
+
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                        WeatherContract.LocationEntry.COLUMN_SOURCE_URL},
+                null,
+                null,
+                null);
+        if (cursor == null) return sourceUrls;
+
+        try {
+            while (cursor.moveToNext()) {
+                sourceUrls.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return sourceUrls;
+    }
+
+    /**
+     * The pool that fetches run on. It never has more than {@link #MAX_CONCURRENT_FETCHES}
+     * threads; any more locations than that wait in its queue for a thread to free up.
+     */
+    private static synchronized ExecutorService getFetchExecutor() {
+        if (sFetchExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    MAX_CONCURRENT_FETCHES,
+                    MAX_CONCURRENT_FETCHES,
+                    IDLE_THREAD_TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            return new Thread(runnable,
+                                    "SunshineFetch-" + mCount.incrementAndGet());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sFetchExecutor = executor;
+        }
+        return sFetchExecutor;
+    }
+}
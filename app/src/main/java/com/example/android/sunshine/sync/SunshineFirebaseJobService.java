@@ -16,7 +16,7 @@
 package com.example.android.sunshine.sync;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.util.Log;
 
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.JobParameters;
@@ -26,7 +26,9 @@ import com.firebase.jobdispatcher.RetryStrategy;
 
 public class SunshineFirebaseJobService extends JobService {
 
-    private AsyncTask<Void, Void, Void> mFetchWeatherTask;
+    private static final String TAG = SunshineFirebaseJobService.class.getSimpleName();
+
+    private SyncJobExecutor mSyncJob;
 
     /**
      * The entry point to your Job. Implementations should offload work to another thread of
@@ -36,27 +38,34 @@ public class SunshineFirebaseJobService extends JobService {
      * method is run on the application's main thread, so we need to offload work to a background
      * thread.
      *
+     * The work runs on a {@link SyncJobExecutor}, which reports back exactly once. If the job
+     * is stopped, {@link #onStopJob} has already told the dispatcher what to do, so there is
+     * nothing left to report. Otherwise the job is finished here, and tried again if a stage of
+     * it ran out of time.
+     *
      * @return whether there is more work remaining.
      */
     @Override
     public boolean onStartJob(final JobParameters jobParameters) {
+        final Context context = getApplicationContext();
 
-        mFetchWeatherTask = new AsyncTask<Void, Void, Void>(){
+        mSyncJob = SyncJobExecutor.forSyncJob(context);
+        mSyncJob.start(new SyncJobExecutor.Callback() {
             @Override
-            protected Void doInBackground(Void... voids) {
-                Context context = getApplicationContext();
-                SunshineSyncTask.syncWeather(context);
-                jobFinished(jobParameters, false);
-                return null;
-            }
+            public void onFinished(SyncJobExecutor.Result result) {
+                if (result.stopped) {
+                    return;
+                }
 
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                jobFinished(jobParameters, false);
+                if (result.needsReschedule()) {
+                    Log.w(TAG, "Sync job didn't finish, retrying: " + result);
+                } else {
+                    /* Move the next sync to just after the forecast is next due to change */
+                    SunshineSyncUtils.scheduleFirebaseJobDispatcherSync(context);
+                }
+                jobFinished(jobParameters, result.needsReschedule());
             }
-        };
-
-        mFetchWeatherTask.execute();
+        });
         return true;
     }
 
@@ -64,15 +73,15 @@ public class SunshineFirebaseJobService extends JobService {
      * Called when the scheduling engine has decided to interrupt the execution of a running job,
      * most likely because the runtime constraints associated with the job are no longer satisfied.
      *
+     * The sync is cancelled where it stands: a download in progress has its connection closed,
+     * and nothing is committed that wasn't already.
+     *
      * @return whether the job should be retried
      * @see Job.Builder#setRetryStrategy(RetryStrategy)
      * @see RetryStrategy
      */
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        if (mFetchWeatherTask != null) {
-            mFetchWeatherTask.cancel(true);
-        }
-        return true;
+        return mSyncJob != null && mSyncJob.stop();
     }
-}
\ No newline at end of file
+}
@@ -17,6 +17,7 @@ package com.example.android.sunshine.sync;
 
 import android.app.IntentService;
 import android.content.Intent;
+import android.util.Log;
 
 /**
  * An {@link IntentService} subclass for handling asynchronous task requests in
@@ -24,12 +25,33 @@ import android.content.Intent;
  */
 public class SunshineSyncIntentService extends IntentService {
 
+    private static final String TAG = SunshineSyncIntentService.class.getSimpleName();
+
     public SunshineSyncIntentService() {
         super("SunshineSyncIntentService");
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
-        SunshineSyncTask.syncWeather(this);
+        /*
+         * SunshineSyncUtils#startImmediateSync has already asked the queue for a sync, so all
+         * that is left is to wait for it. A burst of immediate syncs starts us once for each of
+         * them, but they all wait on the same request, and once it is done the rest find none.
+         */
+        SunshineSyncQueue.SyncRequest request = SunshineSyncQueue.getInstance(this).getRequest();
+        if (request == null) {
+            return;
+        }
+
+        try {
+            request.await();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted waiting for the sync", e);
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        /* We have just synced, so the next sync can wait until the forecast is due to change */
+        SunshineSyncUtils.scheduleFirebaseJobDispatcherSync(this);
     }
 }
\ No newline at end of file
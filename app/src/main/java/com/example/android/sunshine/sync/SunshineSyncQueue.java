@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one way into a sync of the current location's weather. The periodic job, the immediate
+ * sync the app asks for when it has no weather, and the one the settings ask for when the
+ * location changes all go through here, rather than each calling
+ * {@link SunshineSyncTask#syncWeather(Context)} on their own.
+ * <p>
+ * On their own, a burst of triggers lines up behind the lock of syncWeather, and every one of
+ * them fetches the forecast again, straight after the one before. The queue keeps at most one
+ * request per location instead:
+ * <ul>
+ *     <li>A new request waits {@link #DEBOUNCE_MILLIS} before it runs. Every request for the
+ *     same location in that time joins it.</li>
+ *     <li>A request for a location whose sync is already running joins that sync, and gets
+ *     its result.</li>
+ * </ul>
+ * So however many triggers come in at once, the forecast is fetched once, and everyone who
+ * asked finds out when it has been, through the {@link SyncRequest} they were given.
+ * <p>
+ * Syncs run one at a time, on a thread of the queue's own.
+ * <p>
+ * A sync that several callers are waiting on belongs to all of them, so one of them giving up
+ * on it mustn't cancel it for the others. A caller that may want to give up asks with
+ * {@link #requestSync(CancellationSignal)}, and cancelling its signal lets go of the request.
+ * The sync itself is only cancelled once everyone who asked for it has let go, and never if
+ * anyone asked with {@link #requestSync()}, which can't let go.
+ */
+public final class SunshineSyncQueue {
+
+    private static final String TAG = SunshineSyncQueue.class.getSimpleName();
+
+    /* How long a request waits for others to join it */
+    static final long DEBOUNCE_MILLIS = 500;
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    private static SunshineSyncQueue sInstance;
+
+    /**
+     * What the queue runs to sync a location. Tests swap in their own, to sync from a local
+     * server.
+     */
+    interface Syncer {
+        /**
+         * @param context            The application Context
+         * @param cancellationSignal Cancelled once nobody wants the sync anymore
+         * @return The number of rows the sync wrote
+         */
+        int sync(Context context, CancellationSignal cancellationSignal);
+    }
+
+    private final Context mContext;
+    private final Syncer mSyncer;
+    private final long mDebounceMillis;
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    private final Object mLock = new Object();
+
+    /* By location setting, the requests waiting out their debounce, and the ones running */
+    private final Map<String, SyncRequest> mPending = new HashMap<>();
+    private final Map<String, SyncRequest> mRunning = new HashMap<>();
+
+    /**
+     * The outcome of a request, shared by everyone whose request was merged into it.
+     */
+    public static final class SyncRequest {
+
+        final String locationSetting;
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile int mRowsWritten;
+
+        /* Cancels the sync, once nobody is holding on to the request. See #release. */
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        /* Written under the queue's lock: who is holding on to the request, and if it was let go */
+        private int mHolders;
+        private boolean mPinned;
+        private volatile boolean mCancelled;
+
+        private SyncRequest(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
+
+        /**
+         * Waits for the sync to finish.
+         *
+         * @return The number of rows the sync wrote, which is 0 if nothing had changed or if
+         * the sync failed
+         * @throws InterruptedException If the thread was interrupted while waiting
+         */
+        public int await() throws InterruptedException {
+            mDone.await();
+            return mRowsWritten;
+        }
+
+        /**
+         * Waits for the sync to finish, for at most the given time.
+         *
+         * @return true if the sync finished in time
+         * @throws InterruptedException If the thread was interrupted while waiting
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return mDone.await(timeout, unit);
+        }
+
+        /**
+         * @return true once the sync has finished
+         */
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        /**
+         * @return The number of rows the sync wrote, once it has finished
+         */
+        public int getRowsWritten() {
+            return mRowsWritten;
+        }
+
+        /**
+         * @return true if everyone let go of the request before its sync could finish, so it
+         * was cancelled
+         */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        private void finish(int rowsWritten) {
+            mRowsWritten = rowsWritten;
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * @param context Used to get the application Context
+     * @return The queue every sync of the current location goes through
+     */
+    public static synchronized SunshineSyncQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SunshineSyncQueue(context.getApplicationContext(),
+                    new Syncer() {
+                        @Override
+                        public int sync(Context context, CancellationSignal cancellationSignal) {
+                            return SunshineSyncTask.syncWeather(context, cancellationSignal);
+                        }
+                    },
+                    DEBOUNCE_MILLIS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a queue of its own, for tests.
+     *
+     * @param context        The application Context
+     * @param syncer         What to run to sync
+     * @param debounceMillis How long a request waits for others to join it
+     */
+    SunshineSyncQueue(Context context, Syncer syncer, long debounceMillis) {
+        mContext = context;
+        mSyncer = syncer;
+        mDebounceMillis = debounceMillis;
+
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "SunshineSync");
+            }
+        });
+        mExecutor.setKeepAliveTime(IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Asks for the weather of the current location to be synced. If a request for it is
+     * already waiting or running, this joins it rather than making another. The sync won't be
+     * cancelled, however many others let go of it.
+     *
+     * @return The request, to wait on if the caller needs the sync to be done
+     */
+    public SyncRequest requestSync() {
+        return requestSync(null);
+    }
+
+    /**
+     * Asks for the weather of the current location to be synced, like {@link #requestSync()},
+     * but lets go of the request when the signal is cancelled. If nobody else is holding on to
+     * it by then, its sync is cancelled too, and anyone who asks from then on gets a new one.
+     *
+     * @param cancellationSignal Lets go of the request, or null to hold on to it until it is
+     *                           done. The queue takes the signal's OnCancelListener.
+     * @return The request, to wait on if the caller needs the sync to be done
+     */
+    public SyncRequest requestSync(CancellationSignal cancellationSignal) {
+        String locationSetting = SunshinePreferences.getPreferredWeatherLocation(mContext);
+
+        final SyncRequest request;
+        synchronized (mLock) {
+            SyncRequest existing = mRunning.get(locationSetting);
+            if (existing == null) {
+                existing = mPending.get(locationSetting);
+            }
+
+            if (existing != null) {
+                request = existing;
+            } else {
+                request = new SyncRequest(locationSetting);
+                mPending.put(locationSetting, request);
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        runRequest(request);
+                    }
+                }, mDebounceMillis, TimeUnit.MILLISECONDS);
+            }
+
+            if (cancellationSignal == null) {
+                request.mPinned = true;
+            } else {
+                request.mHolders++;
+            }
+        }
+
+        if (cancellationSignal != null) {
+            /* Called straight away if the signal has already been cancelled */
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    release(request);
+                }
+            });
+        }
+        return request;
+    }
+
+    /**
+     * @return The request for the current location that is waiting or running, or null if
+     * there isn't one. This never makes a request of its own.
+     */
+    public SyncRequest getRequest() {
+        String locationSetting = SunshinePreferences.getPreferredWeatherLocation(mContext);
+
+        synchronized (mLock) {
+            SyncRequest request = mRunning.get(locationSetting);
+            return request != null ? request : mPending.get(locationSetting);
+        }
+    }
+
+    /**
+     * Lets go of a request for one of the callers holding on to it. Once the last of them has
+     * let go, the request is taken off the queue, so nobody new joins it, and its sync is
+     * cancelled.
+     */
+    private void release(SyncRequest request) {
+        synchronized (mLock) {
+            if (--request.mHolders > 0 || request.mPinned || request.isDone()) {
+                return;
+            }
+
+            request.mCancelled = true;
+            removeRequest(request);
+        }
+
+        /* Outside the lock, since this closes the sync's connection */
+        request.mCancellationSignal.cancel();
+    }
+
+    private void runRequest(SyncRequest request) {
+        synchronized (mLock) {
+            if (request.mCancelled) {
+                /* Everyone let go of it while it was waiting out its debounce */
+                request.finish(0);
+                return;
+            }
+            mPending.remove(request.locationSetting);
+            mRunning.put(request.locationSetting, request);
+        }
+
+        int rowsWritten = 0;
+        try {
+            rowsWritten = mSyncer.sync(mContext, request.mCancellationSignal);
+        } catch (OperationCanceledException e) {
+            Log.d(TAG, "Sync of " + request.locationSetting + " cancelled");
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Sync of " + request.locationSetting + " failed", e);
+        } finally {
+            /* Anyone who asks from now on gets a new sync */
+            synchronized (mLock) {
+                removeRequest(request);
+            }
+            request.finish(rowsWritten);
+        }
+    }
+
+    /* Takes a request off the queue, unless a newer one for its location has taken its place */
+    private void removeRequest(SyncRequest request) {
+        if (mPending.get(request.locationSetting) == request) {
+            mPending.remove(request.locationSetting);
+        }
+        if (mRunning.get(request.locationSetting) == request) {
+            mRunning.remove(request.locationSetting);
+        }
+    }
+}
@@ -15,66 +15,357 @@
  */
 package com.example.android.sunshine.sync;
 
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.text.format.DateUtils;
+import android.util.Log;
+import android.util.MalformedJsonException;
 
+import com.example.android.sunshine.data.ForecastBatch;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.ForecastResponseCache;
 import com.example.android.sunshine.utilities.NetworkUtils;
 import com.example.android.sunshine.utilities.NotificationUtils;
 import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utilities.SyncTracer;
+import com.example.android.sunshine.utilities.TeeInputStream;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncTask {
 
+    private static final String TAG = SunshineSyncTask.class.getSimpleName();
+
+    /*
+     * The forecast is parsed into the same batch on every sync, so that once it has grown to
+     * the size of a forecast, parsing doesn't allocate anything per day. Syncs are synchronized,
+     * so only one of them ever uses it at a time.
+     */
+    private static final ForecastBatch sForecast = new ForecastBatch();
+
+    /* How long a sync waits to connect to the server, and for each read from it */
+    static final int NETWORK_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(15);
+
+    /* How long a sync may take to commit a forecast, once it has one */
+    static final long WRITE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    /* Threads the revalidation pool doesn't need for this long are let go */
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    /*
+     * Revalidates stale cached forecasts once the sync that showed them has returned. A single
+     * thread, since syncs run one at a time anyway.
+     */
+    private static ExecutorService sRevalidateExecutor;
+
+    /* The revalidation submitted last, for tests to wait on */
+    private static volatile Future<Integer> sRevalidation;
+
     /**
      * Performs the network request for updated weather, parses the JSON from that request, and
      * inserts the new weather information into our ContentProvider. Will notify the user that new
      * weather has been loaded if the user hasn't been notified of the weather within the last day
      * AND they haven't disabled notifications in the preferences screen.
+     * <p>
+     * Don't call this directly to sync the current location. Ask {@link SunshineSyncQueue}
+     * instead, which merges requests that come in together into one sync.
      *
      * @param context Used to access utility methods and the ContentResolver
+     * @return The number of rows written to the database
+     */
+    public static int syncWeather(Context context) {
+        return syncWeather(context, (CancellationSignal) null);
+    }
+
+    /**
+     * Syncs the weather of the current location, like {@link #syncWeather(Context)}, in a way
+     * that can be cancelled part way through.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param cancellationSignal Cancels the sync, or null if it can't be cancelled
+     * @return The number of rows written to the database, which is 0 if the sync was cancelled
+     */
+    synchronized static int syncWeather(final Context context,
+            CancellationSignal cancellationSignal) {
+        SyncTracer.Trace trace = SyncTracer.getInstance(context).beginTrace();
+        trace.begin(SyncTracer.STAGE_BUILD_URL);
+
+        /*
+         * When the user switches back to a location we have synced before, we already know its
+         * coordinates. Using them means we ask for the same URL as last time, which is the one
+         * whose response we have cached.
+         */
+        if (!SunshinePreferences.isLocationLatLonAvailable(context)) {
+            restoreLocationCoordinates(context);
+        }
+
+        /*
+         * The getUrl method will return the URL that we need to get the forecast JSON for the
+         * weather. It will decide whether to create a URL based off of the latitude and
+         * longitude or off of a simple location as a String.
+         */
+        URL weatherRequestUrl = NetworkUtils.getUrl(context);
+        trace.end(0, 0);
+
+        return syncWeather(context, weatherRequestUrl, cancellationSignal, trace);
+    }
+
+    /**
+     * Syncs the weather from a specific URL, using the {@link ForecastResponseCache} to avoid the
+     * network where we can:
+     * <ul>
+     *     <li>If the cache has a response for this URL that the database doesn't hold yet for
+     *     the current location, it is written to the database straight away so the user doesn't
+     *     have to wait on the network.</li>
+     *     <li>If that cached response is still fresh, we are done.</li>
+     *     <li>If it is stale, we are done too, and it is revalidated in the background, by a
+     *     sync of its own, so whoever asked for this one doesn't wait on the network for a
+     *     forecast that is already on screen.</li>
+     *     <li>Otherwise we revalidate what the database holds with a conditional request. If the
+     *     server tells us nothing has changed we skip parsing, writing to the database and all
+     *     notifications.</li>
+     * </ul>
+     *
+     * @param context           Used to access utility methods and the ContentResolver
+     * @param weatherRequestUrl The URL to fetch the forecast JSON from
+     * @return The number of rows written to the database, which is 0 if the data in the database
+     * was already current or if the sync failed
+     */
+    static int syncWeather(Context context, URL weatherRequestUrl) {
+        return syncWeather(context, weatherRequestUrl, null);
+    }
+
+    /**
+     * Syncs the weather from a specific URL, like {@link #syncWeather(Context, URL)}, in a way
+     * that can be cancelled part way through.
+     * <p>
+     * Cancelling the signal while the forecast is downloading closes the connection under the
+     * read, see NetworkUtils. Once the forecast has been downloaded, the signal is checked once
+     * more before it is committed. The commit itself can't be reached by the signal, since a
+     * provider call can't carry one, so it is given {@link #WRITE_TIMEOUT_MILLIS} instead, and is
+     * rolled back if it can't make it.
+     * <p>
+     * Failures to get a forecast from the network are told to {@link SyncBackoff}, which decides
+     * when to try again. If it has given up on the URL for now, the sync doesn't go to the
+     * network at all.
+     * <p>
+     * Each stage of the sync is recorded by the {@link SyncTracer}.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param weatherRequestUrl  The URL to fetch the forecast JSON from
+     * @param cancellationSignal Cancels the sync, or null if it can't be cancelled
+     * @return The number of rows written to the database, which is 0 if the data in the database
+     * was already current, if the sync failed, or if it was cancelled
+     */
+    static int syncWeather(Context context, URL weatherRequestUrl,
+            CancellationSignal cancellationSignal) {
+        return syncWeather(context, weatherRequestUrl, cancellationSignal,
+                SyncTracer.getInstance(context).beginTrace());
+    }
+
+    /**
+     * Syncs the weather from a specific URL, like {@link #syncWeather(Context, URL,
+     * CancellationSignal)}, as part of a trace that has already begun.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param weatherRequestUrl  The URL to fetch the forecast JSON from
+     * @param cancellationSignal Cancels the sync, or null if it can't be cancelled
+     * @param trace              The trace to record the stages of the sync in. It is finished
+     *                           when the sync ends.
+     * @return The number of rows written to the database
      */
-    synchronized public static void syncWeather(Context context) {
+    private synchronized static int syncWeather(final Context context, URL weatherRequestUrl,
+            CancellationSignal cancellationSignal, final SyncTracer.Trace trace) {
+
+        String weatherRequestUrlString = weatherRequestUrl.toString();
+        SyncBackoff backoff = SyncBackoff.load(context);
+
+        int traceStatus = SyncTracer.STATUS_OK;
+        long bytesDownloaded = 0;
+        int rowsWritten = 0;
 
         try {
+            ForecastResponseCache cache = ForecastResponseCache.getInstance(context);
+            ForecastResponseCache.Entry cached = cache.get(weatherRequestUrl);
+
             /*
-             * The getUrl method will return the URL that we need to get the forecast JSON for the
-             * weather. It will decide whether to create a URL based off of the latitude and
-             * longitude or off of a simple location as a String.
+             * The forecast is stored for the location that is current now, even if the user
+             * picks another one while we are syncing.
              */
-            URL weatherRequestUrl = NetworkUtils.getUrl(context);
+            String locationSetting = SunshinePreferences.getPreferredWeatherLocation(context);
+            boolean databaseHoldsResponse = weatherRequestUrlString.equals(
+                    getSourceUrl(context, locationSetting));
 
-            /* Use the URL to retrieve the JSON */
-            String jsonWeatherResponse = NetworkUtils.getResponseFromHttpUrl(weatherRequestUrl);
+            /*
+             * Show the cached forecast first. Its days are numbered from the day it was
+             * fetched, which may have been yesterday, and the ones behind us are left out.
+             */
+            if (cached != null && !databaseHoldsResponse) {
+                ForecastBatch cachedForecast = null;
+                try {
+                    trace.begin(SyncTracer.STAGE_READ_AND_PARSE);
+                    cachedForecast = OpenWeatherJsonUtils
+                            .getForecastBatchFromStream(context,
+                                    new ByteArrayInputStream(cached.body),
+                                    sForecast,
+                                    cached.fetchedAtMillis);
+                    trace.end(cached.body.length,
+                            cachedForecast != null ? cachedForecast.size() : 0);
+
+                    if (cachedForecast != null && cachedForecast.size() != 0) {
+                        trace.begin(SyncTracer.STAGE_RECONCILE);
+                        rowsWritten = reconcileWeather(context, locationSetting,
+                                cachedForecast, weatherRequestUrlString);
+                        trace.end(0, rowsWritten);
+                    }
+                } catch (OperationCanceledException e) {
+                    throw e;
+                } catch (Exception e) {
+                    /*
+                     * The entry may have been written by an older version of the parser, or
+                     * been damaged on disk. Either way it isn't the server's fault, so it isn't
+                     * told to the backoff. It is dropped, and the forecast fetched instead.
+                     */
+                    Log.w(TAG, "Dropping cached forecast that couldn't be shown: "
+                            + weatherRequestUrlString, e);
+                    trace.fail();
+                    cache.remove(weatherRequestUrl);
+                    cached = null;
+                    cachedForecast = null;
+                }
 
-            /* Parse the JSON into a list of weather values */
-            ContentValues[] weatherValues = OpenWeatherJsonUtils
-                    .getWeatherContentValuesFromJson(context, jsonWeatherResponse);
+                if (cachedForecast != null && cachedForecast.size() != 0) {
+                    /* If it is stale, check whether it is still current once we've returned */
+                    if (cached.isFresh(System.currentTimeMillis())) {
+                        Log.d(TAG, "Forecast served from cache: " + weatherRequestUrlString);
+                    } else {
+                        Log.d(TAG, "Stale forecast served from cache, revalidating: "
+                                + weatherRequestUrlString);
+                        revalidateInBackground(context, weatherRequestUrl);
+                    }
+                    return rowsWritten;
+                }
+            }
+
+            if (databaseHoldsResponse && cached != null
+                    && cached.isFresh(System.currentTimeMillis())) {
+                Log.d(TAG, "Forecast served from cache: " + weatherRequestUrlString);
+                return rowsWritten;
+            }
+
+            /* The server keeps failing on this URL in a way that won't fix itself */
+            if (!backoff.allowsFetch(weatherRequestUrlString, System.currentTimeMillis())) {
+                Log.d(TAG, "Forecast fetch held back after repeated failures: "
+                        + weatherRequestUrlString);
+                backoff.save(context);
+                return rowsWritten;
+            }
+
+            /* Validators only mean something if our database holds the data they describe */
+            String eTag = null;
+            String lastModified = null;
+            if (databaseHoldsResponse && cached != null) {
+                eTag = cached.eTag;
+                lastModified = cached.lastModified;
+            }
+
+            /*
+             * Use the URL to retrieve the JSON and parse it into a list of weather values. The
+             * JSON is parsed straight off of the network stream as it arrives, rather than being
+             * read into a String first. A copy of what the parser reads is kept for the cache.
+             */
+            final ByteArrayOutputStream responseCopy = new ByteArrayOutputStream();
+            trace.begin(SyncTracer.STAGE_CONNECT);
+            NetworkUtils.Response<ForecastBatch> response = NetworkUtils
+                    .getConditionalResponseFromHttpUrl(
+                            weatherRequestUrl,
+                            eTag,
+                            lastModified,
+                            new NetworkUtils.ResponseStreamConsumer<ForecastBatch>() {
+                                @Override
+                                public ForecastBatch consume(InputStream in)
+                                        throws IOException {
+                                    /* The headers are in, and the body is read as it parses */
+                                    trace.end(0, 0);
+                                    trace.begin(SyncTracer.STAGE_READ_AND_PARSE);
+                                    ForecastBatch forecast = OpenWeatherJsonUtils
+                                            .parseForecastBatch(context,
+                                                    new TeeInputStream(in, responseCopy),
+                                                    sForecast);
+                                    trace.end(responseCopy.size(), forecast.size());
+                                    return forecast;
+                                }
+                            },
+                            cancellationSignal,
+                            NETWORK_TIMEOUT_MILLIS);
+            /* Without a body, connecting was all there was to it */
+            trace.end(0, 0);
+            bytesDownloaded = response.wireBytes;
+
+            /* Keep track of how much data we download, and how well it compressed */
+            SunshinePreferences.recordSyncTransferSizes(context,
+                    response.wireBytes,
+                    response.bodyBytes);
+            Log.d(TAG, "Downloaded " + response.wireBytes + " bytes, "
+                    + response.bodyBytes + " after decompression");
 
             /*
-             * In cases where our JSON contained an error code, getWeatherContentValuesFromJson
-             * would have returned null. We need to check for those cases here to prevent any
-             * NullPointerExceptions being thrown. We also have no reason to insert fresh data if
-             * there isn't any to insert.
+             * If the forecast hasn't changed since it was cached, the data we already have is
+             * still current. There is nothing to parse, write or tell anybody about, but the
+             * cached response is good for a while longer.
              */
-            if (weatherValues != null && weatherValues.length != 0) {
-                /* Get a handle on the ContentResolver to delete and insert data */
-                ContentResolver sunshineContentResolver = context.getContentResolver();
+            if (response.isNotModified()) {
+                Log.d(TAG, "Forecast not modified: " + weatherRequestUrlString);
+                cache.markRevalidated(weatherRequestUrl);
+                recordFetchForSchedule(context, weatherRequestUrlString, null);
+                recordFetchForBackoff(context, backoff, weatherRequestUrlString, null);
+                return rowsWritten;
+            }
 
-                /* Delete old weather data because we don't need to keep multiple days' data */
-                sunshineContentResolver.delete(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        null,
-                        null);
+            ForecastBatch forecast = response.body;
 
-                /* Insert our new weather data into Sunshine's ContentProvider */
-                sunshineContentResolver.bulkInsert(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        weatherValues);
+            /*
+             * If our JSON contained an error code, parseForecastBatch would have thrown. A
+             * forecast without any days isn't one we can use, so that counts as a failure too.
+             * We have no reason to insert fresh data if there isn't any to insert.
+             */
+            if (forecast.size() == 0) {
+                recordFetchForBackoff(context, backoff, weatherRequestUrlString,
+                        new MalformedJsonException("Forecast response has no days"));
+            } else {
+                recordFetchForBackoff(context, backoff, weatherRequestUrlString, null);
+                recordFetchForSchedule(context, weatherRequestUrlString, forecast);
+                if (cancellationSignal != null) cancellationSignal.throwIfCanceled();
+                trace.begin(SyncTracer.STAGE_RECONCILE);
+                rowsWritten = reconcileWeather(context, locationSetting, forecast,
+                        weatherRequestUrlString);
+                trace.end(0, rowsWritten);
+
+                /*
+                 * Now that the database holds this response, cache it along with its validators
+                 * so that the next sync can ask the server whether anything has changed.
+                 */
+                cache.put(weatherRequestUrl,
+                        responseCopy.toByteArray(),
+                        response.eTag,
+                        response.lastModified);
 
                 /*
                  * Finally, after we insert data into the ContentProvider, determine whether or not
@@ -101,16 +392,221 @@ public class SunshineSyncTask {
                  * haven't shown a notification in the past day.
                  */
                 if (notificationsEnabled && oneDayPassedSinceLastNotification) {
+                    trace.begin(SyncTracer.STAGE_NOTIFY);
                     NotificationUtils.notifyUserOfNewWeather(context);
+                    trace.end(0, 0);
                 }
+            }
 
             /* If the code reaches this point, we have successfully performed our sync */
+            return rowsWritten;
+
+        } catch (OperationCanceledException e) {
+            Log.d(TAG, "Sync cancelled: " + weatherRequestUrl);
+            traceStatus = SyncTracer.STATUS_CANCELLED;
+        } catch (Exception e) {
+            /* Logged, along with the kind of failure it is, by recordFetchForBackoff */
+            recordFetchForBackoff(context, backoff, weatherRequestUrlString, e);
+            traceStatus = SyncTracer.STATUS_FAILED;
+        } finally {
+            trace.finish(traceStatus, bytesDownloaded, rowsWritten);
+        }
 
+        return 0;
+    }
+
+    /**
+     * Revalidates the stale cached forecast a sync has just shown, with a sync of its own on
+     * another thread. It runs once the sync that showed it has returned, and only if the
+     * current location's weather still comes from the same URL by then.
+     *
+     * @param context           Used to get the application Context
+     * @param weatherRequestUrl The URL of the cached forecast
+     */
+    private static void revalidateInBackground(Context context, final URL weatherRequestUrl) {
+        final Context appContext = context.getApplicationContext();
+        sRevalidation = getRevalidateExecutor().submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                String locationSetting =
+                        SunshinePreferences.getPreferredWeatherLocation(appContext);
+                if (!weatherRequestUrl.toString().equals(
+                        getSourceUrl(appContext, locationSetting))) {
+                    /* The user has moved on to another location since */
+                    return 0;
+                }
+                return syncWeather(appContext, weatherRequestUrl);
             }
+        });
+    }
 
-        } catch (Exception e) {
-            /* Server probably invalid */
-            e.printStackTrace();
+    /**
+     * Waits for the last revalidation from {@link #revalidateInBackground} to finish. For tests.
+     *
+     * @return The number of rows it wrote, or 0 if there hasn't been one
+     */
+    static int awaitRevalidation() throws InterruptedException, ExecutionException {
+        Future<Integer> revalidation = sRevalidation;
+        return revalidation != null ? revalidation.get() : 0;
+    }
+
+    private static synchronized ExecutorService getRevalidateExecutor() {
+        if (sRevalidateExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    1,
+                    1,
+                    IDLE_THREAD_TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            return new Thread(runnable, "SunshineRevalidate");
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sRevalidateExecutor = executor;
+        }
+        return sRevalidateExecutor;
+    }
+
+    /**
+     * Tells the {@link AdaptiveSyncScheduler} about a fetch from the network, so that it can
+     * learn how often the forecast changes. A fetch served from the cache isn't a fetch.
+     *
+     * @param context   Used to load and save the scheduler
+     * @param sourceUrl The URL the forecast was fetched from
+     * @param forecast  The forecast that was fetched, or null if the server said it hadn't
+     *                  changed
+     */
+    private static void recordFetchForSchedule(Context context, String sourceUrl,
+            ForecastBatch forecast) {
+        AdaptiveSyncScheduler scheduler = AdaptiveSyncScheduler.load(context);
+        long now = System.currentTimeMillis();
+        if (forecast == null) {
+            scheduler.onForecastNotModified(sourceUrl, now);
+        } else {
+            scheduler.onForecastFetched(sourceUrl, now, forecast.contentHash());
+        }
+        scheduler.save(context);
+    }
+
+    /**
+     * Tells the {@link SyncBackoff} how a sync went, so that it can work out when to try again.
+     * A failure is logged here, once, under the kind the backoff puts it in.
+     *
+     * @param context   Used to save the backoff
+     * @param backoff   The backoff, as loaded at the start of the sync
+     * @param sourceUrl The URL the forecast was fetched from
+     * @param failure   What went wrong, or null if we got a forecast, or were told it hadn't
+     *                  changed
+     */
+    private static void recordFetchForBackoff(Context context, SyncBackoff backoff,
+            String sourceUrl, Exception failure) {
+        if (failure == null) {
+            backoff.onSuccess(sourceUrl);
+        } else {
+            int kind = SyncBackoff.classify(failure);
+            Log.w(TAG, "Sync of " + sourceUrl + " failed, counted under "
+                    + SyncBackoff.getFailureName(kind), failure);
+            backoff.onFailure(sourceUrl, kind, System.currentTimeMillis());
         }
+        backoff.save(context);
+    }
+
+    /**
+     * Returns the URL of the response that the stored weather of a location came from.
+     *
+     * @param context         Used to get the ContentResolver
+     * @param locationSetting The location to look up
+     * @return The URL, or null if we have no weather for the location or don't know its source
+     */
+    private static String getSourceUrl(Context context, String locationSetting) {
+        Cursor cursor = queryLocation(context, locationSetting,
+                WeatherContract.LocationEntry.COLUMN_SOURCE_URL);
+        if (cursor == null) return null;
+
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Copies the coordinates we saved for the current location, if there are any, back into the
+     * preferences.
+     *
+     * @param context Used to get the ContentResolver and the preferences
+     */
+    private static void restoreLocationCoordinates(Context context) {
+        Cursor cursor = queryLocation(context,
+                SunshinePreferences.getPreferredWeatherLocation(context),
+                WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+        if (cursor == null) return;
+
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0) && !cursor.isNull(1)) {
+                SunshinePreferences.setLocationDetails(context,
+                        cursor.getDouble(0),
+                        cursor.getDouble(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Cursor queryLocation(Context context, String locationSetting,
+            String... projection) {
+        return context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                projection,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+    }
+
+    /**
+     * Reconciles the weather of a location in our ContentProvider with new weather data. Only
+     * the rows that changed are written, only days that have passed are deleted, and observers
+     * are notified at most once. The weather of other locations stays where it is.
+     *
+     * @param context         Used to get the ContentResolver
+     * @param locationSetting The location the weather data is for
+     * @param forecast        The new weather data
+     * @param sourceUrl       The URL the weather data came from
+     * @return The number of rows inserted, updated or deleted
+     */
+    private static int reconcileWeather(Context context, String locationSetting,
+            ForecastBatch forecast, String sourceUrl) {
+        Bundle extras = new Bundle();
+        extras.putBundle(WeatherContract.WeatherEntry.EXTRA_BATCH, forecast.toBundle());
+        extras.putString(WeatherContract.WeatherEntry.EXTRA_SOURCE_URL, sourceUrl);
+        extras.putLong(WeatherContract.WeatherEntry.EXTRA_DEADLINE,
+                SystemClock.elapsedRealtime() + WRITE_TIMEOUT_MILLIS);
+
+        /* Parsing the forecast saved the location's coordinates to the preferences */
+        if (SunshinePreferences.isLocationLatLonAvailable(context)) {
+            double[] coordinates = SunshinePreferences.getLocationCoordinates(context);
+            extras.putDouble(WeatherContract.WeatherEntry.EXTRA_COORD_LAT, coordinates[0]);
+            extras.putDouble(WeatherContract.WeatherEntry.EXTRA_COORD_LONG, coordinates[1]);
+        }
+
+        Bundle result = context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_RECONCILE,
+                locationSetting,
+                extras);
+
+        int rowsInserted = result.getInt(WeatherContract.WeatherEntry.EXTRA_INSERTED);
+        int rowsUpdated = result.getInt(WeatherContract.WeatherEntry.EXTRA_UPDATED);
+        int rowsDeleted = result.getInt(WeatherContract.WeatherEntry.EXTRA_DELETED);
+        Log.d(TAG, "Reconciled weather: " + rowsInserted + " inserted, "
+                + rowsUpdated + " updated, "
+                + rowsDeleted + " deleted, "
+                + result.getInt(WeatherContract.WeatherEntry.EXTRA_UNCHANGED) + " unchanged");
+
+        return rowsInserted + rowsUpdated + rowsDeleted;
     }
-}
\ No newline at end of file
+}
@@ -34,25 +34,40 @@ import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncUtils {
 
-    /*
-     * Interval at which to sync with the weather. Use TimeUnit for convenience, rather than
-     * writing out a bunch of multiplication ourselves and risk making a silly mistake.
-     */
-    private static final int SYNC_INTERVAL_HOURS = 3;
-    private static final int SYNC_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(SYNC_INTERVAL_HOURS);
-    private static final int SYNC_FLEXTIME_SECONDS = SYNC_INTERVAL_SECONDS / 3;
-
     private static boolean sInitialized;
 
     private static final String SUNSHINE_SYNC_TAG = "sunshine-sync";
 
+    /*
+     * The weather history only needs compacting about once a day, and it can wait until the
+     * device is charging.
+     */
+    private static final int COMPACTION_INTERVAL_SECONDS = (int) TimeUnit.DAYS.toSeconds(1);
+    private static final int COMPACTION_FLEXTIME_SECONDS = (int) TimeUnit.HOURS.toSeconds(12);
+
+    private static final String SUNSHINE_HISTORY_COMPACTION_TAG = "sunshine-history-compaction";
+
     /**
-     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher.
+     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher. The
+     * interval comes from {@link AdaptiveSyncScheduler}, which learns how often the forecast
+     * actually changes, so this is called again after every sync to move the next one.
+     *
      * @param context Context used to create the GooglePlayDriver that powers the
      *                FirebaseJobDispatcher
      */
     static void scheduleFirebaseJobDispatcherSync(@NonNull final Context context) {
 
+        /*
+         * The delay is aimed just after the forecast is next due to change, unless the last sync
+         * failed, in which case it is whenever the backoff says to try again.
+         */
+        long now = System.currentTimeMillis();
+        long delayMillis = AdaptiveSyncScheduler.load(context).getNextDelayMillis(now);
+        delayMillis = SyncBackoff.load(context).adjustDelayMillis(delayMillis, now);
+        int syncIntervalSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(delayMillis);
+        int syncFlextimeSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(
+                AdaptiveSyncScheduler.getFlexMillis(delayMillis));
+
         Driver driver = new GooglePlayDriver(context);
         FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
 
@@ -79,15 +94,15 @@ public class SunshineSyncUtils {
                  */
                 .setRecurring(true)
                 /*
-                 * We want the weather data to be synced every 3 to 4 hours. The first argument for
-                 * Trigger's static executionWindow method is the start of the time frame when the
-                 * sync should be performed. The second argument is the latest point in time at
-                 * which the data should be synced. Please note that this end time is not
+                 * We want the weather data to be synced soon after it changes. The first argument
+                 * for Trigger's static executionWindow method is the start of the time frame when
+                 * the sync should be performed. The second argument is the latest point in time
+                 * at which the data should be synced. Please note that this end time is not
                  * guaranteed, but is more of a guideline for FirebaseJobDispatcher to go off of.
                  */
                 .setTrigger(Trigger.executionWindow(
-                        SYNC_INTERVAL_SECONDS,
-                        SYNC_INTERVAL_SECONDS + SYNC_FLEXTIME_SECONDS))
+                        syncIntervalSeconds,
+                        syncIntervalSeconds + syncFlextimeSeconds))
                 /*
                  * If a Job with the tag with provided already exists, this new job will replace
                  * the old one.
@@ -99,6 +114,33 @@ public class SunshineSyncUtils {
         /* Schedule the Job with the dispatcher */
         dispatcher.schedule(syncSunshineJob);
     }
+
+    /**
+     * Schedules a daily compaction of the weather history using FirebaseJobDispatcher. It only
+     * runs while the device is charging, since it is never urgent.
+     *
+     * @param context Context used to create the GooglePlayDriver that powers the
+     *                FirebaseJobDispatcher
+     */
+    static void scheduleHistoryCompaction(@NonNull final Context context) {
+
+        Driver driver = new GooglePlayDriver(context);
+        FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
+
+        Job compactHistoryJob = dispatcher.newJobBuilder()
+                .setService(HistoryCompactionJobService.class)
+                .setTag(SUNSHINE_HISTORY_COMPACTION_TAG)
+                .setConstraints(Constraint.DEVICE_CHARGING)
+                .setLifetime(Lifetime.FOREVER)
+                .setRecurring(true)
+                .setTrigger(Trigger.executionWindow(
+                        COMPACTION_INTERVAL_SECONDS,
+                        COMPACTION_INTERVAL_SECONDS + COMPACTION_FLEXTIME_SECONDS))
+                .setReplaceCurrent(true)
+                .build();
+
+        dispatcher.schedule(compactHistoryJob);
+    }
     /**
      * Creates periodic sync tasks and checks to see if an immediate sync is required. If an
      * immediate sync is required, this method will take care of making sure that sync occurs.
@@ -121,6 +163,7 @@ public class SunshineSyncUtils {
          * periodically.
          */
         scheduleFirebaseJobDispatcherSync(context);
+        scheduleHistoryCompaction(context);
 
         /*
          * We need to check to see if our ContentProvider has data to display in our forecast
@@ -132,8 +175,8 @@ public class SunshineSyncUtils {
             @Override
             public void run() {
 
-                /* URI for every row of weather data in our weather table*/
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
+                /* URI for the weather from today onwards at the current location */
+                Uri forecastQueryUri = WeatherContract.WeatherEntry.buildWeatherUriTodayOnwards();
 
                 /*
                  * Since this query is going to be used only as a check to see if we have any
@@ -142,14 +185,12 @@ public class SunshineSyncUtils {
                  * to determine what weather details need to be displayed.
                  */
                 String[] projectionColumns = {WeatherContract.WeatherEntry._ID};
-                String selectionStatement = WeatherContract.WeatherEntry
-                        .getSqlSelectForTodayOnwards();
 
                 /* Here, we perform the query to check to see if we have any weather data */
                 Cursor cursor = context.getContentResolver().query(
                         forecastQueryUri,
                         projectionColumns,
-                        selectionStatement,
+                        null,
                         null,
                         null);
                 /*
@@ -180,12 +221,14 @@ public class SunshineSyncUtils {
     }
 
     /**
-     * Helper method to perform a sync immediately using an IntentService for asynchronous
-     * execution.
+     * Helper method to perform a sync immediately. The sync is asked for through
+     * {@link SunshineSyncQueue}, so several immediate syncs asked for together only sync once.
+     * An IntentService waits for it, so the process isn't stopped before it is done.
      *
      * @param context The Context used to start the IntentService for the sync.
      */
     public static void startImmediateSync(@NonNull final Context context) {
+        SunshineSyncQueue.getInstance(context).requestSync();
         Intent intentToSyncImmediately = new Intent(context, SunshineSyncIntentService.class);
         context.startService(intentToSyncImmediately);
     }
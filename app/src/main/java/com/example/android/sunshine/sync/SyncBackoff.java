@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.utilities.ForecastErrorException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to try again after a sync of the current location has failed, and when to stop
+ * trying for a while.
+ * <p>
+ * Not every failure deserves the same answer, so each is put into one of a few kinds first:
+ * <ul>
+ *     <li>{@link #FAILURE_NETWORK}: the connection failed, timed out or broke off part way.
+ *     This usually clears up on its own, so it is tried again soon.</li>
+ *     <li>{@link #FAILURE_SERVER}: the server answered with an error of its own, such as a 5xx.
+ *     Asking again straight away only adds to its load, so this backs off further.</li>
+ *     <li>{@link #FAILURE_INVALID_LOCATION}: the server doesn't know the location, which won't
+ *     change until the user picks another one.</li>
+ *     <li>{@link #FAILURE_PARSE}: the response wasn't a forecast we could read.</li>
+ *     <li>{@link #FAILURE_OTHER}: anything else, such as the database failing.</li>
+ * </ul>
+ * Each kind has a delay of its own, which doubles with every failure of that kind in a row, up
+ * to a limit. The delay actually used is somewhere between half of that and all of it, picked
+ * at random, so that devices that failed at the same time don't all come back at the same time.
+ * <p>
+ * Invalid locations and unreadable responses are unlikely to fix themselves. Once enough of them
+ * come in a row, the circuit opens: nothing is fetched from the URL for a day, then two, and so
+ * on up to a week. After that, one fetch is let through to see if things have changed. If it
+ * fails again, the circuit opens for longer; if it succeeds, everything is forgotten. Picking a
+ * new location, which means a new URL, starts over too.
+ * <p>
+ * Counts of every kind of failure, of the syncs that succeeded and of the fetches the circuit
+ * held back are kept across restarts, and can be read with {@link #getCounters(Context)}.
+ * <p>
+ * Like {@link AdaptiveSyncScheduler}, this doesn't read the clock itself, so that it can be
+ * tested against made up timelines.
+ */
+public final class SyncBackoff {
+
+    /* The kinds of failure, which are also the indexes of their counters */
+    static final int FAILURE_NETWORK = 0;
+    static final int FAILURE_SERVER = 1;
+    static final int FAILURE_INVALID_LOCATION = 2;
+    static final int FAILURE_PARSE = 3;
+    static final int FAILURE_OTHER = 4;
+    private static final int FAILURE_KIND_COUNT = 5;
+
+    /* The counters that aren't failures */
+    private static final int COUNTER_SUCCESSES = FAILURE_KIND_COUNT;
+    private static final int COUNTER_CIRCUIT_OPENED = FAILURE_KIND_COUNT + 1;
+    private static final int COUNTER_FETCHES_SKIPPED = FAILURE_KIND_COUNT + 2;
+
+    /* Also the names the counters are saved and reported under */
+    private static final String[] COUNTER_NAMES = {
+            "network_failures",
+            "server_failures",
+            "invalid_location_failures",
+            "parse_failures",
+            "other_failures",
+            "successes",
+            "circuit_opened",
+            "fetches_skipped"};
+
+    /* For each kind of failure, the delay after the first one, and the most it can grow to */
+    private static final long[] BASE_DELAY_MILLIS = {
+            TimeUnit.SECONDS.toMillis(30),
+            TimeUnit.MINUTES.toMillis(5),
+            TimeUnit.HOURS.toMillis(1),
+            TimeUnit.MINUTES.toMillis(15),
+            TimeUnit.MINUTES.toMillis(5)};
+    private static final long[] MAX_DELAY_MILLIS = {
+            TimeUnit.MINUTES.toMillis(30),
+            TimeUnit.HOURS.toMillis(6),
+            TimeUnit.HOURS.toMillis(24),
+            TimeUnit.HOURS.toMillis(12),
+            TimeUnit.HOURS.toMillis(6)};
+
+    /* For each kind of failure, how many in a row open the circuit, or 0 if they never do */
+    private static final int[] CIRCUIT_THRESHOLD = {0, 0, 3, 5, 0};
+
+    /* How long the circuit stays open the first time, and the most that can grow to */
+    static final long CIRCUIT_OPEN_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long MAX_CIRCUIT_OPEN_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /* The shortest delay before trying again, so a missed retry doesn't run over and over */
+    private static final long MIN_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
+    private static final String PREFS_NAME = "sync_backoff";
+    private static final String PREF_SOURCE = "source";
+    private static final String PREF_CONSECUTIVE_PREFIX = "consecutive_";
+    private static final String PREF_RETRY_AT = "retry_at";
+    private static final String PREF_OPEN_UNTIL = "open_until";
+    private static final String PREF_TIMES_OPENED = "times_opened";
+    private static final String PREF_COUNTER_PREFIX = "counter_";
+
+    private final Random mRandom;
+
+    /* The URL of the forecast being tracked */
+    private String mSource;
+
+    /* For each kind of failure, how many of it have come in a row */
+    private final int[] mConsecutiveFailures = new int[FAILURE_KIND_COUNT];
+
+    /* When to try again, or 0 if the last sync didn't fail */
+    private long mRetryAtMillis;
+
+    /* Until when the circuit is open, or 0 if it is closed, and how often it opened in a row */
+    private long mOpenUntilMillis;
+    private int mTimesOpened;
+
+    private final long[] mCounters = new long[COUNTER_NAMES.length];
+
+    /**
+     * @param random Picks where in its range each delay falls
+     */
+    SyncBackoff(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * Puts a failure into one of the kinds above.
+     *
+     * @param failure What the sync threw
+     * @return The kind of failure
+     */
+    static int classify(Throwable failure) {
+        if (failure instanceof ForecastErrorException) {
+            int errorCode = ((ForecastErrorException) failure).getErrorCode();
+            /* OpenWeatherMap answers 404 for a place it can't find, and 400 for an empty one */
+            if (errorCode == HttpURLConnection.HTTP_NOT_FOUND
+                    || errorCode == HttpURLConnection.HTTP_BAD_REQUEST) {
+                return FAILURE_INVALID_LOCATION;
+            }
+            return FAILURE_SERVER;
+        }
+
+        /* JsonReader throws these for JSON that isn't what it expected */
+        if (failure instanceof MalformedJsonException
+                || failure instanceof IllegalStateException
+                || failure instanceof NumberFormatException) {
+            return FAILURE_PARSE;
+        }
+
+        if (failure instanceof IOException) {
+            return FAILURE_NETWORK;
+        }
+        return FAILURE_OTHER;
+    }
+
+    /**
+     * @param kind A kind of failure
+     * @return Its name, for the logs
+     */
+    static String getFailureName(int kind) {
+        return COUNTER_NAMES[kind];
+    }
+
+    /**
+     * Creates a backoff with everything it had when it was last saved.
+     *
+     * @param context Used to access SharedPreferences
+     * @return The backoff
+     */
+    static SyncBackoff load(Context context) {
+        SyncBackoff backoff = new SyncBackoff(new Random());
+
+        SharedPreferences sp = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        backoff.mSource = sp.getString(PREF_SOURCE, null);
+        for (int kind = 0; kind < FAILURE_KIND_COUNT; kind++) {
+            backoff.mConsecutiveFailures[kind] = sp.getInt(PREF_CONSECUTIVE_PREFIX + kind, 0);
+        }
+        backoff.mRetryAtMillis = sp.getLong(PREF_RETRY_AT, 0);
+        backoff.mOpenUntilMillis = sp.getLong(PREF_OPEN_UNTIL, 0);
+        backoff.mTimesOpened = sp.getInt(PREF_TIMES_OPENED, 0);
+        for (int counter = 0; counter < COUNTER_NAMES.length; counter++) {
+            backoff.mCounters[counter] =
+                    sp.getLong(PREF_COUNTER_PREFIX + COUNTER_NAMES[counter], 0);
+        }
+        return backoff;
+    }
+
+    /**
+     * Saves the state of the backoff, for {@link #load}.
+     *
+     * @param context Used to access SharedPreferences
+     */
+    void save(Context context) {
+        SharedPreferences.Editor editor =
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
+
+        editor.putString(PREF_SOURCE, mSource);
+        for (int kind = 0; kind < FAILURE_KIND_COUNT; kind++) {
+            editor.putInt(PREF_CONSECUTIVE_PREFIX + kind, mConsecutiveFailures[kind]);
+        }
+        editor.putLong(PREF_RETRY_AT, mRetryAtMillis);
+        editor.putLong(PREF_OPEN_UNTIL, mOpenUntilMillis);
+        editor.putInt(PREF_TIMES_OPENED, mTimesOpened);
+        for (int counter = 0; counter < COUNTER_NAMES.length; counter++) {
+            editor.putLong(PREF_COUNTER_PREFIX + COUNTER_NAMES[counter], mCounters[counter]);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Returns the counts of every kind of sync failure, of the syncs that succeeded, of the
+     * times the circuit opened and of the fetches it held back, since the app was installed.
+     *
+     * @param context Used to access SharedPreferences
+     * @return Each count, by name, in a fixed order
+     */
+    public static Map<String, Long> getCounters(Context context) {
+        SharedPreferences sp = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        Map<String, Long> counters = new LinkedHashMap<>();
+        for (String name : COUNTER_NAMES) {
+            counters.put(name, sp.getLong(PREF_COUNTER_PREFIX + name, 0));
+        }
+        return counters;
+    }
+
+    /**
+     * Asks whether a fetch from the source should go ahead. It shouldn't while the circuit is
+     * open. Once it has been open for long enough, one fetch is let through, and whether it
+     * succeeds decides whether the circuit closes.
+     *
+     * @param source    The URL the forecast would be fetched from
+     * @param nowMillis The time now
+     * @return true if the fetch should go ahead
+     */
+    boolean allowsFetch(String source, long nowMillis) {
+        startTracking(source);
+        if (nowMillis < mOpenUntilMillis) {
+            mCounters[COUNTER_FETCHES_SKIPPED]++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records a sync that got a forecast, or was told it hadn't changed, which forgets every
+     * failure before it and closes the circuit.
+     *
+     * @param source The URL the forecast was fetched from
+     */
+    void onSuccess(String source) {
+        startTracking(source);
+        clearFailures();
+        mCounters[COUNTER_SUCCESSES]++;
+    }
+
+    /**
+     * Records a failed sync, and works out when to try again.
+     *
+     * @param source    The URL the forecast was fetched from
+     * @param kind      The kind of failure, from {@link #classify}
+     * @param nowMillis The time now
+     */
+    void onFailure(String source, int kind, long nowMillis) {
+        startTracking(source);
+        mCounters[kind]++;
+        int failures = ++mConsecutiveFailures[kind];
+
+        int threshold = CIRCUIT_THRESHOLD[kind];
+        if (threshold > 0 && failures >= threshold) {
+            /* Each time in a row it opens, it stays open twice as long */
+            long openMillis = CIRCUIT_OPEN_MILLIS << Math.min(mTimesOpened, 16);
+            mOpenUntilMillis = nowMillis + Math.min(openMillis, MAX_CIRCUIT_OPEN_MILLIS);
+            mRetryAtMillis = mOpenUntilMillis;
+            mTimesOpened++;
+            mCounters[COUNTER_CIRCUIT_OPENED]++;
+            return;
+        }
+
+        long delayMillis = BASE_DELAY_MILLIS[kind] << Math.min(failures - 1, 16);
+        delayMillis = Math.min(delayMillis, MAX_DELAY_MILLIS[kind]);
+
+        /* Somewhere in the upper half, so the delay still grows, but no two devices agree */
+        long halfMillis = delayMillis / 2;
+        mRetryAtMillis = nowMillis + halfMillis + (long) (mRandom.nextDouble() * halfMillis);
+    }
+
+    /**
+     * Adjusts the delay before the next sync for the failures so far. After a failure, the next
+     * sync is whenever the backoff says to try again, which may be sooner or later than the
+     * delay. While the circuit is open, it is no sooner than the circuit closes. Once it has
+     * closed, a probe that failed in a way that doesn't open it again backs off like any other
+     * failure.
+     *
+     * @param delayMillis The delay the sync would have without any failures
+     * @param nowMillis   The time now
+     * @return The delay to use
+     */
+    long adjustDelayMillis(long delayMillis, long nowMillis) {
+        if (isCircuitOpen(nowMillis)) {
+            return Math.max(delayMillis, mOpenUntilMillis - nowMillis);
+        }
+        if (mRetryAtMillis != 0) {
+            return Math.max(MIN_RETRY_DELAY_MILLIS, mRetryAtMillis - nowMillis);
+        }
+        return delayMillis;
+    }
+
+    /**
+     * @return When the backoff wants the next try, or 0 if the last sync didn't fail
+     */
+    long getRetryAtMillis() {
+        return mRetryAtMillis;
+    }
+
+    /**
+     * @param nowMillis The time now
+     * @return true if fetches are being held back
+     */
+    boolean isCircuitOpen(long nowMillis) {
+        return nowMillis < mOpenUntilMillis;
+    }
+
+    /* Starts over if the source isn't the one being tracked */
+    private void startTracking(String source) {
+        if (source.equals(mSource)) {
+            return;
+        }
+
+        mSource = source;
+        clearFailures();
+    }
+
+    private void clearFailures() {
+        for (int kind = 0; kind < FAILURE_KIND_COUNT; kind++) {
+            mConsecutiveFailures[kind] = 0;
+        }
+        mRetryAtMillis = 0;
+        mOpenUntilMillis = 0;
+        mTimesOpened = 0;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work of a sync job, in a way the job can stop part way through.
+ * <p>
+ * The work is a list of {@link Stage}s, run one after another on a thread of the executor's
+ * own. Each stage is handed a CancellationSignal, which is how stopping reaches the work:
+ * the sync code passes it down to NetworkUtils, which closes the connection under a blocked
+ * read, and checks it before committing anything. Interrupting the thread, which is all an
+ * AsyncTask can do, doesn't reach a socket read at all.
+ * <p>
+ * Each stage also has a deadline. When it passes, the stage's signal is cancelled just as if
+ * the job had been stopped, so a server that answers slowly, or stops answering part way
+ * through, can't hold the job for longer than the stage was given. A stage that writes to the
+ * database hands the deadline on to the provider, which rolls back a commit that can't make it.
+ * <p>
+ * However the work ends, the {@link Callback} is called exactly once, with a {@link Result}
+ * that says whether the work needs to be tried again. If the job was stopped, {@link #stop()}
+ * has already returned that, and the result only says so.
+ */
+final class SyncJobExecutor {
+
+    private static final String TAG = SyncJobExecutor.class.getSimpleName();
+
+    /* How long the job may take to sync the current location, and then every other one */
+    static final long CURRENT_LOCATION_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    static final long SAVED_LOCATIONS_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(90);
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    private static final int STATE_NEW = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_FINISHED = 2;
+    private static final int STATE_STOPPED = 3;
+
+    private static ThreadPoolExecutor sWorkers;
+    private static ScheduledThreadPoolExecutor sTimer;
+
+    /**
+     * One stage of a job's work.
+     */
+    abstract static class Stage {
+
+        /* For the logs, and for Result#timedOutStage */
+        final String name;
+
+        final long timeoutMillis;
+
+        /**
+         * @param name          What the stage does, for the logs
+         * @param timeoutMillis How long the stage may take
+         */
+        Stage(String name, long timeoutMillis) {
+            this.name = name;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * Does the work of the stage. When the signal is cancelled, the stage should give up
+         * as soon as it can, without committing anything it hasn't already.
+         *
+         * @param context            The application Context
+         * @param cancellationSignal Cancelled when the job is stopped, or the deadline passes
+         * @param deadlineMillis     The SystemClock#elapsedRealtime by which the stage has to
+         *                           be done
+         * @return The number of rows the stage wrote
+         * @throws InterruptedException If the thread was interrupted while waiting, which
+         *                              happens when the job is stopped
+         */
+        abstract int run(Context context, CancellationSignal cancellationSignal,
+                long deadlineMillis) throws InterruptedException;
+    }
+
+    /**
+     * How the job's work ended.
+     */
+    static final class Result {
+
+        /* The rows written by the stages that got to commit */
+        final int rowsWritten;
+
+        /* Whether the job was stopped before its work was done */
+        final boolean stopped;
+
+        /* The name of the stage that ran out of time, or null if none did */
+        final String timedOutStage;
+
+        Result(int rowsWritten, boolean stopped, String timedOutStage) {
+            this.rowsWritten = rowsWritten;
+            this.stopped = stopped;
+            this.timedOutStage = timedOutStage;
+        }
+
+        /**
+         * @return true if the work didn't get done, so the job should be tried again, rather
+         * than waiting for its next scheduled run
+         */
+        boolean needsReschedule() {
+            return stopped || timedOutStage != null;
+        }
+
+        @Override
+        public String toString() {
+            return rowsWritten + " rows written"
+                    + (stopped ? ", stopped" : "")
+                    + (timedOutStage != null ? ", " + timedOutStage + " timed out" : "");
+        }
+    }
+
+    /**
+     * Told when the job's work has ended.
+     */
+    interface Callback {
+        /**
+         * Called exactly once, on the executor's thread.
+         *
+         * @param result How the work ended
+         */
+        void onFinished(Result result);
+    }
+
+    private final Context mContext;
+    private final Stage[] mStages;
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_NEW);
+    private final Object mLock = new Object();
+
+    /* The signal of the stage that is running, and the thread running it, for #stop */
+    private CancellationSignal mStageSignal;
+    private Thread mWorker;
+
+    /**
+     * @param context The application Context
+     * @param stages  The work, in the order it is to be done
+     */
+    SyncJobExecutor(Context context, Stage... stages) {
+        mContext = context;
+        mStages = stages;
+    }
+
+    /**
+     * Creates the executor for the periodic sync job. It syncs the current location through
+     * {@link SunshineSyncQueue}, joining any sync of it that is already on its way, and then
+     * keeps every other saved location warm, so switching to one is instant.
+     *
+     * @param context Used to get the application Context
+     * @return The executor, ready to {@link #start}
+     */
+    static SyncJobExecutor forSyncJob(Context context) {
+        return new SyncJobExecutor(context.getApplicationContext(),
+                new Stage("current location", CURRENT_LOCATION_TIMEOUT_MILLIS) {
+                    @Override
+                    int run(Context context, CancellationSignal cancellationSignal,
+                            long deadlineMillis) throws InterruptedException {
+                        /* Stopping lets go of the sync, which cancels it if nobody else waits */
+                        SunshineSyncQueue.SyncRequest request = SunshineSyncQueue
+                                .getInstance(context)
+                                .requestSync(cancellationSignal);
+                        long remainingMillis = deadlineMillis - SystemClock.elapsedRealtime();
+                        if (!request.await(remainingMillis, TimeUnit.MILLISECONDS)) {
+                            return 0;
+                        }
+                        return request.getRowsWritten();
+                    }
+                },
+                new Stage("saved locations", SAVED_LOCATIONS_TIMEOUT_MILLIS) {
+                    @Override
+                    int run(Context context, CancellationSignal cancellationSignal,
+                            long deadlineMillis) {
+                        return MultiLocationSyncTask.syncSavedLocations(context,
+                                cancellationSignal, deadlineMillis).rowsWritten;
+                    }
+                });
+    }
+
+    /**
+     * Starts the work on the executor's thread. An executor can only be started once.
+     *
+     * @param callback Told when the work has ended
+     */
+    void start(final Callback callback) {
+        if (!mState.compareAndSet(STATE_NEW, STATE_RUNNING)) {
+            throw new IllegalStateException("A sync job executor can only be started once");
+        }
+
+        getWorkers().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    mWorker = Thread.currentThread();
+                }
+
+                Result result;
+                try {
+                    result = runStages();
+                } finally {
+                    synchronized (mLock) {
+                        mWorker = null;
+                    }
+                    /* An interrupt from #stop is of no use to the callback */
+                    Thread.interrupted();
+                }
+                callback.onFinished(result);
+            }
+        });
+    }
+
+    /**
+     * Stops the work. The stage that is running has its signal cancelled and its thread
+     * interrupted, and no more stages are started. This returns straight away, without waiting
+     * for the stage to wind down, so it can be called from the main thread.
+     *
+     * @return true if the work hadn't finished, so it needs to be tried again
+     */
+    boolean stop() {
+        if (!mState.compareAndSet(STATE_RUNNING, STATE_STOPPED)) {
+            return false;
+        }
+
+        final CancellationSignal stageSignal;
+        synchronized (mLock) {
+            stageSignal = mStageSignal;
+            if (mWorker != null) {
+                mWorker.interrupt();
+            }
+        }
+
+        if (stageSignal != null) {
+            /* Cancelling closes connections, which mustn't happen on the main thread */
+            getTimer().execute(new Runnable() {
+                @Override
+                public void run() {
+                    stageSignal.cancel();
+                }
+            });
+        }
+        return true;
+    }
+
+    private Result runStages() {
+        int rowsWritten = 0;
+        String timedOutStage = null;
+
+        for (Stage stage : mStages) {
+            if (mState.get() != STATE_RUNNING) break;
+
+            final CancellationSignal signal = new CancellationSignal();
+            synchronized (mLock) {
+                mStageSignal = signal;
+            }
+            /* In case the job was stopped before #stop could see this stage's signal */
+            if (mState.get() != STATE_RUNNING) {
+                signal.cancel();
+            }
+
+            final AtomicBoolean timedOut = new AtomicBoolean();
+            long deadlineMillis = SystemClock.elapsedRealtime() + stage.timeoutMillis;
+            ScheduledFuture<?> timeout = getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut.set(true);
+                    signal.cancel();
+                }
+            }, stage.timeoutMillis, TimeUnit.MILLISECONDS);
+
+            long stageStart = SystemClock.elapsedRealtime();
+            try {
+                rowsWritten += stage.run(mContext, signal, deadlineMillis);
+            } catch (OperationCanceledException e) {
+                /* Stopped or out of time, which is sorted out below */
+            } catch (InterruptedException e) {
+                /* The job was stopped */
+                break;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Sync job stage " + stage.name + " failed", e);
+            } finally {
+                timeout.cancel(false);
+                /* Lets go of anything the stage left waiting, such as a queued sync */
+                signal.cancel();
+            }
+
+            Log.d(TAG, "Sync job stage " + stage.name + " took "
+                    + (SystemClock.elapsedRealtime() - stageStart) + " ms");
+
+            if (mState.get() == STATE_RUNNING
+                    && (timedOut.get() || SystemClock.elapsedRealtime() >= deadlineMillis)) {
+                timedOutStage = stage.name;
+                break;
+            }
+        }
+
+        synchronized (mLock) {
+            mStageSignal = null;
+        }
+
+        /* If #stop got here first, it has already told the job what happened */
+        boolean stopped = !mState.compareAndSet(STATE_RUNNING, STATE_FINISHED);
+        Result result = new Result(rowsWritten, stopped, timedOutStage);
+        Log.d(TAG, "Sync job finished: " + result);
+        return result;
+    }
+
+    private static synchronized ThreadPoolExecutor getWorkers() {
+        if (sWorkers == null) {
+            /*
+             * A job that was stopped can still be winding down when the next one starts, so
+             * each gets a thread of its own rather than waiting in line.
+             */
+            sWorkers = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            return new Thread(runnable,
+                                    "SunshineSyncJob-" + mCount.incrementAndGet());
+                        }
+                    });
+        }
+        return sWorkers;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getTimer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "SunshineSyncJobTimer");
+                }
+            });
+            sTimer.setKeepAliveTime(IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            sTimer.allowCoreThreadTimeOut(true);
+        }
+        return sTimer;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the weather server answers a forecast request with an error, rather than a
+ * forecast. The server can say so in two places: in the HTTP status of the response, or in the
+ * "cod" of a JSON body that was sent with a 200. Either way, the code is kept, so that the sync
+ * can tell a location the server doesn't know (404) from a server that is having trouble (5xx).
+ */
+public final class ForecastErrorException extends IOException {
+
+    private final int mErrorCode;
+
+    /**
+     * @param errorCode The HTTP status, or the "cod" of the JSON body
+     */
+    public ForecastErrorException(int errorCode) {
+        super("Weather server answered with error " + errorCode);
+        mErrorCode = errorCode;
+    }
+
+    /**
+     * @return The HTTP status, or the "cod" of the JSON body
+     */
+    public int getErrorCode() {
+        return mErrorCode;
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small on-disk cache of forecast responses, keyed by the normalized request URL. It lets the
+ * sync show a location we've looked at recently without waiting on the network, and holds on to
+ * the ETag and Last-Modified headers we need to make conditional requests.
+ * <p>
+ * Entries are fresh for {@link #DEFAULT_FRESHNESS_LIFETIME_MILLIS}. A fresh entry is served
+ * without going to the network at all. After that, an entry is stale but can still be shown for
+ * up to {@link #MAX_STALENESS_MILLIS} while the sync revalidates it with the server. The cache
+ * is bounded by the total size of its entries, and evicts the least recently used entries first.
+ */
+public final class ForecastResponseCache {
+
+    private static final String TAG = ForecastResponseCache.class.getSimpleName();
+
+    /* Name of the directory, inside the app's cache directory, that holds the entries */
+    private static final String CACHE_DIRECTORY_NAME = "forecast_responses";
+
+    /* A 14 day forecast is about 7KB, so this is plenty of room for every city a user checks */
+    private static final long DEFAULT_MAX_SIZE_BYTES = 512 * 1024;
+
+    /* Sunshine syncs every 3 hours, so anything newer than an hour is as good as it gets */
+    public static final long DEFAULT_FRESHNESS_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /* Beyond a day old, a forecast is too far out of date to show while we revalidate it */
+    public static final long MAX_STALENESS_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /* Marks the start of every entry file, so that we never serve a file we didn't write */
+    private static final int ENTRY_MAGIC = 0x53574331;
+
+    private static ForecastResponseCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private long mFreshnessLifetimeMillis = DEFAULT_FRESHNESS_LIFETIME_MILLIS;
+
+    /* File name -> entry size in bytes, in least recently used order. Loaded lazily from disk. */
+    private LinkedHashMap<String, Long> mIndex;
+    private long mSizeBytes;
+
+    /**
+     * A cached response, along with the time it was fetched and the validators it came with.
+     */
+    public static final class Entry {
+        public final byte[] body;
+        public final long fetchedAtMillis;
+        public final String eTag;
+        public final String lastModified;
+
+        private final long mFreshnessLifetimeMillis;
+
+        Entry(byte[] body, long fetchedAtMillis, String eTag, String lastModified,
+              long freshnessLifetimeMillis) {
+            this.body = body;
+            this.fetchedAtMillis = fetchedAtMillis;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            mFreshnessLifetimeMillis = freshnessLifetimeMillis;
+        }
+
+        /**
+         * @return true if this entry is recent enough to use without asking the server
+         */
+        public boolean isFresh(long nowMillis) {
+            long age = nowMillis - fetchedAtMillis;
+            return age >= 0 && age < mFreshnessLifetimeMillis;
+        }
+    }
+
+    /**
+     * Returns the cache that the app uses, stored in the app's cache directory.
+     *
+     * @param context Used to find the cache directory
+     */
+    public static synchronized ForecastResponseCache getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getCacheDir(), CACHE_DIRECTORY_NAME);
+            sInstance = new ForecastResponseCache(directory, DEFAULT_MAX_SIZE_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param directory    Where the entries are stored. Created if it doesn't exist.
+     * @param maxSizeBytes The most bytes of entries to keep before evicting the oldest
+     */
+    public ForecastResponseCache(File directory, long maxSizeBytes) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Changes how long entries are served without revalidation. Entries that are already in the
+     * cache are judged against the new lifetime the next time they are read.
+     *
+     * @param freshnessLifetimeMillis How long after it was fetched an entry counts as fresh
+     */
+    public synchronized void setFreshnessLifetime(long freshnessLifetimeMillis) {
+        mFreshnessLifetimeMillis = freshnessLifetimeMillis;
+    }
+
+    /**
+     * Returns the cached response for a URL, if there is one that isn't too stale to show.
+     *
+     * @param url The request URL. It doesn't have to be normalized.
+     * @return The entry, or null if there is no usable entry for this URL
+     */
+    public synchronized Entry get(URL url) {
+        String key = normalizeUrl(url);
+        String fileName = fileNameForKey(key);
+        ensureIndexLoaded();
+
+        if (!mIndex.containsKey(fileName)) {
+            return null;
+        }
+
+        Entry entry = readEntry(new File(mDirectory, fileName), key);
+        if (entry == null
+                || System.currentTimeMillis() - entry.fetchedAtMillis > MAX_STALENESS_MILLIS) {
+            remove(fileName);
+            return null;
+        }
+
+        /* Reading the entry from the index moves it to the most recently used end */
+        mIndex.get(fileName);
+        new File(mDirectory, fileName).setLastModified(System.currentTimeMillis());
+
+        return entry;
+    }
+
+    /**
+     * Stores a response, replacing whatever was cached for the same URL.
+     *
+     * @param url          The request URL. It doesn't have to be normalized.
+     * @param body         The uncompressed body of the response
+     * @param eTag         The ETag header of the response, or null
+     * @param lastModified The Last-Modified header of the response, or null
+     */
+    public synchronized void put(URL url, byte[] body, String eTag, String lastModified) {
+        write(url, body, System.currentTimeMillis(), eTag, lastModified);
+    }
+
+    /**
+     * Marks the cached response for a URL as fetched just now. Used when the server confirms,
+     * with a 304, that the cached response is still current.
+     *
+     * @param url The request URL. It doesn't have to be normalized.
+     */
+    public synchronized void markRevalidated(URL url) {
+        Entry entry = get(url);
+        if (entry != null) {
+            write(url, entry.body, System.currentTimeMillis(), entry.eTag, entry.lastModified);
+        }
+    }
+
+    /**
+     * Removes the cached response for a URL, for a response that turned out to be unusable.
+     *
+     * @param url The request URL. It doesn't have to be normalized.
+     */
+    public synchronized void remove(URL url) {
+        ensureIndexLoaded();
+        remove(fileNameForKey(normalizeUrl(url)));
+    }
+
+    /**
+     * Removes every entry from the cache.
+     */
+    public synchronized void clear() {
+        ensureIndexLoaded();
+        for (String fileName : mIndex.keySet()) {
+            new File(mDirectory, fileName).delete();
+        }
+        mIndex.clear();
+        mSizeBytes = 0;
+    }
+
+    /**
+     * @return The total size of the entries in the cache, in bytes
+     */
+    public synchronized long size() {
+        ensureIndexLoaded();
+        return mSizeBytes;
+    }
+
+    /**
+     * Normalizes a URL so that requests for the same thing share a cache entry: the scheme and
+     * host are lower cased, a default port is dropped, the query parameters are sorted and the
+     * fragment is removed.
+     *
+     * @param url The URL to normalize
+     * @return The normalized URL, as a String
+     */
+    public static String normalizeUrl(URL url) {
+        StringBuilder normalized = new StringBuilder();
+        normalized.append(url.getProtocol().toLowerCase(Locale.US))
+                .append("://")
+                .append(url.getHost().toLowerCase(Locale.US));
+
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            normalized.append(':').append(url.getPort());
+        }
+
+        String path = url.getPath();
+        normalized.append(path == null || path.isEmpty() ? "/" : path);
+
+        String query = url.getQuery();
+        if (query != null && !query.isEmpty()) {
+            String[] parameters = query.split("&");
+            Arrays.sort(parameters);
+            normalized.append('?');
+            for (int i = 0; i < parameters.length; i++) {
+                if (i > 0) normalized.append('&');
+                normalized.append(parameters[i]);
+            }
+        }
+
+        return normalized.toString();
+    }
+
+    private void write(URL url, byte[] body, long fetchedAtMillis, String eTag,
+                       String lastModified) {
+        String key = normalizeUrl(url);
+        String fileName = fileNameForKey(key);
+        ensureIndexLoaded();
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+
+        /*
+         * Write the new entry to a temporary file first and then rename it over the old one, so
+         * a reader never sees a half written entry.
+         */
+        File entryFile = new File(mDirectory, fileName);
+        File tempFile = new File(mDirectory, fileName + TEMP_SUFFIX);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(ENTRY_MAGIC);
+                out.writeUTF(key);
+                out.writeLong(fetchedAtMillis);
+                writeNullableString(out, eTag);
+                writeNullableString(out, lastModified);
+                out.writeInt(body.length);
+                out.write(body);
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(entryFile)) {
+                throw new IOException("Unable to rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to cache " + key, e);
+            tempFile.delete();
+            return;
+        }
+
+        Long previousSize = mIndex.remove(fileName);
+        if (previousSize != null) {
+            mSizeBytes -= previousSize;
+        }
+        long size = entryFile.length();
+        mIndex.put(fileName, size);
+        mSizeBytes += size;
+
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> leastRecentlyUsed = mIndex.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && leastRecentlyUsed.hasNext()) {
+            Map.Entry<String, Long> eldest = leastRecentlyUsed.next();
+            new File(mDirectory, eldest.getKey()).delete();
+            mSizeBytes -= eldest.getValue();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    private void remove(String fileName) {
+        Long size = mIndex.remove(fileName);
+        if (size != null) {
+            mSizeBytes -= size;
+        }
+        new File(mDirectory, fileName).delete();
+    }
+
+    /**
+     * Builds the LRU index from the entries on disk the first time the cache is used. Files are
+     * ordered by their modification time, which we bump every time an entry is read.
+     */
+    private void ensureIndexLoaded() {
+        if (mIndex != null) return;
+
+        mIndex = new LinkedHashMap<>(16, 0.75f, true);
+        mSizeBytes = 0;
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long difference = first.lastModified() - second.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(ENTRY_SUFFIX)) {
+                mIndex.put(name, file.length());
+                mSizeBytes += file.length();
+            } else {
+                /* Leftover temporary file from a write that didn't finish */
+                file.delete();
+            }
+        }
+
+        trimToSize();
+    }
+
+    private Entry readEntry(File file, String expectedKey) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != ENTRY_MAGIC) return null;
+
+                /* Two URLs whose names hash to the same file must not share an entry */
+                if (!expectedKey.equals(in.readUTF())) return null;
+
+                long fetchedAtMillis = in.readLong();
+                String eTag = readNullableString(in);
+                String lastModified = readNullableString(in);
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+
+                return new Entry(body, fetchedAtMillis, eTag, lastModified,
+                        mFreshnessLifetimeMillis);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            return null;
+        }
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static String fileNameForKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + ENTRY_SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(ENTRY_SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            /* Every Android device has SHA-1 */
+            throw new IllegalStateException(e);
+        }
+    }
+}
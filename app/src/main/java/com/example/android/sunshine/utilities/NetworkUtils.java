@@ -17,16 +17,23 @@ package com.example.android.sunshine.utilities;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.util.Log;
 
 import com.example.android.sunshine.data.SunshinePreferences;
 
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Scanner;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * These utilities will be used to communicate with the weather servers.
@@ -83,6 +90,62 @@ public final class NetworkUtils {
     /* The days parameter allows us to designate how many days of weather data we want */
     private static final String DAYS_PARAM = "cnt";
 
+    /*
+     * Size of the read buffer when the server doesn't tell us how long the response is. A 14 day
+     * forecast is a few KB, so this is normally big enough to read the whole body in one go.
+     */
+    private static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
+
+    /*
+     * The read buffer is kept around between requests so that every sync doesn't have to
+     * allocate a new one. If a very large response forces us to grow past this size, we let that
+     * buffer go afterwards rather than holding on to it for the lifetime of the process.
+     */
+    private static final int MAX_RETAINED_READ_BUFFER_SIZE = 256 * 1024;
+
+    /*
+     * Each thread keeps a buffer of its own, so that reads on different threads never wait on
+     * each other while one of them is blocked on its socket.
+     */
+    private static final ThreadLocal<byte[]> sReadBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DEFAULT_READ_BUFFER_SIZE];
+        }
+    };
+
+    /* Headers used to make conditional requests, so unchanged data isn't downloaded again */
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    /*
+     * Forecast JSON compresses extremely well, so we always ask for a compressed response.
+     * Because we set Accept-Encoding ourselves, HttpURLConnection leaves the decompression to us,
+     * which is what lets us count the bytes on both sides of it.
+     */
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+
+    /**
+     * Receives the raw body of an HTTP response, for callers (such as the streaming JSON parser)
+     * that would rather read the bytes as they arrive than wait for a String of the whole body.
+     *
+     * @param <T> The type of the result produced from the response
+     */
+    public interface ResponseStreamConsumer<T> {
+
+        /**
+         * @param in The body of the response. It is closed for you once this method returns.
+         * @return Whatever the consumer produced from the response
+         * @throws IOException Related to stream reading
+         */
+        T consume(InputStream in) throws IOException;
+    }
+
     /**
      * Retrieves the proper URL to query for the weather data. The reason for both this method as
      * well as {@link #buildUrlWithLocationQuery(String)} is two fold.
@@ -109,6 +172,24 @@ public final class NetworkUtils {
         }
     }
 
+    /**
+     * Retrieves the URL to query for the weather at any saved location, not only the user's
+     * current one. Like {@link #getUrl(Context)}, it prefers the coordinates of the location once
+     * we know them.
+     *
+     * @param locationQuery The location setting, as the user entered it
+     * @param coordinates   The latitude and longitude of the location, or null if we don't know
+     *                      them yet
+     * @return URL to query weather service
+     */
+    public static URL getUrlForLocation(String locationQuery, double[] coordinates) {
+        if (coordinates != null) {
+            return buildUrlWithLatitudeLongitude(coordinates[0], coordinates[1]);
+        } else {
+            return buildUrlWithLocationQuery(locationQuery);
+        }
+    }
+
     /**
      * Builds the URL used to talk to the weather server using latitude and longitude of a
      * location.
@@ -171,20 +252,332 @@ public final class NetworkUtils {
     public static String getResponseFromHttpUrl(URL url) throws IOException {
         HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
         try {
-            InputStream in = urlConnection.getInputStream();
+            urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+
+            String contentEncoding = urlConnection.getContentEncoding();
+            InputStream in = decodeContent(urlConnection.getInputStream(), contentEncoding);
+
+            /* Content-Length is only the size of the body if the body isn't compressed */
+            int contentLength = contentEncoding == null ? urlConnection.getContentLength() : -1;
+            try {
+                return readResponseBody(in, contentLength);
+            } finally {
+                in.close();
+            }
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
 
-            Scanner scanner = new Scanner(in);
-            scanner.useDelimiter("\\A");
+    /**
+     * Performs the HTTP request and hands the body of the response to a consumer as a stream,
+     * without first reading it into memory.
+     *
+     * @param url      The URL to fetch the HTTP response from.
+     * @param consumer Reads the body of the response
+     * @param <T>      The type of the result produced by the consumer
+     * @return Whatever the consumer returned
+     * @throws IOException Related to network and stream reading
+     */
+    public static <T> T getResponseFromHttpUrl(URL url, ResponseStreamConsumer<T> consumer)
+            throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        try {
+            urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
 
-            boolean hasInput = scanner.hasNext();
-            String response = null;
-            if (hasInput) {
-                response = scanner.next();
+            InputStream in = decodeContent(urlConnection.getInputStream(),
+                    urlConnection.getContentEncoding());
+            try {
+                return consumer.consume(in);
+            } finally {
+                in.close();
             }
-            scanner.close();
-            return response;
         } finally {
             urlConnection.disconnect();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Performs a conditional HTTP request. If validators from an earlier response are passed in,
+     * they are sent as If-None-Match and If-Modified-Since headers. If the server answers with
+     * 304 Not Modified, the consumer is never called and the returned {@link Response} reports
+     * {@link Response#isNotModified()}.
+     *
+     * @param url          The URL to fetch the HTTP response from.
+     * @param eTag         The ETag of the last response for this URL, or null
+     * @param lastModified The Last-Modified header of the last response for this URL, or null
+     * @param consumer     Reads the body of the response, if there is one
+     * @param <T>          The type of the result produced by the consumer
+     * @return The response, including the validators the server sent with it
+     * @throws IOException Related to network and stream reading
+     */
+    public static <T> Response<T> getConditionalResponseFromHttpUrl(
+            URL url, String eTag, String lastModified, ResponseStreamConsumer<T> consumer)
+            throws IOException {
+        return getConditionalResponseFromHttpUrl(url, eTag, lastModified, consumer, null, 0);
+    }
+
+    /**
+     * Performs a conditional HTTP request, like
+     * {@link #getConditionalResponseFromHttpUrl(URL, String, String, ResponseStreamConsumer)},
+     * that can be cancelled while it is waiting on the network.
+     * <p>
+     * A thread blocked reading from a socket doesn't notice being interrupted, so cancelling
+     * the signal disconnects the connection instead, which closes the socket under the read and
+     * makes it fail straight away. The signal is also checked before every read of the body, in
+     * case it was cancelled before there was a connection to close. Either way, the request
+     * ends in an {@link OperationCanceledException} rather than the IOException the closed socket threw,
+     * so the caller can tell a cancelled request from a failed one.
+     *
+     * @param url                The URL to fetch the HTTP response from.
+     * @param eTag               The ETag of the last response for this URL, or null
+     * @param lastModified       The Last-Modified header of the last response for this URL, or
+     *                           null
+     * @param consumer           Reads the body of the response, if there is one
+     * @param cancellationSignal Cancels the request, or null if it can't be cancelled. This
+     *                           method takes the signal's OnCancelListener for as long as it runs.
+     * @param timeoutMillis      How long to wait to connect, and for each read, or 0 to wait as
+     *                           long as it takes
+     * @param <T>                The type of the result produced by the consumer
+     * @return The response, including the validators the server sent with it
+     * @throws ForecastErrorException If the server answered with an HTTP error status
+     * @throws IOException Related to network and stream reading
+     * @throws OperationCanceledException If the signal was cancelled
+     */
+    public static <T> Response<T> getConditionalResponseFromHttpUrl(
+            URL url, String eTag, String lastModified, ResponseStreamConsumer<T> consumer,
+            final CancellationSignal cancellationSignal, int timeoutMillis)
+            throws IOException {
+        final HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        if (cancellationSignal != null) {
+            /* Called straight away if the signal has already been cancelled */
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    urlConnection.disconnect();
+                }
+            });
+        }
+
+        try {
+            urlConnection.setConnectTimeout(timeoutMillis);
+            urlConnection.setReadTimeout(timeoutMillis);
+            urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+            if (eTag != null) {
+                urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, eTag);
+            }
+            if (lastModified != null) {
+                urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+            }
+
+            throwIfCanceled(cancellationSignal);
+            int responseCode = urlConnection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                /* Nothing has changed since last time, so there is no body to read */
+                return new Response<>(responseCode, null, eTag, lastModified, 0, 0);
+            }
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                /* The body would only describe the error, and the status already does */
+                throw new ForecastErrorException(responseCode);
+            }
+
+            /*
+             * The body is decompressed as it is read, so the consumer never sees the compressed
+             * bytes and we never hold the whole response in memory. Counting on both sides of
+             * the decompressor tells us how well the compression worked.
+             */
+            InputStream networkIn = urlConnection.getInputStream();
+            if (cancellationSignal != null) {
+                networkIn = new CancellableInputStream(networkIn, cancellationSignal);
+            }
+            CountingInputStream wireIn = new CountingInputStream(networkIn);
+            CountingInputStream bodyIn = new CountingInputStream(
+                    decodeContent(wireIn, urlConnection.getContentEncoding()));
+            T body;
+            try {
+                body = consumer.consume(bodyIn);
+            } finally {
+                bodyIn.close();
+            }
+
+            return new Response<>(responseCode,
+                    body,
+                    urlConnection.getHeaderField(HEADER_ETAG),
+                    urlConnection.getHeaderField(HEADER_LAST_MODIFIED),
+                    wireIn.getCount(),
+                    bodyIn.getCount());
+        } catch (IOException e) {
+            /* The socket was closed under us because the request was cancelled */
+            throwIfCanceled(cancellationSignal);
+            throw e;
+        } finally {
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
+            urlConnection.disconnect();
+        }
+    }
+
+    private static void throwIfCanceled(CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+    }
+
+    /**
+     * Checks a CancellationSignal before every read, so that a body that keeps arriving doesn't
+     * keep a cancelled request going.
+     */
+    private static final class CancellableInputStream extends FilterInputStream {
+
+        private final CancellationSignal mCancellationSignal;
+
+        CancellableInputStream(InputStream in, CancellationSignal cancellationSignal) {
+            super(in);
+            mCancellationSignal = cancellationSignal;
+        }
+
+        @Override
+        public int read() throws IOException {
+            mCancellationSignal.throwIfCanceled();
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            mCancellationSignal.throwIfCanceled();
+            return in.read(buffer, offset, length);
+        }
+    }
+
+    /**
+     * The result of {@link #getConditionalResponseFromHttpUrl}: the status code, whatever the
+     * consumer made of the body, and the validators to send with the next request for the same
+     * URL.
+     *
+     * @param <T> The type of the result produced from the body
+     */
+    public static final class Response<T> {
+
+        public final int responseCode;
+
+        /* Null if the server answered 304 Not Modified */
+        public final T body;
+
+        /* Validators for the next conditional request. Either may be null. */
+        public final String eTag;
+        public final String lastModified;
+
+        /* Bytes of the body as they came over the network, and after decompression */
+        public final long wireBytes;
+        public final long bodyBytes;
+
+        Response(int responseCode, T body, String eTag, String lastModified,
+                 long wireBytes, long bodyBytes) {
+            this.responseCode = responseCode;
+            this.body = body;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.wireBytes = wireBytes;
+            this.bodyBytes = bodyBytes;
+        }
+
+        public boolean isNotModified() {
+            return responseCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+    }
+
+    /**
+     * Wraps a response body in the decompressor that matches its Content-Encoding.
+     * <p>
+     * "deflate" is meant to be zlib-wrapped deflate data, but plenty of servers send raw deflate
+     * data instead, so we look at the first two bytes to tell the two apart.
+     *
+     * @param in              The body of the response, as it came over the network
+     * @param contentEncoding The Content-Encoding header of the response, or null
+     * @return A stream of the decompressed body
+     * @throws IOException Related to stream reading
+     */
+    static InputStream decodeContent(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+
+        if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(in);
+        }
+
+        if (ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding)) {
+            BufferedInputStream buffered = new BufferedInputStream(in);
+            buffered.mark(2);
+            int first = buffered.read();
+            int second = buffered.read();
+            buffered.reset();
+
+            /* A zlib header is 0x?8 followed by a byte that makes the pair a multiple of 31 */
+            boolean zlibWrapped = first != -1 && second != -1
+                    && (first & 0x0F) == 8
+                    && ((first << 8) | second) % 31 == 0;
+
+            /* We created this Inflater, so we have to release its native memory ourselves */
+            final Inflater inflater = new Inflater(!zlibWrapped);
+            return new InflaterInputStream(buffered, inflater) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inflater.end();
+                }
+            };
+        }
+
+        /* "identity", or something we didn't ask for and can't decode */
+        return in;
+    }
+
+    /**
+     * Reads an entire response body into a String. The body is read into a byte buffer that is
+     * reused between calls on the same thread, sized up front from the Content-Length header when the server sends
+     * one, and is then decoded from UTF-8 in a single pass.
+     *
+     * @param in            The body of the response
+     * @param contentLength The value of the Content-Length header, or -1 if it is unknown
+     * @return The body of the response, or null if the body was empty
+     * @throws IOException Related to stream reading
+     */
+    static String readResponseBody(InputStream in, int contentLength)
+            throws IOException {
+        byte[] buffer = sReadBuffer.get();
+        if (contentLength > buffer.length) {
+            buffer = new byte[contentLength];
+        }
+
+        int length = 0;
+        int read;
+        while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if (length == buffer.length) {
+                /*
+                 * The buffer is full. Either we've read exactly Content-Length bytes and the next
+                 * read will return -1, or the server didn't tell us the length (or lied about
+                 * it) and we need more room.
+                 */
+                int next = in.read();
+                if (next == -1) break;
+
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                grown[length++] = (byte) next;
+                buffer = grown;
+            }
+        }
+
+        if (buffer.length <= MAX_RETAINED_READ_BUFFER_SIZE) {
+            sReadBuffer.set(buffer);
+        }
+
+        if (length == 0) {
+            return null;
+        }
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+}
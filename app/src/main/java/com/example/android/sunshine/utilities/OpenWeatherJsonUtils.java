@@ -17,7 +17,11 @@ package com.example.android.sunshine.utilities;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
 
+import com.example.android.sunshine.data.ForecastBatch;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
 
@@ -25,7 +29,11 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Utility functions to handle OpenWeatherMap JSON data.
@@ -60,6 +68,19 @@ public final class OpenWeatherJsonUtils {
 
     private static final String OWM_MESSAGE_CODE = "cod";
 
+    /* Bits for each field of a day, so we can tell when one is missing without boxing them */
+    private static final int FIELD_PRESSURE = 1;
+    private static final int FIELD_HUMIDITY = 1 << 1;
+    private static final int FIELD_WIND_SPEED = 1 << 2;
+    private static final int FIELD_WIND_DIRECTION = 1 << 3;
+    private static final int FIELD_HIGH = 1 << 4;
+    private static final int FIELD_LOW = 1 << 5;
+    private static final int FIELD_WEATHER_ID = 1 << 6;
+    private static final int ALL_FIELDS = (1 << 7) - 1;
+
+    /* Returned by readWeatherId when the weather object has no ID */
+    private static final int NO_WEATHER_ID = Integer.MIN_VALUE;
+
     /**
      * This method parses JSON from a web response and returns an array of Strings
      * describing the weather over various days from the forecast.
@@ -181,4 +202,377 @@ public final class OpenWeatherJsonUtils {
 
         return weatherContentValues;
     }
+
+    /**
+     * Streaming counterpart of {@link #getWeatherContentValuesFromJson(Context, String)}. Rather
+     * than reading the whole response into a String and building a JSONObject tree out of it,
+     * this method pulls tokens straight off of the HTTP InputStream with a {@link JsonReader}.
+     * Each day's values are stored as soon as that day's object has been read, and any field
+     * we don't care about is skipped without ever being turned into a Java object.
+     * <p>
+     * The results are the same as the DOM parser's: the same rows, the same normalized dates,
+     * the same call to {@link SunshinePreferences#setLocationDetails(Context, double, double)}
+     * and null when the server reports an error code. Unlike the DOM parser, this one doesn't
+     * care whether "city" shows up before or after "list" in the response.
+     *
+     * @param context         Used to save the location coordinates from the response
+     * @param forecastJsonIn  Stream of the JSON response from the server. It is read fully but
+     *                        not closed; that is up to the caller.
+     *
+     * @return Array of ContentValues for each day of the forecast, or null if the server
+     * responded with an error code
+     *
+     * @throws IOException If the stream cannot be read or the JSON is missing required data
+     */
+    public static ContentValues[] getWeatherContentValuesFromStream(Context context,
+                                                                    InputStream forecastJsonIn)
+            throws IOException {
+
+        ForecastBatch forecast = getForecastBatchFromStream(context, forecastJsonIn, null);
+        return forecast == null ? null : forecast.toContentValues();
+    }
+
+    /**
+     * Parses a forecast off of a stream, like
+     * {@link #getWeatherContentValuesFromStream(Context, InputStream)}, but stores the days in a
+     * {@link ForecastBatch} instead of ContentValues. Every number goes straight from the
+     * JsonReader into a primitive array, so nothing is allocated per day.
+     *
+     * @param context         Used to save the location coordinates from the response
+     * @param forecastJsonIn  Stream of the JSON response from the server. It is read fully but
+     *                        not closed; that is up to the caller.
+     * @param reuse           A batch to clear and fill, or null to create a new one
+     *
+     * @return The forecast, or null if the server responded with an error code
+     *
+     * @throws IOException If the stream cannot be read or the JSON is missing required data
+     */
+    public static ForecastBatch getForecastBatchFromStream(Context context,
+                                                           InputStream forecastJsonIn,
+                                                           ForecastBatch reuse)
+            throws IOException {
+
+        try {
+            return parseForecastBatch(context, forecastJsonIn, reuse);
+        } catch (ForecastErrorException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a forecast that was fetched some time ago, like
+     * {@link #getForecastBatchFromStream(Context, InputStream, ForecastBatch)}, but numbers its
+     * days from the day it was fetched rather than from today. The days that are already behind
+     * us are left out, so a response cached yesterday doesn't show yesterday's weather as
+     * today's.
+     *
+     * @param context         Used to save the location coordinates from the response
+     * @param forecastJsonIn  Stream of the JSON response from the server. It is read fully but
+     *                        not closed; that is up to the caller.
+     * @param reuse           A batch to clear and fill, or null to create a new one
+     * @param fetchedAtMillis When the response was fetched from the server
+     *
+     * @return The forecast from today on, or null if the server responded with an error code
+     *
+     * @throws IOException If the stream cannot be read or the JSON is missing required data
+     */
+    public static ForecastBatch getForecastBatchFromStream(Context context,
+                                                           InputStream forecastJsonIn,
+                                                           ForecastBatch reuse,
+                                                           long fetchedAtMillis)
+            throws IOException {
+
+        double[] cityCoordinates = new double[2];
+        ForecastBatch forecast;
+        try {
+            forecast = parseForecastBatch(forecastJsonIn, reuse, cityCoordinates,
+                    SunshineDateUtils.getNormalizedUtcDate(fetchedAtMillis),
+                    SunshineDateUtils.getNormalizedUtcDateForToday());
+        } catch (ForecastErrorException e) {
+            return null;
+        }
+        SunshinePreferences.setLocationDetails(context, cityCoordinates[0], cityCoordinates[1]);
+        return forecast;
+    }
+
+    /**
+     * Parses a forecast off of a stream, like
+     * {@link #getForecastBatchFromStream(Context, InputStream, ForecastBatch)}, but throws when
+     * the server responded with an error code instead of returning null, so that the caller can
+     * tell a location the server doesn't know from a server that is down.
+     *
+     * @param context         Used to save the location coordinates from the response
+     * @param forecastJsonIn  Stream of the JSON response from the server. It is read fully but
+     *                        not closed; that is up to the caller.
+     * @param reuse           A batch to clear and fill, or null to create a new one
+     *
+     * @return The forecast
+     *
+     * @throws ForecastErrorException If the server responded with an error code
+     * @throws IOException If the stream cannot be read or the JSON is missing required data
+     */
+    public static ForecastBatch parseForecastBatch(Context context,
+                                                   InputStream forecastJsonIn,
+                                                   ForecastBatch reuse)
+            throws IOException {
+
+        double[] cityCoordinates = new double[2];
+        ForecastBatch forecast = parseForecastBatch(forecastJsonIn, reuse, cityCoordinates);
+        SunshinePreferences.setLocationDetails(context, cityCoordinates[0], cityCoordinates[1]);
+        return forecast;
+    }
+
+    /**
+     * Parses a forecast off of a stream into a {@link ForecastBatch} without touching the
+     * preferences. The coordinates of the city are handed back to the caller instead, which is
+     * what lets several forecasts for different locations be parsed at the same time.
+     *
+     * @param forecastJsonIn  Stream of the JSON response from the server. It is read fully but
+     *                        not closed; that is up to the caller.
+     * @param reuse           A batch to clear and fill, or null to create a new one
+     * @param coordinatesOut  Receives the latitude and longitude of the city, in that order
+     *
+     * @return The forecast, or null if the server responded with an error code
+     *
+     * @throws IOException If the stream cannot be read or the JSON is missing required data
+     */
+    public static ForecastBatch getForecastBatchFromStream(InputStream forecastJsonIn,
+                                                           ForecastBatch reuse,
+                                                           double[] coordinatesOut)
+            throws IOException {
+
+        try {
+            return parseForecastBatch(forecastJsonIn, reuse, coordinatesOut);
+        } catch (ForecastErrorException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a forecast off of a stream without touching the preferences, like
+     * {@link #getForecastBatchFromStream(InputStream, ForecastBatch, double[])}, but throws when
+     * the server responded with an error code instead of returning null.
+     *
+     * @param forecastJsonIn  Stream of the JSON response from the server. It is read fully but
+     *                        not closed; that is up to the caller.
+     * @param reuse           A batch to clear and fill, or null to create a new one
+     * @param coordinatesOut  Receives the latitude and longitude of the city, in that order
+     *
+     * @return The forecast
+     *
+     * @throws ForecastErrorException If the server responded with an error code
+     * @throws IOException If the stream cannot be read or the JSON is missing required data
+     */
+    public static ForecastBatch parseForecastBatch(InputStream forecastJsonIn,
+                                                   ForecastBatch reuse,
+                                                   double[] coordinatesOut)
+            throws IOException {
+
+        long normalizedUtcToday = SunshineDateUtils.getNormalizedUtcDateForToday();
+        return parseForecastBatch(forecastJsonIn, reuse, coordinatesOut,
+                normalizedUtcToday, normalizedUtcToday);
+    }
+
+    /**
+     * Parses a forecast whose first day is normalizedUtcStartDay, leaving out the days before
+     * firstDateToKeep.
+     */
+    private static ForecastBatch parseForecastBatch(InputStream forecastJsonIn,
+                                                    ForecastBatch reuse,
+                                                    double[] coordinatesOut,
+                                                    long normalizedUtcStartDay,
+                                                    long firstDateToKeep)
+            throws IOException {
+
+        JsonReader reader = new JsonReader(
+                new InputStreamReader(forecastJsonIn, StandardCharsets.UTF_8));
+
+        ForecastBatch forecast = reuse == null ? new ForecastBatch() : reuse;
+        forecast.clear();
+
+        boolean hasList = false;
+        double[] cityCoordinates = null;
+        int errorCode = HttpURLConnection.HTTP_OK;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                /* "cod" is sent as a String by some servers and as a number by others */
+                errorCode = reader.nextInt();
+            } else if (OWM_LIST.equals(name)) {
+                readDailyForecasts(reader, normalizedUtcStartDay, firstDateToKeep, forecast);
+                hasList = true;
+            } else if (OWM_CITY.equals(name)) {
+                cityCoordinates = readCityCoordinates(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        /* Same error handling as the DOM parser: any code other than 200 means no data */
+        if (errorCode != HttpURLConnection.HTTP_OK) {
+            throw new ForecastErrorException(errorCode);
+        }
+
+        if (!hasList) {
+            throw new MalformedJsonException("Forecast response has no " + OWM_LIST);
+        }
+        if (cityCoordinates == null) {
+            throw new MalformedJsonException("Forecast response has no city " + OWM_COORD);
+        }
+
+        coordinatesOut[0] = cityCoordinates[0];
+        coordinatesOut[1] = cityCoordinates[1];
+
+        return forecast;
+    }
+
+    /**
+     * Reads the "list" array, adding one row to the batch per day as each day's object is
+     * closed. Dates are derived from the position in the array exactly like the DOM parser.
+     * Days before the first date to keep are skipped.
+     */
+    private static void readDailyForecasts(JsonReader reader, long normalizedUtcStartDay,
+                                           long firstDateToKeep, ForecastBatch forecast)
+            throws IOException {
+
+        reader.beginArray();
+        for (int day = 0; reader.hasNext(); day++) {
+            long dateTimeMillis = normalizedUtcStartDay + SunshineDateUtils.DAY_IN_MILLIS * day;
+            if (dateTimeMillis < firstDateToKeep) {
+                reader.skipValue();
+            } else {
+                readDailyForecast(reader, dateTimeMillis, forecast);
+            }
+        }
+        reader.endArray();
+    }
+
+    private static void readDailyForecast(JsonReader reader, long dateTimeMillis,
+                                          ForecastBatch forecast)
+            throws IOException {
+
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        double high = 0;
+        double low = 0;
+        int weatherId = 0;
+        int fieldsRead = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case OWM_PRESSURE:
+                    pressure = reader.nextDouble();
+                    fieldsRead |= FIELD_PRESSURE;
+                    break;
+                case OWM_HUMIDITY:
+                    /* Matches JSONObject.getInt, which truncates rather than rejecting decimals */
+                    humidity = (int) reader.nextDouble();
+                    fieldsRead |= FIELD_HUMIDITY;
+                    break;
+                case OWM_WINDSPEED:
+                    windSpeed = reader.nextDouble();
+                    fieldsRead |= FIELD_WIND_SPEED;
+                    break;
+                case OWM_WIND_DIRECTION:
+                    windDirection = reader.nextDouble();
+                    fieldsRead |= FIELD_WIND_DIRECTION;
+                    break;
+                case OWM_TEMPERATURE:
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String temperatureName = reader.nextName();
+                        if (OWM_MAX.equals(temperatureName)) {
+                            high = reader.nextDouble();
+                            fieldsRead |= FIELD_HIGH;
+                        } else if (OWM_MIN.equals(temperatureName)) {
+                            low = reader.nextDouble();
+                            fieldsRead |= FIELD_LOW;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                case OWM_WEATHER:
+                    /* Only the first element of the "weather" array is used */
+                    reader.beginArray();
+                    if (reader.hasNext()) {
+                        int firstWeatherId = readWeatherId(reader);
+                        if (firstWeatherId != NO_WEATHER_ID) {
+                            weatherId = firstWeatherId;
+                            fieldsRead |= FIELD_WEATHER_ID;
+                        }
+                    }
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (fieldsRead != ALL_FIELDS) {
+            throw new MalformedJsonException("Incomplete forecast for " + dateTimeMillis);
+        }
+
+        forecast.add(dateTimeMillis, weatherId, low, high, humidity, pressure, windSpeed,
+                windDirection);
+    }
+
+    private static int readWeatherId(JsonReader reader) throws IOException {
+        int weatherId = NO_WEATHER_ID;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                weatherId = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return weatherId;
+    }
+
+    /**
+     * Reads the "city" object and returns {latitude, longitude}, or null if the city has no
+     * coordinates.
+     */
+    private static double[] readCityCoordinates(JsonReader reader) throws IOException {
+        double[] coordinates = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (OWM_COORD.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                coordinates = new double[2];
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordinateName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordinateName)) {
+                        coordinates[0] = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordinateName)) {
+                        coordinates[1] = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return coordinates;
+    }
 }
\ No newline at end of file
@@ -97,6 +97,20 @@ public final class SunshineDateUtils {
         return normalizedUtcMidnightMillis;
     }
 
+    /**
+     * Returns the normalized date of the day a moment fell on in the local time zone, the same
+     * way {@link #getNormalizedUtcDateForToday()} does for the present moment.
+     *
+     * @param utcMillis The moment, in milliseconds since the epoch
+     *
+     * @return The normalized UTC date of the local day the moment fell on
+     */
+    public static long getNormalizedUtcDate(long utcMillis) {
+        long gmtOffsetMillis = TimeZone.getDefault().getOffset(utcMillis);
+        long daysSinceEpochLocal = TimeUnit.MILLISECONDS.toDays(utcMillis + gmtOffsetMillis);
+        return TimeUnit.DAYS.toMillis(daysSinceEpochLocal);
+    }
+
     /**
      * This method returns the number of days since the epoch (January 01, 1970, 12:00 Midnight UTC)
      * in UTC time from the current date.
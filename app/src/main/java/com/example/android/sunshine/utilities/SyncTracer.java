@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records where the time of each sync goes, stage by stage, so that it can be looked at after
+ * the fact, on a real device, rather than only under a debugger.
+ * <p>
+ * A sync is a {@link Trace}. Each stage of it, such as connecting to the server or writing the
+ * forecast to the database, is a {@link Span}, with how long it took, how it ended, and the
+ * bytes and rows it dealt with. The whole sync is a span too, of stage {@link #STAGE_SYNC}.
+ * <p>
+ * Spans go into a ring buffer of fixed size records in a memory mapped file. Writing one is a
+ * handful of puts into memory that is already there: there is no system call, no flushing and
+ * nothing is allocated, which keeps the cost to a microsecond or so a span, a sync of a hundred
+ * milliseconds or more having about half a dozen of them. The kernel writes the pages out in its
+ * own time, so the spans are there after the process dies, as long as the device doesn't lose
+ * power first. Once the buffer is full, each new span takes the place of the oldest one.
+ * <p>
+ * A span's record is written before its sequence number, which goes last, so a record that was
+ * being written when the process died doesn't match the sequence its slot expects, and is left
+ * out when the buffer is read.
+ * <p>
+ * The spans can be read with {@link #readSpans()}, or written out as CSV with
+ * {@link #export(PrintWriter)}, which is how they appear in WeatherProvider's dumpsys.
+ */
+public final class SyncTracer {
+
+    private static final String TAG = SyncTracer.class.getSimpleName();
+
+    /* The stages of a sync */
+    public static final int STAGE_SYNC = 0;
+    public static final int STAGE_BUILD_URL = 1;
+    public static final int STAGE_CONNECT = 2;
+    public static final int STAGE_READ_AND_PARSE = 3;
+    public static final int STAGE_RECONCILE = 4;
+    public static final int STAGE_NOTIFY = 5;
+
+    /* The names stages are exported under, by stage */
+    private static final String[] STAGE_NAMES = {
+            "sync", "buildUrl", "connect", "readAndParse", "reconcile", "notify"
+    };
+
+    /* How a span ended */
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_FAILED = 1;
+    public static final int STATUS_CANCELLED = 2;
+
+    private static final String[] STATUS_NAMES = {"ok", "failed", "cancelled"};
+
+    /* Name of the file, inside the app's files directory, that holds the buffer */
+    private static final String FILE_NAME = "sync_trace";
+
+    /* A sync is about half a dozen spans, so this holds the last couple of hundred syncs */
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /* Marks the start of the file, so that we never read a buffer we didn't write */
+    private static final int MAGIC = 0x53545231;
+    private static final int VERSION = 1;
+
+    /*
+     * The header is the magic, the version, the capacity and 4 bytes of padding, then the
+     * sequence number of the next span, and the ID of the next trace.
+     */
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_NEXT_SEQUENCE = 16;
+    private static final int HEADER_NEXT_TRACE_ID = 24;
+    private static final int HEADER_SIZE = 32;
+
+    /*
+     * A record is its sequence number plus one, so that an empty slot reads as 0, the trace ID,
+     * the wall clock time the span started, its duration in nanoseconds and its bytes, then its
+     * stage and status as shorts, and its rows.
+     */
+    private static final int RECORD_SEQUENCE = 0;
+    private static final int RECORD_TRACE_ID = 8;
+    private static final int RECORD_START_MILLIS = 16;
+    private static final int RECORD_DURATION_NANOS = 24;
+    private static final int RECORD_BYTES = 32;
+    private static final int RECORD_STAGE = 40;
+    private static final int RECORD_STATUS = 42;
+    private static final int RECORD_ROWS = 44;
+    private static final int RECORD_SIZE = 48;
+
+    private static SyncTracer sInstance;
+
+    private final File mFile;
+    private final int mCapacity;
+
+    /* Mapped lazily, and left null if the file can't be mapped, which turns tracing off */
+    private MappedByteBuffer mBuffer;
+    private boolean mMapped;
+
+    /**
+     * One span of a sync, as read back from the buffer.
+     */
+    public static final class Span {
+        public final long traceId;
+        public final int stage;
+        public final int status;
+        public final long startMillis;
+        public final long durationNanos;
+        public final long bytes;
+        public final int rows;
+
+        Span(long traceId, int stage, int status, long startMillis, long durationNanos,
+                long bytes, int rows) {
+            this.traceId = traceId;
+            this.stage = stage;
+            this.status = status;
+            this.startMillis = startMillis;
+            this.durationNanos = durationNanos;
+            this.bytes = bytes;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * The spans of one sync. A trace is used by the thread running the sync, and only by it.
+     * At most one stage is open at a time.
+     */
+    public final class Trace {
+
+        private final long mId;
+        private final long mStartNanos;
+
+        /* The stage that is open, or -1 if none is, and when it began */
+        private int mStage = -1;
+        private long mStageStartNanos;
+
+        private Trace(long id) {
+            mId = id;
+            mStartNanos = System.nanoTime();
+        }
+
+        /**
+         * Begins a stage.
+         *
+         * @param stage One of the STAGE constants
+         */
+        public void begin(int stage) {
+            mStage = stage;
+            mStageStartNanos = System.nanoTime();
+        }
+
+        /**
+         * Ends the open stage, and records it as having gone well. Does nothing if no stage is
+         * open, so a stage that may or may not have been ended already can be ended again.
+         *
+         * @param bytes The bytes the stage read or wrote
+         * @param rows  The rows the stage produced or wrote
+         */
+        public void end(long bytes, int rows) {
+            if (mStage == -1) return;
+            record(mId, mStage, STATUS_OK, mStageStartNanos, bytes, rows);
+            mStage = -1;
+        }
+
+        /**
+         * Ends the open stage, and records it as having failed, for a failure the sync gets
+         * past rather than ending on. Does nothing if no stage is open.
+         */
+        public void fail() {
+            if (mStage == -1) return;
+            record(mId, mStage, STATUS_FAILED, mStageStartNanos, 0, 0);
+            mStage = -1;
+        }
+
+        /**
+         * Ends the sync. If a stage is still open, it is the one that ended the sync early, and
+         * it is recorded with the same status as the sync, and no bytes or rows.
+         *
+         * @param status One of the STATUS constants
+         * @param bytes  The bytes the sync downloaded
+         * @param rows   The rows the sync wrote
+         */
+        public void finish(int status, long bytes, int rows) {
+            if (mStage != -1) {
+                record(mId, mStage, status, mStageStartNanos, 0, 0);
+                mStage = -1;
+            }
+            record(mId, STAGE_SYNC, status, mStartNanos, bytes, rows);
+        }
+    }
+
+    /**
+     * Returns the tracer that the app uses, stored in the app's files directory.
+     *
+     * @param context Used to find the files directory
+     */
+    public static synchronized SyncTracer getInstance(Context context) {
+        if (sInstance == null) {
+            File file = new File(context.getFilesDir(), FILE_NAME);
+            sInstance = new SyncTracer(file, DEFAULT_CAPACITY);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param file     Where the buffer is stored. Created if it doesn't exist, and started over
+     *                 if it holds anything other than a buffer of this capacity.
+     * @param capacity The number of spans the buffer holds
+     */
+    public SyncTracer(File file, int capacity) {
+        mFile = file;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Starts the trace of a sync.
+     *
+     * @return The trace, to record the sync's stages in
+     */
+    public synchronized Trace beginTrace() {
+        long id = 0;
+        MappedByteBuffer buffer = getBuffer();
+        if (buffer != null) {
+            id = buffer.getLong(HEADER_NEXT_TRACE_ID);
+            buffer.putLong(HEADER_NEXT_TRACE_ID, id + 1);
+        }
+        return new Trace(id);
+    }
+
+    /**
+     * Reads every span that is in the buffer.
+     *
+     * @return The spans, oldest first
+     */
+    public synchronized List<Span> readSpans() {
+        List<Span> spans = new ArrayList<>();
+        MappedByteBuffer buffer = getBuffer();
+        if (buffer == null) return spans;
+
+        long nextSequence = buffer.getLong(HEADER_NEXT_SEQUENCE);
+        for (long sequence = Math.max(0, nextSequence - mCapacity);
+                sequence < nextSequence; sequence++) {
+            int offset = getRecordOffset(sequence);
+
+            /* A slot that doesn't hold this sequence was torn, or never written */
+            if (buffer.getLong(offset + RECORD_SEQUENCE) != sequence + 1) continue;
+
+            spans.add(new Span(
+                    buffer.getLong(offset + RECORD_TRACE_ID),
+                    buffer.getShort(offset + RECORD_STAGE),
+                    buffer.getShort(offset + RECORD_STATUS),
+                    buffer.getLong(offset + RECORD_START_MILLIS),
+                    buffer.getLong(offset + RECORD_DURATION_NANOS),
+                    buffer.getLong(offset + RECORD_BYTES),
+                    buffer.getInt(offset + RECORD_ROWS)));
+        }
+        return spans;
+    }
+
+    /**
+     * Writes every span in the buffer as CSV, oldest first, with a header line.
+     *
+     * @param writer Where to write the spans to
+     */
+    public void export(PrintWriter writer) {
+        writer.println("trace,stage,status,start_millis,duration_micros,bytes,rows");
+        for (Span span : readSpans()) {
+            writer.println(String.format(Locale.US, "%d,%s,%s,%d,%d,%d,%d",
+                    span.traceId,
+                    getStageName(span.stage),
+                    getStatusName(span.status),
+                    span.startMillis,
+                    span.durationNanos / 1000,
+                    span.bytes,
+                    span.rows));
+        }
+    }
+
+    /**
+     * @param stage One of the STAGE constants
+     * @return The name the stage is exported under
+     */
+    public static String getStageName(int stage) {
+        return stage >= 0 && stage < STAGE_NAMES.length ? STAGE_NAMES[stage] : "unknown";
+    }
+
+    private static String getStatusName(int status) {
+        return status >= 0 && status < STATUS_NAMES.length ? STATUS_NAMES[status] : "unknown";
+    }
+
+    /* Writes a span that began at startNanos and has just ended into the oldest slot */
+    private synchronized void record(long traceId, int stage, int status, long startNanos,
+            long bytes, int rows) {
+        long durationNanos = System.nanoTime() - startNanos;
+        MappedByteBuffer buffer = getBuffer();
+        if (buffer == null) return;
+
+        long sequence = buffer.getLong(HEADER_NEXT_SEQUENCE);
+        int offset = getRecordOffset(sequence);
+
+        /* Clear the sequence first, so a record that is half written never reads as whole */
+        buffer.putLong(offset + RECORD_SEQUENCE, 0);
+        buffer.putLong(offset + RECORD_TRACE_ID, traceId);
+        buffer.putLong(offset + RECORD_START_MILLIS,
+                System.currentTimeMillis() - durationNanos / 1000000);
+        buffer.putLong(offset + RECORD_DURATION_NANOS, durationNanos);
+        buffer.putLong(offset + RECORD_BYTES, bytes);
+        buffer.putShort(offset + RECORD_STAGE, (short) stage);
+        buffer.putShort(offset + RECORD_STATUS, (short) status);
+        buffer.putInt(offset + RECORD_ROWS, rows);
+        buffer.putLong(offset + RECORD_SEQUENCE, sequence + 1);
+
+        buffer.putLong(HEADER_NEXT_SEQUENCE, sequence + 1);
+    }
+
+    private int getRecordOffset(long sequence) {
+        return HEADER_SIZE + (int) (sequence % mCapacity) * RECORD_SIZE;
+    }
+
+    /* Maps the file the first time it is needed, starting it over if it isn't ours */
+    private MappedByteBuffer getBuffer() {
+        if (mMapped) return mBuffer;
+        mMapped = true;
+
+        int size = HEADER_SIZE + mCapacity * RECORD_SIZE;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            boolean valid = file.length() == size;
+            file.setLength(size);
+
+            /* The mapping stays valid after the file is closed */
+            MappedByteBuffer buffer = file.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            valid = valid
+                    && buffer.getInt(0) == MAGIC
+                    && buffer.getInt(4) == VERSION
+                    && buffer.getInt(HEADER_CAPACITY) == mCapacity;
+            if (!valid) {
+                for (int i = 0; i < size; i += 8) {
+                    buffer.putLong(i, 0);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(HEADER_CAPACITY, mCapacity);
+            }
+            mBuffer = buffer;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't map the sync trace, so syncs won't be traced", e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    /* The mapping is all we need */
+                }
+            }
+        }
+        return mBuffer;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+
+import com.google.android.gms.wearable.DataMap;
+
+/**
+ * Utility functions for sending the forecast to the watch face. The keys here must match the
+ * ones SunshineWatchFace reads in the wear module.
+ */
+public final class WearableDataUtils {
+
+    /* The path of the data item that holds today's weather for the watch face */
+    public static final String PATH_WEATHER_DATA = "/weather_data";
+
+    public static final String KEY_TEMP_MIN = "tempMin";
+    public static final String KEY_TEMP_MAX = "tempMax";
+
+    /* Holds the JPEG bytes of the weather icon, despite its name */
+    public static final String KEY_WEATHER_ICON = "weatherId";
+
+    /* Changes on every send, so the watch is told even if the weather is the same */
+    public static final String KEY_TIME = "time";
+
+    private WearableDataUtils() {
+    }
+
+    /**
+     * Writes one day's temperatures into a DataMap, formatted the way the phone shows them, in
+     * the user's preferred units.
+     *
+     * @param context Used to format the temperatures
+     * @param map     The DataMap to write to
+     * @param minTemp The day's low, in Celsius
+     * @param maxTemp The day's high, in Celsius
+     */
+    public static void putTemperatures(Context context, DataMap map, double minTemp,
+                                       double maxTemp) {
+        map.putString(KEY_TEMP_MIN, SunshineWeatherUtils.formatTemperature(context, minTemp));
+        map.putString(KEY_TEMP_MAX, SunshineWeatherUtils.formatTemperature(context, maxTemp));
+    }
+}